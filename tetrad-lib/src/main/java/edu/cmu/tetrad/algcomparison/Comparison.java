@@ -39,7 +39,9 @@ import edu.cmu.tetrad.algcomparison.statistic.Statistics;
 import edu.cmu.tetrad.algcomparison.utils.HasKnowledge;
 import edu.cmu.tetrad.algcomparison.utils.HasParameterValues;
 import edu.cmu.tetrad.algcomparison.utils.HasParameters;
+import edu.cmu.tetrad.algcomparison.utils.RunScheduler;
 import edu.cmu.tetrad.algcomparison.utils.TakesInitialGraph;
+import edu.cmu.tetrad.algcomparison.utils.UsesThreads;
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.search.DagToPag;
@@ -50,10 +52,10 @@ import org.reflections.Reflections;
 
 import java.io.*;
 import java.lang.reflect.Constructor;
+import java.rmi.MarshalledObject;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
-import java.util.concurrent.RecursiveTask;
 
 /**
  * Script to do a comparison of a list of algorithms using a list of statistics and a list
@@ -67,6 +69,10 @@ public class Comparison {
 
         public enum ComparisonGraph {true_DAG, Pattern_of_the_true_DAG, PAG_of_the_true_DAG}
 
+    // The number of bytes a run is taken to need for each byte of the data it searches over, when
+    // runs are scheduled in parallel.
+    private static final int MEMORY_PER_DATA_BYTE = 4;
+
     private boolean[] graphTypeUsed;
     private PrintStream out;
     private boolean tabDelimitedTables = false;
@@ -79,6 +85,8 @@ public class Comparison {
     private String dataPath = null;
     private String resultsPath = null;
     private boolean parallelized = true;
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+    private long maxMemory = Runtime.getRuntime().maxMemory() / 2;
     private boolean savePatterns = false;
     private boolean savePags = false;
     private ArrayList<String> dirs = null;
@@ -857,69 +865,60 @@ public class Comparison {
         double[][][][] allStats = new double[4][algorithmSimulationWrappers.size()][statistics.size() + 1][numRuns];
 
         List<AlgorithmTask> tasks = new ArrayList<>();
+        RandomStreams streams = RandomStreams.fromRandomUtil();
+        Map<Algorithm, MarshalledObject<Algorithm>> templates = new IdentityHashMap<>();
         int index = 0;
 
         for (int algSimIndex = 0; algSimIndex < algorithmSimulationWrappers.size(); algSimIndex++) {
             for (int runIndex = 0; runIndex < numRuns; runIndex++) {
                 AlgorithmSimulationWrapper algorithmSimulationWrapper = algorithmSimulationWrappers.get(algSimIndex);
                 Run run = new Run(algSimIndex, runIndex, index++, algorithmSimulationWrapper);
+                Algorithm algorithm = algorithmSimulationWrapper.getAlgorithmWrapper().getAlgorithm();
+
+                if (isParallelized() && !templates.containsKey(algorithm)) {
+                    templates.put(algorithm, template(algorithm));
+                }
+
                 AlgorithmTask task = new AlgorithmTask(algorithmSimulationWrappers,
                         algorithmWrappers, simulationWrappers,
-                        statistics, numGraphTypes, allStats, run);
-                task.compute();
-//                tasks.add(task);
+                        statistics, numGraphTypes, allStats, run, streams, templates.get(algorithm));
+                tasks.add(task);
             }
         }
 
-//        if (!isParallelized()) {
-//            for (AlgorithmTask task : tasks) {
-//                task.compute();
-//            }
-//        } else {
-//            class Task extends RecursiveTask<Boolean> {
-//                List<AlgorithmTask> tasks;
-//
-//                public Task(List<AlgorithmTask> tasks) {
-//                    this.tasks = tasks;
-//                }
-//
-//                @Override
-//                protected Boolean compute() {
-//                    Queue<AlgorithmTask> tasks = new ArrayDeque<>();
-//
-//                    for (AlgorithmTask task : this.tasks) {
-//                        tasks.add(task);
-//                        task.fork();
-//
-//                        for (AlgorithmTask _task : new ArrayList<>(tasks)) {
-//                            if (_task.isDone()) {
-//                                _task.join();
-//                                tasks.remove(_task);
-//                            }
-//                        }
-//
-//                        while (tasks.size() > Runtime.getRuntime().availableProcessors()) {
-//                            AlgorithmTask _task = tasks.poll();
-//                            _task.join();
-//                        }
-//                    }
-//
-//                    for (AlgorithmTask task : tasks) {
-//                        task.join();
-//                    }
-//
-//                    return true;
-//                }
-//            }
-
-//            Task task = new Task(tasks);
-//
-//            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
-//        }
+        // Each task writes only its own cells of allStats and draws from its own random stream, so
+        // the tables come out the same however the tasks are scheduled.
+        if (!isParallelized()) {
+            for (AlgorithmTask task : tasks) {
+                task.run();
+            }
+        } else {
+            new RunScheduler(maxThreads, maxMemory).runAll(tasks);
+        }
 
         return allStats;
     }
 
+    /**
+     * Runs of an algorithm share its instance, and it and its test or score wrappers may keep state from
+     * a search--the knowledge, the data set. So each run of a parallelized comparison searches with its
+     * own copy, deserialized from a template serialized before any run starts.
+     *
+     * @return the template, or null if the algorithm must be shared: if it is external, or if it can't
+     * be serialized.
+     */
+    private static MarshalledObject<Algorithm> template(Algorithm algorithm) {
+        if (algorithm instanceof ExternalAlgorithm) {
+            return null;
+        }
+
+        try {
+            return new MarshalledObject<>(algorithm);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public boolean isShowSimulationIndices() {
         return showSimulationIndices;
     }
@@ -976,6 +975,33 @@ public class Comparison {
         this.parallelized = parallelized;
     }
 
+    /**
+     * @return the number of threads the runs of a parallelized comparison may keep busy together.
+     * A run counts for one thread, or for the threads it says it uses if its algorithm UsesThreads;
+     * see getNumThreads.
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) throw new IllegalArgumentException("Max threads must be >= 1: " + maxThreads);
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @return the number of bytes the runs of a parallelized comparison may need together. A run is
+     * taken to need MEMORY_PER_DATA_BYTE bytes for each byte of the data it searches over.
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public void setMaxMemory(long maxMemory) {
+        if (maxMemory < 0) throw new IllegalArgumentException("Max memory must be >= 0: " + maxMemory);
+        this.maxMemory = maxMemory;
+    }
+
     /**
      * @return True if patterns should be saved out.
      */
@@ -1065,7 +1091,7 @@ public class Comparison {
     }
 
 
-    private class AlgorithmTask extends RecursiveTask<Boolean> {
+    private class AlgorithmTask implements RunScheduler.Job {
         private List<AlgorithmSimulationWrapper> algorithmSimulationWrappers;
         private List<AlgorithmWrapper> algorithmWrappers;
         private List<SimulationWrapper> simulationWrappers;
@@ -1073,10 +1099,13 @@ public class Comparison {
         private int numGraphTypes;
         private double[][][][] allStats;
         private final Run run;
+        private final RandomStreams streams;
+        private final MarshalledObject<Algorithm> template;
 
         public AlgorithmTask(List<AlgorithmSimulationWrapper> algorithmSimulationWrappers,
                              List<AlgorithmWrapper> algorithmWrappers, List<SimulationWrapper> simulationWrappers,
-                             Statistics statistics, int numGraphTypes, double[][][][] allStats, Run run) {
+                             Statistics statistics, int numGraphTypes, double[][][][] allStats, Run run,
+                             RandomStreams streams, MarshalledObject<Algorithm> template) {
             this.algorithmSimulationWrappers = algorithmSimulationWrappers;
             this.simulationWrappers = simulationWrappers;
             this.algorithmWrappers = algorithmWrappers;
@@ -1084,13 +1113,69 @@ public class Comparison {
             this.numGraphTypes = numGraphTypes;
             this.allStats = allStats;
             this.run = run;
+            this.streams = streams;
+            this.template = template;
+        }
+
+        @Override
+        public void run() {
+            streams.run(run.getIndex(), () -> doRun(algorithmSimulationWrappers, algorithmWrappers,
+                    simulationWrappers, statistics, numGraphTypes, allStats, run, template));
+        }
+
+        /**
+         * @return the number of bytes of data the run searches over.
+         */
+        @Override
+        public long getSize() {
+            AlgorithmWrapper algorithmWrapper = run.getWrapper().getAlgorithmWrapper();
+            SimulationWrapper simulationWrapper = run.getWrapper().getSimulationWrapper();
+            long size = dataBytes(simulationWrapper.getDataModel(run.getRunIndex()));
+
+            if (algorithmWrapper.getAlgorithm() instanceof MultiDataSetAlgorithm) {
+                size *= Math.min(simulationWrapper.getSimulation().getNumDataModels(),
+                        algorithmWrapper.getAlgorithmSpecificParameters().getInt("randomSelectionSize"));
+            }
+
+            return size;
         }
 
         @Override
-        protected Boolean compute() {
-            doRun(algorithmSimulationWrappers, algorithmWrappers,
-                    simulationWrappers, statistics, numGraphTypes, allStats, run);
-            return true;
+        public long getMemory() {
+            return (copyData ? MEMORY_PER_DATA_BYTE + 1 : MEMORY_PER_DATA_BYTE) * getSize();
+        }
+
+        @Override
+        public int getNumThreads() {
+            AlgorithmWrapper algorithmWrapper = run.getWrapper().getAlgorithmWrapper();
+            return Comparison.getNumThreads(algorithmWrapper.getAlgorithm(),
+                    algorithmWrapper.getAlgorithmSpecificParameters());
+        }
+    }
+
+    /**
+     * @return the number of threads a run of the given algorithm with the given parameters is
+     * budgeted for in a parallelized comparison: what the algorithm says if it UsesThreads, and
+     * otherwise one. Work the run hands to the shared ForkJoin pool is not counted, since that pool
+     * has no more workers than there are processors however many runs use it.
+     */
+    public static int getNumThreads(Algorithm algorithm, Parameters parameters) {
+        if (algorithm instanceof UsesThreads) {
+            return ((UsesThreads) algorithm).getNumThreads(parameters);
+        }
+
+        return 1;
+    }
+
+    private static long dataBytes(DataModel dataModel) {
+        if (dataModel instanceof DataSet) {
+            DataSet dataSet = (DataSet) dataModel;
+            return 8L * dataSet.getNumRows() * dataSet.getNumColumns();
+        } else if (dataModel instanceof ICovarianceMatrix) {
+            int dimension = ((ICovarianceMatrix) dataModel).getDimension();
+            return 8L * dimension * dimension;
+        } else {
+            return 0;
         }
     }
 
@@ -1140,18 +1225,17 @@ public class Comparison {
     private void doRun(List<AlgorithmSimulationWrapper> algorithmSimulationWrappers,
                        List<AlgorithmWrapper> algorithmWrappers, List<SimulationWrapper> simulationWrappers,
                        Statistics statistics,
-                       int numGraphTypes, double[][][][] allStats, Run run) {
-        System.out.println();
-        System.out.println("Run " + (run.getRunIndex() + 1));
-        System.out.println();
-
+                       int numGraphTypes, double[][][][] allStats, Run run,
+                       MarshalledObject<Algorithm> template) {
         AlgorithmSimulationWrapper algorithmSimulationWrapper = algorithmSimulationWrappers.get(run.getAlgSimIndex());
         AlgorithmWrapper algorithmWrapper = algorithmSimulationWrapper.getAlgorithmWrapper();
         SimulationWrapper simulationWrapper = algorithmSimulationWrapper.getSimulationWrapper();
         DataModel data = simulationWrapper.getDataModel(run.getRunIndex());
         Graph trueGraph = simulationWrapper.getTrueGraph(run.getRunIndex());
 
-        System.out.println((run.getAlgSimIndex() + 1) + ". " + algorithmWrapper.getDescription()
+        // One println, so that lines from runs in parallel are not interleaved.
+        System.out.println("\nRun " + (run.getRunIndex() + 1) + "\n\n"
+                + (run.getAlgSimIndex() + 1) + ". " + algorithmWrapper.getDescription()
                 + " simulationWrapper: " + simulationWrapper.getDescription());
 
         long start = System.currentTimeMillis();
@@ -1159,38 +1243,17 @@ public class Comparison {
 
         try {
             Algorithm algorithm = algorithmWrapper.getAlgorithm();
-            Simulation simulation = simulationWrapper.getSimulation();
-
-            if (algorithm instanceof HasKnowledge && simulation instanceof HasKnowledge) {
-                ((HasKnowledge) algorithm).setKnowledge(((HasKnowledge) simulation).getKnowledge());
-            }
 
-            if (algorithmWrapper.getAlgorithm() instanceof ExternalAlgorithm) {
-                ExternalAlgorithm external = (ExternalAlgorithm) algorithmWrapper.getAlgorithm();
-                external.setSimulation(simulationWrapper.getSimulation());
-                external.setPath(resultsPath);
-                external.setSimIndex(simulationWrappers.indexOf(simulationWrapper));
-            }
+            if (template != null) {
+                out = search(template.get(), algorithmWrapper, simulationWrapper, simulationWrappers, data);
+            } else if (isParallelized()) {
 
-            if (algorithm instanceof MultiDataSetAlgorithm) {
-                List<Integer> indices = new ArrayList<>();
-                int numDataModels = simulationWrapper.getSimulation().getNumDataModels();
-                for (int i = 0; i < numDataModels; i++) indices.add(i);
-                Collections.shuffle(indices);
-
-                List<DataModel> dataModels = new ArrayList<>();
-                int randomSelectionSize = algorithmWrapper.getAlgorithmSpecificParameters().getInt(
-                        "randomSelectionSize");
-                for (int i = 0; i < Math.min(numDataModels, randomSelectionSize); i++) {
-                    dataModels.add(simulationWrapper.getSimulation().getDataModel(indices.get(i)));
+                // The instance is shared with other runs; hold it until the search is done.
+                synchronized (algorithm) {
+                    out = search(algorithm, algorithmWrapper, simulationWrapper, simulationWrappers, data);
                 }
-
-                Parameters _params = algorithmWrapper.getAlgorithmSpecificParameters();
-                out = ((MultiDataSetAlgorithm) algorithm).search(dataModels, _params);
             } else {
-                DataModel dataModel = copyData ? data.copy() : data;
-                Parameters _params = algorithmWrapper.getAlgorithmSpecificParameters();
-                out = algorithm.search(dataModel, _params);
+                out = search(algorithm, algorithmWrapper, simulationWrapper, simulationWrappers, data);
             }
         } catch (Exception e) {
             System.out.println("Could not run " + algorithmWrapper.getDescription());
@@ -1214,10 +1277,13 @@ public class Comparison {
 
         if (algorithmWrapper.getAlgorithm() instanceof ExternalAlgorithm) {
             ExternalAlgorithm extAlg = (ExternalAlgorithm) algorithmWrapper.getAlgorithm();
-            extAlg.setSimIndex(simulationWrappers.indexOf(simulationWrapper));
-            extAlg.setSimulation(simulationWrapper.getSimulation());
-            extAlg.setPath(resultsPath);
-            elapsed = extAlg.getElapsedTime(data, simulationWrapper.getSimulationSpecificParameters());
+
+            synchronized (extAlg) {
+                extAlg.setSimIndex(simulationWrappers.indexOf(simulationWrapper));
+                extAlg.setSimulation(simulationWrapper.getSimulation());
+                extAlg.setPath(resultsPath);
+                elapsed = extAlg.getElapsedTime(data, simulationWrapper.getSimulationSpecificParameters());
+            }
         }
 
         Graph[] est = new Graph[numGraphTypes];
@@ -1284,6 +1350,43 @@ public class Comparison {
         }
     }
 
+    private Graph search(Algorithm algorithm, AlgorithmWrapper algorithmWrapper, SimulationWrapper simulationWrapper,
+                         List<SimulationWrapper> simulationWrappers, DataModel data) {
+        Simulation simulation = simulationWrapper.getSimulation();
+
+        if (algorithm instanceof HasKnowledge && simulation instanceof HasKnowledge) {
+            ((HasKnowledge) algorithm).setKnowledge(((HasKnowledge) simulation).getKnowledge());
+        }
+
+        if (algorithmWrapper.getAlgorithm() instanceof ExternalAlgorithm) {
+            ExternalAlgorithm external = (ExternalAlgorithm) algorithmWrapper.getAlgorithm();
+            external.setSimulation(simulationWrapper.getSimulation());
+            external.setPath(resultsPath);
+            external.setSimIndex(simulationWrappers.indexOf(simulationWrapper));
+        }
+
+        if (algorithm instanceof MultiDataSetAlgorithm) {
+            List<Integer> indices = new ArrayList<>();
+            int numDataModels = simulationWrapper.getSimulation().getNumDataModels();
+            for (int i = 0; i < numDataModels; i++) indices.add(i);
+            Collections.shuffle(indices, new Random(RandomUtil.getInstance().nextLong()));
+
+            List<DataModel> dataModels = new ArrayList<>();
+            int randomSelectionSize = algorithmWrapper.getAlgorithmSpecificParameters().getInt(
+                    "randomSelectionSize");
+            for (int i = 0; i < Math.min(numDataModels, randomSelectionSize); i++) {
+                dataModels.add(simulationWrapper.getSimulation().getDataModel(indices.get(i)));
+            }
+
+            Parameters _params = algorithmWrapper.getAlgorithmSpecificParameters();
+            return ((MultiDataSetAlgorithm) algorithm).search(dataModels, _params);
+        } else {
+            DataModel dataModel = copyData ? data.copy() : data;
+            Parameters _params = algorithmWrapper.getAlgorithmSpecificParameters();
+            return algorithm.search(dataModel, _params);
+        }
+    }
+
     private void saveGraph(String resultsPath, Graph graph, int i, int simIndex, int algIndex,
                            AlgorithmWrapper algorithmWrapper, long elapsed) {
         if (!saveGraphs) {
@@ -73,6 +73,7 @@ public class Rfci implements Algorithm, HasKnowledge, TakesIndependenceWrapper {
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(test));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
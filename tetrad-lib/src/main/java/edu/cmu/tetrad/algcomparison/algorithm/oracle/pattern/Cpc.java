@@ -85,6 +85,7 @@ public class Cpc implements Algorithm, TakesInitialGraph, HasKnowledge, TakesInd
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(test));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
@@ -82,6 +82,7 @@ public class CpcStable implements Algorithm, HasKnowledge, TakesIndependenceWrap
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(test));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
@@ -105,6 +105,7 @@ public class Fges implements Algorithm, TakesInitialGraph, HasKnowledge, UsesSco
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(score));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
@@ -90,6 +90,7 @@ public class Pc implements Algorithm, TakesInitialGraph, HasKnowledge, TakesInde
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(test));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
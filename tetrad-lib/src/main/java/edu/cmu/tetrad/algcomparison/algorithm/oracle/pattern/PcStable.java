@@ -85,6 +85,7 @@ public class PcStable implements Algorithm, TakesInitialGraph, HasKnowledge, Tak
             }
             search.setEdgeEnsemble(edgeEnsemble);
             search.setParameters(parameters);
+            search.setCovarianceReplicates(GeneralBootstrapTest.acceptsCovariance(test));
             search.setVerbose(parameters.getBoolean("verbose"));
             return search.search();
         }
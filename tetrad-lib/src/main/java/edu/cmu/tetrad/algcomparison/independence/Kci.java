@@ -5,6 +5,7 @@ import edu.cmu.tetrad.data.DataModel;
 import edu.cmu.tetrad.data.DataType;
 import edu.cmu.tetrad.data.DataUtils;
 import edu.cmu.tetrad.search.IndependenceTest;
+import edu.cmu.tetrad.search.kernel.LowRankKernelApproximation;
 import edu.cmu.tetrad.util.Parameters;
 
 import java.util.ArrayList;
@@ -34,6 +35,8 @@ public class Kci implements IndependenceWrapper {
         kci.setNumBootstraps(parameters.getInt("kciNumBootstraps"));
         kci.setThreshold(parameters.getDouble("thresholdForNumEigenvalues"));
         kci.setEpsilon(parameters.getDouble("kciEpsilon"));
+        kci.setLowRankApproximation(LowRankKernelApproximation.Method.NYSTROM,
+                parameters.getInt("kciApproximationRank"));
         return kci;
     }
 
@@ -56,6 +59,7 @@ public class Kci implements IndependenceWrapper {
         params.add("kciNumBootstraps");
         params.add("thresholdForNumEigenvalues");
         params.add("kciEpsilon");
+        params.add("kciApproximationRank");
         return params;
     }
 }
\ No newline at end of file
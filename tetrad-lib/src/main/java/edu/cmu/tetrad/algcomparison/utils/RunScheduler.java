@@ -0,0 +1,178 @@
+package edu.cmu.tetrad.algcomparison.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a list of jobs in parallel within a budget of threads and memory. Each job states how many
+ * threads it keeps busy and how much memory it needs; a job is started only when both fit in what
+ * the running jobs leave free, so that, for instance, several multithreaded searches are not run at
+ * once on the same cores. Jobs are started largest first, and smaller jobs are started out of
+ * order when a larger one does not fit. A job that needs more than the whole budget is run alone.
+ * <p>
+ * The jobs must write their results to places of their own; the order in which they finish is not
+ * defined.
+ */
+public final class RunScheduler {
+
+    /**
+     * A job to be scheduled.
+     */
+    public interface Job extends Runnable {
+
+        /**
+         * @return the size of the job, used to start larger jobs first.
+         */
+        long getSize();
+
+        /**
+         * @return the number of bytes the job needs while it runs.
+         */
+        long getMemory();
+
+        /**
+         * @return the number of threads the job keeps busy while it runs.
+         */
+        int getNumThreads();
+    }
+
+    private final int maxThreads;
+    private final long maxMemory;
+
+    // Guarded by this.
+    private int freeThreads;
+    private long freeMemory;
+    private int numRunning;
+    private Throwable failure;
+
+    /**
+     * @param maxThreads The number of threads the running jobs may keep busy together.
+     * @param maxMemory  The number of bytes the running jobs may need together.
+     */
+    public RunScheduler(int maxThreads, long maxMemory) {
+        if (maxThreads < 1) throw new IllegalArgumentException("Max threads must be >= 1: " + maxThreads);
+        if (maxMemory < 0) throw new IllegalArgumentException("Max memory must be >= 0: " + maxMemory);
+        this.maxThreads = maxThreads;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Runs the given jobs, returning when all of them have finished.
+     *
+     * @throws RuntimeException wrapping the first exception thrown by a job, after the jobs that
+     *                          had been started have finished.
+     */
+    public void runAll(List<? extends Job> jobs) {
+        List<Job> pending = new LinkedList<>(sortBySize(jobs));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, Math.max(1, jobs.size())));
+
+        synchronized (this) {
+            freeThreads = maxThreads;
+            freeMemory = maxMemory;
+            numRunning = 0;
+            failure = null;
+        }
+
+        try {
+            synchronized (this) {
+                while (!pending.isEmpty() && failure == null) {
+                    Job job = nextFitting(pending);
+
+                    if (job == null) {
+                        wait();
+                        continue;
+                    }
+
+                    final int threads = threads(job);
+                    final long memory = memory(job);
+
+                    freeThreads -= threads;
+                    freeMemory -= memory;
+                    numRunning++;
+
+                    executor.execute(() -> {
+                        try {
+                            job.run();
+                        } catch (Throwable e) {
+                            synchronized (RunScheduler.this) {
+                                if (failure == null) failure = e;
+                            }
+                        } finally {
+                            synchronized (RunScheduler.this) {
+                                freeThreads += threads;
+                                freeMemory += memory;
+                                numRunning--;
+                                RunScheduler.this.notifyAll();
+                            }
+                        }
+                    });
+                }
+
+                while (numRunning > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running jobs.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    /**
+     * @return the jobs, largest first; jobs of equal size stay in the given order.
+     */
+    private static List<Job> sortBySize(List<? extends Job> jobs) {
+        List<Job> sorted = new ArrayList<>(jobs);
+        Collections.sort(sorted, (j1, j2) -> Long.compare(j2.getSize(), j1.getSize()));
+        return sorted;
+    }
+
+    /**
+     * Removes and returns the first pending job that fits in the free budget, or returns null if no
+     * job can be started now. Since demands are capped at the budget, the first job always fits when
+     * nothing is running.
+     */
+    private Job nextFitting(List<Job> pending) {
+        ListIterator<Job> iterator = pending.listIterator();
+
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+
+            if (threads(job) <= freeThreads && memory(job) <= freeMemory) {
+                iterator.remove();
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    private int threads(Job job) {
+        return Math.min(Math.max(1, job.getNumThreads()), maxThreads);
+    }
+
+    private long memory(Job job) {
+        return Math.min(Math.max(0, job.getMemory()), maxMemory);
+    }
+}
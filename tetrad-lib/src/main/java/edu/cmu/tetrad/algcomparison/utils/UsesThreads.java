@@ -0,0 +1,18 @@
+package edu.cmu.tetrad.algcomparison.utils;
+
+import edu.cmu.tetrad.util.Parameters;
+
+/**
+ * Tags an algorithm whose search runs on threads of its own, as in a ForkJoin pool it makes, so
+ * that a comparison can budget for them. A comparison budgets a run of an algorithm without this
+ * tag at one thread; work the run hands to the shared ForkJoin pool isn't counted, since that pool
+ * has no more workers than there are processors however many runs use it.
+ */
+public interface UsesThreads {
+
+    /**
+     * @return the number of threads a search with the given parameters keeps busy, not counting
+     * work on the shared ForkJoin pool.
+     */
+    int getNumThreads(Parameters parameters);
+}
@@ -0,0 +1,278 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.bayes;
+
+import edu.cmu.tetrad.data.DataBox;
+import edu.cmu.tetrad.data.PackedIntDataBox;
+import edu.cmu.tetrad.data.VerticalIntDataBox;
+import edu.cmu.tetrad.util.RandomStreams;
+import edu.cmu.tetrad.util.RandomUtil;
+
+/**
+ * Draws samples from a Bayes IM by forward sampling, using tables compiled from the IM once. Each row of each
+ * conditional probability table is made into a Walker alias table, so that drawing a value takes one uniform draw
+ * and one comparison however many categories the variable has, and the row for a combination of parent values is
+ * found by mixed-radix arithmetic over the dimensions of the parents, as getRowIndex finds it.
+ * <p>
+ * Samples are written to int columns, one per node, of the kind VerticalIntDataBox holds, or packed a block of
+ * rows at a time into a PackedIntDataBox, which for variables of few categories takes a small fraction of the
+ * memory. Blocks of rows are sampled in parallel, each from its own random stream, so the sample depends only on
+ * the seed of RandomUtil.
+ */
+public final class BayesImSampler {
+
+    /**
+     * The number of rows sampled from each random stream.
+     */
+    private static final int BLOCK_SIZE = 1000;
+
+    /**
+     * The nodes, parents before children.
+     */
+    private final int[] tiers;
+
+    /**
+     * The parents of each node, and their numbers of categories.
+     */
+    private final int[][] parents;
+    private final int[][] parentDims;
+
+    /**
+     * The number of categories of each node.
+     */
+    private final int[] numCategories;
+
+    /**
+     * For each node, the alias tables of its rows, one after another. The entry for row r and category k is at
+     * r * numCategories + k. Rows with missing probabilities have NaN cutoffs.
+     */
+    private final double[][] cutoffs;
+    private final int[][] aliases;
+
+    /**
+     * Compiles a sampler for the given IM.
+     *
+     * @param im    The IM. Later changes to its probabilities are not seen by the sampler.
+     * @param tiers The indices of the nodes of the IM, parents before children.
+     */
+    public BayesImSampler(BayesIm im, int[] tiers) {
+        int numNodes = im.getNumNodes();
+
+        this.tiers = tiers.clone();
+        this.parents = new int[numNodes][];
+        this.parentDims = new int[numNodes][];
+        this.numCategories = new int[numNodes];
+        this.cutoffs = new double[numNodes][];
+        this.aliases = new int[numNodes][];
+
+        for (int node = 0; node < numNodes; node++) {
+            int numRows = im.getNumRows(node);
+            int numCols = im.getNumColumns(node);
+
+            parents[node] = im.getParents(node).clone();
+            parentDims[node] = im.getParentDims(node).clone();
+            numCategories[node] = numCols;
+            cutoffs[node] = new double[numRows * numCols];
+            aliases[node] = new int[numRows * numCols];
+
+            double[] probs = new double[numCols];
+
+            for (int row = 0; row < numRows; row++) {
+                for (int k = 0; k < numCols; k++) {
+                    probs[k] = im.getProbability(node, row, k);
+                }
+
+                makeAliasTable(probs, cutoffs[node], aliases[node], row * numCols);
+            }
+        }
+    }
+
+    /**
+     * Draws a sample of the given size, with blocks of rows drawn in parallel.
+     *
+     * @return the sample, by node index, then row.
+     * @throws IllegalStateException if a probability needed is missing.
+     */
+    public int[][] sample(int sampleSize) {
+        final int[][] columns = new int[numCategories.length][sampleSize];
+
+        RandomStreams.forEachBlockOfRandomUtil(sampleSize, BLOCK_SIZE,
+                (from, to, random) -> sample(columns, from, to, random));
+
+        return columns;
+    }
+
+    /**
+     * Draws a sample of the given size into a data box, with blocks of rows drawn in parallel. The box is a
+     * PackedIntDataBox if every node has at most PackedIntDataBox.MAX_CATEGORIES categories; each block is then
+     * drawn into int columns of its own and packed, so the whole sample is never held as ints. Otherwise it is a
+     * VerticalIntDataBox. Either way the values are those sample(sampleSize) draws.
+     *
+     * @return the sample, with a column for each node index.
+     * @throws IllegalStateException if a probability needed is missing.
+     */
+    public DataBox sampleBox(int sampleSize) {
+        for (int n : numCategories) {
+            if (n > PackedIntDataBox.MAX_CATEGORIES) {
+                return new VerticalIntDataBox(sample(sampleSize));
+            }
+        }
+
+        final PackedIntDataBox box = new PackedIntDataBox(sampleSize, numCategories);
+
+        RandomStreams.forEachBlockOfRandomUtil(sampleSize, BLOCK_SIZE, (from, to, random) -> {
+            int[][] block = new int[numCategories.length][to - from];
+            sample(block, from, from, to, random);
+
+            for (int node = 0; node < block.length; node++) {
+                box.setColumn(node, from, block[node]);
+            }
+        });
+
+        box.dropEmptyMissingPlanes();
+        return box;
+    }
+
+    /**
+     * Draws rows from..to - 1 of a sample.
+     *
+     * @param columns The sample, by node index, then row.
+     * @param random  The random numbers to draw from.
+     * @throws IllegalStateException if a probability needed is missing.
+     */
+    public void sample(int[][] columns, int from, int to, RandomUtil random) {
+        sample(columns, 0, from, to, random);
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    // Draws rows from..to - 1 of a sample into columns whose first entries are for row offset.
+    private void sample(int[][] columns, int offset, int from, int to, RandomUtil random) {
+        for (int i = from - offset; i < to - offset; i++) {
+            for (int node : tiers) {
+                int[] _parents = parents[node];
+                int[] dims = parentDims[node];
+                int row = 0;
+
+                for (int k = 0; k < _parents.length; k++) {
+                    row *= dims[k];
+                    row += columns[_parents[k]][i];
+                }
+
+                columns[node][i] = draw(node, row, random.nextDouble());
+            }
+        }
+    }
+
+    // Draws a category for the given node and row, given a uniform draw from [0, 1).
+    private int draw(int node, int row, double uniform) {
+        int n = numCategories[node];
+        double u = uniform * n;
+        int k = Math.min((int) u, n - 1);
+        int index = row * n + k;
+        double cutoff = cutoffs[node][index];
+
+        if (Double.isNaN(cutoff)) {
+            throw new IllegalStateException("Some probability " +
+                    "values in the BayesIm are not filled in; " +
+                    "cannot simulate data.");
+        }
+
+        return u - k < cutoff ? k : aliases[node][index];
+    }
+
+    /**
+     * Builds the alias table for the given probabilities, by Vose's method, into cutoffs and aliases starting at
+     * the given offset. The probabilities are normalized first. If any is missing the cutoffs are NaN; if they
+     * sum to zero, the first category is always drawn.
+     */
+    private static void makeAliasTable(double[] probs, double[] cutoffs, int[] aliases, int offset) {
+        int n = probs.length;
+        double total = 0.0;
+
+        for (double p : probs) {
+            total += p;
+        }
+
+        if (Double.isNaN(total)) {
+            for (int k = 0; k < n; k++) {
+                cutoffs[offset + k] = Double.NaN;
+            }
+
+            return;
+        }
+
+        if (!(total > 0)) {
+            for (int k = 0; k < n; k++) {
+                cutoffs[offset + k] = 0.0;
+                aliases[offset + k] = 0;
+            }
+
+            return;
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+
+        for (int k = 0; k < n; k++) {
+            scaled[k] = probs[k] * n / total;
+
+            if (scaled[k] < 1.0) {
+                small[numSmall++] = k;
+            } else {
+                large[numLarge++] = k;
+            }
+        }
+
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+
+            cutoffs[offset + s] = scaled[s];
+            aliases[offset + s] = l;
+
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+
+            if (scaled[l] < 1.0) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+
+        // What is left has probability 1, up to rounding.
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            cutoffs[offset + l] = 1.0;
+            aliases[offset + l] = l;
+        }
+
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            cutoffs[offset + s] = 1.0;
+            aliases[offset + s] = s;
+        }
+    }
+}
@@ -59,8 +59,8 @@ public final class BayesProperties {
 
             this.variables = dataSet.getVariables();
 
-            if (!(((BoxDataSet) dataSet).getDataBox() instanceof VerticalIntDataBox)) {
-                throw new IllegalArgumentException();
+            if (!(dataBox instanceof VerticalIntDataBox)) {
+                dataBox = new VerticalIntDataBox(dataBox);
             }
 
             VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
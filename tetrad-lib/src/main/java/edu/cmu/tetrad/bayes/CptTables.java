@@ -0,0 +1,322 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import edu.cmu.tetrad.util.TetradSerializable;
+
+/**
+ * Stores the conditional probability tables of a Bayes IM compactly. All of
+ * the tables are kept in one contiguous array, node after node, each table row
+ * after row, so that the probability for a node, row and column is at
+ * offset(node) + row * numColumns(node) + column, and counts or potentials can
+ * be indexed the same way. The strides of the parents of each node in its row
+ * index are precomputed, so the row for a combination of parent values, or for
+ * the parent values in a full assignment of values to nodes, is found without
+ * allocating anything. Probabilities may be stored as floats to halve the
+ * memory used by large networks.
+ * <p>
+ * MlBayesIm keeps its probabilities in tables of this kind, which it alone
+ * changes. Other code, such as the junction tree updater and EM, reads a copy
+ * made from a Bayes IM; rows are numbered as MlBayesIm numbers them (see
+ * BayesIm.getRowIndex), so rows, columns and node indices carry over from the
+ * Bayes IM the tables were copied from. Later changes to that Bayes IM are not
+ * seen by the copy; make a new one.
+ */
+public final class CptTables implements TetradSerializable {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The number of rows and columns of the table of each node.
+     *
+     * @serial Cannot be null.
+     */
+    private final int[] numRows;
+    private final int[] numColumns;
+
+    /**
+     * The parents of each node, with their dimensions and their strides in the
+     * row index of the node.
+     *
+     * @serial Cannot be null.
+     */
+    private final int[][] parents;
+    private final int[][] parentDims;
+    private final int[][] parentStrides;
+
+    /**
+     * The offset of the table of each node in the stored probabilities.
+     *
+     * @serial Cannot be null.
+     */
+    private final int[] offsets;
+
+    /**
+     * The probabilities, in double precision, or null if they're stored in
+     * single precision.
+     *
+     * @serial Can be null.
+     */
+    private final double[] doubleProbs;
+
+    /**
+     * The probabilities, in single precision, or null if they're stored in
+     * double precision.
+     *
+     * @serial Can be null.
+     */
+    private final float[] floatProbs;
+
+    //============================CONSTRUCTORS============================//
+
+    /**
+     * Copies the tables of the given Bayes IM in double precision.
+     */
+    public CptTables(BayesIm bayesIm) {
+        this(bayesIm, false);
+    }
+
+    /**
+     * Copies the tables of the given Bayes IM.
+     *
+     * @param singlePrecision True if the probabilities should be stored as
+     *                        floats.
+     */
+    public CptTables(BayesIm bayesIm, boolean singlePrecision) {
+        this(parentsOf(bayesIm), parentDimsOf(bayesIm), numColumnsOf(bayesIm), singlePrecision);
+
+        for (int node = 0; node < numRows.length; node++) {
+            for (int row = 0; row < numRows[node]; row++) {
+                for (int col = 0; col < numColumns[node]; col++) {
+                    setProbability(getIndex(node, row, col), bayesIm.getProbability(node, row, col));
+                }
+            }
+        }
+    }
+
+    /**
+     * Lays out tables, all of whose probabilities are zero, for nodes with the
+     * given parents, parent dimensions and numbers of columns. The rows of the
+     * table of a node are the combinations of values of its parents.
+     */
+    CptTables(int[][] parents, int[][] parentDims, int[] numColumns, boolean singlePrecision) {
+        int numNodes = parents.length;
+
+        this.numRows = new int[numNodes];
+        this.numColumns = numColumns.clone();
+        this.parents = new int[numNodes][];
+        this.parentDims = new int[numNodes][];
+        this.parentStrides = new int[numNodes][];
+        this.offsets = new int[numNodes];
+
+        long size = 0;
+
+        for (int node = 0; node < numNodes; node++) {
+            this.parents[node] = parents[node].clone();
+            this.parentDims[node] = parentDims[node].clone();
+            parentStrides[node] = new int[parents[node].length];
+
+            int stride = 1;
+
+            for (int k = parents[node].length - 1; k >= 0; k--) {
+                parentStrides[node][k] = stride;
+                stride *= parentDims[node][k];
+            }
+
+            numRows[node] = stride;
+            offsets[node] = (int) size;
+            size += (long) numRows[node] * numColumns[node];
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The probability tables of this Bayes IM " +
+                        "are too large to store in one array.");
+            }
+        }
+
+        this.doubleProbs = singlePrecision ? null : new double[(int) size];
+        this.floatProbs = singlePrecision ? new float[(int) size] : null;
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static CptTables serializableInstance() {
+        return new CptTables(MlBayesIm.serializableInstance());
+    }
+
+    //===========================PUBLIC METHODS=========================//
+
+    public int getNumNodes() {
+        return offsets.length;
+    }
+
+    public int getNumRows(int nodeIndex) {
+        return numRows[nodeIndex];
+    }
+
+    public int getNumColumns(int nodeIndex) {
+        return numColumns[nodeIndex];
+    }
+
+    public int getNumParents(int nodeIndex) {
+        return parents[nodeIndex].length;
+    }
+
+    /**
+     * @return the given parent of the given node, in the order of
+     * BayesIm.getParents.
+     */
+    public int getParent(int nodeIndex, int parentIndex) {
+        return parents[nodeIndex][parentIndex];
+    }
+
+    /**
+     * @return the total number of probabilities stored.
+     */
+    public int getSize() {
+        return doubleProbs != null ? doubleProbs.length : floatProbs.length;
+    }
+
+    /**
+     * @return true if the probabilities are stored as floats.
+     */
+    public boolean isSinglePrecision() {
+        return floatProbs != null;
+    }
+
+    /**
+     * @return the index of the given cell in the stored probabilities.
+     */
+    public int getIndex(int nodeIndex, int rowIndex, int colIndex) {
+        return offsets[nodeIndex] + rowIndex * numColumns[nodeIndex] + colIndex;
+    }
+
+    /**
+     * @return the probability at the given index in the stored probabilities.
+     * @see #getIndex
+     */
+    public double getProbability(int index) {
+        return doubleProbs != null ? doubleProbs[index] : floatProbs[index];
+    }
+
+    /**
+     * @return the probability for the given node, row and column.
+     */
+    public double getProbability(int nodeIndex, int rowIndex, int colIndex) {
+        return getProbability(getIndex(nodeIndex, rowIndex, colIndex));
+    }
+
+    /**
+     * @return the row in the table for the given node and combination of parent
+     * values, given in the order of BayesIm.getParents.
+     */
+    public int getRowIndex(int nodeIndex, int[] values) {
+        int[] strides = parentStrides[nodeIndex];
+        int rowIndex = 0;
+
+        for (int k = 0; k < strides.length; k++) {
+            rowIndex += values[k] * strides[k];
+        }
+
+        return rowIndex;
+    }
+
+    /**
+     * @return the row in the table for the given node for the values its
+     * parents have in the given point, which gives a value for every node, by
+     * node index.
+     */
+    public int getRowIndexOfPoint(int nodeIndex, int[] point) {
+        int[] _parents = parents[nodeIndex];
+        int[] strides = parentStrides[nodeIndex];
+        int rowIndex = 0;
+
+        for (int k = 0; k < _parents.length; k++) {
+            rowIndex += point[_parents[k]] * strides[k];
+        }
+
+        return rowIndex;
+    }
+
+    /**
+     * Writes the combination of parent values for the given row of the table
+     * for the given node into the given array, which must have room for one
+     * value per parent.
+     */
+    public void getParentValues(int nodeIndex, int rowIndex, int[] values) {
+        int[] dims = parentDims[nodeIndex];
+
+        for (int k = dims.length - 1; k >= 0; k--) {
+            values[k] = rowIndex % dims[k];
+            rowIndex /= dims[k];
+        }
+    }
+
+    /**
+     * Sets the probability at the given index in the stored probabilities,
+     * rounding it to a float if they're stored in single precision. Only the
+     * MlBayesIm whose tables these are changes them.
+     */
+    void setProbability(int index, double value) {
+        if (doubleProbs != null) {
+            doubleProbs[index] = value;
+        } else {
+            floatProbs[index] = (float) value;
+        }
+    }
+
+    //===========================PRIVATE METHODS=========================//
+
+    private static int[][] parentsOf(BayesIm bayesIm) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        int[][] parents = new int[bayesIm.getNumNodes()][];
+
+        for (int node = 0; node < parents.length; node++) {
+            parents[node] = bayesIm.getParents(node);
+        }
+
+        return parents;
+    }
+
+    private static int[][] parentDimsOf(BayesIm bayesIm) {
+        int[][] parentDims = new int[bayesIm.getNumNodes()][];
+
+        for (int node = 0; node < parentDims.length; node++) {
+            parentDims[node] = bayesIm.getParentDims(node);
+        }
+
+        return parentDims;
+    }
+
+    private static int[] numColumnsOf(BayesIm bayesIm) {
+        int[] numColumns = new int[bayesIm.getNumNodes()];
+
+        for (int node = 0; node < numColumns.length; node++) {
+            numColumns[node] = bayesIm.getNumColumns(node);
+        }
+
+        return numColumns;
+    }
+}
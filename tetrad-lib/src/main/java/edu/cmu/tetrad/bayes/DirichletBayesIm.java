@@ -21,14 +21,16 @@
 
 package edu.cmu.tetrad.bayes;
 
-import edu.cmu.tetrad.data.ColtDataSet;
+import edu.cmu.tetrad.data.BoxDataSet;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.data.VerticalIntDataBox;
 import edu.cmu.tetrad.graph.Dag;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.graph.NodeType;
 import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.RandomStreams;
 import edu.cmu.tetrad.util.RandomUtil;
 
 import java.io.IOException;
@@ -789,8 +791,7 @@ public final class DirichletBayesIm implements BayesIm {
      * for latent variables is included in the simulated dataset.
      */
     public DataSet simulateData(int sampleSize, boolean latentDataSaved) {
-        return simulateDataHelper(sampleSize,
-                RandomUtil.getInstance(), latentDataSaved);
+        return simulateDataHelper(sampleSize, latentDataSaved);
     }
 
     /**
@@ -815,28 +816,20 @@ public final class DirichletBayesIm implements BayesIm {
      *                        included in the simulated data set.
      * @return the simulated sample as a DataSet.
      */
-    public DataSet simulateData(int sampleSize, long seed,
-                                boolean latentDataSaved) {
-        RandomUtil random = RandomUtil.getInstance();
-        long _seed = random.getSeed();
-        random.setSeed(seed);
-        DataSet dataSet = simulateData(sampleSize, latentDataSaved);
-        random.revertSeed(_seed);
-        return dataSet;
+    public DataSet simulateData(final int sampleSize, long seed,
+                                final boolean latentDataSaved) {
+        return RandomStreams.callWithSeed(seed, () -> simulateData(sampleSize, latentDataSaved));
     }
 
     /**
      * Simulates a sample with the given sample size.
      *
      * @param sampleSize      the sample size.
-     * @param randomUtil      optional random number generator to use when
-     *                        creating the data
      * @param latentDataSaved true iff data for latent variables should be
      *                        saved.
      * @return the simulated sample as a DataSet.
      */
     private DataSet simulateDataHelper(int sampleSize,
-                                       RandomUtil randomUtil,
                                        boolean latentDataSaved) {
         int numMeasured = 0;
         int[] map = new int[nodes.length];
@@ -861,9 +854,14 @@ public final class DirichletBayesIm implements BayesIm {
             map[index] = j;
         }
 
-        DataSet dataSet = new ColtDataSet(sampleSize, variables);
-        constructSample(sampleSize, randomUtil, numMeasured, dataSet, map);
-        return dataSet;
+        int[][] sample = constructSample(sampleSize);
+        int[][] columns = new int[numMeasured][];
+
+        for (int j = 0; j < numMeasured; j++) {
+            columns[j] = sample[map[j]];
+        }
+
+        return new BoxDataSet(new VerticalIntDataBox(columns), variables);
     }
 
 //    /**
@@ -914,9 +912,7 @@ public final class DirichletBayesIm implements BayesIm {
 //        return dataSet;
 //    }
 
-    private void constructSample(int sampleSize, RandomUtil randomUtil,
-                                 int numMeasured, DataSet dataSet,
-                                 int[] map) {
+    private int[][] constructSample(int sampleSize) {
         // Get a tier ordering and convert it to an int array.
         Graph graph = getBayesPm().getDag();
         Dag dag = new Dag(graph);
@@ -927,44 +923,8 @@ public final class DirichletBayesIm implements BayesIm {
             tiers[i] = getNodeIndex(tierOrdering.get(i));
         }
 
-        // Construct the sample.
-        int[] combination = new int[nodes.length];
-
-        for (int i = 0; i < sampleSize; i++) {
-            int[] point = new int[nodes.length];
-
-            for (int nodeIndex : tiers) {
-                double cutoff = randomUtil.nextDouble();
-
-                for (int k = 0; k < getNumParents(nodeIndex); k++) {
-                    combination[k] = point[getParent(nodeIndex, k)];
-                }
-
-                int rowIndex = getRowIndex(nodeIndex, combination);
-                double sum = 0.0;
-
-                for (int k = 0; k < getNumColumns(nodeIndex); k++) {
-                    double probability = getProbability(nodeIndex, rowIndex, k);
-
-                    if (Double.isNaN(probability)) {
-                        throw new IllegalStateException("Some probability " +
-                                "values in the BayesIm are not filled in; " +
-                                "cannot simulate data.");
-                    }
-
-                    sum += probability;
-
-                    if (sum >= cutoff) {
-                        point[nodeIndex] = k;
-                        break;
-                    }
-                }
-            }
-
-            for (int j = 0; j < numMeasured; j++) {
-                dataSet.setInt(i, j, point[map[j]]);
-            }
-        }
+        // Construct the sample, by node.
+        return new BayesImSampler(this, tiers).sample(sampleSize);
     }
 
 //    /**
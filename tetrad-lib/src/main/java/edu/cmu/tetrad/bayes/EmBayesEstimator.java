@@ -28,11 +28,12 @@ import edu.cmu.tetrad.graph.Dag;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.graph.NodeType;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.TetradLogger;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Estimates parameters of the given Bayes net from the given data using maximum
@@ -42,6 +43,13 @@ import java.util.List;
  *         Ramsey
  */
 public final class EmBayesEstimator {
+
+    /**
+     * The number of patterns whose expected counts are accumulated together
+     * in one task.
+     */
+    private static final int CHUNK_SIZE = 100;
+
     private BayesPm bayesPm;
 
     private DataSet dataSet;
@@ -59,35 +67,35 @@ public final class EmBayesEstimator {
     //private BayesIm bayesImMixed;
 
     /**
-     * The main data structure of this class is the double[][][] array
-     * estimatedCounts; it stores the values of all of the estimated counts for
-     * the Bayes net.  The first dimension is the node index, in the order of
-     * 'nodes'.  The second dimension is the row index for the table of
-     * parameters associated with node; the third dimension is the column index.
-     * The row index is calculated by the function getRowIndex(int[] values)
-     * where 'values' is an array of numerical indices for each of the parent
-     * values; the order of the values in this array is the same as the order of
-     * nodes in 'parents'; the value indices are obtained from the Bayes PM
-     * for each node.  The column is the index of the value of N, where this
-     * index is obtained from the Bayes PM.
+     * The distinct rows of mixedData, with missing values coded as -99, and
+     * the number of times each occurs. Expected counts are calculated once per
+     * pattern rather than once per case.
      */
-    private double[][][] estimatedCounts;
+    private int[][] patterns;
+    private double[] patternCounts;
 
     /**
-     * For each row of the conditional probability table for each node, this is
-     * the estimated count of the number of occurrences of the corresponding set
-     * of values of parents in the dataset.  The first dimension is the node
-     * index and the second is the row number. Hence the conditional
-     * probabilities are computed by dividing estimatedCounts[node][row][column]
-     * by estimateCountsDenom[node][row].
+     * The junction tree used to calculate the distributions of the families of
+     * variables with missing values, given the observed values of a pattern.
      */
-    private double[][] estimatedCountsDenom;
+    private JunctionTree junctionTree;
 
     /**
-     * The conditional proabilities are stored in this array.  As above, the
-     * dimensions are node, row and column respectively.
+     * The log likelihood of the data under the Bayes IM at the start of each
+     * iteration, and the time each iteration took, in milliseconds.
      */
-    private double[][][] condProbs;
+    private final List<Double> logLikelihoods = new ArrayList<>();
+    private final List<Long> iterationTimes = new ArrayList<>();
+
+    /**
+     * The number of cases with probability zero in the last expectation step.
+     */
+    private double numImpossibleCases = 0.0;
+
+    /**
+     * The maximum number of iterations of maximization.
+     */
+    private int maxIterations = 1000;
 
 //    /**
 //     * In case the constructor whose argument list includes a Bayes IM is used
@@ -272,363 +280,109 @@ public final class EmBayesEstimator {
         //System.out.println(bayesImMixed);
         //System.out.println(estimatedIm);
 
-        estimatedCounts = new double[nodes.length][][];
-        estimatedCountsDenom = new double[nodes.length][];
-        condProbs = new double[nodes.length][][];
-
-        for (int i = 0; i < nodes.length; i++) {
-            //int numRows = bayesImMixed.getNumRows(i);
-            int numRows = estimatedIm.getNumRows(i);
-            estimatedCounts[i] = new double[numRows][];
-            estimatedCountsDenom[i] = new double[numRows];
-            condProbs[i] = new double[numRows][];
-            //for(int j = 0; j < bayesImMixed.getNumRows(i); j++) {
-            for (int j = 0; j < estimatedIm.getNumRows(i); j++) {
-                //int numCols = bayesImMixed.getNumColumns(i);
-                int numCols = estimatedIm.getNumColumns(i);
-                estimatedCounts[i][j] = new double[numCols];
-                condProbs[i][j] = new double[numCols];
-            }
-        }
-
-
+        findPatterns();
+        junctionTree = new JunctionTree(estimatedIm);
     }
 
     /**
-     * This method takes an instantiated Bayes net (BayesIm) whose graph include
-     * all the variables (observed and latent) and computes estimated counts
-     * using the data in the DataSet mixedData. </p> The counts that are
-     * estimated correspond to cells in the conditional probability tables of
-     * the Bayes net.  The outermost loop (indexed by j) is over the set of
-     * variables.  If the variable has no parents, each case in the dataset is
-     * examined and the count for the observed value of the variables is
-     * increased by 1.0; if the value of the variable is missing the marginal
-     * probabilities its values given the values of the variables that are
-     * available for that case are used to increment the corresponding estimated
-     * counts. </p> If a variable has parents then there is a loop which steps
-     * through all possible sets of values of its parents.  This loop is indexed
-     * by the variable "row".  Each case in the dataset is examined.  It the
-     * variable and all its parents have values in the case the corresponding
-     * estimated counts are incremented by 1.0.  If the variable or any of its
-     * parents have missing values, the joint marginal is computed for the
-     * variable and the set of values of its parents corresponding to "row" and
-     * the corresponding estimated counts are incremented by the appropriate
-     * probability. </p> The estimated counts are stored in the double[][][]
-     * array estimatedCounts.  The count (possibly fractional) of the number of
-     * times each combination of parent values occurs is stored in the
-     * double[][] array estimatedCountsDenom.  These two arrays are used to
-     * compute the estimated conditional probabilities of the output Bayes net.
+     * Does one iteration of EM, replacing the estimated Bayes IM. </p> In the
+     * expectation step, for each pattern of values in mixedData, the count of
+     * each cell of each conditional probability table is incremented by the
+     * number of cases with that pattern times the probability of the cell
+     * given the observed values of the pattern. If the variable and its
+     * parents are all observed this is 1.0 for the observed cell; otherwise
+     * the distribution of the family is read off the junction tree calibrated
+     * on the observed values. Patterns are split into chunks whose counts are
+     * accumulated in parallel and then added together. </p> In the
+     * maximization step each row of counts is normalized to give the new
+     * conditional probabilities. A row whose parent values have zero expected
+     * count keeps its probabilities from the input Bayes IM.
+     *
+     * @return the log likelihood of the data under the input Bayes IM, leaving
+     * out cases to which it gives probability zero.
      */
-    private void expectation(BayesIm inputBayesIm) {
-        //System.out.println("Entered method expectation.");
+    private double expectation(final BayesIm inputBayesIm) {
+        final int numNodes = inputBayesIm.getNumNodes();
+        final CptTables tables = new CptTables(inputBayesIm);
 
-        int numCases = mixedData.getNumRows();
-        //StoredCellEstCounts estCounts = new StoredCellEstCounts(variables);
-
-        int numVariables = allVariables.size();
-        RowSummingExactUpdater rseu = new RowSummingExactUpdater(inputBayesIm);
-
-        for (int j = 0; j < numVariables; j++) {
-            DiscreteVariable var = (DiscreteVariable) allVariables.get(j);
-            String varName = var.getName();
-            Node varNode = graph.getNode(varName);
-            int varIndex = inputBayesIm.getNodeIndex(varNode);
-            int[] parentVarIndices = inputBayesIm.getParents(varIndex);
-            //System.out.println("graph = " + graph);
-
-            //for(int col = 0; col < ar.getNumSplits(); col++)
-            //    System.out.println("Category " + col + " = " + ar.getCategory(col));
-
-            //System.out.println("Updating estimated counts for node " + varName);
-            //This segment is for variables with no parents:
-            if (parentVarIndices.length == 0) {
-                //System.out.println("No parents");
-                for (int col = 0; col < var.getNumCategories(); col++) {
-                    estimatedCounts[j][0][col] = 0.0;
-                }
+        class ExpectationTask extends RecursiveTask<ExpectedCounts> {
+            private final int from;
+            private final int to;
 
-                for (int i = 0; i < numCases; i++) {
-                    //System.out.println("Case " + i);
-                    //If this case has a value for ar
-                    if (mixedData.getInt(i, j) != -99) {
-                        estimatedCounts[j][0][mixedData.getInt(i, j)] += 1.0;
-                        //System.out.println("Adding 1.0 to " + varName +
-                        //        " row 0 category " + mixedData[j][i]);
-                    } else {
-                        //find marginal probability, given obs data in this case, p(v=0)
-                        Evidence evidenceThisCase = Evidence.tautology(inputBayesIm);
-                        boolean existsEvidence = false;
-
-                        //Define evidence for updating by using the values of the other vars.
-                        for (int k = 0; k < numVariables; k++) {
-                            if (k == j) {
-                                continue;
-                            }
-                            Node otherVar = allVariables.get(k);
-                            if (mixedData.getInt(i, k) == -99) {
-                                continue;
-                            }
-                            existsEvidence = true;
-                            String otherVarName = otherVar.getName();
-                            Node otherNode = graph.getNode(otherVarName);
-                            int otherIndex =
-                                    inputBayesIm.getNodeIndex(otherNode);
-
-                            evidenceThisCase.getProposition().setCategory(
-                                    otherIndex, mixedData.getInt(i, k));
-                        }
-
-                        if (!existsEvidence) {
-                            continue; //No other variable contained useful data
-                        }
-
-                        rseu.setEvidence(evidenceThisCase);
-
-                        for (int m = 0; m < var.getNumCategories(); m++) {
-                            estimatedCounts[j][0][m] +=
-                                    rseu.getMarginal(varIndex, m);
-                            //System.out.println("Adding " + p + " to " + varName +
-                            //        " row 0 category " + m);
-
-                            //find marginal probability, given obs data in this case, p(v=1)
-                            //estimatedCounts[j][0][1] += 0.5;
-                        }
-                    }
-                }
+            private ExpectationTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
 
-                //Print estimated counts:
-                //System.out.println("Estimated counts:  ");
-
-                //Print counts for each value of this variable with no parents.
-                //for(int m = 0; m < ar.getNumSplits(); m++)
-                //    System.out.print("    " + m + " " + estimatedCounts[j][0][m]);
-                //System.out.println();
-            } else {    //For variables with parents:
-                int numRows = inputBayesIm.getNumRows(varIndex);
-                for (int row = 0; row < numRows; row++) {
-                    int[] parValues =
-                            inputBayesIm.getParentValues(varIndex, row);
-                    estimatedCountsDenom[varIndex][row] = 0.0;
-                    for (int col = 0; col < var.getNumCategories(); col++) {
-                        estimatedCounts[varIndex][row][col] = 0.0;
-                    }
+            @Override
+            protected ExpectedCounts compute() {
+                if (to - from <= CHUNK_SIZE) {
+                    ExpectedCounts counts = new ExpectedCounts(tables);
 
-                    for (int i = 0; i < numCases; i++) {
-                        //for a case where the parent values = parValues increment the estCount
-
-                        boolean parentMatch = true;
-
-                        for (int p = 0; p < parentVarIndices.length; p++) {
-                            if (parValues[p] !=
-                                    mixedData.getInt(i, parentVarIndices[p]) &&
-                                    mixedData.getInt(i, parentVarIndices[p]) !=
-                                            -99) {
-                                parentMatch = false;
-                                break;
-                            }
-                        }
-
-                        if (!parentMatch) {
-                            continue;  //Not a matching case; go to next.
-                        }
-
-                        boolean parentMissing = false;
-                        for (int parentVarIndice : parentVarIndices) {
-                            if (mixedData.getInt(i, parentVarIndice) == -99) {
-                                parentMissing = true;
-                                break;
-                            }
-                        }
-
-
-                        if (mixedData.getInt(i, j) != -99 && !parentMissing) {
-                            estimatedCounts[j][row][mixedData.getInt(i, j)] +=
-                                    1.0;
-                            estimatedCountsDenom[j][row] += 1.0;
-                            continue;    //Next case
-                        }
-
-                        //for a case with missing data (either ar or one of its parents)
-                        //compute the joint marginal
-                        //distribution for ar & this combination of values of its parents
-                        //and update the estCounts accordingly
-
-                        //To compute marginals create the evidence
-                        boolean existsEvidence = false;
-
-                        Evidence evidenceThisCase = Evidence.tautology(inputBayesIm);
-
-                        // "evidenceVars" not used.
-//                        List<String> evidenceVars = new LinkedList<String>();
-//                        for (int k = 0; k < numVariables; k++) {
-//                            //if(k == j) continue;
-//                            Variable otherVar = allVariables.get(k);
-//                            if (mixedData.getInt(i, k) == -99) {
-//                                continue;
-//                            }
-//                            existsEvidence = true;
-//                            String otherVarName = otherVar.getNode();
-//                            Node otherNode = graph.getNode(otherVarName);
-//                            int otherIndex = inputBayesIm.getNodeIndex(
-//                                    otherNode);
-//                            evidenceThisCase.getProposition().setCategory(
-//                                    otherIndex, mixedData.getInt(i, k));
-//                            evidenceVars.add(otherVarName);
-//                        }
-
-                        if (!existsEvidence) {
-                            continue;
-                        }
-
-                        rseu.setEvidence(evidenceThisCase);
-
-                        estimatedCountsDenom[j][row] += rseu.getJointMarginal(
-                                parentVarIndices, parValues);
-
-                        int[] parPlusChildIndices =
-                                new int[parentVarIndices.length + 1];
-                        int[] parPlusChildValues =
-                                new int[parentVarIndices.length + 1];
-
-                        parPlusChildIndices[0] = varIndex;
-                        for (int pc = 1; pc < parPlusChildIndices.length; pc++) {
-                            parPlusChildIndices[pc] = parentVarIndices[pc - 1];
-                            parPlusChildValues[pc] = parValues[pc - 1];
-                        }
-
-                        for (int m = 0; m < var.getNumCategories(); m++) {
-
-                            parPlusChildValues[0] = m;
-
-                            /*
-                            if(varName.equals("X1") && i == 0 ) {
-                                System.out.println("Calling getJointMarginal with parvalues");
-                                for(int k = 0; k < parPlusChildIndices.length; k++) {
-                                    int pIndex = parPlusChildIndices[k];
-                                    Node pNode = inputBayesIm.getIndex(pIndex);
-                                    String pName = pNode.getNode();
-                                    System.out.println(pName + " " + parPlusChildValues[k]);
-                                }
-                            }
-                            */
-
-                            /*
-                            if(varName.equals("X1") && i == 0 ) {
-                                System.out.println("Evidence = " + evidenceThisCase);
-                                //int[] vars = {l1Index, x1Index};
-                                Node nodex1 = inputBayesIm.getIndex("X1");
-                                int x1Index = inputBayesIm.getNodeIndex(nodex1);
-                                Node nodel1 = inputBayesIm.getIndex("L1");
-                                int l1Index = inputBayesIm.getNodeIndex(nodel1);
-
-                                int[] vars = {l1Index, x1Index};
-                                int[] vals = {0, 0};
-                                double ptest = rseu.getJointMarginal(vars, vals);
-                                System.out.println("Joint marginal (X1=0, L1 = 0) = " + p);
-                            }
-                            */
-
-                            estimatedCounts[j][row][m] += rseu.getJointMarginal(
-                                    parPlusChildIndices, parPlusChildValues);
-
-                            //System.out.println("Case " + i + " parent values ");
-                            //for (int pp = 0; pp < parentVarIndices.length; pp++) {
-                            //    Variable par = (Variable) allVariables.get(parentVarIndices[pp]);
-                            //    System.out.print("    " + par.getNode() + " " + parValues[pp]);
-                            //}
-
-                            //System.out.println();
-                            //System.out.println("Adding " + p + " to " + varName +
-                            //        " row " + row + " category " + m);
-
-                        }
-                        //}
+                    for (int i = from; i < to; i++) {
+                        counts.add(tables, junctionTree, patterns[i], patternCounts[i]);
                     }
 
-                    //Print estimated counts:
-                    //System.out.println("Estimated counts:  ");
-                    //System.out.println("    Parent values:  ");
-                    //for (int i = 0; i < parentVarIndices.length; i++) {
-                    //    Variable par = (Variable) allVariables.get(parentVarIndices[i]);
-                    //    System.out.print("    " + par.getNode() + " " + parValues[i] + "    ");
-                    //}
-                    //System.out.println();
+                    return counts;
+                } else {
+                    int mid = (from + to) / 2;
+                    ExpectationTask left = new ExpectationTask(from, mid);
+                    ExpectationTask right = new ExpectationTask(mid, to);
 
-                    //for(int m = 0; m < ar.getNumSplits(); m++)
-                    //    System.out.print("    " + m + " " + estimatedCounts[j][row][m]);
-                    //System.out.println();
+                    invokeAll(left, right);
 
+                    ExpectedCounts counts = left.join();
+                    counts.add(right.join());
+                    return counts;
                 }
+            }
+        }
 
+        ExpectationTask task = new ExpectationTask(0, patterns.length);
+        ExpectedCounts counts;
 
-            }        //else
-        }      // j < numVariables
+        if (ForkJoinTask.inForkJoinPool()) {
+            counts = task.invoke();
+        } else {
+            counts = ForkJoinPoolInstance.getInstance().getPool().invoke(task);
+        }
 
         BayesIm outputBayesIm = new MlBayesIm(bayesPm);
 
-        for (int j = 0; j < nodes.length; j++) {
-
-            DiscreteVariable var = (DiscreteVariable) allVariables.get(j);
-            String varName = var.getName();
-            Node varNode = graph.getNode(varName);
-            int varIndex = inputBayesIm.getNodeIndex(varNode);
-//            int[] parentVarIndices = inputBayesIm.getParents(varIndex);
+        for (int node = 0; node < numNodes; node++) {
+            int numRows = inputBayesIm.getNumRows(node);
+            int numCols = inputBayesIm.getNumColumns(node);
 
-            int numRows = inputBayesIm.getNumRows(j);
-            //System.out.println("Conditional probabilities for variable " + varName);
+            for (int row = 0; row < numRows; row++) {
+                int offset = tables.getIndex(node, row, 0);
+                double denom = 0.0;
 
-            int numCols = inputBayesIm.getNumColumns(j);
-            if (numRows == 1) {
-                double sum = 0.0;
-                for (int m = 0; m < numCols; m++) {
-                    sum += estimatedCounts[j][0][m];
+                for (int col = 0; col < numCols; col++) {
+                    denom += counts.counts[offset + col];
                 }
 
-                for (int m = 0; m < numCols; m++) {
-                    condProbs[j][0][m] = estimatedCounts[j][0][m] / sum;
-                    //System.out.print("  " + condProbs[j][0][m]);
-                    outputBayesIm.setProbability(varIndex, 0, m,
-                            condProbs[j][0][m]);
-                }
-                //System.out.println();
-            } else {
-
-                for (int row = 0; row < numRows; row++) {
-//                    int[] parValues = inputBayesIm.getParentValues(varIndex,
-//                            row);
-                    //int numCols = inputBayesIm.getNumColumns(j);
-
-                    //for (int p = 0; p < parentVarIndices.length; p++) {
-                    //    Variable par = (Variable) allVariables.get(parentVarIndices[p]);
-                    //    System.out.print("    " + par.getNode() + " " + parValues[p]);
-                    //}
-
-                    //double sum = 0.0;
-                    //for(int m = 0; m < numCols; m++)
-                    //    sum += estimatedCounts[j][row][m];
-
-                    for (int m = 0; m < numCols; m++) {
-                        if (estimatedCountsDenom[j][row] != 0.0) {
-                            condProbs[j][row][m] = estimatedCounts[j][row][m] /
-                                    estimatedCountsDenom[j][row];
-                        } else {
-                            condProbs[j][row][m] = Double.NaN;
-                        }
-                        //System.out.print("  " + condProbs[j][row][m]);
-                        outputBayesIm.setProbability(varIndex, row, m,
-                                condProbs[j][row][m]);
-                    }
-                    //System.out.println();
-
+                for (int col = 0; col < numCols; col++) {
+                    double p = denom > 0.0 ? counts.counts[offset + col] / denom
+                            : inputBayesIm.getProbability(node, row, col);
+                    outputBayesIm.setProbability(node, row, col, p);
                 }
             }
+        }
 
+        if (counts.numImpossible > 0) {
+            TetradLogger.getInstance().log("details", counts.numImpossible
+                    + " cases have probability zero under the current estimate and are "
+                    + "left out of the log likelihood.");
         }
+
+        this.estimatedIm = outputBayesIm;
+        this.numImpossibleCases = counts.numImpossible;
+        return counts.logLikelihood;
     }
 
     /**
-     * This method is for use in the unit test for EmBayesEstimator.  It tests
-     * the expectation method without iterating.
+     * This method is for use in the unit test for EmBayesEstimator.  It does
+     * one iteration of EM without checking for convergence.
      */
     public void expectationOnly() {
         expectation(estimatedIm);
@@ -636,29 +390,125 @@ public final class EmBayesEstimator {
 
     /**
      * This method iteratively estimates the parameters of the Bayes net using
-     * the dataset until the parameters don't change.  That is, the newly
+     * the dataset until the likelihood stops improving.  That is, the newly
      * estimated parameters are used in the estimate method to produce even more
      * accurate parameters (with respect to the dataset) etc.  The threshhold is
-     * compared to the distance between successive parameter sets and when the
-     * change is less than the threshhold, the process is considered to have
-     * converged.  The distance between successive Bayes nets is the Euclidean
-     * distance between vectors of sequences of their parameters.  See the
-     * BayesImDistanceFunction class for details.
+     * compared to the change in the log likelihood per case between successive
+     * iterations, and when the change is less than the threshhold, or the
+     * maximum number of iterations is reached, the process is considered to
+     * have converged. The log likelihood and time of each iteration are
+     * recorded; see getLogLikelihoods and getIterationTimes. Cases to which an
+     * estimate gives probability zero are left out of its log likelihood (see
+     * getNumImpossibleCases), so that the log likelihoods compared are finite.
      */
     public BayesIm maximization(double threshhold) {
-        double distance = Double.MAX_VALUE;
-        BayesIm oldBayesIm = estimatedIm;
-        BayesIm newBayesIm = null;
+        logLikelihoods.clear();
+        iterationTimes.clear();
+
+        int numCases = mixedData.getNumRows();
+        double oldLogLikelihood = Double.NaN;
 
-        while (Double.isNaN(distance) || distance > threshhold) {
-            expectation(oldBayesIm);
-            newBayesIm = getEstimatedIm();
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            long start = System.currentTimeMillis();
+            double logLikelihood = expectation(estimatedIm);
+            iterationTimes.add(System.currentTimeMillis() - start);
+            logLikelihoods.add(logLikelihood);
 
-            distance = BayesImDistanceFunction.distance(newBayesIm, oldBayesIm);
+            TetradLogger.getInstance().log("details", "EM iteration " + (iteration + 1)
+                    + ": log likelihood = " + logLikelihood
+                    + ", time = " + iterationTimes.get(iteration) + " ms");
 
-            oldBayesIm = newBayesIm;
+            if (!Double.isNaN(oldLogLikelihood) && !Double.isInfinite(logLikelihood)
+                    && Math.abs(logLikelihood - oldLogLikelihood) <= threshhold * numCases) {
+                break;
+            }
+
+            oldLogLikelihood = logLikelihood;
+        }
+
+        return estimatedIm;
+    }
+
+    /**
+     * @return the log likelihood of the data at the start of each iteration of
+     * the last call to maximization.
+     */
+    public List<Double> getLogLikelihoods() {
+        return new ArrayList<>(logLikelihoods);
+    }
+
+    /**
+     * @return the number of cases to which the estimate at the start of the last
+     * iteration gave probability zero. These are left out of its log likelihood
+     * and, if they have missing values, out of the expected counts.
+     */
+    public double getNumImpossibleCases() {
+        return numImpossibleCases;
+    }
+
+    /**
+     * @return the time each iteration of the last call to maximization took,
+     * in milliseconds.
+     */
+    public List<Long> getIterationTimes() {
+        return new ArrayList<>(iterationTimes);
+    }
+
+    /**
+     * @return the number of distinct patterns of values in the data.
+     */
+    public int getNumPatterns() {
+        return patterns.length;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("Max iterations must be >= 1: " + maxIterations);
+        }
+
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Groups identical rows of mixedData.
+     */
+    private void findPatterns() {
+        int numCases = mixedData.getNumRows();
+        int numColumns = mixedData.getNumColumns();
+        Map<List<Integer>, Integer> indices = new LinkedHashMap<>();
+        List<int[]> patterns = new ArrayList<>();
+        List<Double> counts = new ArrayList<>();
+
+        for (int i = 0; i < numCases; i++) {
+            int[] values = new int[numColumns];
+            List<Integer> key = new ArrayList<>(numColumns);
+
+            for (int j = 0; j < numColumns; j++) {
+                values[j] = mixedData.getInt(i, j);
+                key.add(values[j]);
+            }
+
+            Integer index = indices.get(key);
+
+            if (index == null) {
+                indices.put(key, patterns.size());
+                patterns.add(values);
+                counts.add(1.0);
+            } else {
+                counts.set(index, counts.get(index) + 1.0);
+            }
+        }
+
+        this.patterns = patterns.toArray(new int[patterns.size()][]);
+        this.patternCounts = new double[counts.size()];
+
+        for (int i = 0; i < counts.size(); i++) {
+            patternCounts[i] = counts.get(i);
         }
-        return newBayesIm;
     }
 
     private void findBayesNetObserved() {
@@ -836,9 +686,116 @@ public final class EmBayesEstimator {
 //        return index;
 //    }
 
-}
+    /**
+     * Expected counts of the cells of the conditional probability tables,
+     * indexed as the cells of CptTables are, together with the log likelihood
+     * of the patterns counted and the number of cases with probability zero.
+     */
+    private static final class ExpectedCounts {
+        private final double[] counts;
+        private double logLikelihood;
+
+        // The number of cases counted with probability zero, which are left
+        // out of the log likelihood.
+        private double numImpossible;
+
+        ExpectedCounts(CptTables tables) {
+            counts = new double[tables.getSize()];
+        }
+
+        /**
+         * Adds the expected counts for the given number of cases with the
+         * given pattern of values, -99 marking missing values.
+         */
+        void add(CptTables tables, JunctionTree tree, int[] pattern, double count) {
+            int numNodes = tables.getNumNodes();
+            boolean anyMissing = false;
+
+            for (int value : pattern) {
+                if (value == -99) {
+                    anyMissing = true;
+                    break;
+                }
+            }
 
+            if (!anyMissing) {
+                double logProbability = 0.0;
 
+                for (int node = 0; node < numNodes; node++) {
+                    int index = tables.getIndex(node, tables.getRowIndexOfPoint(node, pattern), pattern[node]);
+                    counts[index] += count;
+                    logProbability += Math.log(tables.getProbability(index));
+                }
+
+                if (logProbability > Double.NEGATIVE_INFINITY) {
+                    logLikelihood += count * logProbability;
+                } else {
+                    numImpossible += count;
+                }
+
+                return;
+            }
+
+            boolean[][] allowed = new boolean[numNodes][];
 
+            for (int node = 0; node < numNodes; node++) {
+                allowed[node] = new boolean[tables.getNumColumns(node)];
+
+                if (pattern[node] == -99) {
+                    Arrays.fill(allowed[node], true);
+                } else {
+                    allowed[node][pattern[node]] = true;
+                }
+            }
+
+            JunctionTree.Potentials potentials = tree.calibrate(tables, allowed);
+            double logTotal = tree.getLogTotal(potentials);
+
+            // Cases the current estimate gives probability zero say nothing about
+            // the unobserved values; they are left out and counted.
+            if (!(logTotal > Double.NEGATIVE_INFINITY)) {
+                numImpossible += count;
+                return;
+            }
+
+            logLikelihood += count * logTotal;
+
+            for (int node = 0; node < numNodes; node++) {
+                if (isObserved(tables, node, pattern)) {
+                    counts[tables.getIndex(node, tables.getRowIndexOfPoint(node, pattern), pattern[node])] += count;
+                    continue;
+                }
 
+                double[] table = tree.getFamilyTable(potentials, node);
+                int offset = tables.getIndex(node, 0, 0);
 
+                for (int cell = 0; cell < table.length; cell++) {
+                    counts[offset + cell] += count * table[cell];
+                }
+            }
+        }
+
+        void add(ExpectedCounts other) {
+            for (int cell = 0; cell < counts.length; cell++) {
+                counts[cell] += other.counts[cell];
+            }
+
+            logLikelihood += other.logLikelihood;
+            numImpossible += other.numImpossible;
+        }
+
+        /**
+         * @return true if the given node and its parents all have values in
+         * the given pattern.
+         */
+        private static boolean isObserved(CptTables tables, int node, int[] pattern) {
+            if (pattern[node] == -99) return false;
+
+            for (int k = 0; k < tables.getNumParents(node); k++) {
+                if (pattern[tables.getParent(node, k)] == -99) return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import java.util.*;
+
+/**
+ * The structure of a junction tree over the variables of a Bayes IM. Each
+ * clique potential is stored as a flat array in mixed radix order, with the
+ * variables of the clique sorted by index and the last variable varying
+ * fastest. Messages pass through separators by way of precomputed maps from
+ * clique cells to separator cells. Potentials are normalized as messages
+ * pass, the log of the scale divided out being carried alongside, so that
+ * the probability of evidence on networks with many variables doesn't
+ * underflow.
+ * <p>
+ * The tree holds no evidence or potentials of its own, so one tree may be
+ * used by several threads at once, for any Bayes IM over the same graph.
+ * It is used by JunctionTreeUpdater and by EmBayesEstimator.
+ */
+final class JunctionTree {
+
+    /**
+     * Below this sum a potential is rescaled while messages are being
+     * multiplied into it.
+     */
+    private static final double MIN_SUM = 1e-100;
+
+    /**
+     * The number of categories of each variable.
+     */
+    private final int[] dims;
+
+    /**
+     * The variables of each clique, sorted.
+     */
+    private final int[][] cliques;
+
+    /**
+     * The stride of each clique variable in the clique's potential.
+     */
+    private final int[][] strides;
+
+    /**
+     * The number of cells in each clique potential.
+     */
+    private final int[] sizes;
+
+    /**
+     * The cliques in an order in which each clique comes after its parent.
+     */
+    private final int[] order;
+
+    /**
+     * The parent of each clique in the tree, or -1 for the root.
+     */
+    private final int[] parents;
+
+    /**
+     * The number of cells in the separator between each clique and its
+     * parent.
+     */
+    private final int[] separatorSizes;
+
+    /**
+     * Maps the cells of each clique to the cells of the separator with its
+     * parent.
+     */
+    private final int[][] childMaps;
+
+    /**
+     * Maps the cells of the parent of each clique to the cells of the
+     * separator between them.
+     */
+    private final int[][] parentMaps;
+
+    /**
+     * A clique containing the family of each variable, to which the
+     * variable's conditional probability table is assigned.
+     */
+    private final int[] home;
+
+    /**
+     * The smallest clique containing each variable.
+     */
+    private final int[] smallest;
+
+    /**
+     * The parents of each variable, and the strides of the parents and of the
+     * variable itself in the potential of its home clique.
+     */
+    private final int[][] nodeParents;
+    private final int[][] homeParentStrides;
+    private final int[] homeStrides;
+
+    JunctionTree(BayesIm im) {
+        int numNodes = im.getNumNodes();
+        this.dims = new int[numNodes];
+
+        List<Set<Integer>> adjacencies = new ArrayList<>();
+
+        for (int i = 0; i < numNodes; i++) {
+            dims[i] = im.getNumColumns(i);
+            adjacencies.add(new HashSet<Integer>());
+        }
+
+        // Moralize.
+        for (int i = 0; i < numNodes; i++) {
+            int[] family = im.getParents(i);
+
+            for (int parent : family) {
+                adjacencies.get(i).add(parent);
+                adjacencies.get(parent).add(i);
+
+                for (int other : family) {
+                    if (other != parent) adjacencies.get(parent).add(other);
+                }
+            }
+        }
+
+        List<int[]> cliques = triangulate(adjacencies);
+        int numCliques = cliques.size();
+
+        this.cliques = cliques.toArray(new int[numCliques][]);
+        this.strides = new int[numCliques][];
+        this.sizes = new int[numCliques];
+
+        for (int c = 0; c < numCliques; c++) {
+            int[] clique = this.cliques[c];
+            strides[c] = new int[clique.length];
+            int size = 1;
+
+            for (int k = clique.length - 1; k >= 0; k--) {
+                strides[c][k] = size;
+                size *= dims[clique[k]];
+            }
+
+            sizes[c] = size;
+        }
+
+        this.order = new int[numCliques];
+        this.parents = new int[numCliques];
+        buildTree();
+
+        this.separatorSizes = new int[numCliques];
+        this.childMaps = new int[numCliques][];
+        this.parentMaps = new int[numCliques][];
+
+        for (int c = 0; c < numCliques; c++) {
+            if (parents[c] == -1) continue;
+            int[] separator = intersection(this.cliques[c], this.cliques[parents[c]]);
+            int[] separatorStrides = new int[separator.length];
+            int size = 1;
+
+            for (int k = separator.length - 1; k >= 0; k--) {
+                separatorStrides[k] = size;
+                size *= dims[separator[k]];
+            }
+
+            separatorSizes[c] = size;
+            childMaps[c] = cellMap(c, separator, separatorStrides);
+            parentMaps[c] = cellMap(parents[c], separator, separatorStrides);
+        }
+
+        this.home = new int[numNodes];
+        this.smallest = new int[numNodes];
+
+        for (int i = 0; i < numNodes; i++) {
+            int[] parentsOfI = im.getParents(i);
+            home[i] = -1;
+            smallest[i] = -1;
+
+            for (int c = 0; c < numCliques; c++) {
+                if (position(c, i) == -1) continue;
+
+                if (smallest[i] == -1 || sizes[c] < sizes[smallest[i]]) {
+                    smallest[i] = c;
+                }
+
+                if (home[i] == -1 && containsAll(c, parentsOfI)) {
+                    home[i] = c;
+                }
+            }
+
+            if (home[i] == -1) {
+                throw new IllegalStateException("No clique contains the family of variable " + i);
+            }
+        }
+
+        this.nodeParents = new int[numNodes][];
+        this.homeParentStrides = new int[numNodes][];
+        this.homeStrides = new int[numNodes];
+
+        for (int i = 0; i < numNodes; i++) {
+            int c = home[i];
+            nodeParents[i] = im.getParents(i);
+            homeParentStrides[i] = new int[nodeParents[i].length];
+
+            for (int k = 0; k < nodeParents[i].length; k++) {
+                homeParentStrides[i][k] = strides[c][position(c, nodeParents[i][k])];
+            }
+
+            homeStrides[i] = strides[c][position(c, i)];
+        }
+    }
+
+    /**
+     * Enters the given evidence and passes messages toward the root and
+     * back, returning the calibrated potentials. Each calibrated potential
+     * is the distribution of its clique given the evidence.
+     */
+    Potentials calibrate(CptTables tables, boolean[][] allowed) {
+        Potentials potentials = initialize(tables, allowed);
+        collect(potentials);
+
+        for (int k = 1; k < order.length; k++) {
+            int c = order[k];
+            int[] childMap = childMaps[c];
+            int[] parentMap = parentMaps[c];
+            double[] parent = potentials.cliques[parents[c]];
+            double[] child = potentials.cliques[c];
+            double[] separator = potentials.separators[c];
+            double[] message = new double[separatorSizes[c]];
+
+            for (int i = 0; i < parent.length; i++) {
+                message[parentMap[i]] += parent[i];
+            }
+
+            for (int j = 0; j < message.length; j++) {
+                message[j] = separator[j] == 0.0 ? 0.0 : message[j] / separator[j];
+            }
+
+            for (int i = 0; i < child.length; i++) {
+                child[i] *= message[childMap[i]];
+            }
+
+            normalize(child);
+        }
+
+        return potentials;
+    }
+
+    /**
+     * @return the log of the probability of the given evidence, using only
+     * the collect pass.
+     */
+    double logProbability(CptTables tables, boolean[][] allowed) {
+        Potentials potentials = initialize(tables, allowed);
+        collect(potentials);
+        return potentials.logScale;
+    }
+
+    /**
+     * @return the log of the probability of the evidence the given
+     * potentials were calibrated on; negative infinity if it is zero.
+     */
+    double getLogTotal(Potentials potentials) {
+        return potentials.logScale;
+    }
+
+    /**
+     * @return the marginal of the given variable given the evidence, from
+     * the smallest clique containing it; all zero if the evidence has
+     * probability zero.
+     */
+    double[] getMarginal(Potentials potentials, int node) {
+        int c = smallest[node];
+        int stride = strides[c][position(c, node)];
+        int dim = dims[node];
+        double[] potential = potentials.cliques[c];
+        double[] marginal = new double[dim];
+
+        for (int i = 0; i < potential.length; i++) {
+            marginal[(i / stride) % dim] += potential[i];
+        }
+
+        return marginal;
+    }
+
+    /**
+     * @return the joint of the given variable and its parents given the
+     * evidence, laid out as the variable's conditional probability table.
+     */
+    double[] getFamilyTable(Potentials potentials, int node) {
+        int[] parentsOfNode = nodeParents[node];
+        int[] parentStrides = homeParentStrides[node];
+        int nodeStride = homeStrides[node];
+        int numCols = dims[node];
+        int numRows = 1;
+
+        for (int parent : parentsOfNode) {
+            numRows *= dims[parent];
+        }
+
+        double[] potential = potentials.cliques[home[node]];
+        double[] table = new double[numRows * numCols];
+
+        for (int i = 0; i < potential.length; i++) {
+            int row = 0;
+
+            for (int k = 0; k < parentsOfNode.length; k++) {
+                row = row * dims[parentsOfNode[k]] + (i / parentStrides[k]) % dims[parentsOfNode[k]];
+            }
+
+            table[row * numCols + (i / nodeStride) % numCols] += potential[i];
+        }
+
+        return table;
+    }
+
+    //==============================PRIVATE METHODS=======================//
+
+    /**
+     * Multiplies each conditional probability table into the clique
+     * potential of its family, zeroing out cells the evidence disallows.
+     * The potentials are not yet normalized.
+     */
+    private Potentials initialize(CptTables tables, boolean[][] allowed) {
+        Potentials _potentials = new Potentials(cliques.length);
+        double[][] potentials = _potentials.cliques;
+
+        for (int c = 0; c < cliques.length; c++) {
+            potentials[c] = new double[sizes[c]];
+            Arrays.fill(potentials[c], 1.0);
+        }
+
+        for (int node = 0; node < dims.length; node++) {
+            int[] parentsOfNode = nodeParents[node];
+            int[] parentStrides = homeParentStrides[node];
+            int nodeStride = homeStrides[node];
+            int numCols = dims[node];
+            double[] potential = potentials[home[node]];
+
+            for (int i = 0; i < potential.length; i++) {
+                int col = (i / nodeStride) % numCols;
+
+                if (!allowed[node][col]) {
+                    potential[i] = 0.0;
+                    continue;
+                }
+
+                int row = 0;
+
+                for (int k = 0; k < parentsOfNode.length; k++) {
+                    row = row * dims[parentsOfNode[k]] + (i / parentStrides[k]) % dims[parentsOfNode[k]];
+                }
+
+                potential[i] *= tables.getProbability(node, row, col);
+            }
+        }
+
+        return _potentials;
+    }
+
+    /**
+     * Passes messages from the leaves toward the root, recording the
+     * separator potentials. Each clique potential is normalized before it
+     * sends its message, and the root's at the end, the logs of the sums
+     * divided out being added to the log scale, so that after the pass the
+     * log scale is the log of the probability of the evidence. Without this
+     * the potentials underflow on networks with many variables.
+     */
+    private void collect(Potentials potentials) {
+        double[][] cliquePotentials = potentials.cliques;
+
+        for (int k = order.length - 1; k > 0; k--) {
+            int c = order[k];
+            int[] childMap = childMaps[c];
+            int[] parentMap = parentMaps[c];
+            double[] child = cliquePotentials[c];
+            double[] parent = cliquePotentials[parents[c]];
+            double[] message = new double[separatorSizes[c]];
+
+            potentials.logScale += normalize(child);
+
+            for (int i = 0; i < child.length; i++) {
+                message[childMap[i]] += child[i];
+            }
+
+            double sum = 0.0;
+
+            for (int i = 0; i < parent.length; i++) {
+                parent[i] *= message[parentMap[i]];
+                sum += parent[i];
+            }
+
+            // A clique with many children may underflow before its own turn.
+            if (sum > 0.0 && sum < MIN_SUM) {
+                for (int i = 0; i < parent.length; i++) {
+                    parent[i] /= sum;
+                }
+
+                potentials.logScale += Math.log(sum);
+            }
+
+            potentials.separators[c] = message;
+        }
+
+        potentials.logScale += normalize(cliquePotentials[order[0]]);
+    }
+
+    /**
+     * Divides the given potential by its sum, unless this is zero.
+     *
+     * @return the log of the sum.
+     */
+    private static double normalize(double[] potential) {
+        double sum = 0.0;
+
+        for (double p : potential) {
+            sum += p;
+        }
+
+        if (sum > 0.0 && sum != 1.0) {
+            for (int i = 0; i < potential.length; i++) {
+                potential[i] /= sum;
+            }
+        }
+
+        return Math.log(sum);
+    }
+
+    /**
+     * Eliminates variables in min-fill order (ties broken by the size of
+     * the resulting cluster), returning the maximal clusters formed.
+     */
+    private List<int[]> triangulate(List<Set<Integer>> adjacencies) {
+        int numNodes = adjacencies.size();
+        boolean[] eliminated = new boolean[numNodes];
+        List<int[]> cliques = new ArrayList<>();
+
+        for (int step = 0; step < numNodes; step++) {
+            int best = -1;
+            long bestFill = Long.MAX_VALUE;
+            double bestWeight = Double.POSITIVE_INFINITY;
+
+            for (int v = 0; v < numNodes; v++) {
+                if (eliminated[v]) continue;
+
+                Integer[] neighbors = adjacencies.get(v).toArray(new Integer[0]);
+                long fill = 0;
+                double weight = dims[v];
+
+                for (int a = 0; a < neighbors.length; a++) {
+                    weight *= dims[neighbors[a]];
+
+                    for (int b = a + 1; b < neighbors.length; b++) {
+                        if (!adjacencies.get(neighbors[a]).contains(neighbors[b])) fill++;
+                    }
+                }
+
+                if (fill < bestFill || (fill == bestFill && weight < bestWeight)) {
+                    best = v;
+                    bestFill = fill;
+                    bestWeight = weight;
+                }
+            }
+
+            Set<Integer> neighbors = adjacencies.get(best);
+            int[] cluster = new int[neighbors.size() + 1];
+            int index = 0;
+            cluster[index++] = best;
+            long size = dims[best];
+
+            for (int neighbor : neighbors) {
+                cluster[index++] = neighbor;
+                size *= dims[neighbor];
+
+                if (size > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("The junction tree for this Bayes net has " +
+                            "a clique too large for exact inference.");
+                }
+
+                adjacencies.get(neighbor).addAll(neighbors);
+                adjacencies.get(neighbor).remove(neighbor);
+                adjacencies.get(neighbor).remove(best);
+            }
+
+            eliminated[best] = true;
+            neighbors.clear();
+            Arrays.sort(cluster);
+
+            // A cluster can only be contained in a cluster formed earlier,
+            // since every earlier cluster has an eliminated variable.
+            boolean contained = false;
+
+            for (int[] clique : cliques) {
+                if (intersection(cluster, clique).length == cluster.length) {
+                    contained = true;
+                    break;
+                }
+            }
+
+            if (!contained) {
+                cliques.add(cluster);
+            }
+        }
+
+        return cliques;
+    }
+
+    /**
+     * Joins the cliques into a maximum weight spanning tree, weighting
+     * edges by the number of shared variables (Prim's algorithm). Cliques
+     * sharing no variables are joined through empty separators.
+     */
+    private void buildTree() {
+        int numCliques = cliques.length;
+        boolean[] inTree = new boolean[numCliques];
+        int[] bestWeight = new int[numCliques];
+        int[] bestFrom = new int[numCliques];
+        Arrays.fill(bestWeight, -1);
+        Arrays.fill(bestFrom, -1);
+
+        for (int k = 0; k < numCliques; k++) {
+            int next = -1;
+
+            for (int c = 0; c < numCliques; c++) {
+                if (!inTree[c] && (next == -1 || bestWeight[c] > bestWeight[next])) {
+                    next = c;
+                }
+            }
+
+            inTree[next] = true;
+            order[k] = next;
+            parents[next] = bestFrom[next];
+
+            for (int c = 0; c < numCliques; c++) {
+                if (inTree[c]) continue;
+                int weight = intersection(cliques[c], cliques[next]).length;
+
+                if (weight > bestWeight[c]) {
+                    bestWeight[c] = weight;
+                    bestFrom[c] = next;
+                }
+            }
+        }
+    }
+
+    private int[] cellMap(int c, int[] separator, int[] separatorStrides) {
+        int[] cliqueStrides = new int[separator.length];
+
+        for (int k = 0; k < separator.length; k++) {
+            cliqueStrides[k] = strides[c][position(c, separator[k])];
+        }
+
+        int[] map = new int[sizes[c]];
+
+        for (int i = 0; i < map.length; i++) {
+            int cell = 0;
+
+            for (int k = 0; k < separator.length; k++) {
+                cell += ((i / cliqueStrides[k]) % dims[separator[k]]) * separatorStrides[k];
+            }
+
+            map[i] = cell;
+        }
+
+        return map;
+    }
+
+    private int position(int c, int node) {
+        int position = Arrays.binarySearch(cliques[c], node);
+        return position < 0 ? -1 : position;
+    }
+
+    private boolean containsAll(int c, int[] nodes) {
+        for (int node : nodes) {
+            if (position(c, node) == -1) return false;
+        }
+
+        return true;
+    }
+
+    private static int[] intersection(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, k);
+    }
+
+    /**
+     * The clique and separator potentials for some evidence, each normalized,
+     * together with the log of the product of the sums divided out of them.
+     */
+    static final class Potentials {
+        private final double[][] cliques;
+        private final double[][] separators;
+        private double logScale = 0.0;
+
+        private Potentials(int numCliques) {
+            this.cliques = new double[numCliques][];
+            this.separators = new double[numCliques][];
+        }
+    }
+}
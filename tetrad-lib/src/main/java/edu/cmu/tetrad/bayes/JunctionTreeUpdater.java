@@ -0,0 +1,444 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.Node;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.*;
+
+/**
+ * Performs exact updating operations on a BayesIm by compiling it into a
+ * junction tree. The moral graph of the (manipulated) DAG is triangulated
+ * using a min-fill elimination ordering, the maximal cliques of the
+ * triangulation are joined into a tree, and each clique holds its potential
+ * as a flat array of doubles. Evidence is entered as zeroes in the clique
+ * potentials, and a single collect/distribute pass then yields the updated
+ * marginals of every variable at once. Cost is exponential in the size of the
+ * largest clique rather than in the number of variables, so sparse networks
+ * with hundreds of variables can be updated quickly.
+ * <p>
+ * The tree is compiled once per manipulated graph and reused as long as the
+ * set of manipulated variables doesn't change.
+ */
+public final class JunctionTreeUpdater implements ManipulatingBayesUpdater {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The BayesIm which this updater modifies.
+     *
+     * @serial Cannot be null.
+     */
+    private BayesIm bayesIm;
+
+    /**
+     * Stores evidence for all variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Evidence evidence;
+
+    /**
+     * The last manipulated BayesIm.
+     *
+     * @serial Can be null.
+     */
+    private BayesIm manipulatedBayesIm;
+
+    /**
+     * The junction tree compiled for the manipulated graph; rebuilt when the
+     * set of manipulated variables changes.
+     */
+    private transient JunctionTree junctionTree;
+
+    /**
+     * The probability tables of the manipulated Bayes IM.
+     */
+    private transient CptTables tables;
+
+    /**
+     * The manipulated variables the junction tree was compiled for.
+     */
+    private transient boolean[] compiledManipulation;
+
+    /**
+     * The calibrated clique potentials for the current evidence.
+     */
+    private transient JunctionTree.Potentials potentials;
+
+    /**
+     * The log of the probability of the current evidence in the manipulated
+     * Bayes IM.
+     */
+    private transient double logEvidenceProbability;
+
+    /**
+     * The updated marginals of each variable, for the current evidence.
+     */
+    private transient double[][] marginals;
+
+    /**
+     * The BayesIm after update, if this was calculated.
+     */
+    private transient BayesIm updatedBayesIm;
+
+    //==============================CONSTRUCTORS===========================//
+
+    /**
+     * Constructs a new updater for the given Bayes net.
+     */
+    public JunctionTreeUpdater(BayesIm bayesIm) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(Evidence.tautology(bayesIm));
+    }
+
+    /**
+     * Constructs a new updater for the given Bayes net.
+     */
+    public JunctionTreeUpdater(BayesIm bayesIm, Evidence evidence) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(evidence);
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static JunctionTreeUpdater serializableInstance() {
+        return new JunctionTreeUpdater(MlBayesIm.serializableInstance());
+    }
+
+    //============================PUBLIC METHODS==========================//
+
+    /**
+     * The BayesIm that this updater bases its update on. This BayesIm is not
+     * modified; rather, a new BayesIm is created and updated.
+     */
+    public BayesIm getBayesIm() {
+        return bayesIm;
+    }
+
+    /**
+     * @return the manipulated BayesIm.
+     */
+    public BayesIm getManipulatedBayesIm() {
+        return this.manipulatedBayesIm;
+    }
+
+    public Graph getManipulatedGraph() {
+        return getManipulatedBayesIm().getDag();
+    }
+
+    /**
+     * The updated BayesIm. This is a different object from the source BayesIm.
+     *
+     * @see #getBayesIm
+     */
+    public BayesIm getUpdatedBayesIm() {
+        if (updatedBayesIm == null) {
+            updateAll();
+        }
+
+        return updatedBayesIm;
+    }
+
+    /**
+     * @return a defensive copy of the evidence.
+     */
+    public Evidence getEvidence() {
+        return new Evidence(this.evidence);
+    }
+
+    public final void setEvidence(Evidence evidence) {
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence.isIncompatibleWith(bayesIm)) {
+            throw new IllegalArgumentException("The variable list for the " +
+                    "given bayesIm must be compatible with the variable list " +
+                    "for this evidence.");
+        }
+
+        this.evidence = evidence;
+
+        Graph graph = bayesIm.getBayesPm().getDag();
+        Dag manipulatedGraph = createManipulatedGraph(graph);
+        BayesPm manipulatedPm = new BayesPm(manipulatedGraph, bayesIm.getBayesPm());
+
+        // Switching this to MANUAL since the initial values don't matter.
+        this.manipulatedBayesIm = new MlBayesIm(manipulatedPm, bayesIm, MlBayesIm.MANUAL);
+
+        boolean[] manipulation = new boolean[evidence.getNumNodes()];
+
+        for (int i = 0; i < evidence.getNumNodes(); i++) {
+            if (evidence.isManipulated(i)) {
+                manipulation[i] = true;
+
+                for (int j = 0; j < evidence.getNumCategories(i); j++) {
+                    if (evidence.getProposition().isAllowed(i, j)) {
+                        manipulatedBayesIm.setProbability(i, 0, j, 1.0);
+                    } else {
+                        manipulatedBayesIm.setProbability(i, 0, j, 0.0);
+                    }
+                }
+            }
+        }
+
+        if (!Arrays.equals(manipulation, compiledManipulation)) {
+            this.junctionTree = null;
+            this.compiledManipulation = manipulation;
+        }
+
+        this.tables = null;
+        this.potentials = null;
+        this.marginals = null;
+        this.updatedBayesIm = null;
+    }
+
+    public boolean isJointMarginalSupported() {
+        return true;
+    }
+
+    public double getJointMarginal(int[] variables, int[] values) {
+        if (variables.length != values.length) {
+            throw new IllegalArgumentException("Values must match variables.");
+        }
+
+        calibrate();
+
+        if (!(logEvidenceProbability > Double.NEGATIVE_INFINITY)) {
+            return Double.NaN;
+        }
+
+        boolean[][] allowed = getAllowed();
+
+        for (int i = 0; i < variables.length; i++) {
+            boolean[] categories = allowed[variables[i]];
+
+            for (int j = 0; j < categories.length; j++) {
+                if (j != values[i]) {
+                    categories[j] = false;
+                }
+            }
+        }
+
+        return Math.exp(getJunctionTree().logProbability(getTables(), allowed)
+                - logEvidenceProbability);
+    }
+
+    /**
+     * @return P&lpar;variable&equals;value &vbar; evidence&rpar; where evidence is getEvidence().
+     */
+    public double getMarginal(int variable, int value) {
+        calibrate();
+        return marginals[variable][value];
+    }
+
+    public double[] calculatePriorMarginals(int nodeIndex) {
+        Evidence evidence = getEvidence();
+        setEvidence(Evidence.tautology(evidence.getVariableSource()));
+
+        double[] marginals = calculateUpdatedMarginals(nodeIndex);
+
+        setEvidence(evidence);
+        return marginals;
+    }
+
+    public double[] calculateUpdatedMarginals(int nodeIndex) {
+        calibrate();
+        return Arrays.copyOf(marginals[nodeIndex], evidence.getNumCategories(nodeIndex));
+    }
+
+    /**
+     * Prints out the most recent marginal.
+     */
+    public String toString() {
+        return "Junction tree updater, evidence = " + evidence;
+    }
+
+    //==============================PRIVATE METHODS=======================//
+
+    private JunctionTree getJunctionTree() {
+        if (junctionTree == null) {
+            junctionTree = new JunctionTree(manipulatedBayesIm);
+        }
+
+        return junctionTree;
+    }
+
+    private CptTables getTables() {
+        if (tables == null) {
+            tables = new CptTables(manipulatedBayesIm);
+        }
+
+        return tables;
+    }
+
+    /**
+     * The allowed categories of each variable in the manipulated Bayes IM.
+     */
+    private boolean[][] getAllowed() {
+        Proposition proposition = new Evidence(evidence, manipulatedBayesIm).getProposition();
+        boolean[][] allowed = new boolean[manipulatedBayesIm.getNumNodes()][];
+
+        for (int i = 0; i < allowed.length; i++) {
+            allowed[i] = new boolean[manipulatedBayesIm.getNumColumns(i)];
+
+            for (int j = 0; j < allowed[i].length; j++) {
+                allowed[i][j] = proposition.isAllowed(i, j);
+            }
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Enters the evidence into the junction tree and calculates the marginals
+     * of all variables, if this hasn't been done since the evidence was last
+     * set.
+     */
+    private void calibrate() {
+        if (marginals != null) {
+            return;
+        }
+
+        JunctionTree tree = getJunctionTree();
+        int numNodes = manipulatedBayesIm.getNumNodes();
+        double[][] marginals = new double[numNodes][];
+
+        if (!new Proposition(manipulatedBayesIm, evidence.getProposition()).existsCombination()) {
+            for (int i = 0; i < numNodes; i++) {
+                marginals[i] = new double[manipulatedBayesIm.getNumColumns(i)];
+                Arrays.fill(marginals[i], Double.NaN);
+            }
+
+            this.potentials = null;
+            this.logEvidenceProbability = Double.NaN;
+            this.marginals = marginals;
+            return;
+        }
+
+        JunctionTree.Potentials potentials = tree.calibrate(getTables(), getAllowed());
+        double logEvidenceProbability = tree.getLogTotal(potentials);
+
+        for (int i = 0; i < numNodes; i++) {
+            marginals[i] = tree.getMarginal(potentials, i);
+
+            if (logEvidenceProbability == Double.NEGATIVE_INFINITY) {
+                Arrays.fill(marginals[i], Double.NaN);
+            }
+        }
+
+        this.potentials = potentials;
+        this.logEvidenceProbability = logEvidenceProbability;
+        this.marginals = marginals;
+    }
+
+    /**
+     * Calculates the conditional probability tables of the updated Bayes IM
+     * from the calibrated potentials of the cliques holding each family.
+     */
+    private void updateAll() {
+        calibrate();
+
+        BayesIm updatedBayesIm = new MlBayesIm(manipulatedBayesIm);
+        int numNodes = manipulatedBayesIm.getNumNodes();
+
+        for (int node = 0; node < numNodes; node++) {
+            int numRows = manipulatedBayesIm.getNumRows(node);
+            int numCols = manipulatedBayesIm.getNumColumns(node);
+            double[] table = potentials == null ? new double[numRows * numCols]
+                    : junctionTree.getFamilyTable(potentials, node);
+
+            for (int row = 0; row < numRows; row++) {
+                double sum = 0.0;
+
+                for (int col = 0; col < numCols; col++) {
+                    sum += table[row * numCols + col];
+                }
+
+                for (int col = 0; col < numCols; col++) {
+                    double p = sum == 0.0 ? Double.NaN : table[row * numCols + col] / sum;
+                    updatedBayesIm.setProbability(node, row, col, p);
+                }
+            }
+        }
+
+        this.updatedBayesIm = updatedBayesIm;
+    }
+
+    private Dag createManipulatedGraph(Graph graph) {
+        Dag updatedGraph = new Dag(graph);
+
+        // alters graph for manipulated evidenceItems
+        for (int i = 0; i < evidence.getNumNodes(); ++i) {
+            if (evidence.isManipulated(i)) {
+                Node node = updatedGraph.getNode(evidence.getNode(i).getName());
+                List<Node> parents = updatedGraph.getParents(node);
+
+                for (Node parent : parents) {
+                    updatedGraph.removeEdge(node, parent);
+                }
+            }
+        }
+
+        return updatedGraph;
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+    }
+}
@@ -26,11 +26,13 @@ import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.graph.TimeLagGraph;
 import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.RandomStreams;
 import edu.cmu.tetrad.util.RandomUtil;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.text.NumberFormat;
 import java.util.*;
 
@@ -118,22 +120,30 @@ public final class MlBayesIm implements BayesIm {
     private int[][] parentDims;
 
     /**
-     * The main data structure; stores the values of all of the conditional
-     * probabilities for the Bayes net of the form P(N=v0 | P1=v1, P2=v2,...).
-     * The first dimension is the node N, in the order of 'nodes'.  The second
-     * dimension is the row index for the table of parameters associated with
-     * node N; the third dimension is the column index.  The row index is
-     * calculated by the function getRowIndex(int[] values) where 'values' is an
-     * array of numerical indices for each of the parent values; the order of
-     * the values in this array is the same as the order of node in 'parents';
-     * the value indices are obtained from the Bayes PM for each node.  The
-     * column is the index of the value of N, where this index is obtained from
-     * the Bayes PM.
+     * The serialized form of the conditional probabilities for the Bayes net,
+     * of the form P(N=v0 | P1=v1, P2=v2,...). The first dimension is the node
+     * N, in the order of 'nodes'.  The second dimension is the row index for
+     * the table of parameters associated with node N; the third dimension is
+     * the column index.  The row index is calculated by the function
+     * getRowIndex(int[] values) where 'values' is an array of numerical indices
+     * for each of the parent values; the order of the values in this array is
+     * the same as the order of node in 'parents'; the value indices are
+     * obtained from the Bayes PM for each node.  The column is the index of the
+     * value of N, where this index is obtained from the Bayes PM.
+     * <p>
+     * This is filled in from 'tables' only while the Bayes IM is being written
+     * out, and read back into 'tables'; otherwise it is null.
      *
      * @serial
      */
     private double[][][] probs;
 
+    /**
+     * The main data structure; stores the conditional probabilities, indexed
+     * as 'probs' is, in one flat array.
+     */
+    private transient CptTables tables;
+
     //===============================CONSTRUCTORS=========================//
 
     /**
@@ -325,7 +335,7 @@ public final class MlBayesIm implements BayesIm {
      * @see #getNumRows
      */
     public int getNumColumns(int nodeIndex) {
-        return probs[nodeIndex][0].length;
+        return tables.getNumColumns(nodeIndex);
     }
 
     /**
@@ -334,7 +344,7 @@ public final class MlBayesIm implements BayesIm {
      * @see #getNumColumns
      */
     public int getNumRows(int nodeIndex) {
-        return probs[nodeIndex].length;
+        return tables.getNumRows(nodeIndex);
     }
 
     /**
@@ -391,15 +401,25 @@ public final class MlBayesIm implements BayesIm {
      * @see #getRowIndex
      */
     public int[] getParentValues(int nodeIndex, int rowIndex) {
-        int[] dims = getParentDims(nodeIndex);
-        int[] values = new int[dims.length];
+        int[] values = new int[parentDims[nodeIndex].length];
+        getParentValues(nodeIndex, rowIndex, values);
+        return values;
+    }
+
+    /**
+     * Writes the combination of parent values for the given row into the
+     * given array, which must have room for one value per parent, so that
+     * callers looping over rows needn't allocate an array per row.
+     *
+     * @see #getParentValues(int, int)
+     */
+    public void getParentValues(int nodeIndex, int rowIndex, int[] values) {
+        int[] dims = parentDims[nodeIndex];
 
         for (int i = dims.length - 1; i >= 0; i--) {
             values[i] = rowIndex % dims[i];
             rowIndex /= dims[i];
         }
-
-        return values;
     }
 
     /**
@@ -407,7 +427,13 @@ public final class MlBayesIm implements BayesIm {
      * given row and column.
      */
     public int getParentValue(int nodeIndex, int rowIndex, int colIndex) {
-        return getParentValues(nodeIndex, rowIndex)[colIndex];
+        int[] dims = parentDims[nodeIndex];
+
+        for (int i = dims.length - 1; i > colIndex; i--) {
+            rowIndex /= dims[i];
+        }
+
+        return rowIndex % dims[colIndex];
     }
 
     /**
@@ -421,7 +447,7 @@ public final class MlBayesIm implements BayesIm {
      * @see #getRowIndex
      */
     public double getProbability(int nodeIndex, int rowIndex, int colIndex) {
-        return probs[nodeIndex][rowIndex][colIndex];
+        return tables.getProbability(nodeIndex, rowIndex, colIndex);
     }
 
     /**
@@ -430,7 +456,7 @@ public final class MlBayesIm implements BayesIm {
      * @see #getParentValues
      */
     public int getRowIndex(int nodeIndex, int[] values) {
-        int[] dim = getParentDims(nodeIndex);
+        int[] dim = parentDims[nodeIndex];
         int rowIndex = 0;
 
         for (int i = 0; i < dim.length; i++) {
@@ -516,7 +542,7 @@ public final class MlBayesIm implements BayesIm {
                     "between 0.0 and 1.0 or Double.NaN.");
         }
 
-        probs[nodeIndex][rowIndex][colIndex] = value;
+        tables.setProbability(tables.getIndex(nodeIndex, rowIndex, colIndex), value);
     }
 
     /**
@@ -552,7 +578,7 @@ public final class MlBayesIm implements BayesIm {
      */
     public void randomizeRow(int nodeIndex, int rowIndex) {
         final int size = getNumColumns(nodeIndex);
-        probs[nodeIndex][rowIndex] = getRandomWeights3(size);
+        setRow(nodeIndex, rowIndex, getRandomWeights3(size));
     }
 
     private static double[] getRandomWeights3(int size) {
@@ -611,10 +637,9 @@ public final class MlBayesIm implements BayesIm {
                 double d = 0;
 
                 for (int j = 0; j < rowIndex; j++) {
-                    double[] r2 = probs[nodeIndex][rowIndex];
-
                     for (int k = 0; k < getNumColumns(nodeIndex); k++) {
-                        d += (r1[k] - r2[k]) * (r1[k] - r2[k]);
+                        double r2 = getProbability(nodeIndex, rowIndex, k);
+                        d += (r1[k] - r2) * (r1[k] - r2);
                     }
                 }
 
@@ -624,7 +649,7 @@ public final class MlBayesIm implements BayesIm {
                 }
             }
 
-            probs[nodeIndex][rowIndex] = maxr;
+            setRow(nodeIndex, rowIndex, maxr);
         }
 
         for (int t = 0; t < 5; t++) {
@@ -639,10 +664,10 @@ public final class MlBayesIm implements BayesIm {
 
                     for (int j = 0; j < getNumRows(nodeIndex); j++) {
                         if (rowIndex == j) continue;
-                        double[] r2 = probs[nodeIndex][rowIndex];
 
                         for (int k = 0; k < getNumColumns(nodeIndex); k++) {
-                            d += (r1[k] - r2[k]) * (r1[k] - r2[k]);
+                            double r2 = getProbability(nodeIndex, rowIndex, k);
+                            d += (r1[k] - r2) * (r1[k] - r2);
                         }
                     }
 
@@ -652,7 +677,7 @@ public final class MlBayesIm implements BayesIm {
                     }
                 }
 
-                probs[nodeIndex][rowIndex] = maxr;
+                setRow(nodeIndex, rowIndex, maxr);
             }
         }
     }
@@ -822,13 +847,8 @@ public final class MlBayesIm implements BayesIm {
      *                   seed (so you don't have to store the sample data
      * @return the simulated sample as a DataSet.
      */
-    public DataSet simulateData(int sampleSize, long seed, boolean latentDataSaved) {
-        RandomUtil random = RandomUtil.getInstance();
-        long _seed = random.getSeed();
-        random.setSeed(seed);
-        DataSet dataSet = simulateData(sampleSize, latentDataSaved);
-        random.revertSeed(_seed);
-        return dataSet;
+    public DataSet simulateData(final int sampleSize, long seed, final boolean latentDataSaved) {
+        return RandomStreams.callWithSeed(seed, () -> simulateData(sampleSize, latentDataSaved));
     }
 
     public DataSet simulateData(DataSet dataSet, long seed, boolean latentDataSaved) {
@@ -878,8 +898,8 @@ public final class MlBayesIm implements BayesIm {
         }
 
 
-        DataSet dataSet = new BoxDataSet(new VerticalIntDataBox(sampleSize, variables.size()), variables);
-        constructSample(sampleSize, dataSet, map, tiers);
+        // The sample is drawn straight into the data box, packed if the categories allow.
+        DataSet dataSet = new BoxDataSet(new BayesImSampler(this, tiers).sampleBox(sampleSize), variables);
 
         if (!latentDataSaved) {
             dataSet = DataUtils.restrictToMeasured(dataSet);
@@ -940,108 +960,14 @@ public final class MlBayesIm implements BayesIm {
         }
     }
 
-    final long[] seed = new long[]{new Date().getTime()};
-
     private void constructSample(int sampleSize, DataSet dataSet, int[] map, int[] tiers) {
+        int[][] sample = new BayesImSampler(this, tiers).sample(sampleSize);
 
-//        //Do the simulation.
-//        class SimulationTask extends RecursiveTask<Boolean> {
-//            private int chunk;
-//            private int from;
-//            private int to;
-//            private int[] tiers;
-//            private DataSet dataSet;
-//            private int[] map;
-//
-//            public SimulationTask(int chunk, int from, int to, int[] tiers, DataSet dataSet, int[] map) {
-//                this.chunk = chunk;
-//                this.from = from;
-//                this.to = to;
-//                this.tiers = tiers;
-//                this.dataSet = dataSet;
-//                this.map = map;
-//            }
-//
-//            @Override
-//            protected Boolean compute() {
-//                if (to - from <= chunk) {
-//                    RandomGenerator randomGenerator = new Well1024a(++seed[0]);
-//
-//                    for (int row = from; row < to; row++) {
-//                        for (int t : tiers) {
-//                            int[] parentValues = new int[parents[t].length];
-//
-//                            for (int k = 0; k < parentValues.length; k++) {
-//                                parentValues[k] = dataSet.getInt(row, parents[t][k]);
-//                            }
-//
-//                            int rowIndex = getRowIndex(t, parentValues);
-//                            double sum = 0.0;
-//                            double r;
-//
-//                            r = randomGenerator.nextDouble();
-//
-//                            for (int k = 0; k < getNumColumns(t); k++) {
-//                                double probability = getProbability(t, rowIndex, k);
-//                                sum += probability;
-//
-//                                if (sum >= r) {
-//                                    dataSet.setInt(row, map[t], k);
-//                                    break;
-//                                }
-//                            }
-//                        }
-//                    }
-//
-//                    return true;
-//                } else {
-//                    int mid = (to + from) / 2;
-//                    SimulationTask left = new SimulationTask(chunk, from, mid, tiers, dataSet, map);
-//                    SimulationTask right = new SimulationTask(chunk, mid, to, tiers, dataSet, map);
-//
-//                    left.fork();
-//                    right.compute();
-//                    left.join();
-//
-//                    return true;
-//                }
-//            }
-//        }
-//
-//        int chunk = 25;
-//
-//        ForkJoinPool pool = ForkJoinPoolInstance.getInstance().getPool();
-//        SimulationTask task = new SimulationTask(chunk, 0, sampleSize, tiers, dataSet, map);
-//        pool.invoke(task);
-
-
-        // Construct the sample.
-        for (int i = 0; i < sampleSize; i++) {
-            for (int t : tiers) {
-                int[] parentValues = new int[parents[t].length];
-
-                for (int k = 0; k < parentValues.length; k++) {
-                    parentValues[k] = dataSet.getInt(i, parents[t][k]);
-                }
-
-                int rowIndex = getRowIndex(t, parentValues);
-                double sum = 0.0;
-
-                double r = RandomUtil.getInstance().nextDouble();
-
-                for (int k = 0; k < getNumColumns(t); k++) {
-                    double probability = getProbability(t, rowIndex, k);
-                    sum += probability;
-
-                    if (sum >= r) {
-                        dataSet.setInt(i, map[t], k);
-                        break;
-                    }
-                }
+        for (int t = 0; t < sample.length; t++) {
+            for (int i = 0; i < sampleSize; i++) {
+                dataSet.setInt(i, map[t], sample[t][i]);
             }
         }
-
-//        System.out.println(dataSet);
     }
 
     public boolean equals(Object o) {
@@ -1154,7 +1080,14 @@ public final class MlBayesIm implements BayesIm {
     private void initialize(BayesIm oldBayesIm, int initializationMethod) {
         parents = new int[this.nodes.length][];
         parentDims = new int[this.nodes.length][];
-        probs = new double[this.nodes.length][][];
+        int[] numColumns = new int[this.nodes.length];
+
+        for (int nodeIndex = 0; nodeIndex < this.nodes.length; nodeIndex++) {
+            initializeParents(nodeIndex);
+            numColumns[nodeIndex] = getBayesPm().getNumCategories(nodes[nodeIndex]);
+        }
+
+        tables = new CptTables(parents, parentDims, numColumns, false);
 
         for (int nodeIndex = 0; nodeIndex < this.nodes.length; nodeIndex++) {
             initializeNode(nodeIndex, oldBayesIm, initializationMethod);
@@ -1162,10 +1095,10 @@ public final class MlBayesIm implements BayesIm {
     }
 
     /**
-     * This method initializes the node indicated.
+     * This method sets up the parents of the node indicated and their
+     * dimensions.
      */
-    private void initializeNode(int nodeIndex, BayesIm oldBayesIm,
-                                int initializationMethod) {
+    private void initializeParents(int nodeIndex) {
         Node node = nodes[nodeIndex];
 
         // Set up parents array.  Should store the parents of
@@ -1207,11 +1140,15 @@ public final class MlBayesIm implements BayesIm {
             numRows *= dim;
         }
 
-        int numCols = getBayesPm().getNumCategories(node);
-
         parentDims[nodeIndex] = dims;
-        probs[nodeIndex] = new double[numRows][numCols];
+    }
 
+    /**
+     * This method initializes the table of the node indicated.
+     */
+    private void initializeNode(int nodeIndex, BayesIm oldBayesIm,
+                                int initializationMethod) {
+        int numRows = getNumRows(nodeIndex);
 
         // Initialize each row.
         if (initializationMethod == RANDOM) {
@@ -1337,7 +1274,15 @@ public final class MlBayesIm implements BayesIm {
         final int size = getNumColumns(nodeIndex);
         double[] row = new double[size];
         Arrays.fill(row, Double.NaN);
-        probs[nodeIndex][rowIndex] = row;
+        setRow(nodeIndex, rowIndex, row);
+    }
+
+    private void setRow(int nodeIndex, int rowIndex, double[] row) {
+        int index = tables.getIndex(nodeIndex, rowIndex, 0);
+
+        for (int colIndex = 0; colIndex < row.length; colIndex++) {
+            tables.setProbability(index + colIndex, row[colIndex]);
+        }
     }
 
     /**
@@ -1390,7 +1335,7 @@ public final class MlBayesIm implements BayesIm {
                         row[j] /= sum;
                     }
 
-                    probs[nodeIndex][rowIndex] = row;
+                    setRow(nodeIndex, rowIndex, row);
                 } else {
                     overwriteRow(nodeIndex, rowIndex, initializationMethod);
                 }
@@ -1573,6 +1518,46 @@ public final class MlBayesIm implements BayesIm {
         if (probs == null) {
             throw new NullPointerException();
         }
+
+        int[] numColumns = new int[nodes.length];
+
+        for (int nodeIndex = 0; nodeIndex < nodes.length; nodeIndex++) {
+            numColumns[nodeIndex] = probs[nodeIndex][0].length;
+        }
+
+        tables = new CptTables(parents, parentDims, numColumns, false);
+
+        for (int nodeIndex = 0; nodeIndex < nodes.length; nodeIndex++) {
+            for (int rowIndex = 0; rowIndex < probs[nodeIndex].length; rowIndex++) {
+                setRow(nodeIndex, rowIndex, probs[nodeIndex][rowIndex]);
+            }
+        }
+
+        probs = null;
+    }
+
+    /**
+     * Writes the probabilities out in the nested form of 'probs', which saved
+     * sessions expect.
+     */
+    private synchronized void writeObject(ObjectOutputStream s) throws IOException {
+        probs = new double[nodes.length][][];
+
+        for (int nodeIndex = 0; nodeIndex < nodes.length; nodeIndex++) {
+            probs[nodeIndex] = new double[getNumRows(nodeIndex)][getNumColumns(nodeIndex)];
+
+            for (int rowIndex = 0; rowIndex < getNumRows(nodeIndex); rowIndex++) {
+                for (int colIndex = 0; colIndex < getNumColumns(nodeIndex); colIndex++) {
+                    probs[nodeIndex][rowIndex][colIndex] = getProbability(nodeIndex, rowIndex, colIndex);
+                }
+            }
+        }
+
+        try {
+            s.defaultWriteObject();
+        } finally {
+            probs = null;
+        }
     }
 }
 
@@ -0,0 +1,1003 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomStreams;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradLogger;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Calculates approximate updated marginals for a Bayes net by sampling, for
+ * networks too large for exact updating. Two samplers are available:
+ * likelihood weighting, which samples the unobserved variables forward from
+ * their conditional probability tables and weights each sample by the
+ * probability of the evidence, and Gibbs sampling, which resamples each
+ * unobserved variable in turn given its Markov blanket. Either way several
+ * chains are run in parallel, each from its own random stream, over flat
+ * copies of the conditional probability tables.
+ * <p>
+ * Chains are run in rounds of one batch each. After each round, the batch
+ * means of the marginals give a standard error for each marginal and a
+ * Gelman-Rubin potential scale reduction factor (R-hat) across chains;
+ * sampling stops once every standard error is below the target precision and
+ * R-hat is below its threshold, or once the sample budget is spent.
+ * <p>
+ * A Gibbs chain starts from a forward sample the evidence allows. Chains that
+ * find none in 1000 tries (as when the evidence has probability zero, or
+ * nearly so) are dropped; if all are, the marginals are NaN, as they are for
+ * likelihood weighting when no sample has positive weight.
+ */
+public final class SamplingUpdater implements ManipulatingBayesUpdater {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The sampling methods.
+     */
+    public enum Method {LIKELIHOOD_WEIGHTING, GIBBS}
+
+    /**
+     * The number of batches each chain must run before sampling can stop.
+     */
+    private static final int MIN_BATCHES = 5;
+
+    /**
+     * The IM which this updater modifies.
+     *
+     * @serial Cannot be null.
+     */
+    private BayesIm bayesIm;
+
+    /**
+     * Stores evidence for all variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Evidence evidence;
+
+    /**
+     * This is the source BayesIm after manipulation; all samples are taken
+     * from this.
+     *
+     * @serial
+     */
+    private BayesIm manipulatedBayesIm;
+
+    /**
+     * The sampling method.
+     *
+     * @serial Cannot be null.
+     */
+    private Method method = Method.LIKELIHOOD_WEIGHTING;
+
+    /**
+     * The number of chains run in parallel.
+     *
+     * @serial Range >= 1.
+     */
+    private int numChains = 4;
+
+    /**
+     * The number of samples each chain draws per batch.
+     *
+     * @serial Range >= 1.
+     */
+    private int batchSize = 1000;
+
+    /**
+     * The number of sweeps each Gibbs chain discards before it starts
+     * counting.
+     *
+     * @serial Range >= 0.
+     */
+    private int burnIn = 500;
+
+    /**
+     * The maximum number of samples to draw, over all chains.
+     *
+     * @serial Range >= 1.
+     */
+    private int maxSamples = 1000000;
+
+    /**
+     * Sampling stops when the standard error of every marginal is at most
+     * this.
+     *
+     * @serial Range > 0.
+     */
+    private double precision = 0.005;
+
+    /**
+     * Sampling stops only when R-hat is at most this.
+     *
+     * @serial Range >= 1.
+     */
+    private double maxRHat = 1.05;
+
+    /**
+     * The updated marginals, by variable and category, or null if they need
+     * to be calculated.
+     */
+    private transient double[][] marginals;
+
+    /**
+     * Diagnostics for the last update.
+     */
+    private transient int numSamples;
+    private transient double effectiveSampleSize;
+    private transient double rHat;
+    private transient boolean converged;
+
+    //==============================CONSTRUCTORS===========================//
+
+    public SamplingUpdater(BayesIm bayesIm) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(Evidence.tautology(bayesIm));
+    }
+
+    /**
+     * Constructs a new updater for the given Bayes net.
+     */
+    public SamplingUpdater(BayesIm bayesIm, Evidence evidence) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(evidence);
+    }
+
+    /**
+     * @return a simple exemplar of this class to test serialization.
+     */
+    public static SamplingUpdater serializableInstance() {
+        return new SamplingUpdater(MlBayesIm.serializableInstance());
+    }
+
+    //============================PUBLIC METHODS==========================//
+
+    /**
+     * @return the Bayes instantiated model that is being updated.
+     */
+    public BayesIm getBayesIm() {
+        return bayesIm;
+    }
+
+    /**
+     * @return the Bayes instantiated model after manipulations have been
+     * applied.
+     */
+    public BayesIm getManipulatedBayesIm() {
+        return this.manipulatedBayesIm;
+    }
+
+    /**
+     * @return the graph for getManipulatedBayesIm().
+     */
+    public Graph getManipulatedGraph() {
+        return this.manipulatedBayesIm.getDag();
+    }
+
+    /**
+     * @return the updated Bayes IM, or null if there is no updated Bayes IM.
+     */
+    public BayesIm getUpdatedBayesIm() {
+        return null;
+    }
+
+    /**
+     * @return a copy of the getModel evidence.
+     */
+    public Evidence getEvidence() {
+        return new Evidence(this.evidence);
+    }
+
+    /**
+     * Sets new evidence for the next update operation.
+     */
+    public final void setEvidence(Evidence evidence) {
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence.isIncompatibleWith(bayesIm)) {
+            throw new IllegalArgumentException("The variables for the given " +
+                    "evidence must be compatible with the Bayes IM being updated.");
+        }
+
+        this.evidence = new Evidence(evidence);
+
+        Graph graph = bayesIm.getBayesPm().getDag();
+        Dag manipulatedGraph = createManipulatedGraph(graph);
+        BayesPm manipulatedBayesPm = new BayesPm(manipulatedGraph, bayesIm.getBayesPm());
+
+        // Switching this to MANUAL since the initial values don't matter.
+        this.manipulatedBayesIm = new MlBayesIm(manipulatedBayesPm, bayesIm, MlBayesIm.MANUAL);
+
+        for (int i = 0; i < evidence.getNumNodes(); i++) {
+            if (evidence.isManipulated(i)) {
+                for (int j = 0; j < evidence.getNumCategories(i); j++) {
+                    if (evidence.getProposition().isAllowed(i, j)) {
+                        manipulatedBayesIm.setProbability(i, 0, j, 1.0);
+                    } else {
+                        manipulatedBayesIm.setProbability(i, 0, j, 0.0);
+                    }
+                }
+            }
+        }
+
+        this.marginals = null;
+    }
+
+    public double getMarginal(int variable, int value) {
+        doUpdate();
+        return marginals[variable][value];
+    }
+
+    public boolean isJointMarginalSupported() {
+        return false;
+    }
+
+    /**
+     * @return the joint marginal.
+     */
+    public double getJointMarginal(int[] variables, int[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    public double[] calculatePriorMarginals(int nodeIndex) {
+        Evidence evidence = getEvidence();
+        setEvidence(Evidence.tautology(evidence.getVariableSource()));
+
+        double[] marginals = calculateUpdatedMarginals(nodeIndex);
+
+        setEvidence(evidence);
+        return marginals;
+    }
+
+    public double[] calculateUpdatedMarginals(int nodeIndex) {
+        doUpdate();
+        return Arrays.copyOf(marginals[nodeIndex], evidence.getNumCategories(nodeIndex));
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public void setMethod(Method method) {
+        if (method == null) {
+            throw new NullPointerException();
+        }
+
+        this.method = method;
+        this.marginals = null;
+    }
+
+    public int getNumChains() {
+        return numChains;
+    }
+
+    /**
+     * Sets the number of chains run in parallel. R-hat can only be calculated
+     * for two or more.
+     */
+    public void setNumChains(int numChains) {
+        if (numChains < 1) {
+            throw new IllegalArgumentException("Number of chains must be >= 1: " + numChains);
+        }
+
+        this.numChains = numChains;
+        this.marginals = null;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of samples each chain draws between convergence checks.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be >= 1: " + batchSize);
+        }
+
+        this.batchSize = batchSize;
+        this.marginals = null;
+    }
+
+    public int getBurnIn() {
+        return burnIn;
+    }
+
+    /**
+     * Sets the number of sweeps each Gibbs chain discards before it starts
+     * counting.
+     */
+    public void setBurnIn(int burnIn) {
+        if (burnIn < 0) {
+            throw new IllegalArgumentException("Burn-in must be >= 0: " + burnIn);
+        }
+
+        this.burnIn = burnIn;
+        this.marginals = null;
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * Sets the maximum number of samples to draw, over all chains. At least
+     * one batch is drawn from each chain whatever this is.
+     */
+    public void setMaxSamples(int maxSamples) {
+        if (maxSamples < 1) {
+            throw new IllegalArgumentException("Max samples must be >= 1: " + maxSamples);
+        }
+
+        this.maxSamples = maxSamples;
+        this.marginals = null;
+    }
+
+    public double getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Sets the standard error every marginal must reach before sampling stops.
+     */
+    public void setPrecision(double precision) {
+        if (!(precision > 0)) {
+            throw new IllegalArgumentException("Precision must be > 0: " + precision);
+        }
+
+        this.precision = precision;
+        this.marginals = null;
+    }
+
+    public double getMaxRHat() {
+        return maxRHat;
+    }
+
+    /**
+     * Sets the R-hat every marginal must reach before sampling stops.
+     */
+    public void setMaxRHat(double maxRHat) {
+        if (!(maxRHat >= 1)) {
+            throw new IllegalArgumentException("Max R-hat must be >= 1: " + maxRHat);
+        }
+
+        this.maxRHat = maxRHat;
+        this.marginals = null;
+    }
+
+    /**
+     * @return the number of samples drawn, over all chains, not counting
+     * burn-in.
+     */
+    public int getNumSamples() {
+        doUpdate();
+        return numSamples;
+    }
+
+    /**
+     * @return the smallest effective sample size over the marginals, from
+     * their batch mean standard errors and, for likelihood weighting, the
+     * spread of the weights.
+     */
+    public double getEffectiveSampleSize() {
+        doUpdate();
+        return effectiveSampleSize;
+    }
+
+    /**
+     * @return the largest R-hat over the marginals, or NaN if it couldn't be
+     * calculated.
+     */
+    public double getRHat() {
+        doUpdate();
+        return rHat;
+    }
+
+    /**
+     * @return true if sampling stopped because the marginals reached the
+     * target precision, false if the sample budget was spent first.
+     */
+    public boolean isConverged() {
+        doUpdate();
+        return converged;
+    }
+
+    /**
+     * Prints out the most recent marginal.
+     */
+    public String toString() {
+        return "Sampling updater (" + method + "), evidence = " + evidence;
+    }
+
+    //==============================PRIVATE METHODS=======================//
+
+    private void doUpdate() {
+        if (marginals != null) {
+            return;
+        }
+
+        int numNodes = manipulatedBayesIm.getNumNodes();
+        double[][] marginals = new double[numNodes][];
+
+        for (int i = 0; i < numNodes; i++) {
+            marginals[i] = new double[manipulatedBayesIm.getNumColumns(i)];
+            Arrays.fill(marginals[i], Double.NaN);
+        }
+
+        this.numSamples = 0;
+        this.effectiveSampleSize = 0;
+        this.rHat = Double.NaN;
+        this.converged = false;
+
+        if (!new Proposition(manipulatedBayesIm, evidence.getProposition()).existsCombination()) {
+            this.marginals = marginals;
+            return;
+        }
+
+        // Get a tier ordering and convert it to an int array.
+        List<Node> tierOrdering = getManipulatedGraph().getCausalOrdering();
+        int[] tiers = new int[tierOrdering.size()];
+
+        for (int i = 0; i < tierOrdering.size(); i++) {
+            tiers[i] = manipulatedBayesIm.getNodeIndex(tierOrdering.get(i));
+        }
+
+        Proposition proposition = new Evidence(evidence, manipulatedBayesIm).getProposition();
+        final Model model = new Model(manipulatedBayesIm, tiers, proposition);
+        final Chain[] allChains = new Chain[numChains];
+
+        for (int c = 0; c < numChains; c++) {
+            allChains[c] = new Chain(model);
+        }
+
+        final Method method = this.method;
+        final int burnIn = this.burnIn;
+        final int batchSize = this.batchSize;
+        RandomStreams streams = RandomStreams.fromRandomUtil();
+
+        streams.split(0).forEachBlock(numChains, 1,
+                (from, to, random) -> allChains[from].start(method, burnIn, random));
+
+        // A chain with no starting state the evidence allows would count states
+        // that violate it.
+        List<Chain> started = new ArrayList<>();
+
+        for (Chain chain : allChains) {
+            if (chain.started) started.add(chain);
+        }
+
+        if (started.isEmpty()) {
+            TetradLogger.getInstance().log("details", "No chain found a starting state "
+                    + "the evidence allows; the evidence may have probability zero.");
+            this.marginals = marginals;
+            return;
+        }
+
+        final Chain[] chains = started.toArray(new Chain[started.size()]);
+
+        for (int round = 1; ; round++) {
+            streams.split(round).forEachBlock(chains.length, 1,
+                    (from, to, random) -> chains[from].sample(method, batchSize, random));
+
+            this.numSamples = round * batchSize * chains.length;
+            double maxStandardError = summarize(model, chains, marginals);
+
+            if (round >= MIN_BATCHES && maxStandardError <= precision
+                    && (chains.length == 1 || rHat <= maxRHat)) {
+                this.converged = true;
+                break;
+            }
+
+            if ((long) numSamples + (long) batchSize * chains.length > maxSamples) {
+                break;
+            }
+        }
+
+        this.marginals = marginals;
+    }
+
+    /**
+     * Pools the chains into the given marginals and calculates the
+     * diagnostics from the batch means of each chain.
+     *
+     * @return the largest standard error over the marginals.
+     */
+    private double summarize(Model model, Chain[] chains, double[][] marginals) {
+        int m = chains.length;
+        double totalWeight = 0.0;
+        double totalSquaredWeight = 0.0;
+        int totalBatches = 0;
+        boolean enoughBatches = true;
+
+        for (Chain chain : chains) {
+            totalWeight += chain.totalWeight;
+            totalSquaredWeight += chain.totalSquaredWeight;
+            totalBatches += chain.numBatches;
+            if (chain.numBatches < 2) enoughBatches = false;
+        }
+
+        double maxStandardError = enoughBatches ? 0.0 : Double.POSITIVE_INFINITY;
+        double maxRHat = enoughBatches && m > 1 ? 1.0 : Double.NaN;
+        double minEss = Double.POSITIVE_INFINITY;
+        double[] chainMeans = new double[m];
+
+        for (int node = 0; node < marginals.length; node++) {
+            for (int k = 0; k < marginals[node].length; k++) {
+                int cell = model.offsets[node] + k;
+                double sum = 0.0;
+
+                for (Chain chain : chains) {
+                    sum += chain.weightSums[cell];
+                }
+
+                double p = totalWeight > 0 ? sum / totalWeight : Double.NaN;
+                marginals[node][k] = p;
+
+                if (!enoughBatches) continue;
+
+                // Gelman-Rubin over the batch means of the chains.
+                double within = 0.0;
+                double grandMean = 0.0;
+                double meanBatches = totalBatches / (double) m;
+
+                for (int c = 0; c < m; c++) {
+                    Chain chain = chains[c];
+                    int n = chain.numBatches;
+                    chainMeans[c] = chain.batchSums[cell] / n;
+                    within += (chain.batchSquaredSums[cell] - n * chainMeans[c] * chainMeans[c]) / (n - 1);
+                    grandMean += chainMeans[c];
+                }
+
+                within /= m;
+                grandMean /= m;
+                double between = 0.0;
+
+                if (m > 1) {
+                    for (int c = 0; c < m; c++) {
+                        between += (chainMeans[c] - grandMean) * (chainMeans[c] - grandMean);
+                    }
+
+                    between *= meanBatches / (m - 1);
+                }
+
+                within = Math.max(within, 0.0);
+                double varPlus = (meanBatches - 1) / meanBatches * within + between / meanBatches;
+                double standardError = Math.sqrt(varPlus / totalBatches);
+
+                maxStandardError = Math.max(maxStandardError, standardError);
+
+                if (m > 1) {
+                    double r = within > 0 ? Math.sqrt(varPlus / within)
+                            : between > 0 ? Double.POSITIVE_INFINITY : 1.0;
+                    maxRHat = Math.max(maxRHat, r);
+                }
+
+                if (standardError > 0 && p > 0 && p < 1) {
+                    minEss = Math.min(minEss, p * (1 - p) / (standardError * standardError));
+                }
+            }
+        }
+
+        if (method == Method.LIKELIHOOD_WEIGHTING && totalSquaredWeight > 0) {
+            minEss = Math.min(minEss, totalWeight * totalWeight / totalSquaredWeight);
+        }
+
+        this.rHat = maxRHat;
+        this.effectiveSampleSize = Math.min(minEss, numSamples);
+        return maxStandardError;
+    }
+
+    private Dag createManipulatedGraph(Graph graph) {
+        Dag updatedGraph = new Dag(graph);
+
+        // alters graph for manipulated evidenceItems
+        for (int i = 0; i < evidence.getNumNodes(); ++i) {
+            if (evidence.isManipulated(i)) {
+                Node node = updatedGraph.getNode(evidence.getNode(i).getName());
+                List<Node> parents = updatedGraph.getParents(node);
+
+                for (Node parent : parents) {
+                    updatedGraph.removeEdge(node, parent);
+                }
+            }
+        }
+
+        return updatedGraph;
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+
+        if (method == null) {
+            method = Method.LIKELIHOOD_WEIGHTING;
+        }
+    }
+
+    /**
+     * The manipulated Bayes IM compiled for sampling: flat conditional
+     * probability tables, with rows found by mixed-radix arithmetic over the
+     * parent values as getRowIndex finds them, and the categories the
+     * evidence allows.
+     */
+    private static final class Model {
+        private final int[] tiers;
+        private final int[] dims;
+        private final int[][] parents;
+        private final int[][] parentStrides;
+        private final double[][] probs;
+        private final boolean[][] allowed;
+        private final boolean[] restricted;
+        private final int[] offsets;
+        private final int numCells;
+
+        /**
+         * For each node, its children, and its stride in the row index of
+         * each child.
+         */
+        private final int[][] children;
+        private final int[][] childStrides;
+
+        Model(BayesIm im, int[] tiers, Proposition proposition) {
+            int numNodes = im.getNumNodes();
+
+            this.tiers = tiers;
+            this.dims = new int[numNodes];
+            this.parents = new int[numNodes][];
+            this.parentStrides = new int[numNodes][];
+            this.probs = new double[numNodes][];
+            this.allowed = new boolean[numNodes][];
+            this.restricted = new boolean[numNodes];
+            this.offsets = new int[numNodes];
+
+            int numCells = 0;
+
+            for (int node = 0; node < numNodes; node++) {
+                int numCols = im.getNumColumns(node);
+                dims[node] = numCols;
+                offsets[node] = numCells;
+                numCells += numCols;
+                allowed[node] = new boolean[numCols];
+
+                for (int k = 0; k < numCols; k++) {
+                    allowed[node][k] = proposition.isAllowed(node, k);
+                    if (!allowed[node][k]) restricted[node] = true;
+                }
+            }
+
+            this.numCells = numCells;
+
+            List<List<Integer>> childLists = new ArrayList<>();
+            List<List<Integer>> strideLists = new ArrayList<>();
+
+            for (int node = 0; node < numNodes; node++) {
+                childLists.add(new ArrayList<Integer>());
+                strideLists.add(new ArrayList<Integer>());
+            }
+
+            for (int node = 0; node < numNodes; node++) {
+                int numRows = im.getNumRows(node);
+                int numCols = dims[node];
+                int[] _parents = im.getParents(node);
+                int[] strides = new int[_parents.length];
+                int stride = 1;
+
+                for (int k = _parents.length - 1; k >= 0; k--) {
+                    strides[k] = stride;
+                    stride *= dims[_parents[k]];
+                    childLists.get(_parents[k]).add(node);
+                    strideLists.get(_parents[k]).add(strides[k]);
+                }
+
+                parents[node] = _parents.clone();
+                parentStrides[node] = strides;
+                probs[node] = new double[numRows * numCols];
+
+                for (int row = 0; row < numRows; row++) {
+                    for (int k = 0; k < numCols; k++) {
+                        double probability = im.getProbability(node, row, k);
+
+                        if (Double.isNaN(probability)) {
+                            throw new IllegalStateException("Some probability " +
+                                    "values in the BayesIm are not filled in; " +
+                                    "cannot do approximate updating.");
+                        }
+
+                        probs[node][row * numCols + k] = probability;
+                    }
+                }
+            }
+
+            this.children = new int[numNodes][];
+            this.childStrides = new int[numNodes][];
+
+            for (int node = 0; node < numNodes; node++) {
+                int numChildren = childLists.get(node).size();
+                children[node] = new int[numChildren];
+                childStrides[node] = new int[numChildren];
+
+                for (int j = 0; j < numChildren; j++) {
+                    children[node][j] = childLists.get(node).get(j);
+                    childStrides[node][j] = strideLists.get(node).get(j);
+                }
+            }
+        }
+
+        private int row(int node, int[] state) {
+            int[] _parents = parents[node];
+            int[] strides = parentStrides[node];
+            int row = 0;
+
+            for (int k = 0; k < _parents.length; k++) {
+                row += state[_parents[k]] * strides[k];
+            }
+
+            return row;
+        }
+
+        /**
+         * Samples the state forward, drawing each variable the evidence
+         * restricts from among its allowed categories.
+         *
+         * @return the likelihood weight of the sample, the product of the
+         * probabilities of the allowed categories of the restricted variables.
+         */
+        private double forwardSample(int[] state, RandomUtil random) {
+            double weight = 1.0;
+
+            for (int node : tiers) {
+                int n = dims[node];
+                int offset = row(node, state) * n;
+                double[] p = probs[node];
+                boolean[] _allowed = allowed[node];
+                double total = 0.0;
+
+                for (int k = 0; k < n; k++) {
+                    if (_allowed[k]) total += p[offset + k];
+                }
+
+                if (restricted[node]) {
+                    weight *= total;
+                }
+
+                if (!(total > 0)) {
+                    return 0.0;
+                }
+
+                double u = random.nextDouble() * total;
+                int value = -1;
+
+                for (int k = 0; k < n; k++) {
+                    if (!_allowed[k]) continue;
+                    value = k;
+                    u -= p[offset + k];
+                    if (u < 0) break;
+                }
+
+                state[node] = value;
+            }
+
+            return weight;
+        }
+
+        /**
+         * Resamples each variable with more than one allowed category given
+         * the rest of the state, which depends only on its Markov blanket.
+         */
+        private void sweep(int[] state, double[] scratch, int[] childRows, RandomUtil random) {
+            for (int node : tiers) {
+                int n = dims[node];
+                boolean[] _allowed = allowed[node];
+                int[] _children = children[node];
+                int[] strides = childStrides[node];
+                int current = state[node];
+                int offset = row(node, state) * n;
+
+                for (int j = 0; j < _children.length; j++) {
+                    childRows[j] = row(_children[j], state) - current * strides[j];
+                }
+
+                double total = 0.0;
+                int numAllowed = 0;
+
+                for (int k = 0; k < n; k++) {
+                    if (!_allowed[k]) {
+                        scratch[k] = 0.0;
+                        continue;
+                    }
+
+                    numAllowed++;
+                    double q = probs[node][offset + k];
+
+                    for (int j = 0; j < _children.length && q > 0; j++) {
+                        int child = _children[j];
+                        int childRow = childRows[j] + k * strides[j];
+                        q *= probs[child][childRow * dims[child] + state[child]];
+                    }
+
+                    scratch[k] = q;
+                    total += q;
+                }
+
+                if (numAllowed < 2 || !(total > 0)) {
+                    continue;
+                }
+
+                double u = random.nextDouble() * total;
+
+                for (int k = 0; k < n; k++) {
+                    if (scratch[k] == 0.0) continue;
+                    state[node] = k;
+                    u -= scratch[k];
+                    if (u < 0) break;
+                }
+            }
+        }
+    }
+
+    /**
+     * One chain of samples, with its weighted counts and batch means.
+     */
+    private static final class Chain {
+        private final Model model;
+        private final int[] state;
+        private final double[] scratch;
+        private final int[] childRows;
+
+        private final double[] weightSums;
+        private final double[] batchSums;
+        private final double[] batchSquaredSums;
+        private double totalWeight;
+        private double totalSquaredWeight;
+        private int numBatches;
+
+        // False if no starting state the evidence allows was found.
+        private boolean started;
+
+        Chain(Model model) {
+            this.model = model;
+            this.state = new int[model.dims.length];
+            this.weightSums = new double[model.numCells];
+            this.batchSums = new double[model.numCells];
+            this.batchSquaredSums = new double[model.numCells];
+
+            int maxDim = 0;
+            int maxChildren = 0;
+
+            for (int node = 0; node < model.dims.length; node++) {
+                maxDim = Math.max(maxDim, model.dims[node]);
+                maxChildren = Math.max(maxChildren, model.children[node].length);
+            }
+
+            this.scratch = new double[maxDim];
+            this.childRows = new int[maxChildren];
+        }
+
+        /**
+         * For Gibbs sampling, finds a starting state the evidence allows and
+         * runs the burn-in. If no such state is found, the chain is not
+         * started.
+         */
+        void start(Method method, int burnIn, RandomUtil random) {
+            if (method != Method.GIBBS) {
+                started = true;
+                return;
+            }
+
+            for (int attempt = 0; attempt < 1000 && !started; attempt++) {
+                started = model.forwardSample(state, random) > 0;
+            }
+
+            if (!started) return;
+
+            for (int i = 0; i < burnIn; i++) {
+                model.sweep(state, scratch, childRows, random);
+            }
+        }
+
+        /**
+         * Draws one batch of samples.
+         */
+        void sample(Method method, int batchSize, RandomUtil random) {
+            int[] offsets = model.offsets;
+            double[] counts = new double[model.numCells];
+            double weight = 0.0;
+
+            for (int i = 0; i < batchSize; i++) {
+                double w;
+
+                if (method == Method.GIBBS) {
+                    model.sweep(state, scratch, childRows, random);
+                    w = 1.0;
+                } else {
+                    w = model.forwardSample(state, random);
+                }
+
+                if (w > 0) {
+                    for (int node = 0; node < state.length; node++) {
+                        counts[offsets[node] + state[node]] += w;
+                    }
+
+                    weight += w;
+                    totalSquaredWeight += w * w;
+                }
+            }
+
+            totalWeight += weight;
+
+            for (int cell = 0; cell < counts.length; cell++) {
+                weightSums[cell] += counts[cell];
+            }
+
+            if (weight > 0) {
+                for (int cell = 0; cell < counts.length; cell++) {
+                    double mean = counts[cell] / weight;
+                    batchSums[cell] += mean;
+                    batchSquaredSums[cell] += mean * mean;
+                }
+
+                numBatches++;
+            }
+        }
+    }
+}
@@ -26,21 +26,33 @@ import edu.cmu.tetrad.calculator.parser.ExpressionParser;
 import edu.cmu.tetrad.data.ContinuousVariable;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Represents a transformation on some dataset. For instance if the
  * equation is X = Z + W, where Z and W are columns in the data set,
+ * <p>
+ * Equations are compiled and evaluated a column at a time, in parallel over
+ * chunks of rows. Deterministic subexpressions that occur more than once in
+ * the equations are evaluated once, so long as the variables they mention are
+ * not changed in between. Equations that draw random values are evaluated
+ * row by row in order, so that they draw the same values as the expressions
+ * they are compiled from would.
  *
  * @author Tyler Gibson
  */
 public class Transformation {
 
+    /**
+     * The number of rows in each chunk evaluated in parallel.
+     */
+    private static final int CHUNK_SIZE = 10000;
+
     /**
      * Don't instantiate.
      */
@@ -64,113 +76,253 @@ public class Transformation {
         if (equations.length == 0) {
             return;
         }
-        for (String equation : equations) {
-            transformEquation(data, equation);
+
+        List<Equation> parsed = new ArrayList<>();
+
+        try {
+            for (String equation : equations) {
+                parsed.add(parseEquation(data, equation));
+            }
+        } catch (ParseException e) {
+
+            // The equations before the one that failed still take effect.
+            transformEquations(data, parsed);
+            throw e;
         }
+
+        transformEquations(data, parsed);
     }
 
     //======================== Private Methods ============================//
 
     /**
-     * Transforms the given dataset using the given equation.
+     * Parses the given equation, adding its variable to the data if required, so that later equations may
+     * mention it.
      */
-    private static void transformEquation(DataSet data, String eq) throws ParseException {
+    private static Equation parseEquation(DataSet data, String eq) throws ParseException {
         ExpressionParser parser = new ExpressionParser(data.getVariableNames(), ExpressionParser.RestrictionType.MAY_ONLY_CONTAIN);
         Equation equation = parser.parseEquation(eq);
 
         addVariableIfRequired(data, equation.getVariable());
-        Expression expression = equation.getExpression();
         Node variable = data.getVariable(equation.getVariable());
         if (variable == null) {
             throw new IllegalStateException("Unknown variable " + equation.getVariable());
         }
-        int column = data.getColumn(variable);
-        // build the context pairs.
-        List<String> contextVars = getContextVariables(expression);
-        // now do the transformation row by row.
-        DataBackedContext context = new DataBackedContext(data, contextVars);
+
+        return equation;
+    }
+
+    /**
+     * Transforms the given dataset using the given equations, in order.
+     */
+    private static void transformEquations(DataSet data, List<Equation> equations) {
+        List<String> variables = data.getVariableNames();
         int rows = data.getNumRows();
-        for (int row = 0; row < rows; row++) {
-            // build the context
-            context.setRow(row);
-            double newValue = expression.evaluate(context);
-            data.setDouble(row, column, newValue);
+
+        // Columns read from the data, or written by earlier equations, by variable.
+        Map<String, double[]> columns = new HashMap<>();
+
+        // Values of the deterministic subexpressions that occur more than once, by signature.
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, double[]> shared = new LinkedHashMap<>();
+        Map<String, Set<String>> sharedVariables = new HashMap<>();
+
+        for (Equation equation : equations) {
+            countSubexpressions(equation.getExpression(), counts);
+        }
+
+        for (Equation equation : equations) {
+            Expression expression = equation.getExpression();
+            evaluateShared(data, expression, variables, columns, counts, shared, sharedVariables);
+
+            double[] result = evaluate(data, expression, variables, columns, shared);
+
+            int column = data.getColumn(data.getVariable(equation.getVariable()));
+
+            for (int row = 0; row < rows; row++) {
+                data.setDouble(row, column, result[row]);
+            }
+
+            // Read the column back, in case the data stores it differently--as integers, say.
+            columns.remove(equation.getVariable());
+
+            for (String signature : new ArrayList<>(shared.keySet())) {
+                if (sharedVariables.get(signature).contains(equation.getVariable())) {
+                    shared.remove(signature);
+                }
+            }
         }
     }
 
     /**
-     * Adds a column for the given varible if required.
+     * Counts the occurrences of deterministic subexpressions (other than variables and constants) by signature.
      */
-    private static void addVariableIfRequired(DataSet data, String var) {
-        List<String> nodes = data.getVariableNames();
-        if (!nodes.contains(var)) {
-            data.addVariable(new ContinuousVariable(var));
+    private static void countSubexpressions(Expression expression, Map<String, Integer> counts) {
+        if (expression instanceof VariableExpression || expression instanceof ConstantExpression) {
+            return;
+        }
+
+        if (CompiledExpression.isDeterministic(expression)) {
+            String signature = CompiledExpression.getSignature(expression);
+            Integer count = counts.get(signature);
+            counts.put(signature, count == null ? 1 : count + 1);
         }
-    }
 
+        for (Expression sub : expression.getExpressions()) {
+            countSubexpressions(sub, counts);
+        }
+    }
 
     /**
-     * @return the variables used in the expression.
+     * Evaluates the outermost subexpressions of the given expression that occur more than once and have not
+     * been evaluated already.
      */
-    private static List<String> getContextVariables(Expression exp) {
-        List<String> variables = new ArrayList<>();
+    private static void evaluateShared(DataSet data, Expression expression, List<String> variables,
+                                       Map<String, double[]> columns, Map<String, Integer> counts,
+                                       Map<String, double[]> shared, Map<String, Set<String>> sharedVariables) {
+        if (expression instanceof VariableExpression || expression instanceof ConstantExpression) {
+            return;
+        }
 
-        for (Expression sub : exp.getExpressions()) {
-            if (sub instanceof VariableExpression) {
-                variables.add(((VariableExpression) sub).getVariable());
-            } else if (!(sub instanceof ConstantExpression)) {
-                variables.addAll(getContextVariables(sub));
+        if (CompiledExpression.isDeterministic(expression)) {
+            String signature = CompiledExpression.getSignature(expression);
+
+            if (counts.get(signature) > 1) {
+                if (!shared.containsKey(signature)) {
+                    double[] values = evaluate(data, expression, variables, columns, shared);
+                    shared.put(signature, values);
+                    sharedVariables.put(signature, new HashSet<>(getContextVariables(expression)));
+                }
+
+                return;
             }
         }
 
-        return variables;
+        for (Expression sub : expression.getExpressions()) {
+            evaluateShared(data, sub, variables, columns, counts, shared, sharedVariables);
+        }
     }
 
-    //============================== Inner Class ==============================//
+    /**
+     * Evaluates the given expression for every row, reading the values of shared subexpressions already
+     * evaluated.
+     */
+    private static double[] evaluate(DataSet data, Expression expression, List<String> variables,
+                                     Map<String, double[]> columns, Map<String, double[]> shared) {
+        final int rows = data.getNumRows();
+        final double[][] _columns = new double[variables.size() + shared.size()][];
+        Map<String, Integer> subexpressions = new HashMap<>();
+
+        for (String variable : getContextVariables(expression)) {
+            int index = variables.indexOf(variable);
+            _columns[index] = getColumn(data, variable, columns);
+        }
 
-    private static class DataBackedContext implements Context {
+        for (String signature : shared.keySet()) {
+            int index = variables.size() + subexpressions.size();
+            _columns[index] = shared.get(signature);
+            subexpressions.put(signature, index);
+        }
 
+        final CompiledExpression compiled = CompiledExpression.compile(expression, variables,
+                Collections.<String, Double>emptyMap(), subexpressions);
+        final double[] result = new double[rows];
 
-        /**
-         * The data.
-         */
-        private DataSet data;
+        if (!CompiledExpression.isDeterministic(expression)) {
+            double[] values = new double[_columns.length];
+            double[] stack = new double[compiled.getStackSize()];
 
+            for (int row = 0; row < rows; row++) {
+                for (int i = 0; i < _columns.length; i++) {
+                    if (_columns[i] != null) values[i] = _columns[i][row];
+                }
 
-        /**
-         * Var -> index mapping.
-         */
-        private Map<String, Integer> indexes = new HashMap<>();
+                result[row] = compiled.evaluate(values, stack);
+            }
 
+            return result;
+        }
 
-        /**
-         * The getModel row.
-         */
-        private int row;
+        class EvaluationTask extends RecursiveAction {
+            private final int from;
+            private final int to;
 
+            private EvaluationTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
 
-        public DataBackedContext(DataSet data, List<String> vars) {
-            this.data = data;
-            for (String v : vars) {
-                Node n = data.getVariable(v);
-                indexes.put(v, data.getColumn(n));
+            @Override
+            protected void compute() {
+                if (to - from <= CHUNK_SIZE) {
+                    compiled.evaluate(_columns, from, to, result);
+                } else {
+                    int mid = (from + to) / 2;
+                    invokeAll(new EvaluationTask(from, mid), new EvaluationTask(mid, to));
+                }
             }
         }
 
-        public void setRow(int row) {
-            this.row = row;
+        EvaluationTask task = new EvaluationTask(0, rows);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
         }
 
-        public Double getValue(String var) {
-            Integer i = indexes.get(var);
-            if (i != null) {
-                return data.getDouble(row, i);
+        return result;
+    }
+
+    /**
+     * @return the values of the given variable, read from the data the first time they are needed.
+     */
+    private static double[] getColumn(DataSet data, String variable, Map<String, double[]> columns) {
+        double[] column = columns.get(variable);
+
+        if (column == null) {
+            int j = data.getColumn(data.getVariable(variable));
+            column = new double[data.getNumRows()];
+
+            for (int row = 0; row < column.length; row++) {
+                column[row] = data.getDouble(row, j);
             }
-            return null;
+
+            columns.put(variable, column);
         }
+
+        return column;
     }
-}
 
+    /**
+     * Adds a column for the given varible if required.
+     */
+    private static void addVariableIfRequired(DataSet data, String var) {
+        List<String> nodes = data.getVariableNames();
+        if (!nodes.contains(var)) {
+            data.addVariable(new ContinuousVariable(var));
+        }
+    }
+
+
+    /**
+     * @return the variables used in the expression.
+     */
+    private static List<String> getContextVariables(Expression exp) {
+        List<String> variables = new ArrayList<>();
+
+        if (exp instanceof VariableExpression) {
+            variables.add(((VariableExpression) exp).getVariable());
+            return variables;
+        }
+
+        for (Expression sub : exp.getExpressions()) {
+            variables.addAll(getContextVariables(sub));
+        }
+
+        return variables;
+    }
+}
 
 
 
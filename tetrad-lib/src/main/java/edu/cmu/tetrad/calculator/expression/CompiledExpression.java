@@ -0,0 +1,747 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.calculator.expression;
+
+import edu.cmu.tetrad.util.RandomUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An expression compiled to a flat program for a stack machine, for evaluating an expression many times--for
+ * instance, once per row of a simulation--without walking the expression tree or looking up variables by name.
+ * <p>
+ * Variables are bound when compiling to indices into an array of values, or into an array of columns, and
+ * parameters are replaced by their values, so the expression should be compiled again if parameter values change.
+ * The operators of ExpressionManager are compiled, as are normal and uniform draws; any other subexpression (other
+ * distributions, templates, expressions not made by ExpressionManager) is evaluated as is, with a context that looks
+ * up values the same way. Terms of sums that may fail, and disjunctions that may stop before drawing random values,
+ * are evaluated as is as well, so compiled and uncompiled expressions give the same values, random draws included.
+ * <p>
+ * A compiled expression may be evaluated for one row at a time or for a range of rows of columns at once, in which
+ * case each operation is applied to the whole range before the next is. Random draws are taken from
+ * RandomUtil.getInstance(), so evaluating ranges of rows in parallel under RandomStreams is reproducible.
+ */
+public final class CompiledExpression {
+
+    // Operations. Those marked (arg) are followed in the program by an argument.
+    private static final int CONSTANT = 0; // (arg) index of constant
+    private static final int VARIABLE = 1; // (arg) index of variable
+    private static final int EVAL = 2; // (arg) index of subexpression evaluated as is
+    private static final int ADD = 3; // (arg) number of terms
+    private static final int MULTIPLY = 4; // (arg) number of factors
+    private static final int MAX = 5; // (arg) number of terms
+    private static final int MIN = 6; // (arg) number of terms
+    private static final int AND = 7; // (arg) number of terms
+    private static final int OR = 8; // (arg) number of terms
+    private static final int IF = 9;
+    private static final int NORMAL = 10;
+    private static final int UNIFORM = 11;
+    private static final int EVAL_OR_ZERO = 12; // (arg) index of subexpression evaluated as is, 0 if it fails
+
+    // Unary operations.
+    private static final int NEGATE = 20;
+    private static final int EXP = 21;
+    private static final int SQRT = 22;
+    private static final int COSH = 23;
+    private static final int SINH = 24;
+    private static final int TANH = 25;
+    private static final int COS = 26;
+    private static final int SIN = 27;
+    private static final int TAN = 28;
+    private static final int ACOS = 29;
+    private static final int ASIN = 30;
+    private static final int ATAN = 31;
+    private static final int LOGISTIC = 32;
+    private static final int LN = 33;
+    private static final int LOG10 = 34;
+    private static final int ROUND = 35;
+    private static final int CEIL = 36;
+    private static final int FLOOR = 37;
+    private static final int ABS = 38;
+    private static final int SIGNUM = 39;
+
+    // Binary operations.
+    private static final int SUBTRACT = 50;
+    private static final int DIVIDE = 51;
+    private static final int POW = 52;
+    private static final int XOR = 53;
+    private static final int LESS = 54;
+    private static final int LESS_OR_EQUAL = 55;
+    private static final int EQUAL = 56;
+    private static final int GREATER = 57;
+    private static final int GREATER_OR_EQUAL = 58;
+
+    private static final Map<String, Integer> UNARY = new HashMap<>();
+    private static final Map<String, Integer> BINARY = new HashMap<>();
+    private static final Map<String, Integer> N_ARY = new HashMap<>();
+
+    static {
+        UNARY.put("-", NEGATE);
+        UNARY.put("exp", EXP);
+        UNARY.put("sqrt", SQRT);
+        UNARY.put("cosh", COSH);
+        UNARY.put("sinh", SINH);
+        UNARY.put("tanh", TANH);
+        UNARY.put("cos", COS);
+        UNARY.put("sin", SIN);
+        UNARY.put("tan", TAN);
+        UNARY.put("acos", ACOS);
+        UNARY.put("asin", ASIN);
+        UNARY.put("atan", ATAN);
+        UNARY.put("logistic", LOGISTIC);
+        UNARY.put("ln", LN);
+        UNARY.put("log10", LOG10);
+        UNARY.put("round", ROUND);
+        UNARY.put("ceil", CEIL);
+        UNARY.put("floor", FLOOR);
+        UNARY.put("abs", ABS);
+        UNARY.put("signum", SIGNUM);
+
+        BINARY.put("-", SUBTRACT);
+        BINARY.put("/", DIVIDE);
+        BINARY.put("pow", POW);
+        BINARY.put("^", POW);
+        BINARY.put("XOR", XOR);
+        BINARY.put("<", LESS);
+        BINARY.put("<=", LESS_OR_EQUAL);
+        BINARY.put("=", EQUAL);
+        BINARY.put(">", GREATER);
+        BINARY.put(">=", GREATER_OR_EQUAL);
+        BINARY.put("N", NORMAL);
+        BINARY.put("Normal", NORMAL);
+        BINARY.put("Uniform", UNIFORM);
+
+        N_ARY.put("+", ADD);
+        N_ARY.put("*", MULTIPLY);
+        N_ARY.put("max", MAX);
+        N_ARY.put("min", MIN);
+        N_ARY.put("AND", AND);
+        N_ARY.put("OR", OR);
+    }
+
+    /**
+     * The program.
+     */
+    private final int[] code;
+
+    /**
+     * Constants and parameter values used by the program.
+     */
+    private final double[] constants;
+
+    /**
+     * Subexpressions evaluated as is.
+     */
+    private final Expression[] evaluated;
+
+    /**
+     * The stack depth the program needs.
+     */
+    private final int stackSize;
+
+    /**
+     * Indices of variables, for evaluating subexpressions as is.
+     */
+    private final Map<String, Integer> indices;
+
+    /**
+     * Parameter values, for evaluating subexpressions as is.
+     */
+    private final Map<String, Double> parameterValues;
+
+    private CompiledExpression(Compiler compiler, Map<String, Integer> indices, Map<String, Double> parameterValues) {
+        this.code = compiler.code();
+        this.constants = compiler.constants();
+        this.evaluated = compiler.evaluated.toArray(new Expression[compiler.evaluated.size()]);
+        this.stackSize = Math.max(compiler.maxDepth, 1);
+        this.indices = indices;
+        this.parameterValues = parameterValues;
+    }
+
+    /**
+     * Compiles the given expression.
+     *
+     * @param expression      The expression.
+     * @param variables       The variables the expression may mention; the i'th is bound to index i.
+     * @param parameterValues The values of parameters the expression may mention.
+     * @throws IllegalArgumentException if the expression mentions a name that is neither a variable nor a
+     *                                  parameter.
+     */
+    public static CompiledExpression compile(Expression expression, List<String> variables,
+                                             Map<String, Double> parameterValues) {
+        return compile(expression, variables, parameterValues, Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * Compiles the given expression, reading the values of deterministic subexpressions that have already been
+     * evaluated instead of evaluating them again.
+     *
+     * @param expression      The expression.
+     * @param variables       The variables the expression may mention; the i'th is bound to index i.
+     * @param parameterValues The values of parameters the expression may mention.
+     * @param subexpressions  Indices of the values of subexpressions already evaluated, by signature. These
+     *                        indices follow those of the variables.
+     * @throws IllegalArgumentException if the expression mentions a name that is neither a variable nor a
+     *                                  parameter.
+     * @see #getSignature(Expression)
+     */
+    public static CompiledExpression compile(Expression expression, List<String> variables,
+                                             Map<String, Double> parameterValues,
+                                             Map<String, Integer> subexpressions) {
+        Map<String, Integer> indices = new HashMap<>();
+
+        for (int i = 0; i < variables.size(); i++) {
+            indices.put(variables.get(i), i);
+        }
+
+        Map<String, Double> _parameterValues = new HashMap<>(parameterValues);
+
+        Compiler compiler = new Compiler(indices, _parameterValues, subexpressions);
+        compiler.compile(expression);
+        return new CompiledExpression(compiler, indices, _parameterValues);
+    }
+
+    /**
+     * @return true if the given expression compiles to operations that neither fail nor draw random values, so
+     * that it may be evaluated in any order, or once for several occurrences.
+     */
+    public static boolean isDeterministic(Expression expression) {
+        if (expression instanceof ConstantExpression || expression instanceof VariableExpression) {
+            return true;
+        }
+
+        Integer op = operation(expression);
+
+        if (op == null || op == NORMAL || op == UNIFORM) {
+            return false;
+        }
+
+        for (Expression child : expression.getExpressions()) {
+            if (!isDeterministic(child)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return a string identifying the given deterministic expression by its structure--unlike toString(),
+     * which leaves out parentheses--so that repeated subexpressions can be recognized.
+     */
+    public static String getSignature(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            return Double.toString(expression.evaluate(null));
+        }
+
+        if (expression instanceof VariableExpression) {
+            return "'" + ((VariableExpression) expression).getVariable() + "'";
+        }
+
+        StringBuilder buf = new StringBuilder(expression.getToken()).append("(");
+        List<Expression> children = expression.getExpressions();
+
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) buf.append(",");
+            buf.append(getSignature(children.get(i)));
+        }
+
+        return buf.append(")").toString();
+    }
+
+    /**
+     * @return the size of stack evaluate(double[], double[]) needs.
+     */
+    public int getStackSize() {
+        return stackSize;
+    }
+
+    /**
+     * @param values The values of the variables, by index.
+     * @return the value of the expression.
+     */
+    public double evaluate(double[] values) {
+        return evaluate(values, new double[stackSize]);
+    }
+
+    /**
+     * @param values The values of the variables, by index.
+     * @param stack  Working space, at least getStackSize() long, so that it may be reused from row to row.
+     * @return the value of the expression.
+     */
+    public double evaluate(double[] values, double[] stack) {
+        Bindings bindings = null;
+        int sp = -1;
+
+        for (int pc = 0; pc < code.length; pc++) {
+            int op = code[pc];
+
+            switch (op) {
+                case CONSTANT:
+                    stack[++sp] = constants[code[++pc]];
+                    break;
+                case VARIABLE:
+                    stack[++sp] = values[code[++pc]];
+                    break;
+                case EVAL:
+                case EVAL_OR_ZERO:
+                    if (bindings == null) bindings = new Bindings(values, null);
+                    stack[++sp] = evaluate(evaluated[code[++pc]], bindings, op == EVAL_OR_ZERO);
+                    break;
+                case ADD:
+                case MULTIPLY:
+                case MAX:
+                case MIN:
+                case AND:
+                case OR: {
+                    int n = code[++pc];
+                    int base = sp - n + 1;
+                    stack[base] = reduce(op, stack, base, sp);
+                    sp = base;
+                    break;
+                }
+                case IF:
+                    sp -= 2;
+                    stack[sp] = stack[sp] == 1.0 ? stack[sp + 1] : stack[sp + 2];
+                    break;
+                case NORMAL:
+                    sp--;
+                    stack[sp] = RandomUtil.getInstance().nextNormal(stack[sp], stack[sp + 1]);
+                    break;
+                case UNIFORM:
+                    sp--;
+                    stack[sp] = uniform(RandomUtil.getInstance(), stack[sp], stack[sp + 1]);
+                    break;
+                default:
+                    if (op < SUBTRACT) {
+                        stack[sp] = unary(op, stack[sp]);
+                    } else {
+                        sp--;
+                        stack[sp] = binary(op, stack[sp], stack[sp + 1]);
+                    }
+            }
+        }
+
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the expression for rows from..to - 1 of the given columns, one operation at a time over the
+     * whole range.
+     *
+     * @param columns The values of the variables, by index, then row.
+     * @param result  The values of the expression are put in result[from..to - 1]. May be one of the columns,
+     *                if the expression does not mention it.
+     */
+    public void evaluate(double[][] columns, int from, int to, double[] result) {
+        int n = to - from;
+        if (n <= 0) return;
+
+        double[][] stack = new double[stackSize][n];
+        Bindings bindings = null;
+        int sp = -1;
+
+        for (int pc = 0; pc < code.length; pc++) {
+            int op = code[pc];
+
+            switch (op) {
+                case CONSTANT: {
+                    double c = constants[code[++pc]];
+                    double[] top = stack[++sp];
+                    for (int i = 0; i < n; i++) top[i] = c;
+                    break;
+                }
+                case VARIABLE:
+                    System.arraycopy(columns[code[++pc]], from, stack[++sp], 0, n);
+                    break;
+                case EVAL:
+                case EVAL_OR_ZERO: {
+                    if (bindings == null) bindings = new Bindings(null, columns);
+                    Expression expression = evaluated[code[++pc]];
+                    double[] top = stack[++sp];
+
+                    for (int i = 0; i < n; i++) {
+                        bindings.row = from + i;
+                        top[i] = evaluate(expression, bindings, op == EVAL_OR_ZERO);
+                    }
+
+                    break;
+                }
+                case ADD:
+                case MULTIPLY:
+                case MAX:
+                case MIN:
+                case AND:
+                case OR: {
+                    int m = code[++pc];
+                    int base = sp - m + 1;
+                    double[] column = new double[m];
+
+                    for (int i = 0; i < n; i++) {
+                        for (int k = 0; k < m; k++) column[k] = stack[base + k][i];
+                        stack[base][i] = reduce(op, column, 0, m - 1);
+                    }
+
+                    sp = base;
+                    break;
+                }
+                case IF: {
+                    sp -= 2;
+                    double[] a = stack[sp], b = stack[sp + 1], c = stack[sp + 2];
+                    for (int i = 0; i < n; i++) a[i] = a[i] == 1.0 ? b[i] : c[i];
+                    break;
+                }
+                case NORMAL:
+                case UNIFORM: {
+                    sp--;
+                    RandomUtil random = RandomUtil.getInstance();
+                    double[] a = stack[sp], b = stack[sp + 1];
+
+                    for (int i = 0; i < n; i++) {
+                        a[i] = op == NORMAL ? random.nextNormal(a[i], b[i]) : uniform(random, a[i], b[i]);
+                    }
+
+                    break;
+                }
+                default:
+                    if (op < SUBTRACT) {
+                        double[] a = stack[sp];
+                        for (int i = 0; i < n; i++) a[i] = unary(op, a[i]);
+                    } else {
+                        sp--;
+                        double[] a = stack[sp], b = stack[sp + 1];
+                        for (int i = 0; i < n; i++) a[i] = binary(op, a[i], b[i]);
+                    }
+            }
+        }
+
+        System.arraycopy(stack[0], 0, result, from, n);
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    // Combines values[from..to] as the expressions of ExpressionManager do.
+    private static double reduce(int op, double[] values, int from, int to) {
+        switch (op) {
+            case ADD: {
+                double value = 0.0;
+                for (int k = from; k <= to; k++) value += values[k];
+                return value;
+            }
+            case MULTIPLY: {
+                double value = 1.0;
+                for (int k = from; k <= to; k++) value = value * values[k];
+                return value;
+            }
+            case MAX: {
+                double max = values[from];
+                for (int k = from + 1; k <= to; k++) if (max < values[k]) max = values[k];
+                return max;
+            }
+            case MIN: {
+                double min = values[from];
+                for (int k = from + 1; k <= to; k++) if (values[k] < min) min = values[k];
+                return min;
+            }
+            case AND: {
+                for (int k = from; k <= to; k++) if (values[k] != 1.0) return 0.0;
+                return 1.0;
+            }
+            case OR: {
+                for (int k = from; k <= to; k++) if (values[k] == 1.0) return 1.0;
+                return 0.0;
+            }
+            default:
+                throw new IllegalStateException("Not an n-ary operation: " + op);
+        }
+    }
+
+    private static double unary(int op, double x) {
+        switch (op) {
+            case NEGATE:
+                return -x;
+            case EXP:
+                return Math.exp(x);
+            case SQRT:
+                return Math.sqrt(x);
+            case COSH:
+                return Math.cosh(x);
+            case SINH:
+                return Math.sinh(x);
+            case TANH:
+                return Math.tanh(x);
+            case COS:
+                return Math.cos(x);
+            case SIN:
+                return Math.sin(x);
+            case TAN:
+                return Math.tan(x);
+            case ACOS:
+                return Math.acos(x);
+            case ASIN:
+                return Math.asin(x);
+            case ATAN:
+                return Math.atan(x);
+            case LOGISTIC:
+                return 1.0 / (1.0 + Math.exp(-x));
+            case LN:
+                return Math.log(x);
+            case LOG10:
+                return Math.log10(x);
+            case ROUND:
+                return Math.round(x);
+            case CEIL:
+                return Math.ceil(x);
+            case FLOOR:
+                return Math.floor(x);
+            case ABS:
+                return Math.abs(x);
+            case SIGNUM:
+                return Math.signum(x);
+            default:
+                throw new IllegalStateException("Not a unary operation: " + op);
+        }
+    }
+
+    private static double binary(int op, double a, double b) {
+        switch (op) {
+            case SUBTRACT:
+                return a - b;
+            case DIVIDE:
+                return a / b;
+            case POW:
+                return Math.pow(a, b);
+            case XOR:
+                return (a == 1.0 ? 1.0 : 0.0) + (b == 1.0 ? 1.0 : 0.0) == 1.0 ? 1.0 : 0.0;
+            case LESS:
+                return a < b ? 1.0 : 0.0;
+            case LESS_OR_EQUAL:
+                return a <= b ? 1.0 : 0.0;
+            case EQUAL:
+                return a == b ? 1.0 : 0.0;
+            case GREATER:
+                return a > b ? 1.0 : 0.0;
+            case GREATER_OR_EQUAL:
+                return a >= b ? 1.0 : 0.0;
+            default:
+                throw new IllegalStateException("Not a binary operation: " + op);
+        }
+    }
+
+    // Evaluates a subexpression as is; the terms of a sum count as 0 if they fail, as in ExpressionManager.
+    private static double evaluate(Expression expression, Context context, boolean zeroIfFails) {
+        if (!zeroIfFails) {
+            return expression.evaluate(context);
+        }
+
+        try {
+            return expression.evaluate(context);
+        } catch (Exception e) {
+            return 0.0;
+        }
+    }
+
+    // Draws as UniformRealDistribution.sample() does, from the same generator.
+    private static double uniform(RandomUtil random, double low, double high) {
+        if (low >= high) {
+            throw new IllegalArgumentException("Lower bound must be less than upper bound: " + low + ", " + high);
+        }
+
+        double u = random.nextDouble();
+        return u * high + (1.0 - u) * low;
+    }
+
+    // The operation the expression is compiled to, or null if it has to be evaluated as is. Only the
+    // expressions of ExpressionManager are known by their tokens.
+    private static Integer operation(Expression expression) {
+        if (!(expression instanceof AbstractExpression)) {
+            return null;
+        }
+
+        String token = expression.getToken();
+        int n = expression.getExpressions().size();
+        Integer op = null;
+
+        if (n == 1) op = UNARY.get(token);
+        else if (n == 2) op = BINARY.get(token);
+
+        if (op == null && n == 3 && "IF".equals(token)) op = IF;
+        if (op == null && n >= ("+".equals(token) ? 1 : 2)) op = N_ARY.get(token);
+
+        return op;
+    }
+
+    // OR stops at the first true term, so the terms after it must not draw random values.
+    private static boolean deterministicTail(List<Expression> terms) {
+        for (int i = 1; i < terms.size(); i++) {
+            if (!isDeterministic(terms.get(i))) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Looks up values for subexpressions evaluated as is.
+     */
+    private final class Bindings implements Context {
+        private final double[] values;
+        private final double[][] columns;
+        private int row;
+
+        private Bindings(double[] values, double[][] columns) {
+            this.values = values;
+            this.columns = columns;
+        }
+
+        public Double getValue(String var) {
+            Double value = parameterValues.get(var);
+
+            if (value != null) {
+                return value;
+            }
+
+            Integer index = indices.get(var);
+
+            if (index == null) {
+                return null;
+            }
+
+            return values != null ? values[index] : columns[index][row];
+        }
+    }
+
+    /**
+     * Translates an expression tree to a program, in postfix order.
+     */
+    private static final class Compiler {
+        private final Map<String, Integer> indices;
+        private final Map<String, Double> parameterValues;
+        private final List<Integer> code = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final List<Expression> evaluated = new ArrayList<>();
+        private final Map<String, Integer> subexpressions;
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        private Compiler(Map<String, Integer> indices, Map<String, Double> parameterValues,
+                         Map<String, Integer> subexpressions) {
+            this.indices = indices;
+            this.parameterValues = parameterValues;
+            this.subexpressions = subexpressions;
+        }
+
+        private void compile(Expression expression) {
+            if (expression instanceof ConstantExpression) {
+                constant(expression.evaluate(null));
+                return;
+            }
+
+            if (expression instanceof VariableExpression) {
+                String name = ((VariableExpression) expression).getVariable();
+                Double value = parameterValues.get(name);
+
+                if (value != null) {
+                    constant(value);
+                } else if (indices.containsKey(name)) {
+                    emit(VARIABLE, indices.get(name));
+                    push(1);
+                } else {
+                    throw new IllegalArgumentException("No value recorded for '" + name + "'");
+                }
+
+                return;
+            }
+
+            if (!subexpressions.isEmpty() && isDeterministic(expression)) {
+                Integer index = subexpressions.get(getSignature(expression));
+
+                if (index != null) {
+                    emit(VARIABLE, index);
+                    push(1);
+                    return;
+                }
+            }
+
+            Integer op = operation(expression);
+
+            if (op == null || (op == OR && !deterministicTail(expression.getExpressions()))) {
+                evaluateAsIs(EVAL, expression);
+                return;
+            }
+
+            List<Expression> children = expression.getExpressions();
+            int n = children.size();
+
+            for (Expression child : children) {
+                if (op == ADD && !isDeterministic(child)) {
+                    evaluateAsIs(EVAL_OR_ZERO, child);
+                } else {
+                    compile(child);
+                }
+            }
+
+            if (N_ARY.containsValue(op)) {
+                emit(op, n);
+            } else {
+                code.add(op);
+            }
+
+            push(1 - n);
+        }
+
+        private void evaluateAsIs(int op, Expression expression) {
+            emit(op, evaluated.size());
+            evaluated.add(expression);
+            push(1);
+        }
+
+        private void constant(double value) {
+            emit(CONSTANT, constants.size());
+            constants.add(value);
+            push(1);
+        }
+
+        private void emit(int op, int arg) {
+            code.add(op);
+            code.add(arg);
+        }
+
+        private void push(int change) {
+            depth += change;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private int[] code() {
+            int[] _code = new int[code.size()];
+            for (int i = 0; i < _code.length; i++) _code[i] = code.get(i);
+            return _code;
+        }
+
+        private double[] constants() {
+            double[] _constants = new double[constants.size()];
+            for (int i = 0; i < _constants.length; i++) _constants[i] = constants.get(i);
+            return _constants;
+        }
+    }
+}
@@ -57,7 +57,10 @@ public final class BootstrapSampler {
     /**
      * This method takes a dataset and a sample size and creates a new dataset
      * containing that number of samples by drawing with replacement from the
-     * original dataset.
+     * original dataset. If the dataset is a BoxDataSet, the new dataset is a
+     * read-only view of the rows of the original.
+     *
+     * @see ResampledDataBox
      */
     public DataSet sample(DataSet dataSet, int newSampleSize) {
         if (newSampleSize < 1) {
@@ -67,6 +70,11 @@ public final class BootstrapSampler {
         if (dataSet.getNumRows() < 1) {
             throw new IllegalArgumentException("Dataset must contain samples.");
         }
+        // Box data sets are resampled as views of their rows, without copying.
+        if (dataSet instanceof BoxDataSet) {
+            return DataUtils.getResampleView(dataSet, newSampleSize, !isWithoutReplacements());
+        }
+
         //   this.logger.log("sampleSize", String.valueOf(newSampleSize));
         //Number of samples in input dataset
         int oldSampleSize = dataSet.getNumRows();
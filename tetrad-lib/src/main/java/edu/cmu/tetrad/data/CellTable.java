@@ -70,6 +70,31 @@ public final class CellTable {
 
         int[] coords = new int[indices.length];
 
+        // Count a resample from the underlying data, weighting rows by multiplicity.
+        if (dataSet instanceof BoxDataSet && ((BoxDataSet) dataSet).getDataBox() instanceof ResampledDataBox) {
+            ResampledDataBox box = (ResampledDataBox) ((BoxDataSet) dataSet).getDataBox();
+            DataBox data = box.getDataBox();
+            int[] weights = box.getWeights();
+
+            points:
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] == 0) continue;
+
+                for (int j = 0; j < indices.length; j++) {
+                    Number value = data.get(i, indices[j]);
+                    coords[j] = value == null ? getMissingValue() : value.intValue();
+
+                    if (coords[j] == getMissingValue()) {
+                        continue points;
+                    }
+                }
+
+                table.increment(coords, weights[i]);
+            }
+
+            return;
+        }
+
         points:
         for (int i = 0; i < dataSet.getNumRows(); i++) {
             for (int j = 0; j < indices.length; j++) {
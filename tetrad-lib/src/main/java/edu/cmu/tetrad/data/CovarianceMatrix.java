@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
 import java.util.stream.Collectors;
 import org.apache.commons.math3.linear.RealMatrix;
@@ -103,6 +104,13 @@ public class CovarianceMatrix implements ICovarianceMatrix {
             throw new IllegalArgumentException("Not a continuous data set.");
         }
 
+        if (dataSet instanceof BoxDataSet && ((BoxDataSet) dataSet).getDataBox() instanceof ResampledDataBox) {
+            this.variables = Collections.unmodifiableList(dataSet.getVariables());
+            this.sampleSize = dataSet.getNumRows();
+            this.matrix = weightedCovariances((ResampledDataBox) ((BoxDataSet) dataSet).getDataBox());
+            return;
+        }
+
         this.matrix = new TetradMatrix(dataSet.getNumColumns(), dataSet.getNumColumns());
 
         this.variables = Collections.unmodifiableList(dataSet.getVariables());
@@ -140,6 +148,7 @@ public class CovarianceMatrix implements ICovarianceMatrix {
         }
 
         TetradVector means = DataUtils.means(vectors);
+        DataUtils.demean(vectors, means);
 
         int NTHREADS = Runtime.getRuntime().availableProcessors() * 10;
         int _chunk = variables.size() / NTHREADS + 1;
@@ -269,8 +278,6 @@ public class CovarianceMatrix implements ICovarianceMatrix {
         RestOfThemTask task2 = new RestOfThemTask(chunk, 0, variables.size());
         ForkJoinPoolInstance.getInstance().getPool().invoke(task2);
 
-        DataUtils.demean(vectors, means);
-
         this.variables = Collections.unmodifiableList(dataSet.getVariables());
         this.sampleSize = dataSet.getNumRows();
     }
@@ -599,7 +606,299 @@ public class CovarianceMatrix implements ICovarianceMatrix {
         return matrix.getSelection(rows, cols);
     }
 
+    /**
+     * Calculates the covariance matrices of a number of resamples of the same data
+     * in one parallel pass over the underlying columns. Each resample must be a view
+     * (see DataUtils.getResampleView) of the same continuous data, without missing
+     * values. For each pair of columns, the cross product of each underlying row is
+     * calculated once and added, with the row's multiplicity, to the sums of every
+     * resample containing that row, so no resample is materialized and the data is
+     * swept once rather than once per resample.
+     *
+     * @param resamples The resamples.
+     * @return The covariance matrices of the resamples, in order.
+     * @throws IllegalArgumentException if the resamples are not views of the same
+     *                                  data, or if the data contains missing values.
+     */
+    public static List<ICovarianceMatrix> resampleCovariances(List<DataSet> resamples) {
+        if (resamples.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final int numResamples = resamples.size();
+        final ResampledDataBox[] boxes = new ResampledDataBox[numResamples];
+
+        for (int b = 0; b < numResamples; b++) {
+            DataSet resample = resamples.get(b);
+
+            if (!(resample instanceof BoxDataSet && ((BoxDataSet) resample).getDataBox() instanceof ResampledDataBox)) {
+                throw new IllegalArgumentException("Expecting a resampled view of a data set.");
+            }
+
+            boxes[b] = (ResampledDataBox) ((BoxDataSet) resample).getDataBox();
+
+            if (boxes[b].getDataBox() != boxes[0].getDataBox()) {
+                throw new IllegalArgumentException("The resamples are not all taken from the same data.");
+            }
+        }
+
+        final DataBox data = boxes[0].getDataBox();
+        final int numRows = data.numRows();
+        final int numCols = data.numCols();
+
+        // For each underlying row, the resamples that contain it and how many times.
+        final int[] rowStart = new int[numRows + 1];
+        final int[] sizes = new int[numResamples];
+
+        for (int b = 0; b < numResamples; b++) {
+            int[] weights = boxes[b].getWeights();
+            sizes[b] = boxes[b].numRows();
+
+            for (int r = 0; r < numRows; r++) {
+                if (weights[r] > 0) rowStart[r + 1]++;
+            }
+        }
+
+        for (int r = 0; r < numRows; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+
+        final int[] members = new int[rowStart[numRows]];
+        final int[] multiplicities = new int[rowStart[numRows]];
+        int[] next = Arrays.copyOf(rowStart, numRows);
+
+        for (int b = 0; b < numResamples; b++) {
+            int[] weights = boxes[b].getWeights();
+
+            for (int r = 0; r < numRows; r++) {
+                if (weights[r] > 0) {
+                    members[next[r]] = b;
+                    multiplicities[next[r]++] = weights[r];
+                }
+            }
+        }
+
+        final double[][] columns;
+
+        if (data instanceof VerticalDoubleDataBox) {
+            columns = ((VerticalDoubleDataBox) data).getVariableVectors();
+        } else {
+            columns = new double[numCols][numRows];
+
+            for (int r = 0; r < numRows; r++) {
+                for (int j = 0; j < numCols; j++) {
+                    Number value = data.get(r, j);
+                    columns[j][r] = value == null ? Double.NaN : value.doubleValue();
+                }
+            }
+        }
+
+        // The full sample means are subtracted throughout for numerical stability;
+        // means[b][j] is the mean of column j in resample b, less that shift.
+        final double[] shifts = new double[numCols];
+        final double[][] means = new double[numResamples][numCols];
+
+        for (int j = 0; j < numCols; j++) {
+            double[] v = columns[j];
+            double sum = 0.0;
+
+            for (int r = 0; r < numRows; r++) {
+                if (Double.isNaN(v[r])) {
+                    throw new IllegalArgumentException("Please remove or impute missing values.");
+                }
+
+                sum += v[r];
+            }
+
+            shifts[j] = sum / numRows;
+
+            for (int r = 0; r < numRows; r++) {
+                double d = v[r] - shifts[j];
+
+                for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                    means[members[k]][j] += multiplicities[k] * d;
+                }
+            }
+
+            for (int b = 0; b < numResamples; b++) {
+                means[b][j] /= sizes[b];
+            }
+        }
+
+        final TetradMatrix[] covs = new TetradMatrix[numResamples];
+
+        for (int b = 0; b < numResamples; b++) {
+            covs[b] = new TetradMatrix(numCols, numCols);
+        }
+
+        class ResampleCovTask extends RecursiveAction {
+            private final int chunk;
+            private final int from;
+            private final int to;
+
+            private ResampleCovTask(int chunk, int from, int to) {
+                this.chunk = chunk;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunk) {
+                    double[] sums = new double[numResamples];
+
+                    for (int i = from; i < to; i++) {
+                        double[] v1 = columns[i];
+
+                        for (int j = 0; j <= i; j++) {
+                            double[] v2 = columns[j];
+                            Arrays.fill(sums, 0.0);
+
+                            for (int r = 0; r < numRows; r++) {
+                                double d = (v1[r] - shifts[i]) * (v2[r] - shifts[j]);
+
+                                for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                                    sums[members[k]] += multiplicities[k] * d;
+                                }
+                            }
+
+                            for (int b = 0; b < numResamples; b++) {
+                                double v = (sums[b] - sizes[b] * means[b][i] * means[b][j]) / (sizes[b] - 1);
+                                covs[b].set(i, j, v);
+                                covs[b].set(j, i, v);
+                            }
+                        }
+                    }
+                } else {
+                    int mid = (to + from) / 2;
+                    invokeAll(new ResampleCovTask(chunk, from, mid), new ResampleCovTask(chunk, mid, to));
+                }
+            }
+        }
+
+        int chunk = Math.max(numCols / (Runtime.getRuntime().availableProcessors() * 10) + 1, 10);
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new ResampleCovTask(chunk, 0, numCols));
+
+        List<ICovarianceMatrix> result = new ArrayList<>();
+
+        for (int b = 0; b < numResamples; b++) {
+            DataSet resample = resamples.get(b);
+            CovarianceMatrix cov = new CovarianceMatrix(new ArrayList<>(resample.getVariables()), covs[b], sizes[b]);
+            cov.setKnowledge(resample.getKnowledge().copy());
+            result.add(cov);
+        }
+
+        return result;
+    }
+
     //========================PRIVATE METHODS============================//
+
+    /**
+     * Calculates the covariances of a resample from the underlying data, using the
+     * multiplicity of each underlying row, so that the resample is never materialized.
+     * Missing values are handled by pairwise deletion.
+     */
+    private static TetradMatrix weightedCovariances(ResampledDataBox box) {
+        final int[] allWeights = box.getWeights();
+        final DataBox data = box.getDataBox();
+        final int numCols = data.numCols();
+
+        int m = 0;
+        for (int w : allWeights) if (w > 0) m++;
+
+        final int[] rows = new int[m];
+        final int[] weights = new int[m];
+
+        for (int k = 0, r = 0; k < allWeights.length; k++) {
+            if (allWeights[k] > 0) {
+                rows[r] = k;
+                weights[r++] = allWeights[k];
+            }
+        }
+
+        final double[][] columns;
+
+        if (data instanceof VerticalDoubleDataBox) {
+            columns = ((VerticalDoubleDataBox) data).getVariableVectors();
+        } else {
+            // Only the distinct rows of the resample are copied.
+            columns = new double[numCols][m];
+
+            for (int k = 0; k < m; k++) {
+                for (int j = 0; j < numCols; j++) {
+                    Number value = data.get(rows[k], j);
+                    columns[j][k] = value == null ? Double.NaN : value.doubleValue();
+                }
+
+                rows[k] = k;
+            }
+        }
+
+        final double[] means = new double[numCols];
+
+        for (int j = 0; j < numCols; j++) {
+            double sum = 0.0;
+            int count = 0;
+
+            for (int k = 0; k < m; k++) {
+                double x = columns[j][rows[k]];
+                if (Double.isNaN(x)) continue;
+                sum += weights[k] * x;
+                count += weights[k];
+            }
+
+            means[j] = sum / count;
+        }
+
+        final TetradMatrix cov = new TetradMatrix(numCols, numCols);
+
+        class WeightedCovTask extends RecursiveAction {
+            private final int chunk;
+            private final int from;
+            private final int to;
+
+            private WeightedCovTask(int chunk, int from, int to) {
+                this.chunk = chunk;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunk) {
+                    for (int i = from; i < to; i++) {
+                        double[] v1 = columns[i];
+
+                        for (int j = 0; j <= i; j++) {
+                            double[] v2 = columns[j];
+                            double d = 0.0;
+                            int count = 0;
+
+                            for (int k = 0; k < rows.length; k++) {
+                                double x = v1[rows[k]];
+                                double y = v2[rows[k]];
+                                if (Double.isNaN(x) || Double.isNaN(y)) continue;
+                                d += weights[k] * (x - means[i]) * (y - means[j]);
+                                count += weights[k];
+                            }
+
+                            double v = d / (count - 1);
+                            cov.set(i, j, v);
+                            cov.set(j, i, v);
+                        }
+                    }
+                } else {
+                    int mid = (to + from) / 2;
+                    invokeAll(new WeightedCovTask(chunk, from, mid), new WeightedCovTask(chunk, mid, to));
+                }
+            }
+        }
+
+        int chunk = Math.max(numCols / (Runtime.getRuntime().availableProcessors() * 10) + 1, 10);
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new WeightedCovTask(chunk, 0, numCols));
+
+        return cov;
+    }
     public Node getVariable(String name) {
         for (int i = 0; i < getVariables().size(); i++) {
             Node variable = getVariables().get(i);
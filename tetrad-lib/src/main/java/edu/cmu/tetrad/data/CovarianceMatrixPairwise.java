@@ -0,0 +1,627 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.data;
+
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.text.NumberFormat;
+import java.util.*;
+
+/**
+ * A covariance matrix calculated on the fly by pairwise deletion of missing values.
+ * Each covariance cov(i, j) is calculated over exactly the rows in which both
+ * variable i and variable j are observed, centered at the means of those rows,
+ * and the number of such rows is reported by getSampleSize(i, j).
+ * <p>
+ * Which rows are observed is recorded once per column in a bitmap, so that the
+ * number of rows observed for a pair is a word-wise AND and popcount of the two
+ * bitmaps. Missing values are stored as zero in the (mean-centered) columns, so the
+ * cross products can be summed over all rows without testing for NaN; only the
+ * corrections to the pairwise means need to be masked.
+ *
+ * @see CovarianceMatrixOnTheFly
+ */
+public class CovarianceMatrixPairwise implements ICovarianceMatrix {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The name of the covariance matrix.
+     *
+     * @serial May be null.
+     */
+    private String name;
+
+    /**
+     * The variables (in order) for this covariance matrix.
+     *
+     * @serial Cannot be null.
+     */
+    private List<Node> variables;
+
+    /**
+     * The number of rows in the data from which this matrix was calculated.
+     *
+     * @serial Range > 0.
+     */
+    private int sampleSize;
+
+    /**
+     * The list of selected variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Set<Node> selectedVariables = new HashSet<>();
+
+    /**
+     * The knowledge for this data.
+     *
+     * @serial Cannot be null.
+     */
+    private IKnowledge knowledge = new Knowledge2();
+
+    /**
+     * Columns of the data, centered at their (available case) means, with missing
+     * values set to zero.
+     *
+     * @serial Cannot be null.
+     */
+    private double[][] vectors;
+
+    /**
+     * For each column, a bitmap of the rows in which the column is observed, 64
+     * rows to a word, or null if the column has no missing values.
+     *
+     * @serial Cannot be null.
+     */
+    private long[][] valid;
+
+    /**
+     * The number of observed rows in each column.
+     *
+     * @serial Cannot be null.
+     */
+    private int[] counts;
+
+    //=============================CONSTRUCTORS=========================//
+
+    /**
+     * Constructs a new pairwise-deletion covariance matrix from the given data set.
+     * The data set is not modified.
+     *
+     * @throws IllegalArgumentException if this is not a continuous data set.
+     */
+    public CovarianceMatrixPairwise(DataSet dataSet) {
+        if (!dataSet.isContinuous()) {
+            throw new IllegalArgumentException("Not a continuous data set.");
+        }
+
+        this.variables = Collections.unmodifiableList(dataSet.getVariables());
+        this.sampleSize = dataSet.getNumRows();
+
+        int numVars = variables.size();
+        int numWords = (sampleSize + 63) >>> 6;
+
+        this.vectors = new double[numVars][sampleSize];
+        this.valid = new long[numVars][];
+        this.counts = new int[numVars];
+
+        for (int j = 0; j < numVars; j++) {
+            double[] v = vectors[j];
+            long[] bits = new long[numWords];
+            double sum = 0.0;
+            int count = 0;
+
+            for (int i = 0; i < sampleSize; i++) {
+                double d = dataSet.getDouble(i, j);
+
+                if (Double.isNaN(d)) {
+                    continue;
+                }
+
+                v[i] = d;
+                bits[i >>> 6] |= 1L << i;
+                sum += d;
+                count++;
+            }
+
+            double mean = sum / count;
+
+            for (int i = 0; i < sampleSize; i++) {
+                if ((bits[i >>> 6] & (1L << i)) != 0) {
+                    v[i] -= mean;
+                }
+            }
+
+            counts[j] = count;
+            valid[j] = count == sampleSize ? null : bits;
+        }
+    }
+
+    private CovarianceMatrixPairwise(CovarianceMatrixPairwise matrix) {
+        this.name = matrix.name;
+        this.variables = matrix.variables;
+        this.sampleSize = matrix.sampleSize;
+        this.selectedVariables = new HashSet<>(matrix.selectedVariables);
+        this.knowledge = matrix.knowledge.copy();
+        this.vectors = matrix.vectors;
+        this.valid = matrix.valid;
+        this.counts = matrix.counts;
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static CovarianceMatrixPairwise serializableInstance() {
+        List<Node> variables = new ArrayList<>();
+        variables.add(new ContinuousVariable("X"));
+        DataSet dataSet = new BoxDataSet(new VerticalDoubleDataBox(new double[][]{{1, 2, 3}}), variables);
+        return new CovarianceMatrixPairwise(dataSet);
+    }
+
+    //============================PUBLIC METHODS=========================//
+
+    /**
+     * @return the number of rows in which both variable i and variable j are observed.
+     */
+    public final int getSampleSize(int i, int j) {
+        if (i == j || valid[j] == null) {
+            return counts[i];
+        }
+
+        if (valid[i] == null) {
+            return counts[j];
+        }
+
+        long[] a = valid[i];
+        long[] b = valid[j];
+        int n = 0;
+
+        for (int w = 0; w < a.length; w++) {
+            n += Long.bitCount(a[w] & b[w]);
+        }
+
+        return n;
+    }
+
+    /**
+     * @return the smallest number of rows on which any of the covariances among the
+     * given variables was calculated. This is the sample size that should be used for
+     * a test or score based on the submatrix for these variables.
+     */
+    public final int getSampleSize(int[] indices) {
+        int n = sampleSize;
+
+        for (int index : indices) {
+            n = Math.min(n, counts[index]);
+        }
+
+        for (int i = 0; i < indices.length; i++) {
+            if (valid[indices[i]] == null) continue;
+
+            for (int j = i + 1; j < indices.length; j++) {
+                if (valid[indices[j]] == null) continue;
+                n = Math.min(n, getSampleSize(indices[i], indices[j]));
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * @return the list of variables (unmodifiable).
+     */
+    public final List<Node> getVariables() {
+        return this.variables;
+    }
+
+    /**
+     * @return the variable names, in order.
+     */
+    public final List<String> getVariableNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Node variable : getVariables()) {
+            names.add(variable.getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * @return the variable name at the given index.
+     */
+    public final String getVariableName(int index) {
+        if (index >= getVariables().size()) {
+            throw new IllegalArgumentException("Index out of range: " + index);
+        }
+
+        return getVariables().get(index).getName();
+    }
+
+    /**
+     * @return the dimension of the covariance matrix.
+     */
+    public final int getDimension() {
+        return variables.size();
+    }
+
+    /**
+     * The number of rows in the data, counting rows with missing values. For the
+     * number of rows used for a particular covariance, see getSampleSize(i, j).
+     *
+     * @return The sample size (> 0).
+     */
+    public final int getSampleSize() {
+        return this.sampleSize;
+    }
+
+    /**
+     * Gets the name of the covariance matrix.
+     */
+    public final String getName() {
+        return this.name;
+    }
+
+    /**
+     * Sets the name of the covariance matrix.
+     */
+    public final void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the knowledge associated with this data.
+     */
+    public final IKnowledge getKnowledge() {
+        return this.knowledge.copy();
+    }
+
+    /**
+     * Associates knowledge with this data.
+     */
+    public final void setKnowledge(IKnowledge knowledge) {
+        if (knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        this.knowledge = knowledge.copy();
+    }
+
+    /**
+     * @return a submatrix of the covariance matrix with variables in the
+     * given order. Its sample size is getSampleSize(indices).
+     */
+    public final ICovarianceMatrix getSubmatrix(int[] indices) {
+        List<Node> submatrixVars = new ArrayList<>();
+
+        for (int index : indices) {
+            submatrixVars.add(variables.get(index));
+        }
+
+        return new CovarianceMatrix(submatrixVars, getSelection(indices, indices), getSampleSize(indices));
+    }
+
+    public final ICovarianceMatrix getSubmatrix(List<String> submatrixVarNames) {
+        return getSubmatrix(submatrixVarNames.toArray(new String[submatrixVarNames.size()]));
+    }
+
+    /**
+     * @return a submatrix of this matrix, with variables in the given
+     * order.
+     */
+    public final ICovarianceMatrix getSubmatrix(String[] submatrixVarNames) {
+        return getSubmatrix(indices(submatrixVarNames));
+    }
+
+    /**
+     * @return the value of element (i,j) in the matrix, calculated over the rows in
+     * which both i and j are observed.
+     */
+    public final double getValue(int i, int j) {
+        double[] v1 = vectors[i];
+        double[] v2 = vectors[j];
+
+        double sxy = 0.0;
+
+        for (int k = 0; k < sampleSize; k++) {
+            sxy += v1[k] * v2[k];
+        }
+
+        if (i == j || (valid[i] == null && valid[j] == null)) {
+            return sxy / (getSampleSize(i, j) - 1);
+        }
+
+        // The columns are centered at their own means; re-center at the means over
+        // the rows both are observed in.
+        int n = getSampleSize(i, j);
+        double sx = maskedSum(v1, valid[j]);
+        double sy = maskedSum(v2, valid[i]);
+
+        return (sxy - sx * sy / n) / (n - 1);
+    }
+
+    public void setMatrix(TetradMatrix matrix) {
+        throw new UnsupportedOperationException("A pairwise covariance matrix is calculated from data.");
+    }
+
+    public final void setSampleSize(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("Sample size must be > 0.");
+        }
+
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return the size of the square matrix.
+     */
+    public final int getSize() {
+        return getVariables().size();
+    }
+
+    /**
+     * @return a copy of the covariance matrix.
+     */
+    public final TetradMatrix getMatrix() {
+        int[] all = new int[getDimension()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        return getSelection(all, all);
+    }
+
+    public final void select(Node variable) {
+        if (variables.contains(variable)) {
+            selectedVariables.add(variable);
+        }
+    }
+
+    public final void clearSelection() {
+        selectedVariables.clear();
+    }
+
+    public final boolean isSelected(Node variable) {
+        if (variable == null) {
+            throw new NullPointerException("Null variable. Try again.");
+        }
+
+        return selectedVariables.contains(variable);
+    }
+
+    public final List<String> getSelectedVariableNames() {
+        List<String> selectedVariableNames = new LinkedList<>();
+
+        for (Node variable : selectedVariables) {
+            selectedVariableNames.add(variable.getName());
+        }
+
+        return selectedVariableNames;
+    }
+
+    /**
+     * Prints out the matrix
+     */
+    public final String toString() {
+        NumberFormat nf = NumberFormatUtil.getInstance().getNumberFormat();
+
+        StringBuilder buf = new StringBuilder();
+
+        int numVars = getVariableNames().size();
+        buf.append(getSampleSize()).append("\n");
+
+        for (int i = 0; i < numVars; i++) {
+            buf.append(getVariableName(i)).append("\t");
+        }
+
+        buf.append("\n");
+
+        for (int j = 0; j < numVars; j++) {
+            for (int i = 0; i <= j; i++) {
+                buf.append(nf.format(getValue(i, j))).append("\t");
+            }
+            buf.append("\n");
+        }
+
+        return buf.toString();
+    }
+
+    @Override
+    public boolean isContinuous() {
+        return true;
+    }
+
+    @Override
+    public boolean isDiscrete() {
+        return false;
+    }
+
+    @Override
+    public boolean isMixed() {
+        return false;
+    }
+
+    public Node getVariable(String name) {
+        for (Node variable : getVariables()) {
+            if (name.equals(variable.getName())) {
+                return variable;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a copy of this matrix. The centered columns and observation bitmaps are
+     * never changed once calculated, so they are shared with the copy.
+     */
+    @Override
+    public DataModel copy() {
+        return new CovarianceMatrixPairwise(this);
+    }
+
+    @Override
+    public void setValue(int i, int j, double v) {
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * Keeps only the given variables, in the given order, with their pairwise counts.
+     */
+    @Override
+    public void removeVariables(List<String> remaining) {
+        int[] indices = indices(remaining.toArray(new String[remaining.size()]));
+
+        List<Node> _variables = new ArrayList<>();
+        double[][] _vectors = new double[indices.length][];
+        long[][] _valid = new long[indices.length][];
+        int[] _counts = new int[indices.length];
+
+        for (int i = 0; i < indices.length; i++) {
+            _variables.add(variables.get(indices[i]));
+            _vectors[i] = vectors[indices[i]];
+            _valid[i] = valid[indices[i]];
+            _counts[i] = counts[indices[i]];
+        }
+
+        this.variables = Collections.unmodifiableList(_variables);
+        this.vectors = _vectors;
+        this.valid = _valid;
+        this.counts = _counts;
+        clearSelection();
+    }
+
+    public void setVariables(List<Node> variables) {
+        if (variables.size() != this.variables.size()) throw new IllegalArgumentException("Wrong # of variables.");
+        this.variables = variables;
+    }
+
+    @Override
+    public TetradMatrix getSelection(int[] rows, int[] cols) {
+        TetradMatrix m = new TetradMatrix(rows.length, cols.length);
+
+        if (Arrays.equals(rows, cols)) {
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = i; j < cols.length; j++) {
+                    double value = getValue(rows[i], cols[j]);
+                    m.set(i, j, value);
+                    m.set(j, i, value);
+                }
+            }
+        } else {
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = 0; j < cols.length; j++) {
+                    m.set(i, j, getValue(rows[i], cols[j]));
+                }
+            }
+        }
+
+        return m;
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    // The indices of the variables with the given names.
+    private int[] indices(String[] names) {
+        List<String> variableNames = getVariableNames();
+        int[] indices = new int[names.length];
+
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = variableNames.indexOf(names[i]);
+
+            if (indices[i] == -1) {
+                throw new IllegalArgumentException("Variable " + names[i] + " is not in this matrix.");
+            }
+        }
+
+        return indices;
+    }
+
+    // Sum of v over the rows set in mask; all of v if mask is null.
+    private double maskedSum(double[] v, long[] mask) {
+        double sum = 0.0;
+
+        if (mask == null) {
+            for (int k = 0; k < sampleSize; k++) {
+                sum += v[k];
+            }
+
+            return sum;
+        }
+
+        for (int w = 0; w < mask.length; w++) {
+            long word = mask[w];
+            int base = w << 6;
+
+            if (word == -1L) {
+                for (int k = base; k < base + 64; k++) {
+                    sum += v[k];
+                }
+            } else {
+                while (word != 0) {
+                    sum += v[base + Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (variables == null) {
+            throw new NullPointerException();
+        }
+
+        if (vectors == null || valid == null || counts == null) {
+            throw new NullPointerException();
+        }
+
+        if (knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        if (selectedVariables == null) {
+            selectedVariables = new HashSet<>();
+        }
+    }
+}
+
+
+
@@ -0,0 +1,941 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.data;
+
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A covariance matrix for very large numbers of variables, where the dense matrix
+ * will not fit in memory. Covariances are calculated on demand in square tiles of
+ * tileSize x tileSize variables from column-major (mean-centered) data. Computed
+ * tiles are held off-heap in a bounded least-recently-used cache; optionally,
+ * tiles evicted from the cache are spilled to a file and memory-mapped back in
+ * when they are needed again, so that no tile is ever calculated twice.
+ * <p>
+ * Searches that know which variables they are about to look at may call
+ * prefetch() to have the tiles for those variables calculated in the background.
+ * <p>
+ * Missing values (NaN) are handled as in CovarianceMatrixOnTheFly, by pairwise
+ * deletion.
+ *
+ * @see CovarianceMatrixOnTheFly
+ */
+public class CovarianceMatrixTiled implements ICovarianceMatrix {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The default width of a tile, in variables.
+     */
+    public static final int DEFAULT_TILE_SIZE = 128;
+
+    /**
+     * The default maximum number of tiles kept in the off-heap cache.
+     */
+    public static final int DEFAULT_MAX_CACHED_TILES = 2048;
+
+    // The number of rows accumulated at a time when calculating a tile, so that
+    // both blocks of columns stay in cache.
+    private static final int ROW_BLOCK = 2048;
+
+    /**
+     * The name of the covariance matrix.
+     *
+     * @serial May be null.
+     */
+    private String name;
+
+    /**
+     * The variables (in order) for this covariance matrix.
+     *
+     * @serial Cannot be null.
+     */
+    private List<Node> variables;
+
+    /**
+     * The size of the sample from which this covariance matrix was calculated.
+     *
+     * @serial Range > 0.
+     */
+    private int sampleSize;
+
+    /**
+     * The list of selected variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Set<Node> selectedVariables = new HashSet<>();
+
+    /**
+     * The knowledge for this data.
+     *
+     * @serial Cannot be null.
+     */
+    private IKnowledge knowledge = new Knowledge2();
+
+    /**
+     * Mean-centered data, column major.
+     *
+     * @serial Cannot be null.
+     */
+    private double[][] vectors;
+
+    /**
+     * True for columns containing at least one missing value.
+     *
+     * @serial Cannot be null.
+     */
+    private boolean[] hasMissing;
+
+    /**
+     * The variances, calculated up front.
+     *
+     * @serial Cannot be null.
+     */
+    private double[] variances;
+
+    /**
+     * The width of a tile, in variables.
+     *
+     * @serial Range > 0.
+     */
+    private int tileSize;
+
+    /**
+     * The maximum number of tiles held in the cache.
+     *
+     * @serial Range > 0.
+     */
+    private int maxCachedTiles;
+
+    // Index of each variable in the matrix.
+    private transient Map<Node, Integer> indexMap;
+
+    // Tiles by tile key, in access order. Guarded by itself.
+    private transient LinkedHashMap<Long, ByteBuffer> cache;
+
+    // Tiles currently being calculated in the background.
+    private transient Set<Long> pending;
+
+    // The spill file, if tiles are spilled to disk; otherwise null.
+    private transient File spillFile;
+    private transient FileChannel spillChannel;
+
+    // Keys of the tiles in the spill file. Guarded by the cache.
+    private transient Set<Long> spilled;
+
+    //=============================CONSTRUCTORS=========================//
+
+    /**
+     * Constructs a new tiled covariance matrix from the given data set, with default
+     * tile size and cache size. If dataSet is a BoxDataSet with a VerticalDoubleDataBox,
+     * the data will be mean-centered by the constructor; if a non-mean-centered version
+     * of the data is needed, the data should be copied before being sent into the
+     * constructor.
+     *
+     * @throws IllegalArgumentException if this is not a continuous data set.
+     */
+    public CovarianceMatrixTiled(DataSet dataSet) {
+        this(dataSet, DEFAULT_TILE_SIZE, DEFAULT_MAX_CACHED_TILES);
+    }
+
+    /**
+     * Constructs a new tiled covariance matrix from the given data set.
+     *
+     * @param tileSize       The width of a tile, in variables.
+     * @param maxCachedTiles The maximum number of tiles kept in memory at one time.
+     *                       Each tile takes 8 * tileSize * tileSize bytes off-heap.
+     * @throws IllegalArgumentException if this is not a continuous data set.
+     */
+    public CovarianceMatrixTiled(DataSet dataSet, int tileSize, int maxCachedTiles) {
+        if (!dataSet.isContinuous()) {
+            throw new IllegalArgumentException("Not a continuous data set.");
+        }
+
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be at least 1: " + tileSize);
+        }
+
+        if (maxCachedTiles < 1) {
+            throw new IllegalArgumentException("Max cached tiles must be at least 1: " + maxCachedTiles);
+        }
+
+        this.variables = Collections.unmodifiableList(dataSet.getVariables());
+        this.sampleSize = dataSet.getNumRows();
+        this.tileSize = tileSize;
+        this.maxCachedTiles = maxCachedTiles;
+
+        if (dataSet instanceof BoxDataSet
+                && ((BoxDataSet) dataSet).getDataBox() instanceof VerticalDoubleDataBox) {
+            vectors = ((VerticalDoubleDataBox) ((BoxDataSet) dataSet).getDataBox()).getVariableVectors();
+        } else {
+            vectors = new double[variables.size()][sampleSize];
+
+            for (int j = 0; j < variables.size(); j++) {
+                for (int i = 0; i < sampleSize; i++) {
+                    vectors[j][i] = dataSet.getDouble(i, j);
+                }
+            }
+        }
+
+        if (sampleSize > 0) {
+            DataUtils.demean(vectors, DataUtils.means(vectors));
+        }
+
+        this.hasMissing = new boolean[variables.size()];
+        this.variances = new double[variables.size()];
+
+        int chunk = Math.max(variables.size() / (Runtime.getRuntime().availableProcessors() * 10) + 1, 100);
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new VarianceTask(chunk, 0, variables.size()));
+
+        initTransients();
+    }
+
+    // Copies the given matrix, but not its cache or spill file. The mean-centered data
+    // are never changed once calculated, so they are shared.
+    private CovarianceMatrixTiled(CovarianceMatrixTiled matrix) {
+        this.name = matrix.name;
+        this.variables = matrix.variables;
+        this.sampleSize = matrix.sampleSize;
+        this.selectedVariables = new HashSet<>(matrix.selectedVariables);
+        this.knowledge = matrix.knowledge.copy();
+        this.vectors = matrix.vectors;
+        this.hasMissing = matrix.hasMissing;
+        this.variances = matrix.variances;
+        this.tileSize = matrix.tileSize;
+        this.maxCachedTiles = matrix.maxCachedTiles;
+
+        initTransients();
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static CovarianceMatrixTiled serializableInstance() {
+        List<Node> variables = new ArrayList<>();
+        variables.add(new ContinuousVariable("X"));
+        DataSet dataSet = new BoxDataSet(new VerticalDoubleDataBox(new double[][]{{1, 2, 3}}), variables);
+        return new CovarianceMatrixTiled(dataSet);
+    }
+
+    //============================PUBLIC METHODS=========================//
+
+    /**
+     * Sets a file to which tiles evicted from the cache are written, so that they
+     * can be memory-mapped back in rather than recalculated. Any previous spill file
+     * is closed (but not deleted). Pass null to stop spilling.
+     */
+    public void setSpillFile(File spillFile) {
+        synchronized (cache) {
+            closeSpillFile();
+
+            if (spillFile == null) {
+                return;
+            }
+
+            try {
+                this.spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open spill file " + spillFile, e);
+            }
+
+            this.spillFile = spillFile;
+            this.spilled = new HashSet<>();
+        }
+    }
+
+    /**
+     * @return the spill file, or null if tiles are not being spilled.
+     */
+    public File getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * @return the width of a tile, in variables.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the number of tiles currently held in memory.
+     */
+    public int getNumCachedTiles() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Hints that covariances among the given variables will be needed shortly. The
+     * tiles covering them that are not already in memory are calculated in the
+     * background; this method does not wait for them.
+     */
+    public void prefetch(int... indices) {
+        SortedSet<Integer> blocks = new TreeSet<>();
+
+        for (int index : indices) {
+            blocks.add(index / tileSize);
+        }
+
+        for (int bi : blocks) {
+            for (int bj : blocks.tailSet(bi)) {
+                final int _bi = bi;
+                final int _bj = bj;
+                final long key = tileKey(bi, bj);
+
+                synchronized (cache) {
+                    if (cache.containsKey(key)) continue;
+                }
+
+                if (!pending.add(key)) continue;
+
+                ForkJoinPoolInstance.getInstance().getPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            getTile(_bi, _bj);
+                        } finally {
+                            pending.remove(key);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Hints that covariances among the given variables will be needed shortly.
+     *
+     * @see #prefetch(int...)
+     */
+    public void prefetch(Collection<Node> nodes) {
+        int[] indices = new int[nodes.size()];
+        int i = 0;
+
+        for (Node node : nodes) {
+            Integer index = indexMap.get(node);
+            if (index == null) continue;
+            indices[i++] = index;
+        }
+
+        prefetch(Arrays.copyOf(indices, i));
+    }
+
+    /**
+     * @return the list of variables (unmodifiable).
+     */
+    public final List<Node> getVariables() {
+        return this.variables;
+    }
+
+    /**
+     * @return the variable names, in order.
+     */
+    public final List<String> getVariableNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Node variable : getVariables()) {
+            names.add(variable.getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * @return the variable name at the given index.
+     */
+    public final String getVariableName(int index) {
+        if (index >= getVariables().size()) {
+            throw new IllegalArgumentException("Index out of range: " + index);
+        }
+
+        return getVariables().get(index).getName();
+    }
+
+    /**
+     * @return the dimension of the covariance matrix.
+     */
+    public final int getDimension() {
+        return variables.size();
+    }
+
+    /**
+     * The size of the sample used to calculated this covariance matrix.
+     *
+     * @return The sample size (> 0).
+     */
+    public final int getSampleSize() {
+        return this.sampleSize;
+    }
+
+    /**
+     * Gets the name of the covariance matrix.
+     */
+    public final String getName() {
+        return this.name;
+    }
+
+    /**
+     * Sets the name of the covariance matrix.
+     */
+    public final void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the knowledge associated with this data.
+     */
+    public final IKnowledge getKnowledge() {
+        return this.knowledge.copy();
+    }
+
+    /**
+     * Associates knowledge with this data.
+     */
+    public final void setKnowledge(IKnowledge knowledge) {
+        if (knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        this.knowledge = knowledge.copy();
+    }
+
+    /**
+     * @return a submatrix of the covariance matrix with variables in the
+     * given order.
+     */
+    public final ICovarianceMatrix getSubmatrix(int[] indices) {
+        List<Node> submatrixVars = new ArrayList<>();
+
+        for (int index : indices) {
+            submatrixVars.add(variables.get(index));
+        }
+
+        return new CovarianceMatrix(submatrixVars, getSelection(indices, indices), getSampleSize());
+    }
+
+    public final ICovarianceMatrix getSubmatrix(List<String> submatrixVarNames) {
+        String[] names = new String[submatrixVarNames.size()];
+
+        for (int i = 0; i < submatrixVarNames.size(); i++) {
+            names[i] = submatrixVarNames.get(i);
+        }
+
+        return getSubmatrix(names);
+    }
+
+    /**
+     * @return a submatrix of this matrix, with variables in the given
+     * order.
+     */
+    public final ICovarianceMatrix getSubmatrix(String[] submatrixVarNames) {
+        return getSubmatrix(indices(submatrixVarNames));
+    }
+
+    /**
+     * @return the value of element (i,j) in the matrix
+     */
+    public final double getValue(int i, int j) {
+        if (i == j) {
+            return variances[i];
+        }
+
+        if (i > j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+
+        int bi = i / tileSize;
+        int bj = j / tileSize;
+
+        ByteBuffer tile = getTile(bi, bj);
+        int offset = (i - bi * tileSize) * tileSize + (j - bj * tileSize);
+        return tile.getDouble(offset << 3);
+    }
+
+    public void setMatrix(TetradMatrix matrix) {
+        throw new UnsupportedOperationException("A tiled covariance matrix is calculated from data.");
+    }
+
+    public final void setSampleSize(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("Sample size must be > 0.");
+        }
+
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return the size of the square matrix.
+     */
+    public final int getSize() {
+        return getVariables().size();
+    }
+
+    /**
+     * @return a dense copy of the covariance matrix. Only sensible for modest
+     * numbers of variables.
+     */
+    public final TetradMatrix getMatrix() {
+        int[] all = new int[getDimension()];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        return getSelection(all, all);
+    }
+
+    public final void select(Node variable) {
+        if (variables.contains(variable)) {
+            selectedVariables.add(variable);
+        }
+    }
+
+    public final void clearSelection() {
+        selectedVariables.clear();
+    }
+
+    public final boolean isSelected(Node variable) {
+        if (variable == null) {
+            throw new NullPointerException("Null variable. Try again.");
+        }
+
+        return selectedVariables.contains(variable);
+    }
+
+    public final List<String> getSelectedVariableNames() {
+        List<String> selectedVariableNames = new LinkedList<>();
+
+        for (Node variable : selectedVariables) {
+            selectedVariableNames.add(variable.getName());
+        }
+
+        return selectedVariableNames;
+    }
+
+    /**
+     * Prints out the matrix
+     */
+    public final String toString() {
+        NumberFormat nf = NumberFormatUtil.getInstance().getNumberFormat();
+
+        StringBuilder buf = new StringBuilder();
+
+        int numVars = getVariableNames().size();
+        buf.append(getSampleSize()).append("\n");
+
+        for (int i = 0; i < numVars; i++) {
+            buf.append(getVariableName(i)).append("\t");
+        }
+
+        buf.append("\n");
+
+        for (int j = 0; j < numVars; j++) {
+            for (int i = 0; i <= j; i++) {
+                buf.append(nf.format(getValue(i, j))).append("\t");
+            }
+            buf.append("\n");
+        }
+
+        return buf.toString();
+    }
+
+    @Override
+    public boolean isContinuous() {
+        return true;
+    }
+
+    @Override
+    public boolean isDiscrete() {
+        return false;
+    }
+
+    @Override
+    public boolean isMixed() {
+        return false;
+    }
+
+    public Node getVariable(String name) {
+        for (Node variable : getVariables()) {
+            if (name.equals(variable.getName())) {
+                return variable;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a copy of this matrix, with the same tile and cache sizes, that does not
+     * spill tiles to disk. Tiles are recalculated by the copy as needed.
+     */
+    @Override
+    public DataModel copy() {
+        return new CovarianceMatrixTiled(this);
+    }
+
+    @Override
+    public void setValue(int i, int j, double v) {
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * Keeps only the given variables, in the given order. Tiles already calculated,
+     * in memory or spilled, are dropped, since the variables they cover have moved.
+     */
+    @Override
+    public void removeVariables(List<String> remaining) {
+        int[] indices = indices(remaining.toArray(new String[remaining.size()]));
+
+        List<Node> _variables = new ArrayList<>();
+        double[][] _vectors = new double[indices.length][];
+        boolean[] _hasMissing = new boolean[indices.length];
+        double[] _variances = new double[indices.length];
+
+        for (int i = 0; i < indices.length; i++) {
+            _variables.add(variables.get(indices[i]));
+            _vectors[i] = vectors[indices[i]];
+            _hasMissing[i] = hasMissing[indices[i]];
+            _variances[i] = variances[indices[i]];
+        }
+
+        synchronized (cache) {
+            this.variables = Collections.unmodifiableList(_variables);
+            this.vectors = _vectors;
+            this.hasMissing = _hasMissing;
+            this.variances = _variances;
+            this.indexMap = indexMap(variables);
+
+            cache.clear();
+            if (spilled != null) spilled.clear();
+        }
+
+        clearSelection();
+    }
+
+    public void setVariables(List<Node> variables) {
+        if (variables.size() != this.variables.size()) throw new IllegalArgumentException("Wrong # of variables.");
+        this.variables = variables;
+        this.indexMap = indexMap(variables);
+    }
+
+    @Override
+    public TetradMatrix getSelection(int[] rows, int[] cols) {
+        TetradMatrix m = new TetradMatrix(rows.length, cols.length);
+
+        if (Arrays.equals(rows, cols)) {
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = i; j < cols.length; j++) {
+                    double value = getValue(rows[i], cols[j]);
+                    m.set(i, j, value);
+                    m.set(j, i, value);
+                }
+            }
+        } else {
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = 0; j < cols.length; j++) {
+                    m.set(i, j, getValue(rows[i], cols[j]));
+                }
+            }
+        }
+
+        return m;
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    // The indices of the variables with the given names.
+    private int[] indices(String[] names) {
+        int[] indices = new int[names.length];
+
+        for (int i = 0; i < indices.length; i++) {
+            Node variable = getVariable(names[i]);
+
+            if (variable == null) {
+                throw new IllegalArgumentException("Variable " + names[i] + " is not in this matrix.");
+            }
+
+            indices[i] = indexMap.get(variable);
+        }
+
+        return indices;
+    }
+
+    private long tileKey(int bi, int bj) {
+        int numBlocks = (variables.size() + tileSize - 1) / tileSize;
+        return (long) bi * numBlocks + bj;
+    }
+
+    // Returns tile (bi, bj), bi <= bj, from the cache, the spill file, or by calculating it.
+    private ByteBuffer getTile(int bi, int bj) {
+        long key = tileKey(bi, bj);
+
+        synchronized (cache) {
+            ByteBuffer tile = cache.get(key);
+            if (tile != null) return tile;
+        }
+
+        ByteBuffer tile = readSpilledTile(key);
+
+        if (tile == null) {
+            tile = calculateTile(bi, bj);
+        }
+
+        synchronized (cache) {
+            ByteBuffer other = cache.get(key);
+            if (other != null) return other;
+            cache.put(key, tile);
+        }
+
+        return tile;
+    }
+
+    // Covariances of the columns in block bi with the columns in block bj, as an off-heap
+    // tileSize x tileSize row-major array. For diagonal tiles only the upper triangle is used.
+    private ByteBuffer calculateTile(int bi, int bj) {
+        int iFrom = bi * tileSize;
+        int iTo = Math.min(iFrom + tileSize, variables.size());
+        int jFrom = bj * tileSize;
+        int jTo = Math.min(jFrom + tileSize, variables.size());
+
+        double[] sums = new double[tileSize * tileSize];
+        int[] counts = null;
+
+        for (int i = iFrom; i < iTo && counts == null; i++) if (hasMissing[i]) counts = new int[sums.length];
+        for (int j = jFrom; j < jTo && counts == null; j++) if (hasMissing[j]) counts = new int[sums.length];
+
+        for (int k0 = 0; k0 < sampleSize; k0 += ROW_BLOCK) {
+            int k1 = Math.min(k0 + ROW_BLOCK, sampleSize);
+
+            for (int i = iFrom; i < iTo; i++) {
+                double[] v1 = vectors[i];
+                int row = (i - iFrom) * tileSize - jFrom;
+
+                for (int j = bi == bj ? i + 1 : jFrom; j < jTo; j++) {
+                    double[] v2 = vectors[j];
+                    double d = 0.0;
+
+                    if (counts == null || !(hasMissing[i] || hasMissing[j])) {
+                        for (int k = k0; k < k1; k++) {
+                            d += v1[k] * v2[k];
+                        }
+
+                        if (counts != null) counts[row + j] += k1 - k0;
+                    } else {
+                        int count = 0;
+
+                        for (int k = k0; k < k1; k++) {
+                            if (Double.isNaN(v1[k]) || Double.isNaN(v2[k])) continue;
+                            d += v1[k] * v2[k];
+                            count++;
+                        }
+
+                        counts[row + j] += count;
+                    }
+
+                    sums[row + j] += d;
+                }
+            }
+        }
+
+        ByteBuffer tile = ByteBuffer.allocateDirect(sums.length << 3).order(ByteOrder.nativeOrder());
+
+        for (int c = 0; c < sums.length; c++) {
+            int n = counts == null ? sampleSize : counts[c];
+            tile.putDouble(c << 3, sums[c] / (n - 1));
+        }
+
+        return tile;
+    }
+
+    private ByteBuffer readSpilledTile(long key) {
+        synchronized (cache) {
+            if (spillChannel == null || !spilled.contains(key)) {
+                return null;
+            }
+
+            try {
+                long tileBytes = 8L * tileSize * tileSize;
+                ByteBuffer tile = spillChannel.map(FileChannel.MapMode.READ_ONLY, key * tileBytes, tileBytes);
+                return tile.order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read tile from spill file " + spillFile, e);
+            }
+        }
+    }
+
+    // Called with the cache lock held, on eviction.
+    private void spill(long key, ByteBuffer tile) {
+        if (spillChannel == null || spilled.contains(key)) {
+            return;
+        }
+
+        long tileBytes = 8L * tileSize * tileSize;
+        ByteBuffer source = tile.duplicate();
+        source.clear();
+
+        try {
+            long position = key * tileBytes;
+
+            while (source.hasRemaining()) {
+                position += spillChannel.write(source, position);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write tile to spill file " + spillFile, e);
+        }
+
+        spilled.add(key);
+    }
+
+    private void closeSpillFile() {
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                // Nothing further can be done.
+            }
+        }
+
+        spillChannel = null;
+        spillFile = null;
+        spilled = null;
+    }
+
+    private void initTransients() {
+        this.indexMap = indexMap(variables);
+        this.pending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        this.cache = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+                if (size() > maxCachedTiles) {
+                    spill(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    private static Map<Node, Integer> indexMap(List<Node> variables) {
+        Map<Node, Integer> indexMap = new HashMap<>();
+
+        for (int i = 0; i < variables.size(); i++) {
+            indexMap.put(variables.get(i), i);
+        }
+
+        return indexMap;
+    }
+
+    private class VarianceTask extends RecursiveAction {
+        private final int chunk;
+        private final int from;
+        private final int to;
+
+        VarianceTask(int chunk, int from, int to) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                for (int i = from; i < to; i++) {
+                    double d = 0.0;
+                    int count = 0;
+                    double[] v1 = vectors[i];
+
+                    for (int k = 0; k < sampleSize; k++) {
+                        if (Double.isNaN(v1[k])) {
+                            hasMissing[i] = true;
+                            continue;
+                        }
+
+                        d += v1[k] * v1[k];
+                        count++;
+                    }
+
+                    variances[i] = d / (count - 1);
+                }
+            } else {
+                int mid = (from + to) / 2;
+                invokeAll(new VarianceTask(chunk, from, mid), new VarianceTask(chunk, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (variables == null) {
+            throw new NullPointerException();
+        }
+
+        if (vectors == null || variances == null || hasMissing == null) {
+            throw new NullPointerException();
+        }
+
+        if (knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        if (tileSize < 1 || maxCachedTiles < 1) {
+            throw new IllegalStateException();
+        }
+
+        if (selectedVariables == null) {
+            selectedVariables = new HashSet<>();
+        }
+
+        initTransients();
+    }
+}
+
+
+
@@ -1445,6 +1445,72 @@ public final class DataUtils {
         return ColtDataSet.makeData(data.getVariables(), data.getDoubleData().getSelection(rows, cols));
     }
 
+    /**
+     * @return a sample with replacement with the given sample size from the
+     * given dataset. If the dataset is a BoxDataSet, the sample is a read-only
+     * view of its rows, and no data is copied.
+     * @see ResampledDataBox
+     */
+    public static DataSet getBootstrapSampleView(DataSet data, int sampleSize) {
+        return getResampleView(data, sampleSize, true);
+    }
+
+    /**
+     * @return a sample with the given sample size from the given dataset, with or
+     * without replacement. If the dataset is a BoxDataSet, the sample is a read-only
+     * view of its rows, and no data is copied; otherwise the rows are copied.
+     * @see ResampledDataBox
+     */
+    public static DataSet getResampleView(DataSet data, int sampleSize, boolean withReplacement) {
+        int actualSampleSize = data.getNumRows();
+
+        if (!withReplacement && sampleSize > actualSampleSize) {
+            throw new IllegalArgumentException("Cannot take a subsample of size " + sampleSize
+                    + " without replacement from " + actualSampleSize + " rows.");
+        }
+
+        int[] rows = new int[sampleSize];
+
+        if (withReplacement) {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = RandomUtil.getInstance().nextInt(actualSampleSize);
+            }
+        } else {
+            int[] all = new int[actualSampleSize];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+
+            // Partial Fisher-Yates shuffle.
+            for (int i = 0; i < sampleSize; i++) {
+                int j = i + RandomUtil.getInstance().nextInt(actualSampleSize - i);
+                int t = all[i];
+                all[i] = all[j];
+                all[j] = t;
+                rows[i] = all[i];
+            }
+        }
+
+        if (!(data instanceof BoxDataSet)) {
+            return data.subsetRows(rows);
+        }
+
+        DataBox box = ((BoxDataSet) data).getDataBox();
+
+        if (box instanceof ResampledDataBox) {
+            ResampledDataBox resampled = (ResampledDataBox) box;
+            int[] _rows = resampled.getRows();
+
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = _rows[rows[i]];
+            }
+
+            box = resampled.getDataBox();
+        }
+
+        BoxDataSet sample = new BoxDataSet(new ResampledDataBox(box, rows), new ArrayList<>(data.getVariables()));
+        sample.setKnowledge(data.getKnowledge().copy());
+        return sample;
+    }
+
     /**
      * @return a sample without replacement with the given sample size from the
      * given dataset. May return a sample of less than the given size; makes
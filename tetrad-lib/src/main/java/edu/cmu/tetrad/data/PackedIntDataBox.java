@@ -0,0 +1,475 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Stores categorical data bit-sliced by column: a column whose values need b bits
+ * (1 to 8) is held as b bit planes, plane k holding bit k of the value in each row,
+ * 64 rows to a word, with a further plane marking missing values if there are any.
+ * Binary data thus takes one bit per value rather than the 32 of VerticalIntDataBox.
+ * <p>
+ * Besides unpacking a column into an int array, the box can select the rows of a
+ * given column taking a given value within a set of rows, directly on the planes;
+ * co-occurrences are then counted by popcount, 64 rows at a time. As with other
+ * discrete boxes, get() returns null for a missing value, and -99 may be set as a
+ * missing value.
+ */
+public class PackedIntDataBox implements DataBox {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The most categories a column may have.
+     */
+    public static final int MAX_CATEGORIES = 1 << 8;
+
+    /**
+     * The number of rows.
+     */
+    private final int numRows;
+
+    /**
+     * The number of categories of each column.
+     */
+    private final int[] numCategories;
+
+    /**
+     * The bit planes of each column, planes[col][k][word].
+     */
+    private final long[][][] planes;
+
+    /**
+     * For each column, the rows with missing values, or null if there are none.
+     */
+    private final long[][] missing;
+
+    /**
+     * Constructs a box consisting entirely of missing values.
+     *
+     * @param rows          The number of rows.
+     * @param numCategories The number of categories of each column, at most MAX_CATEGORIES.
+     */
+    public PackedIntDataBox(int rows, int[] numCategories) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("Number of rows must be non-negative: " + rows);
+        }
+
+        this.numRows = rows;
+        this.numCategories = numCategories.clone();
+        this.planes = new long[numCategories.length][][];
+        this.missing = new long[numCategories.length][];
+
+        int numWords = getNumWords();
+
+        for (int j = 0; j < numCategories.length; j++) {
+            if (numCategories[j] < 1 || numCategories[j] > MAX_CATEGORIES) {
+                throw new IllegalArgumentException("Expecting 1 to " + MAX_CATEGORIES
+                        + " categories: " + numCategories[j]);
+            }
+
+            planes[j] = new long[bitsFor(numCategories[j])][numWords];
+            missing[j] = allRows();
+        }
+    }
+
+    /**
+     * Constructs a box holding the given columns of int data, with missing values
+     * marked -99.
+     */
+    public PackedIntDataBox(int[][] data, int[] numCategories) {
+        this(data.length == 0 ? 0 : data[0].length, numCategories);
+
+        if (data.length != numCategories.length) {
+            throw new IllegalArgumentException("Expecting a number of categories for each column.");
+        }
+
+        for (int j = 0; j < data.length; j++) {
+            if (data[j].length != numRows) {
+                throw new IllegalArgumentException("All columns must have same length.");
+            }
+
+            for (int i = 0; i < numRows; i++) {
+                set(i, j, data[j][i]);
+            }
+        }
+
+        dropEmptyMissingPlanes();
+    }
+
+    /**
+     * Constructs a box holding the values of the given box, as ints.
+     */
+    public PackedIntDataBox(DataBox dataBox, int[] numCategories) {
+        this(dataBox.numRows(), numCategories);
+
+        if (dataBox.numCols() != numCategories.length) {
+            throw new IllegalArgumentException("Expecting a number of categories for each column.");
+        }
+
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCategories.length; j++) {
+                set(i, j, dataBox.get(i, j));
+            }
+        }
+
+        dropEmptyMissingPlanes();
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static PackedIntDataBox serializableInstance() {
+        return new PackedIntDataBox(new int[][]{{0, 1, -99}, {2, 0, 1}}, new int[]{2, 3});
+    }
+
+    /**
+     * @return a data set with the variables of the given discrete data set, its data
+     * packed into a PackedIntDataBox.
+     */
+    public static BoxDataSet pack(DataSet dataSet) {
+        int[] numCategories = new int[dataSet.getNumColumns()];
+
+        for (int j = 0; j < numCategories.length; j++) {
+            if (!(dataSet.getVariable(j) instanceof DiscreteVariable)) {
+                throw new IllegalArgumentException("Expecting discrete variables: " + dataSet.getVariable(j));
+            }
+
+            numCategories[j] = ((DiscreteVariable) dataSet.getVariable(j)).getNumCategories();
+        }
+
+        PackedIntDataBox box = new PackedIntDataBox(dataSet.getNumRows(), numCategories);
+
+        for (int i = 0; i < dataSet.getNumRows(); i++) {
+            for (int j = 0; j < numCategories.length; j++) {
+                box.set(i, j, dataSet.getInt(i, j));
+            }
+        }
+
+        box.dropEmptyMissingPlanes();
+        return new BoxDataSet(box, new ArrayList<>(dataSet.getVariables()));
+    }
+
+    /**
+     * @return the number of rows in this data box.
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return the number of columns in this data box.
+     */
+    public int numCols() {
+        return numCategories.length;
+    }
+
+    /**
+     * Sets the value at the given row/column to number.intValue(), or to missing
+     * if number is null or -99.
+     *
+     * @throws IllegalArgumentException if the value is not a category of the column.
+     */
+    public void set(int row, int col, Number value) {
+        if (row < 0 || row >= numRows) {
+            throw new IllegalArgumentException("Row out of range: " + row);
+        }
+
+        int word = row >>> 6;
+        long bit = 1L << row;
+        long[][] _planes = planes[col];
+
+        if (value == null || value.intValue() == DiscreteVariable.MISSING_VALUE) {
+            synchronized (_planes) {
+                if (missing[col] == null) {
+                    missing[col] = new long[getNumWords()];
+                }
+
+                missing[col][word] |= bit;
+
+                for (long[] plane : _planes) {
+                    plane[word] &= ~bit;
+                }
+            }
+
+            return;
+        }
+
+        int v = value.intValue();
+
+        if (v < 0 || v >= numCategories[col]) {
+            throw new IllegalArgumentException("Not a category of column " + col + ": " + v);
+        }
+
+        synchronized (_planes) {
+            for (int k = 0; k < _planes.length; k++) {
+                if (((v >>> k) & 1) != 0) {
+                    _planes[k][word] |= bit;
+                } else {
+                    _planes[k][word] &= ~bit;
+                }
+            }
+
+            if (missing[col] != null) {
+                missing[col][word] &= ~bit;
+            }
+        }
+    }
+
+    /**
+     * @return the Number value at the given row and column, or null if the value
+     * is missing.
+     */
+    public Number get(int row, int col) {
+        int word = row >>> 6;
+        int shift = row & 63;
+
+        if (missing[col] != null && ((missing[col][word] >>> shift) & 1) != 0) {
+            return null;
+        }
+
+        long[][] _planes = planes[col];
+        int v = 0;
+
+        for (int k = 0; k < _planes.length; k++) {
+            v |= (int) ((_planes[k][word] >>> shift) & 1) << k;
+        }
+
+        return v;
+    }
+
+    /**
+     * @return a copy of this data box.
+     */
+    public DataBox copy() {
+        PackedIntDataBox copy = new PackedIntDataBox(numRows, numCategories);
+
+        for (int j = 0; j < numCategories.length; j++) {
+            for (int k = 0; k < planes[j].length; k++) {
+                System.arraycopy(planes[j][k], 0, copy.planes[j][k], 0, planes[j][k].length);
+            }
+
+            copy.missing[j] = missing[j] == null ? null : missing[j].clone();
+        }
+
+        return copy;
+    }
+
+    /**
+     * @return a DataBox of type PackedIntDataBox, but with the given dimensions.
+     */
+    public DataBox like() {
+        int[] rows = new int[numRows()];
+        int[] cols = new int[numCols()];
+
+        for (int i = 0; i < numRows(); i++) rows[i] = i;
+        for (int j = 0; j < numCols(); j++) cols[j] = j;
+
+        return viewSelection(rows, cols);
+    }
+
+    @Override
+    public DataBox viewSelection(int[] rows, int[] cols) {
+        int[] _numCategories = new int[cols.length];
+
+        for (int j = 0; j < cols.length; j++) {
+            _numCategories[j] = numCategories[cols[j]];
+        }
+
+        PackedIntDataBox _dataBox = new PackedIntDataBox(rows.length, _numCategories);
+
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < cols.length; j++) {
+                _dataBox.set(i, j, get(rows[i], cols[j]));
+            }
+        }
+
+        _dataBox.dropEmptyMissingPlanes();
+        return _dataBox;
+    }
+
+    /**
+     * @return the number of categories of the given column.
+     */
+    public int getNumCategories(int col) {
+        return numCategories[col];
+    }
+
+    /**
+     * @return true if the given column has a plane marking missing values. A column
+     * with no missing values has none, except that a column of a box constructed all
+     * missing keeps its plane as values are set, until dropEmptyMissingPlanes is called.
+     */
+    public boolean hasMissingValues(int col) {
+        return missing[col] != null;
+    }
+
+    /**
+     * @return the number of bits used for each value of the given column.
+     */
+    public int getBitsPerValue(int col) {
+        return planes[col].length;
+    }
+
+    /**
+     * @return the number of 64-row words in each bit plane.
+     */
+    public int getNumWords() {
+        return (numRows + 63) >>> 6;
+    }
+
+    /**
+     * @return a row set (one bit per row, as in the planes) containing every row.
+     */
+    public long[] allRows() {
+        long[] rows = new long[getNumWords()];
+
+        if (rows.length > 0) {
+            Arrays.fill(rows, -1L);
+
+            if ((numRows & 63) != 0) {
+                rows[rows.length - 1] = -1L >>> (64 - (numRows & 63));
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Unpacks the given column into the given array, with missing values as -99.
+     *
+     * @param col  The column.
+     * @param into An array of at least numRows() ints.
+     */
+    public void unpack(int col, int[] into) {
+        Arrays.fill(into, 0, numRows, 0);
+        long[][] _planes = planes[col];
+
+        for (int k = 0; k < _planes.length; k++) {
+            long[] plane = _planes[k];
+
+            for (int w = 0; w < plane.length; w++) {
+                long word = plane[w];
+
+                while (word != 0) {
+                    into[(w << 6) + Long.numberOfTrailingZeros(word)] |= 1 << k;
+                    word &= word - 1;
+                }
+            }
+        }
+
+        if (missing[col] != null) {
+            long[] _missing = missing[col];
+
+            for (int w = 0; w < _missing.length; w++) {
+                long word = _missing[w];
+
+                while (word != 0) {
+                    into[(w << 6) + Long.numberOfTrailingZeros(word)] = DiscreteVariable.MISSING_VALUE;
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects the rows of the given row set in which the given column takes the given
+     * value, writing them to another row set, and counts them.
+     *
+     * @param col   The column.
+     * @param value A category of the column.
+     * @param rows  The rows to select from, as from allRows(); only the first
+     *              getNumWords() words are read.
+     * @param into  Receives the selected rows; may be rows itself.
+     * @return the number of rows selected.
+     */
+    public int select(int col, int value, long[] rows, long[] into) {
+        long[][] _planes = planes[col];
+        long[] _missing = missing[col];
+        int numWords = getNumWords();
+        int count = 0;
+
+        for (int w = 0; w < numWords; w++) {
+            long word = rows[w];
+
+            if (word == 0) {
+                into[w] = 0;
+                continue;
+            }
+
+            if (_missing != null) {
+                word &= ~_missing[w];
+            }
+
+            for (int k = 0; k < _planes.length && word != 0; k++) {
+                word &= ((value >>> k) & 1) != 0 ? _planes[k][w] : ~_planes[k][w];
+            }
+
+            into[w] = word;
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+
+    /**
+     * Sets the values of the given column in rows from..from + values.length - 1, as
+     * set(from + i, col, values[i]) would, taking the column's lock once rather than
+     * once a row. Ranges of rows of the same column may be set from different threads.
+     */
+    public void setColumn(int col, int from, int[] values) {
+        synchronized (planes[col]) {
+            for (int i = 0; i < values.length; i++) {
+                set(from + i, col, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Drops the missing plane of each column with no missing values, as for a box
+     * constructed all missing and then filled. The planes are otherwise kept once
+     * allocated, since set() only clears bits in them.
+     */
+    public void dropEmptyMissingPlanes() {
+        for (int j = 0; j < missing.length; j++) {
+            if (missing[j] == null) continue;
+            boolean empty = true;
+
+            for (long word : missing[j]) {
+                if (word != 0L) {
+                    empty = false;
+                    break;
+                }
+            }
+
+            if (empty) {
+                missing[j] = null;
+            }
+        }
+    }
+
+    private static int bitsFor(int numCategories) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(numCategories - 1));
+    }
+}
@@ -0,0 +1,183 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.data;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view of a resample of the rows of another data box. Row i of this
+ * box is row rows[i] of the underlying box, so a bootstrap sample or subsample can
+ * be handed to an algorithm (wrapped in a BoxDataSet) without copying any data.
+ * <p>
+ * Equivalently, the view may be described by a multiplicity (weight) for each row
+ * of the underlying box--the number of times that row occurs in the resample.
+ * Sufficient statistic builders (CovarianceMatrix, CellTable, BDeuScore) use the
+ * weights to compute directly from the underlying columns.
+ */
+public class ResampledDataBox implements DataBox {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The underlying data.
+     */
+    private final DataBox dataBox;
+
+    /**
+     * Rows of the underlying data, in order, possibly with repetitions.
+     */
+    private final int[] rows;
+
+    /**
+     * Multiplicities of rows of the underlying data. Calculated when first needed.
+     */
+    private int[] weights;
+
+    /**
+     * Constructs a view of the given rows of the given data box.
+     */
+    public ResampledDataBox(DataBox dataBox, int[] rows) {
+        if (dataBox == null) {
+            throw new NullPointerException("Data box not provided.");
+        }
+
+        for (int row : rows) {
+            if (row < 0 || row >= dataBox.numRows()) {
+                throw new IllegalArgumentException("Row out of range: " + row);
+            }
+        }
+
+        this.dataBox = dataBox;
+        this.rows = rows;
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static ResampledDataBox serializableInstance() {
+        return new ResampledDataBox(new DoubleDataBox(4, 4), new int[]{0, 0, 3});
+    }
+
+    /**
+     * @return the number of rows in this data box.
+     */
+    public int numRows() {
+        return rows.length;
+    }
+
+    /**
+     * @return the number of columns in this data box.
+     */
+    public int numCols() {
+        return dataBox.numCols();
+    }
+
+    /**
+     * Not supported; several rows of the view may share a row of the underlying
+     * data. Copy the view first.
+     */
+    public void set(int row, int col, Number value) {
+        throw new UnsupportedOperationException("A resampled data box is read-only; please copy it first.");
+    }
+
+    /**
+     * @return the Number value at the given row and column.
+     */
+    public Number get(int row, int col) {
+        return dataBox.get(rows[row], col);
+    }
+
+    /**
+     * @return the underlying data box.
+     */
+    public DataBox getDataBox() {
+        return dataBox;
+    }
+
+    /**
+     * @return the rows of the underlying data box, in the order they appear in
+     * this view.
+     */
+    public int[] getRows() {
+        return rows;
+    }
+
+    /**
+     * @return for each row of the underlying data box, the number of times it
+     * appears in this view.
+     */
+    public synchronized int[] getWeights() {
+        if (weights == null) {
+            int[] _weights = new int[dataBox.numRows()];
+
+            for (int row : rows) {
+                _weights[row]++;
+            }
+
+            weights = _weights;
+        }
+
+        return weights;
+    }
+
+    /**
+     * @return a copy of the rows of this view, materialized in a box of the
+     * underlying type.
+     */
+    public DataBox copy() {
+        return dataBox.viewSelection(rows, allColumns());
+    }
+
+    /**
+     * @return a box of the underlying type with the dimensions of this view.
+     */
+    public DataBox like() {
+        return copy().like();
+    }
+
+    /**
+     * @return the given selection. If all columns are selected, the result is again
+     * a view of the underlying data; otherwise the selection is copied.
+     */
+    @Override
+    public DataBox viewSelection(int[] rows, int[] cols) {
+        int[] _rows = new int[rows.length];
+
+        for (int i = 0; i < rows.length; i++) {
+            _rows[i] = this.rows[rows[i]];
+        }
+
+        if (Arrays.equals(cols, allColumns())) {
+            return new ResampledDataBox(dataBox, _rows);
+        }
+
+        return dataBox.viewSelection(_rows, cols);
+    }
+
+    private int[] allColumns() {
+        int[] cols = new int[numCols()];
+        for (int j = 0; j < cols.length; j++) cols[j] = j;
+        return cols;
+    }
+}
+
+
+
@@ -21,12 +21,14 @@
 
 package edu.cmu.tetrad.performance;
 
-import edu.cmu.tetrad.bayes.BayesPm;
-import edu.cmu.tetrad.bayes.MlBayesIm;
+import edu.cmu.tetrad.algcomparison.graph.SingleGraph;
+import edu.cmu.tetrad.algcomparison.simulation.LinearSineSimulation;
+import edu.cmu.tetrad.bayes.*;
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.search.*;
-import edu.cmu.tetrad.sem.LargeScaleSimulation;
+import edu.cmu.tetrad.sem.*;
+import edu.cmu.tetrad.util.Parameters;
 import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TextTable;
 import org.junit.Test;
@@ -2279,6 +2281,373 @@ public class PerformanceTests {
         return dag;
     }
 
+    /**
+     * Compares counting discrete data directly with counting through a shared AD tree,
+     * for Fges with BDeu and for PC with chi square, on the same simulated data. The tree
+     * wins when searches ask for many counts over the same variable sets, and as the
+     * sample grows relative to the number of configurations that occur.
+     */
+    public void testAdTreeCounts(int numVars, double edgeFactor, int numCases, int numRuns) {
+        init(new File("adtree." + numVars + "." + edgeFactor + "." + numCases + "." + numRuns + ".txt"),
+                "Compares direct counting with AD tree counting");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println("Num cases = " + numCases);
+        out.println();
+
+        long[] fgesTimes = new long[2];
+        long[] pcTimes = new long[2];
+
+        for (int run = 0; run < numRuns; run++) {
+            Graph dag = makeDag(numVars, edgeFactor);
+            BayesPm pm = new BayesPm(dag, 3, 3);
+            MlBayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+            DataSet data = im.simulateData(numCases, false);
+
+            Graph[] fgesGraphs = new Graph[2];
+            Graph[] pcGraphs = new Graph[2];
+
+            for (int k = 0; k < 2; k++) {
+                AdTreeCounts adTree = k == 0 ? null : new AdTreeCounts(data);
+
+                BDeuScore score = new BDeuScore(data);
+                score.setAdTree(adTree);
+
+                long start = System.currentTimeMillis();
+                fgesGraphs[k] = new Fges(score).search();
+                fgesTimes[k] += System.currentTimeMillis() - start;
+
+                IndTestChiSquare test = new IndTestChiSquare(data, 0.01);
+                test.setAdTree(adTree);
+
+                start = System.currentTimeMillis();
+                pcGraphs[k] = new Pc(test).search();
+                pcTimes[k] += System.currentTimeMillis() - start;
+            }
+
+            if (!fgesGraphs[0].equals(fgesGraphs[1]) || !pcGraphs[0].equals(pcGraphs[1])) {
+                out.println("Run " + (run + 1) + ": AD tree and direct counting gave different graphs!");
+            }
+        }
+
+        TextTable table = new TextTable(3, 3);
+        table.setToken(0, 1, "Direct (ms)");
+        table.setToken(0, 2, "AD tree (ms)");
+        table.setToken(1, 0, "FGES, BDeu");
+        table.setToken(2, 0, "PC, chi square");
+
+        for (int k = 0; k < 2; k++) {
+            table.setToken(1, k + 1, Long.toString(fgesTimes[k] / numRuns));
+            table.setToken(2, k + 1, Long.toString(pcTimes[k] / numRuns));
+        }
+
+        out.println(table);
+        out.close();
+    }
+
+    /**
+     * Compares PC with the conditional correlation independence test (CCI) with and without its caches of
+     * residuals and basis expansions, on data simulated from a linear-sine model, which is nonlinear. The
+     * caches pay off because the adjacency search asks about the same conditioning sets for many pairs.
+     */
+    public void testCciCaching(int numVars, double edgeFactor, int numCases, int numRuns) {
+        init(new File("cci." + numVars + "." + edgeFactor + "." + numCases + "." + numRuns + ".txt"),
+                "Compares CCI with and without caching of residuals");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println("Num cases = " + numCases);
+        out.println();
+
+        Parameters parameters = new Parameters();
+        parameters.set("numRuns", 1);
+        parameters.set("differentGraphs", false);
+        parameters.set("sampleSize", numCases);
+        parameters.set("interceptLow", 0.0);
+        parameters.set("interceptHigh", 1.0);
+        parameters.set("linearLow", 0.5);
+        parameters.set("linearHigh", 1.0);
+        parameters.set("varLow", 0.5);
+        parameters.set("varHigh", 0.5);
+        parameters.set("betaLow", 1.0);
+        parameters.set("betaHigh", 3.0);
+        parameters.set("gammaLow", 0.5);
+        parameters.set("gammaHigh", 1.5);
+
+        long[] pcTimes = new long[2];
+
+        for (int run = 0; run < numRuns; run++) {
+            Graph dag = makeDag(numVars, edgeFactor);
+            LinearSineSimulation simulation = new LinearSineSimulation(new SingleGraph(dag));
+            simulation.createData(parameters);
+            DataSet data = (DataSet) simulation.getDataModel(0);
+
+            Graph[] pcGraphs = new Graph[2];
+
+            for (int k = 0; k < 2; k++) {
+                IndTestConditionalCorrelation test = new IndTestConditionalCorrelation(data, 0.01);
+                if (k == 0) test.setCacheSize(0);
+
+                long start = System.currentTimeMillis();
+                pcGraphs[k] = new Pc(test).search();
+                pcTimes[k] += System.currentTimeMillis() - start;
+            }
+
+            if (!pcGraphs[0].equals(pcGraphs[1])) {
+                out.println("Run " + (run + 1) + ": CCI with and without caching gave different graphs!");
+            }
+        }
+
+        TextTable table = new TextTable(2, 3);
+        table.setToken(0, 1, "No caching (ms)");
+        table.setToken(0, 2, "Caching (ms)");
+        table.setToken(1, 0, "PC, CCI");
+
+        for (int k = 0; k < 2; k++) {
+            table.setToken(1, k + 1, Long.toString(pcTimes[k] / numRuns));
+        }
+
+        out.println(table);
+        out.close();
+    }
+
+    /**
+     * Compares the time to calculate the updated marginals of all variables, given evidence on a tenth of them,
+     * for the row summing, CPT invariant and junction tree updaters on random discrete Bayes nets. Row summing
+     * is exponential in the number of variables, so it's only run for small nets.
+     */
+    public void testBayesUpdaters(int numVars, double edgeFactor, int numRuns) {
+        init(new File("updaters." + numVars + "." + edgeFactor + "." + numRuns + ".txt"),
+                "Compares the Bayes updaters");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println();
+
+        final boolean rowSumming = numVars <= 15;
+        long[] times = new long[3];
+
+        for (int run = 0; run < numRuns; run++) {
+            Graph dag = makeDag(numVars, edgeFactor);
+            BayesPm pm = new BayesPm(dag, 3, 3);
+            MlBayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+
+            Evidence evidence = Evidence.tautology(im);
+
+            for (int i = 0; i < numVars; i += 10) {
+                evidence.getProposition().setCategory(i, RandomUtil.getInstance().nextInt(3));
+            }
+
+            double[][][] marginals = new double[3][numVars][];
+
+            for (int k = 0; k < 3; k++) {
+                if (k == 0 && !rowSumming) continue;
+
+                long start = System.currentTimeMillis();
+
+                BayesUpdater updater = k == 0 ? new RowSummingExactUpdater(im, evidence)
+                        : k == 1 ? new CptInvariantUpdater(im, evidence)
+                        : new JunctionTreeUpdater(im, evidence);
+
+                for (int i = 0; i < numVars; i++) {
+                    marginals[k][i] = updater.calculateUpdatedMarginals(i);
+                }
+
+                times[k] += System.currentTimeMillis() - start;
+            }
+
+            if (rowSumming) {
+                for (int i = 0; i < numVars; i++) {
+                    for (int j = 0; j < 3; j++) {
+                        if (Math.abs(marginals[0][i][j] - marginals[2][i][j]) > 1e-8) {
+                            out.println("Run " + (run + 1) + ": row summing and junction tree marginals differ!");
+                            i = numVars;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        TextTable table = new TextTable(4, 2);
+        table.setToken(0, 1, "Time (ms)");
+        table.setToken(1, 0, "Row summing");
+        table.setToken(2, 0, "CPT invariant");
+        table.setToken(3, 0, "Junction tree");
+
+        for (int k = 0; k < 3; k++) {
+            table.setToken(k + 1, 1, k == 0 && !rowSumming ? "-" : Long.toString(times[k] / numRuns));
+        }
+
+        out.println(table);
+        out.close();
+    }
+
+    /**
+     * Compares the approximate updater with the sampling updater, by likelihood weighting and by Gibbs sampling,
+     * on random discrete Bayes nets with evidence on a tenth of the variables, reporting the time to calculate the
+     * updated marginals of all variables and the largest error against the junction tree updater.
+     */
+    public void testSamplingUpdaters(int numVars, double edgeFactor, int numRuns) {
+        init(new File("sampling." + numVars + "." + edgeFactor + "." + numRuns + ".txt"),
+                "Compares the sampling Bayes updaters");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println();
+
+        long[] times = new long[3];
+        double[] errors = new double[3];
+
+        for (int run = 0; run < numRuns; run++) {
+            Graph dag = makeDag(numVars, edgeFactor);
+            BayesPm pm = new BayesPm(dag, 3, 3);
+            MlBayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+
+            Evidence evidence = Evidence.tautology(im);
+
+            for (int i = 0; i < numVars; i += 10) {
+                evidence.getProposition().setCategory(i, RandomUtil.getInstance().nextInt(3));
+            }
+
+            JunctionTreeUpdater exact = new JunctionTreeUpdater(im, evidence);
+
+            for (int k = 0; k < 3; k++) {
+                long start = System.currentTimeMillis();
+                BayesUpdater updater;
+
+                if (k == 0) {
+                    updater = new ApproximateUpdater(im, evidence);
+                } else {
+                    SamplingUpdater samplingUpdater = new SamplingUpdater(im, evidence);
+                    samplingUpdater.setMethod(k == 1 ? SamplingUpdater.Method.LIKELIHOOD_WEIGHTING
+                            : SamplingUpdater.Method.GIBBS);
+                    updater = samplingUpdater;
+                }
+
+                double[][] marginals = new double[numVars][];
+
+                for (int i = 0; i < numVars; i++) {
+                    marginals[i] = updater.calculateUpdatedMarginals(i);
+                }
+
+                times[k] += System.currentTimeMillis() - start;
+
+                for (int i = 0; i < numVars; i++) {
+                    for (int j = 0; j < marginals[i].length; j++) {
+                        errors[k] = Math.max(errors[k], Math.abs(marginals[i][j] - exact.getMarginal(i, j)));
+                    }
+                }
+            }
+        }
+
+        NumberFormat nf = new DecimalFormat("0.0000");
+
+        TextTable table = new TextTable(4, 3);
+        table.setToken(0, 1, "Time (ms)");
+        table.setToken(0, 2, "Max error");
+        table.setToken(1, 0, "Approximate");
+        table.setToken(2, 0, "Likelihood weighting");
+        table.setToken(3, 0, "Gibbs");
+
+        for (int k = 0; k < 3; k++) {
+            table.setToken(k + 1, 1, Long.toString(times[k] / numRuns));
+            table.setToken(k + 1, 2, nf.format(errors[k]));
+        }
+
+        out.println(table);
+        out.close();
+    }
+
+    public void testSemOptimizers(int numVars, double edgeFactor, int numRestarts) {
+        init(new File("semoptimizers." + numVars + "." + edgeFactor + "." + numRestarts + ".txt"),
+                "Compares SEM optimizers");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println("Num restarts = " + numRestarts);
+        out.println();
+
+        Graph dag = makeDag(numVars, edgeFactor);
+        SemPm pm = new SemPm(dag);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+        CovarianceMatrix cov = new CovarianceMatrix(data);
+
+        SemOptimizerLbfgs sequential = new SemOptimizerLbfgs();
+        sequential.setParallelized(false);
+
+        SemOptimizer[] optimizers = {new SemOptimizerPowell(), sequential, new SemOptimizerLbfgs()};
+        String[] names = {"Powell", "L-BFGS, sequential restarts", "L-BFGS, parallel restarts"};
+
+        NumberFormat nf = new DecimalFormat("0.0000");
+
+        TextTable table = new TextTable(optimizers.length + 1, 3);
+        table.setToken(0, 1, "Time (ms)");
+        table.setToken(0, 2, "Score");
+
+        for (int k = 0; k < optimizers.length; k++) {
+            SemIm im = new SemIm(pm, cov);
+            optimizers[k].setNumRestarts(numRestarts);
+
+            long start = System.currentTimeMillis();
+            optimizers[k].optimize(im);
+            long time = System.currentTimeMillis() - start;
+
+            table.setToken(k + 1, 0, names[k]);
+            table.setToken(k + 1, 1, Long.toString(time));
+            table.setToken(k + 1, 2, nf.format(im.getScore()));
+        }
+
+        out.println(table);
+        out.close();
+    }
+
+    public void testSemStdErrors(int numVars, double edgeFactor) {
+        init(new File("semstderrors." + numVars + "." + edgeFactor + ".txt"),
+                "Compares analytic and numeric SEM standard errors");
+        out.println("Num vars = " + numVars);
+        out.println("Num edges = " + (int) (numVars * edgeFactor));
+        out.println();
+
+        Graph dag = makeDag(numVars, edgeFactor);
+        SemPm pm = new SemPm(dag);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+        SemIm im = new SemEstimator(data, pm).estimate();
+
+        out.println("Num free parameters = " + im.getNumFreeParams());
+        out.println();
+
+        long[] times = new long[2];
+        double[][] stdErrors = new double[2][];
+
+        for (int k = 0; k < 2; k++) {
+            SemStdErrorEstimator estimator = new SemStdErrorEstimator();
+            estimator.setAnalytic(k == 0);
+
+            long start = System.currentTimeMillis();
+            estimator.computeStdErrors(im);
+            times[k] = System.currentTimeMillis() - start;
+            stdErrors[k] = estimator.getStdErrors();
+        }
+
+        double maxRelativeDiff = 0.0;
+
+        for (int i = 0; i < stdErrors[0].length; i++) {
+            maxRelativeDiff = Math.max(maxRelativeDiff,
+                    Math.abs(stdErrors[0][i] - stdErrors[1][i]) / stdErrors[1][i]);
+        }
+
+        NumberFormat nf = new DecimalFormat("0.0000");
+
+        TextTable table = new TextTable(3, 2);
+        table.setToken(0, 1, "Time (ms)");
+        table.setToken(1, 0, "Analytic");
+        table.setToken(2, 0, "Numeric");
+        table.setToken(1, 1, Long.toString(times[0]));
+        table.setToken(2, 1, Long.toString(times[1]));
+
+        out.println(table);
+        out.println();
+        out.println("Max relative difference = " + nf.format(maxRelativeDiff));
+        out.close();
+    }
+
     @Test
     public void printGraphDegrees() {
         int numVars = 30000;
@@ -2370,6 +2739,22 @@ public class PerformanceTests {
                     performanceTests.testCpcStable(numVars, edgeFactor, numCases, alpha);
                     break;
                 }
+                case "ADTREE": {
+                    final int numVars = Integer.parseInt(args[1]);
+                    final double edgeFactor = Double.parseDouble(args[2]);
+                    final int numCases = Integer.parseInt(args[3]);
+                    final int numRuns = Integer.parseInt(args[4]);
+                    performanceTests.testAdTreeCounts(numVars, edgeFactor, numCases, numRuns);
+                    break;
+                }
+                case "CCI": {
+                    final int numVars = Integer.parseInt(args[1]);
+                    final double edgeFactor = Double.parseDouble(args[2]);
+                    final int numCases = Integer.parseInt(args[3]);
+                    final int numRuns = Integer.parseInt(args[4]);
+                    performanceTests.testCciCaching(numVars, edgeFactor, numCases, numRuns);
+                    break;
+                }
                 case "TestFgesComparisonContinuous": {
                     final int numVars = Integer.parseInt(args[1]);
                     final double edgeFactor = Double.parseDouble(args[2]);
@@ -91,6 +91,17 @@ public class LogisticRegression implements TetradSerializable {
      * x must be binary; regressors must be continuous or binary.
      */
     public Result regress(DiscreteVariable x, List<Node> regressors) {
+        return regress(x, regressors, null);
+    }
+
+    /**
+     * x must be binary; regressors must be continuous or binary. The iteration starts
+     * from the coefficients of the given result for regressors it shares (by name) with
+     * this regression--typically a regression of x on a subset of these regressors--and
+     * zero for the rest. If start is null, it starts from zero coefficients and the
+     * intercept of the intercept-only model.
+     */
+    public Result regress(DiscreteVariable x, List<Node> regressors, Result start) {
         if (!binary(x)) {
             throw new IllegalArgumentException("Target must be binary.");
         }
@@ -125,7 +136,19 @@ public class LogisticRegression implements TetradSerializable {
             regressorNames.add(node.getName());
         }
 
-        return regress(target, x.getName(), _regressors, regressorNames);
+        double[] startCoefs = null;
+
+        if (start != null) {
+            startCoefs = new double[regressors.size() + 1];
+            startCoefs[0] = start.getCoefs()[0];
+
+            for (int j = 0; j < regressorNames.size(); j++) {
+                int index = start.getRegressorNames().indexOf(regressorNames.get(j));
+                if (index != -1) startCoefs[j + 1] = start.getCoefs()[index + 1];
+            }
+        }
+
+        return regress(target, x.getName(), _regressors, regressorNames, startCoefs);
     }
 
     private boolean binary(Node x) {
@@ -138,9 +161,11 @@ public class LogisticRegression implements TetradSerializable {
      * <p>
      * The target must be a two-valued variable with values 0 and 1.
      * <p>
-     * This implements an iterative search.
+     * This implements an iterative search, from the given (unstandardized) coefficients
+     * if they are not null.
      */
-    private Result regress(int[] target, String targetName, double[][] regressors, List<String> regressorNames) {
+    private Result regress(int[] target, String targetName, double[][] regressors, List<String> regressorNames,
+                           double[] start) {
 
         double[][] x;
         double[] c1;
@@ -216,6 +241,15 @@ public class LogisticRegression implements TetradSerializable {
             par[j] = 0.0;
         }
 
+        if (start != null) {
+            par[0] = start[0];
+
+            for (int j = 1; j <= numRegressors; j++) {
+                par[j] = start[j] * xStdDevs[j];
+                par[0] += start[j] * xMeans[j];
+            }
+        }
+
         double[][] arr = new double[numRegressors + 1][numRegressors + 2];
 
         double lnV;
@@ -0,0 +1,520 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.regression;
+
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fits binary logistic regressions by Newton's method (iteratively reweighted least
+ * squares), for tests and scores that fit many of them over nested sets of regressors.
+ * <p>
+ * Each column of a design carries an id (for instance its column in the data), so a
+ * fit can be started from the fit of another design: coefficients of columns the two
+ * share are carried over and the rest start at zero. Fits are cached by a key the
+ * caller chooses, and a fit may name the keys of nested models (Z for Z + x, say)
+ * to start from; starting from a nested model usually takes two or three Newton
+ * steps instead of six or seven. Fits of several targets against the same design--
+ * the categories of a multinomial target, say--are done in parallel. Work buffers
+ * belong to the calling thread and are reused across fits.
+ * <p>
+ * The fits maximize the log likelihood less ridge / 2 times the sum of squares of the
+ * coefficients. The ridge is 1 by default, which, with the intercept an ordinary column
+ * of the design, gives the fits of liblinear's L2-regularized logistic regression with
+ * its default C = 1; set it to zero for maximum likelihood fits. Safe for use by several
+ * threads.
+ */
+public final class LogisticRegressionEngine {
+
+    /**
+     * The id of an intercept (constant) column, by convention.
+     */
+    public static final long INTERCEPT = -1L;
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    // The penalty on the squared coefficients, as for liblinear's C = 1.
+    private double ridge = 1.0;
+
+    // Convergence tolerance on the relative change in the penalized log likelihood.
+    private double tolerance = 1e-10;
+
+    // The most Newton steps per fit.
+    private int maxIterations = 100;
+
+    // True if fits for several targets are done in parallel.
+    private boolean parallelized = true;
+
+    // Cached fits, least recently used first.
+    private final Map<Object, Fit[]> cache;
+
+    /**
+     * Constructs an engine caching the fits for up to 10000 keys.
+     */
+    public LogisticRegressionEngine() {
+        this(10000);
+    }
+
+    /**
+     * Constructs an engine caching the fits for up to the given number of keys.
+     */
+    public LogisticRegressionEngine(final int maxCachedKeys) {
+        if (maxCachedKeys < 0) {
+            throw new IllegalArgumentException("Cache size must be non-negative: " + maxCachedKeys);
+        }
+
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<Object, Fit[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Fit[]> eldest) {
+                return size() > maxCachedKeys;
+            }
+        });
+    }
+
+    /**
+     * Fits a logistic regression of y on the columns of x.
+     *
+     * @param x     The columns of the design, each of length at least n. An intercept, if
+     *              wanted, is one of the columns.
+     * @param ids   An id for each column.
+     * @param y     The target, 0 or 1 for each row.
+     * @param n     The number of rows.
+     * @param start A fit to start from, or null to start from zero.
+     * @return the fit.
+     */
+    public Fit fit(double[][] x, long[] ids, double[] y, int n, Fit start) {
+        if (ids.length != x.length) {
+            throw new IllegalArgumentException("Expecting an id for each column.");
+        }
+
+        int k = x.length;
+        Workspace w = WORKSPACE.get();
+        w.ensure(n, k);
+
+        double[] coefs = start == null ? new double[k] : start.startFor(ids);
+        double objective = objective(x, y, n, coefs, w.eta);
+        int iteration = 0;
+
+        while (iteration < maxIterations) {
+            iteration++;
+
+            // Gradient and Hessian of the penalized log likelihood at coefs.
+            double[] g = w.gradient;
+            double[][] h = w.hessian;
+
+            for (int a = 0; a < k; a++) {
+                g[a] = -ridge * coefs[a];
+                Arrays.fill(h[a], 0, k, 0.0);
+                h[a][a] = ridge;
+            }
+
+            for (int i = 0; i < n; i++) {
+                double p = sigmoid(w.eta[i]);
+                w.residual[i] = y[i] - p;
+                w.weight[i] = p * (1.0 - p);
+            }
+
+            for (int a = 0; a < k; a++) {
+                double[] xa = x[a];
+                double sum = 0.0;
+                for (int i = 0; i < n; i++) sum += xa[i] * w.residual[i];
+                g[a] += sum;
+
+                for (int b = 0; b <= a; b++) {
+                    double[] xb = x[b];
+                    double s = 0.0;
+                    for (int i = 0; i < n; i++) s += xa[i] * w.weight[i] * xb[i];
+                    h[a][b] += s;
+                }
+            }
+
+            if (!solve(h, g, w.step, k)) break;
+
+            // Take the Newton step, halving it until the objective improves.
+            double[] next = w.next;
+            double nextObjective = Double.NEGATIVE_INFINITY;
+            double t = 1.0;
+
+            for (int halving = 0; halving < 30; halving++) {
+                for (int a = 0; a < k; a++) next[a] = coefs[a] + t * w.step[a];
+                nextObjective = objective(x, y, n, next, w.nextEta);
+                if (nextObjective >= objective) break;
+                t /= 2;
+            }
+
+            if (!(nextObjective >= objective)) break;
+
+            double change = nextObjective - objective;
+            System.arraycopy(next, 0, coefs, 0, k);
+            System.arraycopy(w.nextEta, 0, w.eta, 0, n);
+            objective = nextObjective;
+
+            if (change <= tolerance * (1.0 + Math.abs(objective))) break;
+        }
+
+        double logLikelihood = objective;
+        for (double c : coefs) logLikelihood += 0.5 * ridge * c * c;
+
+        return new Fit(ids.clone(), coefs, logLikelihood, iteration);
+    }
+
+    /**
+     * Fits logistic regressions of each of the given targets on the columns of x, in
+     * parallel.
+     *
+     * @param starts Fits to start from, one for each target, or null.
+     * @see #fit(double[][], long[], double[], int, Fit)
+     */
+    public Fit[] fitEach(final double[][] x, final long[] ids, final double[][] ys, final int n,
+                         final Fit[] starts) {
+        final Fit[] fits = new Fit[ys.length];
+
+        if (!parallelized || ys.length < 2) {
+            for (int t = 0; t < ys.length; t++) {
+                fits[t] = fit(x, ids, ys[t], n, starts == null ? null : starts[t]);
+            }
+
+            return fits;
+        }
+
+        class FitTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private FitTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    fits[from] = fit(x, ids, ys[from], n, starts == null ? null : starts[from]);
+                } else {
+                    int mid = (from + to) / 2;
+                    invokeAll(new FitTask(from, mid), new FitTask(mid, to));
+                }
+            }
+        }
+
+        FitTask task = new FitTask(0, ys.length);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
+        }
+
+        return fits;
+    }
+
+    /**
+     * Returns the cached fits for the given key, if any; otherwise fits each of the
+     * targets, starting from the cached fits for the first of the nested keys that has
+     * them, and caches the fits under the key.
+     *
+     * @param key        Identifies the design and targets.
+     * @param nestedKeys Keys of related models--typically nested ones--to start from.
+     * @see #fitEach(double[][], long[], double[][], int, Fit[])
+     */
+    public Fit[] fitEach(Object key, Collection<?> nestedKeys, double[][] x, long[] ids, double[][] ys, int n) {
+        Fit[] fits = cache.get(key);
+        if (fits != null) return fits;
+
+        Fit[] starts = null;
+
+        for (Object nestedKey : nestedKeys) {
+            Fit[] nested = cache.get(nestedKey);
+
+            if (nested != null && nested.length == ys.length) {
+                starts = nested;
+                break;
+            }
+        }
+
+        fits = fitEach(x, ids, ys, n, starts);
+        cache.put(key, fits);
+        return fits;
+    }
+
+    /**
+     * Fits a logistic regression of the indicator of each category of y on the columns
+     * of x (one against the rest), as fitEach does, and returns the log likelihood of y,
+     * the probability of each row's category being taken as its fitted probability
+     * divided by the sum of the fitted probabilities of all of the categories. This is
+     * not the likelihood of a multinomial logit (softmax) model, whose categories are
+     * fit jointly against a reference category; it is the one-against-the-rest score of
+     * the liblinear fits used by MNLRLikelihood and MVPLikelihood.
+     *
+     * @param y             The category of each row, in 0..numCategories - 1.
+     * @param numCategories The number of categories of y.
+     */
+    public double oneVsRestLogLikelihood(Object key, Collection<?> nestedKeys, double[][] x, long[] ids,
+                                           int[] y, int numCategories, int n) {
+        double[][] ys = new double[numCategories][n];
+
+        for (int i = 0; i < n; i++) {
+            ys[y[i]][i] = 1.0;
+        }
+
+        Fit[] fits = fitEach(key, nestedKeys, x, ids, ys, n);
+        double lik = 0.0;
+
+        for (int i = 0; i < n; i++) {
+            double sum = 0.0;
+            double own = 0.0;
+
+            for (int c = 0; c < numCategories; c++) {
+                double[] coefs = fits[c].coefs;
+                double eta = 0.0;
+                for (int a = 0; a < coefs.length; a++) eta += coefs[a] * x[a][i];
+                double p = sigmoid(eta);
+                sum += p;
+                if (c == y[i]) own = p;
+            }
+
+            lik += Math.log(own / sum);
+        }
+
+        return lik;
+    }
+
+    /**
+     * Empties the cache of fits.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    public double getRidge() {
+        return ridge;
+    }
+
+    /**
+     * Sets the penalty on the sum of squares of the coefficients, by default 1. A ridge
+     * of 1 on a design whose intercept is an ordinary column gives the fits of
+     * liblinear's L2-regularized logistic regression with C = 1, and a ridge of zero
+     * gives maximum likelihood fits.
+     */
+    public void setRidge(double ridge) {
+        if (ridge < 0) {
+            throw new IllegalArgumentException("Ridge must be non-negative: " + ridge);
+        }
+
+        this.ridge = ridge;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public boolean isParallelized() {
+        return parallelized;
+    }
+
+    public void setParallelized(boolean parallelized) {
+        this.parallelized = parallelized;
+    }
+
+    /**
+     * A fitted logistic regression.
+     */
+    public static final class Fit {
+        private final long[] ids;
+        private final double[] coefs;
+        private final double logLikelihood;
+        private final int numIterations;
+
+        private Fit(long[] ids, double[] coefs, double logLikelihood, int numIterations) {
+            this.ids = ids;
+            this.coefs = coefs;
+            this.logLikelihood = logLikelihood;
+            this.numIterations = numIterations;
+        }
+
+        /**
+         * @return the coefficient of each column of the design.
+         */
+        public double[] getCoefs() {
+            return coefs.clone();
+        }
+
+        /**
+         * @return the log likelihood of the fit (not -2 log likelihood).
+         */
+        public double getLogLikelihood() {
+            return logLikelihood;
+        }
+
+        public int getNumIterations() {
+            return numIterations;
+        }
+
+        /**
+         * @return coefficients for the columns with the given ids: this fit's coefficient
+         * for a column it has, zero for others.
+         */
+        private double[] startFor(long[] _ids) {
+            double[] start = new double[_ids.length];
+
+            for (int a = 0; a < _ids.length; a++) {
+                for (int b = 0; b < ids.length; b++) {
+                    if (ids[b] == _ids[a]) {
+                        start[a] = coefs[b];
+                        break;
+                    }
+                }
+            }
+
+            return start;
+        }
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    // The penalized log likelihood, with the linear predictors left in eta.
+    private double objective(double[][] x, double[] y, int n, double[] coefs, double[] eta) {
+        Arrays.fill(eta, 0, n, 0.0);
+
+        for (int a = 0; a < coefs.length; a++) {
+            double c = coefs[a];
+            if (c == 0.0) continue;
+            double[] xa = x[a];
+            for (int i = 0; i < n; i++) eta[i] += c * xa[i];
+        }
+
+        double ll = 0.0;
+
+        for (int i = 0; i < n; i++) {
+            double e = eta[i];
+            double softplus = e > 0 ? e + Math.log1p(Math.exp(-e)) : Math.log1p(Math.exp(e));
+            ll += y[i] * e - softplus;
+        }
+
+        for (double c : coefs) ll -= 0.5 * ridge * c * c;
+
+        return ll;
+    }
+
+    private static double sigmoid(double eta) {
+        return eta >= 0 ? 1.0 / (1.0 + Math.exp(-eta)) : Math.exp(eta) / (1.0 + Math.exp(eta));
+    }
+
+    /**
+     * Solves h x = g for symmetric positive definite h, of which the lower triangle is
+     * given, by Cholesky decomposition in place, adding a little to the diagonal if h is
+     * singular (as with collinear columns).
+     *
+     * @return false if no solution could be found.
+     */
+    private static boolean solve(double[][] h, double[] g, double[] x, int k) {
+        double maxDiagonal = 0.0;
+        for (int a = 0; a < k; a++) maxDiagonal = Math.max(maxDiagonal, h[a][a]);
+
+        double[][] l = new double[k][k];
+        double jitter = 0.0;
+
+        for (int attempt = 0; attempt < 10; attempt++) {
+            if (cholesky(h, l, k, jitter)) {
+                for (int a = 0; a < k; a++) {
+                    double s = g[a];
+                    for (int b = 0; b < a; b++) s -= l[a][b] * x[b];
+                    x[a] = s / l[a][a];
+                }
+
+                for (int a = k - 1; a >= 0; a--) {
+                    double s = x[a];
+                    for (int b = a + 1; b < k; b++) s -= l[b][a] * x[b];
+                    x[a] = s / l[a][a];
+                }
+
+                return true;
+            }
+
+            jitter = jitter == 0.0 ? 1e-10 * Math.max(maxDiagonal, 1e-10) : jitter * 100;
+        }
+
+        return false;
+    }
+
+    private static boolean cholesky(double[][] h, double[][] l, int k, double jitter) {
+        for (int a = 0; a < k; a++) {
+            for (int b = 0; b <= a; b++) {
+                double s = h[a][b] + (a == b ? jitter : 0.0);
+                for (int c = 0; c < b; c++) s -= l[a][c] * l[b][c];
+
+                if (a == b) {
+                    if (!(s > 0)) return false;
+                    l[a][a] = Math.sqrt(s);
+                } else {
+                    l[a][b] = s / l[b][b];
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Buffers for one thread's fits.
+    private static final class Workspace {
+        private double[] eta = new double[0];
+        private double[] nextEta = new double[0];
+        private double[] residual = new double[0];
+        private double[] weight = new double[0];
+        private double[] gradient = new double[0];
+        private double[] step = new double[0];
+        private double[] next = new double[0];
+        private double[][] hessian = new double[0][0];
+
+        private void ensure(int n, int k) {
+            if (eta.length < n) {
+                eta = new double[n];
+                nextEta = new double[n];
+                residual = new double[n];
+                weight = new double[n];
+            }
+
+            if (gradient.length < k) {
+                gradient = new double[k];
+                step = new double[k];
+                next = new double[k];
+                hessian = new double[k][k];
+            }
+        }
+    }
+}
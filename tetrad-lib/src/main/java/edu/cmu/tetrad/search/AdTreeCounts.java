@@ -0,0 +1,389 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.data.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count service for discrete data based on a leaf-list AD tree (after Moore and Lee,
+ * Cached Sufficient Statistics for Efficient Machine Learning with Large Datasets, JAIR
+ * 1998). A node of the tree is a set of variables, taken in increasing column order, and
+ * holds the rows of the data partitioned by the configurations of those variables that
+ * occur, with the (weighted) size of each part. A node is made by splitting each part of
+ * its parent--the node for all but its last variable--by the values of its last variable,
+ * so queries that share a prefix share work, and a repeated query costs time proportional
+ * to the number of configurations that occur rather than to the number of rows.
+ * <p>
+ * Nodes are built on demand and cached up to a bound on the number of ints they hold;
+ * past that, the least recently used nodes are dropped. Nodes are immutable once built
+ * and the cache is concurrent, so queries may be made from any number of threads. One
+ * instance may be shared by the scores and tests for a data set; see AdTrees.
+ */
+public final class AdTreeCounts {
+
+    /**
+     * The default bound on the number of ints held by cached nodes (256 MB).
+     */
+    public static final long DEFAULT_MAX_CACHED_INTS = 1L << 26;
+
+    /**
+     * The columns of the data.
+     */
+    private final int[][] columns;
+
+    /**
+     * The number of categories of each column.
+     */
+    private final int[] dims;
+
+    /**
+     * For a resampled data set, the multiplicity of each row of the columns; otherwise null.
+     */
+    private final int[] weights;
+
+    /**
+     * The bound on the number of ints held by cached nodes.
+     */
+    private final long maxCachedInts;
+
+    /**
+     * The node for the empty set of variables.
+     */
+    private final Partition root;
+
+    // Cached nodes, keyed by their (increasing) column indices.
+    private final Map<List<Integer>, Partition> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cachedInts = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Constructs a count service for the given discrete data set, with the default
+     * bound on the size of the cache.
+     */
+    public AdTreeCounts(DataSet dataSet) {
+        this(dataSet, DEFAULT_MAX_CACHED_INTS);
+    }
+
+    /**
+     * Constructs a count service for the given discrete data set.
+     *
+     * @param maxCachedInts The bound on the number of ints held by cached nodes.
+     */
+    public AdTreeCounts(DataSet dataSet, long maxCachedInts) {
+        this(columns(dataSet), dims(dataSet), weights(dataSet), maxCachedInts);
+    }
+
+    /**
+     * Constructs a count service for the given columns.
+     *
+     * @param columns       The columns, with values in 0..dims[c] - 1 or DiscreteVariable.MISSING_VALUE.
+     * @param dims          The number of categories of each column.
+     * @param weights       The multiplicity of each row, or null if each row counts once.
+     * @param maxCachedInts The bound on the number of ints held by cached nodes.
+     */
+    public AdTreeCounts(int[][] columns, int[] dims, int[] weights, long maxCachedInts) {
+        if (columns.length != dims.length) {
+            throw new IllegalArgumentException("Expecting a dimension for each column.");
+        }
+
+        if (maxCachedInts < 0) {
+            throw new IllegalArgumentException("Cache bound must be non-negative: " + maxCachedInts);
+        }
+
+        this.columns = columns;
+        this.dims = dims;
+        this.weights = weights;
+        this.maxCachedInts = maxCachedInts;
+
+        int numRows = columns.length == 0 ? 0 : columns[0].length;
+        int[] rows = new int[numRows];
+        int n = 0;
+        int total = 0;
+
+        for (int i = 0; i < numRows; i++) {
+            int w = weights == null ? 1 : weights[i];
+
+            if (w > 0) {
+                rows[n++] = i;
+                total += w;
+            }
+        }
+
+        this.root = n == 0
+                ? new Partition(new int[0], new int[]{0}, new int[0])
+                : new Partition(Arrays.copyOf(rows, n), new int[]{0, n}, new int[]{total});
+    }
+
+    /**
+     * Counts the configurations of the given columns into the given counts, with the
+     * same result as counting the columns directly: rows with a missing value in any
+     * of the columns are skipped, and the last column varies fastest in the keys.
+     *
+     * @param vars   Indices of the columns to count, in the order they are to be keyed.
+     * @param counts Receives the counts.
+     */
+    public void count(int[] vars, ContingencyCounts counts) {
+        long numConfigurations = 1;
+
+        for (int v : vars) {
+            if (numConfigurations > Long.MAX_VALUE / dims[v]) {
+                throw new IllegalArgumentException("Too many configurations to count: the product of the " +
+                        "numbers of categories does not fit in a long.");
+            }
+
+            numConfigurations *= dims[v];
+        }
+
+        Partition partition = getPartition(vars);
+        int numCells = partition.getNumCells();
+        long[] keys = new long[numCells];
+
+        for (int c = 0; c < numCells; c++) {
+            int row = partition.rows[partition.starts[c]];
+            long key = 0;
+
+            for (int v : vars) {
+                key = key * dims[v] + columns[v][row];
+            }
+
+            keys[c] = key;
+        }
+
+        counts.countKeys(keys, partition.counts, numCells, numConfigurations);
+    }
+
+    /**
+     * @return the number of columns of the data.
+     */
+    public int getNumColumns() {
+        return columns.length;
+    }
+
+    /**
+     * @return the number of ints currently held by cached nodes.
+     */
+    public long getNumCachedInts() {
+        return cachedInts.get();
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    private Partition getPartition(int[] vars) {
+        int[] sorted = Arrays.copyOf(vars, vars.length);
+        Arrays.sort(sorted);
+
+        Partition partition = root;
+        List<Integer> path = new ArrayList<>();
+
+        for (int v : sorted) {
+            if (!path.isEmpty() && path.get(path.size() - 1) == v) continue;
+            path.add(v);
+
+            List<Integer> key = new ArrayList<>(path);
+            Partition child = cache.get(key);
+
+            if (child == null) {
+                child = partition.split(v);
+                Partition existing = cache.putIfAbsent(key, child);
+
+                if (existing != null) {
+                    child = existing;
+                } else if (cachedInts.addAndGet(child.size()) > maxCachedInts) {
+                    evict();
+                }
+            }
+
+            child.lastUsed = clock.incrementAndGet();
+            partition = child;
+        }
+
+        return partition;
+    }
+
+    /**
+     * Drops the least recently used nodes until the cache is three quarters full.
+     */
+    private synchronized void evict() {
+        if (cachedInts.get() <= maxCachedInts) {
+            return;
+        }
+
+        List<Map.Entry<List<Integer>, Partition>> entries = new ArrayList<>(cache.entrySet());
+        final long[] lastUsed = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+
+        for (int i = 0; i < entries.size(); i++) {
+            lastUsed[i] = entries.get(i).getValue().lastUsed;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (i, j) -> Long.compare(lastUsed[i], lastUsed[j]));
+
+        long target = maxCachedInts / 4 * 3;
+
+        for (int i : order) {
+            if (cachedInts.get() <= target) break;
+            Map.Entry<List<Integer>, Partition> entry = entries.get(i);
+
+            if (cache.remove(entry.getKey(), entry.getValue())) {
+                cachedInts.addAndGet(-entry.getValue().size());
+            }
+        }
+    }
+
+    private static int[][] columns(DataSet dataSet) {
+        DataBox dataBox = dataSet instanceof BoxDataSet ? ((BoxDataSet) dataSet).getDataBox() : null;
+
+        if (dataBox instanceof ResampledDataBox
+                && ((ResampledDataBox) dataBox).getDataBox() instanceof VerticalIntDataBox) {
+            dataBox = ((ResampledDataBox) dataBox).getDataBox();
+        }
+
+        if (dataBox instanceof VerticalIntDataBox) {
+            return ((VerticalIntDataBox) dataBox).getVariableVectors();
+        }
+
+        int[][] columns = new int[dataSet.getNumColumns()][dataSet.getNumRows()];
+
+        for (int j = 0; j < dataSet.getNumColumns(); j++) {
+            for (int i = 0; i < dataSet.getNumRows(); i++) {
+                columns[j][i] = dataSet.getInt(i, j);
+            }
+        }
+
+        return columns;
+    }
+
+    private static int[] dims(DataSet dataSet) {
+        int[] dims = new int[dataSet.getNumColumns()];
+
+        for (int j = 0; j < dims.length; j++) {
+            if (!(dataSet.getVariable(j) instanceof DiscreteVariable)) {
+                throw new IllegalArgumentException("Not discrete: " + dataSet.getVariable(j));
+            }
+
+            dims[j] = ((DiscreteVariable) dataSet.getVariable(j)).getNumCategories();
+        }
+
+        return dims;
+    }
+
+    private static int[] weights(DataSet dataSet) {
+        DataBox dataBox = dataSet instanceof BoxDataSet ? ((BoxDataSet) dataSet).getDataBox() : null;
+
+        if (dataBox instanceof ResampledDataBox
+                && ((ResampledDataBox) dataBox).getDataBox() instanceof VerticalIntDataBox) {
+            return ((ResampledDataBox) dataBox).getWeights();
+        }
+
+        return null;
+    }
+
+    /**
+     * A node of the tree: rows partitioned by the configurations that occur.
+     */
+    private final class Partition {
+
+        // The rows, grouped so that each part is contiguous.
+        private final int[] rows;
+
+        // The start of each part in rows, followed by the end of the last.
+        private final int[] starts;
+
+        // The (weighted) size of each part.
+        private final int[] counts;
+
+        private volatile long lastUsed;
+
+        private Partition(int[] rows, int[] starts, int[] counts) {
+            this.rows = rows;
+            this.starts = starts;
+            this.counts = counts;
+        }
+
+        private int getNumCells() {
+            return counts.length;
+        }
+
+        private long size() {
+            return rows.length + starts.length + counts.length;
+        }
+
+        /**
+         * @return the partition made by splitting each part of this one by the values
+         * of the given column; rows missing a value are dropped.
+         */
+        private Partition split(int v) {
+            int[] column = columns[v];
+            int dim = dims[v];
+
+            int[] _rows = new int[rows.length];
+            int[] _starts = new int[rows.length + 1];
+            int[] _counts = new int[rows.length];
+
+            int[] sizes = new int[dim];
+            int[] offsets = new int[dim];
+            int[] parts = new int[dim];
+
+            int n = 0;
+            int numParts = 0;
+
+            for (int c = 0; c < getNumCells(); c++) {
+                Arrays.fill(sizes, 0);
+
+                for (int i = starts[c]; i < starts[c + 1]; i++) {
+                    int value = column[rows[i]];
+                    if (value != DiscreteVariable.MISSING_VALUE) sizes[value]++;
+                }
+
+                for (int k = 0; k < dim; k++) {
+                    if (sizes[k] > 0) {
+                        _starts[numParts] = n;
+                        parts[k] = numParts++;
+                        offsets[k] = n;
+                        n += sizes[k];
+                    }
+                }
+
+                for (int i = starts[c]; i < starts[c + 1]; i++) {
+                    int row = rows[i];
+                    int value = column[row];
+                    if (value == DiscreteVariable.MISSING_VALUE) continue;
+                    _rows[offsets[value]++] = row;
+                    _counts[parts[value]] += weights == null ? 1 : weights[row];
+                }
+            }
+
+            _starts[numParts] = n;
+
+            return new Partition(Arrays.copyOf(_rows, n), Arrays.copyOf(_starts, numParts + 1),
+                    Arrays.copyOf(_counts, numParts));
+        }
+    }
+}
+
+
@@ -4,6 +4,7 @@ import edu.cmu.tetrad.data.DataSet;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Stores AD trees for data sets for reuse.
@@ -11,6 +12,7 @@ import java.util.Map;
  */
 public class AdTrees {
     private static Map<DataSet, AdLeafTree> adTrees = new HashMap<>();
+    private static final Map<DataSet, AdTreeCounts> countTrees = new WeakHashMap<>();
 
     public static AdLeafTree getAdLeafTree(DataSet dataSet) {
         AdLeafTree tree = adTrees.get(dataSet);
@@ -22,4 +24,19 @@ public class AdTrees {
 
         return tree;
     }
+
+    /**
+     * @return the count service for the given discrete data set, made the first time
+     * it is asked for, so that the scores and tests for the data set can share it.
+     */
+    public static synchronized AdTreeCounts getCountsTree(DataSet dataSet) {
+        AdTreeCounts tree = countTrees.get(dataSet);
+
+        if (tree == null) {
+            tree = new AdTreeCounts(dataSet);
+            countTrees.put(dataSet, tree);
+        }
+
+        return tree;
+    }
 }
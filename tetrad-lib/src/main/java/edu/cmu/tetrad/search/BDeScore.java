@@ -21,8 +21,10 @@
 
 package edu.cmu.tetrad.search;
 
+import edu.cmu.tetrad.data.BoxDataSet;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.data.VerticalIntDataBox;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.ProbUtils;
 
@@ -34,6 +36,9 @@ import java.util.List;
 public class BDeScore implements LocalDiscreteScore {
     private DataSet dataSet;
 
+    // The columns of the data.
+    private int[][] data;
+
     public BDeScore(DataSet dataSet) {
         if (dataSet == null) {
             throw new NullPointerException();
@@ -44,6 +49,18 @@ public class BDeScore implements LocalDiscreteScore {
         }
 
         this.dataSet = dataSet;
+
+        if (dataSet instanceof BoxDataSet && ((BoxDataSet) dataSet).getDataBox() instanceof VerticalIntDataBox) {
+            this.data = ((VerticalIntDataBox) ((BoxDataSet) dataSet).getDataBox()).getVariableVectors();
+        } else {
+            this.data = new int[dataSet.getNumColumns()][dataSet.getNumRows()];
+
+            for (int j = 0; j < dataSet.getNumColumns(); j++) {
+                for (int i = 0; i < dataSet.getNumRows(); i++) {
+                    data[j][i] = dataSet.getInt(i, j);
+                }
+            }
+        }
     }
 
     public double localScore(int i, int parents[]) {
@@ -51,73 +68,52 @@ public class BDeScore implements LocalDiscreteScore {
         // Number of categories for i.
         int r = numCategories(i);
 
-        // Numbers of categories of parents.
-        int dims[] = new int[parents.length];
-
-        for (int p = 0; p < parents.length; p++) {
-            dims[p] = numCategories(parents[p]);
-        }
+        // The parent columns followed by the column for i, with their numbers of categories.
+        int[][] columns = new int[parents.length + 1][];
+        int dims[] = new int[parents.length + 1];
 
         // Number of parent states.
-        int q = 1;
+        double q = 1;
+
         for (int p = 0; p < parents.length; p++) {
+            columns[p] = data[parents[p]];
+            dims[p] = numCategories(parents[p]);
             q *= dims[p];
         }
 
-        // Conditional cell coefs of data for i given parents(i).
-        int n_ijk[][] = new int[q][r];
-        int n_ij[] = new int[q];
+        columns[parents.length] = data[i];
+        dims[parents.length] = r;
 
-        int values[] = new int[parents.length];
+        // Conditional cell coefs of data for i given parents(i), for the parent
+        // states and cells that actually occur.
+        ContingencyCounts counts = ContingencyCounts.local();
+        counts.count(columns, dims, null);
 
-        for (int n = 0; n < sampleSize(); n++) {
-            for (int p = 0; p < parents.length; p++) {
-                int parentValue = dataSet().getInt(n, parents[p]);
-
-                if (parentValue == -99) {
-                    throw new IllegalStateException("Please remove or impute " +
-                            "missing values.");
-                }
-
-                values[p] = parentValue;
-            }
-
-            int childValue = dataSet().getInt(n, i);
-
-            if (childValue == -99) {
-                throw new IllegalStateException("Please remove or impute missing " +
-                        "values (record " + n + " column " + i + ")");
-
-            }
-
-            int rowIndex = getRowIndex(dims, values);
-
-//            for (int m = 0; m < dataSet().getMultiplier(n); m++) {
-            n_ijk[rowIndex][childValue]++;
-//            }
+        if (counts.getTotal() < sampleSize()) {
+            throw new IllegalStateException("Please remove or impute missing values.");
         }
 
-        // Row sums.
-        for (int j = 0; j < q; j++) {
-            for (int k = 0; k < r; k++) {
-                n_ij[j] += n_ijk[j][k];
-            }
-        }
-
-        //Finally, compute the score
+        //Finally, compute the score. Parent states and cells that do not occur
+        //contribute nothing.
         double score = 0;
 
-        for (int j = 0; j < q; j++) {
-            for (int k = 0; k < r; k++) {
-                double nPrimeijk = 1. / (r * q);
-                score += ProbUtils.lngamma(n_ijk[j][k] + nPrimeijk);
-                score -= ProbUtils.lngamma(nPrimeijk);
-            }
+        double nPrimeijk = 1. / (r * q);
+        double nPrimeij = 1. / q;
 
-            double nPrimeij = 1. / q;
+        int numCells = counts.getNumCells();
+        int n_ij = 0;
 
-            score += ProbUtils.lngamma(nPrimeij);
-            score -= ProbUtils.lngamma(n_ij[j] + nPrimeij);
+        for (int cell = 0; cell < numCells; cell++) {
+            int n_ijk = counts.getCount(cell);
+            score += ProbUtils.lngamma(n_ijk + nPrimeijk);
+            score -= ProbUtils.lngamma(nPrimeijk);
+            n_ij += n_ijk;
+
+            if (cell == numCells - 1 || counts.getKey(cell + 1) / r != counts.getKey(cell) / r) {
+                score += ProbUtils.lngamma(nPrimeij);
+                score -= ProbUtils.lngamma(n_ij + nPrimeij);
+                n_ij = 0;
+            }
         }
 
         return score;
@@ -154,15 +150,6 @@ public class BDeScore implements LocalDiscreteScore {
         return dataSet;
     }
 
-    private int getRowIndex(int[] dim, int[] values) {
-        int rowIndex = 0;
-        for (int i = 0; i < dim.length; i++) {
-            rowIndex *= dim[i];
-            rowIndex += values[i];
-        }
-        return rowIndex;
-    }
-
     private int sampleSize() {
         return dataSet().getNumRows();
     }
@@ -35,11 +35,20 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
     private int[][] data;
     private int sampleSize;
 
+    // For a resampled data set, the multiplicity of each row of data; otherwise null.
+    private int[] weights = null;
+
     private double samplePrior = 1;
     private double structurePrior = 1;
 
     private int[] numCategories;
 
+    // Shared counts for the data, or null to count the data directly.
+    private AdTreeCounts adTree = null;
+
+    // Bit-sliced data, counted in place of data if given.
+    private PackedIntDataBox packed = null;
+
     public BDeuScore(DataSet dataSet) {
         if (dataSet == null) {
             throw new NullPointerException("Data was not provided.");
@@ -50,13 +59,26 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
 
             this.variables = dataSet.getVariables();
 
-            if (!(dataBox instanceof VerticalIntDataBox)) {
-                dataBox = new VerticalIntDataBox(dataBox);
+            // Count a resample from the underlying data, weighting rows by multiplicity.
+            if (dataBox instanceof ResampledDataBox
+                    && (((ResampledDataBox) dataBox).getDataBox() instanceof VerticalIntDataBox
+                    || ((ResampledDataBox) dataBox).getDataBox() instanceof PackedIntDataBox)) {
+                this.weights = ((ResampledDataBox) dataBox).getWeights();
+                dataBox = ((ResampledDataBox) dataBox).getDataBox();
             }
 
-            VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
+            if (dataBox instanceof PackedIntDataBox) {
+                packed = (PackedIntDataBox) dataBox;
+            } else {
+                if (!(dataBox instanceof VerticalIntDataBox)) {
+                    dataBox = new VerticalIntDataBox(dataBox);
+                }
+
+                VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
+
+                data = box.getVariableVectors();
+            }
 
-            data = box.getVariableVectors();
             this.sampleSize = dataSet.getNumRows();
         } else {
             data = new int[dataSet.getNumColumns()][];
@@ -90,80 +112,70 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
         // Number of categories for node.
         int c = numCategories[node];
 
-        // Numbers of categories of parents.
-        int[] dims = new int[parents.length];
-
-        for (int p = 0; p < parents.length; p++) {
-            dims[p] = numCategories[parents[p]];
-        }
-
         // Number of parent states.
-        int r = 1;
-
-        for (int p = 0; p < parents.length; p++) {
-            r *= dims[p];
-        }
-
-        // Conditional cell coefs of data for node given parents(node).
-        int n_jk[][] = new int[r][c];
-        int n_j[] = new int[r];
-
-        int[] parentValues = new int[parents.length];
+        double r = 1;
 
-        int[][] myParents = new int[parents.length][];
-        for (int i = 0; i < parents.length; i++) {
-            myParents[i] = data[parents[i]];
+        for (int parent : parents) {
+            r *= numCategories[parent];
         }
 
-        int[] myChild = data[node];
-
-
-        ROW:
-        for (int i = 0; i < sampleSize; i++) {
-            for (int p = 0; p < parents.length; p++) {
-                if (myParents[p][i] == -99) continue ROW;
-                parentValues[p] = myParents[p][i];
-            }
+        // Conditional cell coefs of data for node given parents(node), for the
+        // parent states and cells that actually occur.
+        ContingencyCounts counts = ContingencyCounts.local();
+        count(append(parents, node), counts);
 
-            int childValue = myChild[i];
-
-            if (childValue == -99) {
-                continue ROW;
-//                throw new IllegalStateException("Please remove or impute missing " +
-//                        "values (record " + i + " column " + i + ")");
-            }
-
-            int rowIndex = getRowIndex(dims, parentValues);
-
-            n_jk[rowIndex][childValue]++;
-            n_j[rowIndex]++;
-        }
-
-        //Finally, compute the score
+        //Finally, compute the score. Parent states and cells that do not occur
+        //contribute nothing.
         double score = 0.0;
 
         score += getPriorForStructure(parents.length);
 
         final double cellPrior = getSamplePrior() / (c * r);
         final double rowPrior = getSamplePrior() / r;
+        final double logCellPrior = Gamma.logGamma(cellPrior);
+        final double logRowPrior = Gamma.logGamma(rowPrior);
+
+        int numCells = counts.getNumCells();
+        int n_j = 0;
 
-        for (int j = 0; j < r; j++) {
-            score -= Gamma.logGamma(rowPrior + n_j[j]);
+        for (int cell = 0; cell < numCells; cell++) {
+            int n_jk = counts.getCount(cell);
+            score += Gamma.logGamma(cellPrior + n_jk) - logCellPrior;
+            n_j += n_jk;
 
-            for (int k = 0; k < c; k++) {
-                score += Gamma.logGamma(cellPrior + n_jk[j][k]);
+            if (cell == numCells - 1 || counts.getKey(cell + 1) / c != counts.getKey(cell) / c) {
+                score += logRowPrior - Gamma.logGamma(rowPrior + n_j);
+                n_j = 0;
             }
         }
 
-        score += r * Gamma.logGamma(rowPrior);
-        score -= c * r * Gamma.logGamma(cellPrior);
-
         return score;
     }
 
+    /**
+     * Counts the given columns, the last varying fastest in the keys.
+     */
+    private void count(int[] vars, ContingencyCounts counts) {
+        if (adTree != null) {
+            adTree.count(vars, counts);
+        } else if (packed != null) {
+            counts.count(packed, vars, weights);
+        } else {
+            int[][] columns = new int[vars.length][];
+            int[] dims = new int[vars.length];
+
+            for (int v = 0; v < vars.length; v++) {
+                columns[v] = data[vars[v]];
+                dims[v] = numCategories[vars[v]];
+            }
+
+            counts.count(columns, dims, weights);
+        }
+    }
+
     private double getPriorForStructure(int numParents) {
         double e = getStructurePrior();
-        int vm = data.length - 1;
+        int vm = variables.size() - 1;
         return numParents * Math.log(e / (vm)) + (vm - numParents) * Math.log(1.0 - (e / (vm)));
     }
 
@@ -199,6 +211,21 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
         return this.variables;
     }
 
+    /**
+     * Sets an AD tree count service for the data, which may be shared with other scores
+     * and tests, or null (the default) to count the data directly for each score. The
+     * tree pays off when many scores share parent sets, as in Fges.
+     *
+     * @see AdTrees#getCountsTree(DataSet)
+     */
+    public void setAdTree(AdTreeCounts adTree) {
+        if (adTree != null && adTree.getNumColumns() != variables.size()) {
+            throw new IllegalArgumentException("The AD tree is for a different data set.");
+        }
+
+        this.adTree = adTree;
+    }
+
     public int getSampleSize() {
         return sampleSize;
     }
@@ -215,15 +242,6 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
         throw new UnsupportedOperationException();
     }
 
-    private static int getRowIndex(int[] dim, int[] values) {
-        int rowIndex = 0;
-        for (int i = 0; i < dim.length; i++) {
-            rowIndex *= dim[i];
-            rowIndex += values[i];
-        }
-        return rowIndex;
-    }
-
     @Override
     public double getStructurePrior() {
         return structurePrior;
@@ -40,6 +40,9 @@ public class BicScore implements LocalDiscreteScore, IBDeuScore {
 
     private int[] numCategories;
 
+    // Shared counts for the data, or null to count the data directly.
+    private AdTreeCounts adTree = null;
+
     public BicScore(DataSet dataSet) {
         if (dataSet == null) {
             throw new NullPointerException();
@@ -50,8 +53,8 @@ public class BicScore implements LocalDiscreteScore, IBDeuScore {
 
             this.variables = dataSet.getVariables();
 
-            if (!(((BoxDataSet) dataSet).getDataBox() instanceof VerticalIntDataBox)) {
-                throw new IllegalArgumentException();
+            if (!(dataBox instanceof VerticalIntDataBox)) {
+                dataBox = new VerticalIntDataBox(dataBox);
             }
 
             VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
@@ -108,68 +111,51 @@ public class BicScore implements LocalDiscreteScore, IBDeuScore {
         // Number of categories for node.
         int c = numCategories[node];
 
-        // Numbers of categories of parents.
-        int[] dims = new int[parents.length];
-
-        for (int p = 0; p < parents.length; p++) {
-            dims[p] = numCategories[parents[p]];
-        }
+        // The parent columns followed by the node's column, with their numbers of categories.
+        int[][] columns = new int[parents.length + 1][];
+        int[] dims = new int[parents.length + 1];
 
         // Number of parent states.
-        int r = 1;
+        double r = 1;
 
         for (int p = 0; p < parents.length; p++) {
+            columns[p] = data[parents[p]];
+            dims[p] = numCategories[parents[p]];
             r *= dims[p];
         }
 
-        // Conditional cell coefs of data for node given parents(node).
-        int n_jk[][] = new int[r][c];
-        int n_j[] = new int[r];
-
-        int[] parentValues = new int[parents.length];
-
-        int[][] myParents = new int[parents.length][];
-        for (int i = 0; i < parents.length; i++) {
-            myParents[i] = data[parents[i]];
-        }
-
-        int[] myChild = data[node];
-
-        ROW:
-        for (int i = 0; i < sampleSize; i++) {
-            for (int p = 0; p < parents.length; p++) {
-                if (myParents[p][i] == -99) continue ROW;
-                parentValues[p] = myParents[p][i];
-            }
-
-            int childValue = myChild[i];
+        columns[parents.length] = data[node];
+        dims[parents.length] = c;
 
-            if (childValue == -99) {
-                continue ROW;
-//                throw new IllegalStateException("Please remove or impute missing " +
-//                        "values (record " + i + " column " + i + ")");
-            }
-
-            int rowIndex = getRowIndex(dims, parentValues);
+        // Conditional cell coefs of data for node given parents(node), for the
+        // parent states and cells that actually occur.
+        ContingencyCounts counts = ContingencyCounts.local();
 
-            n_jk[rowIndex][childValue]++;
-            n_j[rowIndex]++;
+        if (adTree != null) {
+            adTree.count(append(parents, node), counts);
+        } else {
+            counts.count(columns, dims, null);
         }
 
-        //Finally, compute the score
+        //Finally, compute the score, as the sum over cells of n_jk log(n_jk / n_j),
+        //that is, sum n_jk log n_jk less the sum over parent states of n_j log n_j.
         double lik = 0.0;
 
-        for (int rowIndex = 0; rowIndex < r; rowIndex++) {
-            for (int childValue = 0; childValue < c; childValue++) {
-                int cellCount = n_jk[rowIndex][childValue];
-                int rowCount = n_j[rowIndex];
+        int numCells = counts.getNumCells();
+        int rowCount = 0;
+
+        for (int cell = 0; cell < numCells; cell++) {
+            int cellCount = counts.getCount(cell);
+            lik += cellCount * Math.log(cellCount);
+            rowCount += cellCount;
 
-                if (cellCount == 0) continue;
-                lik += cellCount * Math.log(cellCount / (double) rowCount);
+            if (cell == numCells - 1 || counts.getKey(cell + 1) / c != counts.getKey(cell) / c) {
+                lik -= rowCount * Math.log(rowCount);
+                rowCount = 0;
             }
         }
 
-        int params = r * (c - 1);
+        double params = r * (c - 1);
         int n = getSampleSize();
 
         return 2 * lik - penaltyDiscount * params * Math.log(n);
@@ -213,6 +199,21 @@ public class BicScore implements LocalDiscreteScore, IBDeuScore {
         return this.variables;
     }
 
+    /**
+     * Sets an AD tree count service for the data, which may be shared with other scores
+     * and tests, or null (the default) to count the data directly for each score. The
+     * tree pays off when many scores share parent sets, as in Fges.
+     *
+     * @see AdTrees#getCountsTree(DataSet)
+     */
+    public void setAdTree(AdTreeCounts adTree) {
+        if (adTree != null && adTree.getNumColumns() != data.length) {
+            throw new IllegalArgumentException("The AD tree is for a different data set.");
+        }
+
+        this.adTree = adTree;
+    }
+
     public int getSampleSize() {
         return sampleSize;
     }
@@ -229,15 +230,6 @@ public class BicScore implements LocalDiscreteScore, IBDeuScore {
         throw new UnsupportedOperationException();
     }
 
-    private static int getRowIndex(int[] dim, int[] values) {
-        int rowIndex = 0;
-        for (int i = 0; i < dim.length; i++) {
-            rowIndex *= dim[i];
-            rowIndex += values[i];
-        }
-        return rowIndex;
-    }
-
     @Override
     public double getStructurePrior() {
         throw new UnsupportedOperationException();
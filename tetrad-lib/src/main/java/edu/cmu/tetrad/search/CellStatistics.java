@@ -0,0 +1,510 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches, for sets of discrete columns, the partition of the rows by the combinations
+ * of values of the columns that occur, along with sufficient statistics for the
+ * continuous columns within each cell--the means, and the co-moments (sums of
+ * products of deviations from the means) for pairs of columns. Statistics are
+ * computed when first asked for and then kept, so a likelihood asking again about
+ * the same discrete set, as happens constantly in a search, only assembles them.
+ * <p>
+ * The partition for a set is made by splitting the cells of the partition for the
+ * set without its last column (in column order), so partitions for sets sharing a
+ * prefix share the work. Statistics are derived the same way where they can be: when
+ * a cell is split without losing rows to missing values and its statistics are
+ * already known, the statistics of its largest part are those of the cell less those
+ * of the other parts, and need no pass over the rows. A statistic that is NaN for a
+ * cell (one of its rows being NaN) is not used to derive those of its parts, so NaN
+ * stays in the cells whose rows have it.
+ * <p>
+ * Partitions and their statistics are cached up to a bound on the number of values
+ * (row indices and statistics) they hold; past that, the least recently used are
+ * dropped, and made again if asked for. Safe for use by several threads.
+ */
+public final class CellStatistics {
+
+    /**
+     * The default bound on the number of values held by cached partitions (at most 256 MB).
+     */
+    public static final long DEFAULT_MAX_CACHED_VALUES = 1L << 25;
+
+    // Discrete columns of the data, by column index; null for continuous columns.
+    private final int[][] discreteData;
+
+    // Continuous columns of the data, by column index; null for discrete columns.
+    private final double[][] continuousData;
+
+    // The number of categories of each discrete column.
+    private final int[] dims;
+
+    // The partition of all of the rows into a single cell.
+    private final Cells root;
+
+    // Cached partitions, by sorted list of discrete columns.
+    private final Map<List<Integer>, Cells> cache = new ConcurrentHashMap<>();
+
+    // The bound on the number of values held by cached partitions.
+    private volatile long maxCachedValues = DEFAULT_MAX_CACHED_VALUES;
+
+    private final AtomicLong cachedValues = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * @param discreteData   The discrete columns of the data, with missing values marked
+     *                       DiscreteVariable.MISSING_VALUE, or null for continuous columns.
+     * @param dims           The number of categories of each discrete column.
+     * @param continuousData The continuous columns of the data, or null for discrete columns.
+     * @param numRows        The number of rows.
+     */
+    public CellStatistics(int[][] discreteData, int[] dims, double[][] continuousData, int numRows) {
+        if (discreteData.length != continuousData.length || dims.length != discreteData.length) {
+            throw new IllegalArgumentException("Expecting the same number of columns throughout.");
+        }
+
+        this.discreteData = discreteData;
+        this.dims = dims;
+        this.continuousData = continuousData;
+
+        int[] all = new int[numRows];
+        for (int i = 0; i < numRows; i++) all[i] = i;
+        this.root = new Cells(new ArrayList<Integer>(), new int[][]{all}, new int[]{-1}, new boolean[]{false});
+    }
+
+    /**
+     * @param discreteCols Discrete columns of the data, in any order.
+     * @return the partition of the rows by the combinations of values of the given
+     * columns that occur. Rows with a missing value in any of the columns belong to
+     * no cell. For no columns, this is a single cell of all of the rows.
+     */
+    public Cells getCells(int[] discreteCols) {
+        int[] sorted = Arrays.copyOf(discreteCols, discreteCols.length);
+        Arrays.sort(sorted);
+
+        Cells cells = root;
+        root.lastUsed = clock.incrementAndGet();
+        List<Integer> path = new ArrayList<>();
+
+        for (int v : sorted) {
+            if (discreteData[v] == null) {
+                throw new IllegalArgumentException("Not a discrete column: " + v);
+            }
+
+            if (!path.isEmpty() && path.get(path.size() - 1) == v) continue;
+            path.add(v);
+
+            List<Integer> key = new ArrayList<>(path);
+            Cells child = cache.get(key);
+
+            if (child == null) {
+                child = cells.split(key, v);
+                child.lastUsed = clock.incrementAndGet();
+                Cells existing = cache.putIfAbsent(key, child);
+
+                if (existing != null) {
+                    child = existing;
+                } else {
+                    added(child.size.get());
+                }
+            }
+
+            child.lastUsed = clock.incrementAndGet();
+            cells = child;
+        }
+
+        return cells;
+    }
+
+    /**
+     * @return the number of values (row indices and statistics) held by cached partitions.
+     */
+    public long getNumCachedValues() {
+        return cachedValues.get();
+    }
+
+    /**
+     * @return the bound on the number of values held by cached partitions.
+     */
+    public long getMaxCachedValues() {
+        return maxCachedValues;
+    }
+
+    /**
+     * Sets the bound on the number of values (row indices and statistics) held by cached
+     * partitions, by default DEFAULT_MAX_CACHED_VALUES, dropping the least recently used
+     * partitions if the cache is over it.
+     */
+    public void setMaxCachedValues(long maxCachedValues) {
+        if (maxCachedValues < 0) {
+            throw new IllegalArgumentException("Cache bound must be non-negative: " + maxCachedValues);
+        }
+
+        this.maxCachedValues = maxCachedValues;
+        evict();
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    private void added(long numValues) {
+        if (cachedValues.addAndGet(numValues) > maxCachedValues) {
+            evict();
+        }
+    }
+
+    /**
+     * Drops the least recently used partitions until the cache is three quarters full.
+     * The partition of all of the rows is never dropped, but its statistics may be.
+     */
+    private synchronized void evict() {
+        if (cachedValues.get() <= maxCachedValues) {
+            return;
+        }
+
+        final List<Cells> entries = new ArrayList<>(cache.values());
+        entries.add(root);
+        final long[] lastUsed = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+
+        for (int i = 0; i < entries.size(); i++) {
+            lastUsed[i] = entries.get(i).lastUsed;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (i, j) -> Long.compare(lastUsed[i], lastUsed[j]));
+
+        long target = maxCachedValues / 4 * 3;
+
+        for (int i : order) {
+            if (cachedValues.get() <= target) break;
+            Cells cells = entries.get(i);
+
+            if (cells == root) {
+                cachedValues.addAndGet(-root.clearStatistics());
+            } else if (cache.remove(cells.key, cells)) {
+                cells.cached = false;
+                cachedValues.addAndGet(-cells.size.get());
+            }
+        }
+    }
+
+    /**
+     * A partition of the rows into cells, with cached statistics for each cell.
+     */
+    public final class Cells {
+
+        // The sorted discrete columns this partition is for.
+        private final List<Integer> key;
+
+        // The rows of each cell.
+        private final int[][] rows;
+
+        // The cell of the parent partition each cell was split from.
+        private final int[] parentCell;
+
+        // Whether each cell's statistics may be derived from its parent cell and siblings.
+        private final boolean[] derived;
+
+        // Means of each cell, by continuous column.
+        private final Map<Integer, double[]> means = new ConcurrentHashMap<>();
+
+        // Co-moments of each cell, by pair of continuous columns.
+        private final Map<Long, double[]> comoments = new ConcurrentHashMap<>();
+
+        // The number of values held: row indices, then statistics as they are added.
+        private final AtomicLong size = new AtomicLong();
+
+        // False once dropped from the cache.
+        private volatile boolean cached = true;
+
+        private volatile long lastUsed;
+
+        private Cells(List<Integer> key, int[][] rows, int[] parentCell, boolean[] derived) {
+            this.key = key;
+            this.rows = rows;
+            this.parentCell = parentCell;
+            this.derived = derived;
+
+            long size = parentCell.length;
+            for (int[] _rows : rows) size += _rows.length;
+            this.size.set(size);
+        }
+
+        /**
+         * @return the number of (nonempty) cells.
+         */
+        public int getNumCells() {
+            return rows.length;
+        }
+
+        /**
+         * @return the number of rows in the given cell.
+         */
+        public int getCellSize(int cell) {
+            return rows[cell].length;
+        }
+
+        /**
+         * @return the rows of the given cell. Not to be modified.
+         */
+        public int[] getRows(int cell) {
+            return rows[cell];
+        }
+
+        /**
+         * @return the (unbiased) covariance matrix of the given continuous columns within
+         * the given cell, as it would be calculated from the rows of the cell.
+         */
+        public TetradMatrix getCovariance(int cell, int[] continuousCols) {
+            int k = continuousCols.length;
+            double n = rows[cell].length;
+            TetradMatrix cov = new TetradMatrix(k, k);
+
+            for (int a = 0; a < k; a++) {
+                for (int b = a; b < k; b++) {
+                    double c = comoments(continuousCols[a], continuousCols[b])[cell] / (n - 1);
+                    cov.set(a, b, c);
+                    cov.set(b, a, c);
+                }
+            }
+
+            return cov;
+        }
+
+        /**
+         * @return the mean of the given continuous column in each cell; NaN for a cell
+         * with a NaN value.
+         */
+        public double[] means(int col) {
+            double[] _means = means.get(col);
+            if (_means != null) return _means;
+
+            double[] column = continuousData[col];
+
+            if (column == null) {
+                throw new IllegalArgumentException("Not a continuous column: " + col);
+            }
+
+            // Derive what can be derived if the parent's means are at hand.
+            Cells parent = parent();
+            double[] parentMeans = parent != null && parent.means.containsKey(col) ? parent.means(col) : null;
+            boolean[] fromParent = new boolean[rows.length];
+            _means = new double[rows.length];
+
+            for (int c = 0; c < rows.length; c++) {
+                fromParent[c] = parentMeans != null && derived[c] && isFinite(parentMeans[parentCell[c]]);
+                if (fromParent[c]) continue;
+                double sum = 0.0;
+                for (int i : rows[c]) sum += column[i];
+                _means[c] = sum / rows[c].length;
+            }
+
+            if (parentMeans != null) {
+                double[] sums = new double[parent.rows.length];
+
+                for (int c = 0; c < rows.length; c++) {
+                    if (!derived[c]) sums[parentCell[c]] += rows[c].length * _means[c];
+                }
+
+                for (int c = 0; c < rows.length; c++) {
+                    if (!fromParent[c]) continue;
+                    int q = parentCell[c];
+                    _means[c] = (parent.rows[q].length * parentMeans[q] - sums[q]) / rows[c].length;
+                }
+            }
+
+            double[] existing = means.putIfAbsent(col, _means);
+            if (existing != null) return existing;
+            addStatistic(_means.length);
+            return _means;
+        }
+
+        /**
+         * @return the sum of products of deviations from the cell means of the given
+         * continuous columns in each cell; NaN for a cell with a NaN value.
+         */
+        public double[] comoments(int col1, int col2) {
+            if (col1 > col2) {
+                int t = col1;
+                col1 = col2;
+                col2 = t;
+            }
+
+            long key = (long) col1 * continuousData.length + col2;
+            double[] _comoments = comoments.get(key);
+            if (_comoments != null) return _comoments;
+
+            double[] column1 = continuousData[col1];
+            double[] column2 = continuousData[col2];
+            double[] means1 = means(col1);
+            double[] means2 = means(col2);
+
+            // Derive what can be derived if the parent's co-moments are at hand.
+            Cells parent = parent();
+            double[] parentComoments = parent != null && parent.comoments.containsKey(key)
+                    ? parent.comoments(col1, col2) : null;
+            boolean[] fromParent = new boolean[rows.length];
+            _comoments = new double[rows.length];
+
+            for (int c = 0; c < rows.length; c++) {
+                fromParent[c] = parentComoments != null && derived[c]
+                        && isFinite(parentComoments[parentCell[c]]);
+                if (fromParent[c]) continue;
+                double sum = 0.0;
+
+                for (int i : rows[c]) {
+                    sum += (column1[i] - means1[c]) * (column2[i] - means2[c]);
+                }
+
+                _comoments[c] = sum;
+            }
+
+            if (parentComoments != null) {
+
+                // The co-moment of a cell is the sum over its parts of the part's co-moment
+                // plus the part's size times the product of its mean's deviations from the
+                // cell's mean.
+                double[] parentMeans1 = parent.means(col1);
+                double[] parentMeans2 = parent.means(col2);
+                double[] rest = parentComoments.clone();
+
+                for (int c = 0; c < rows.length; c++) {
+                    int q = parentCell[c];
+                    double d = rows[c].length * (means1[c] - parentMeans1[q]) * (means2[c] - parentMeans2[q]);
+                    rest[q] -= derived[c] ? d : d + _comoments[c];
+                }
+
+                for (int c = 0; c < rows.length; c++) {
+                    if (fromParent[c]) _comoments[c] = rest[parentCell[c]];
+                }
+            }
+
+            double[] existing = comoments.putIfAbsent(key, _comoments);
+            if (existing != null) return existing;
+            addStatistic(_comoments.length);
+            return _comoments;
+        }
+
+        /**
+         * @return the partition this one was split from, if it is at hand; null for the
+         * root or if the parent has been dropped from the cache.
+         */
+        private Cells parent() {
+            if (key.isEmpty()) return null;
+            if (key.size() == 1) return root;
+            return cache.get(key.subList(0, key.size() - 1));
+        }
+
+        private void addStatistic(int numValues) {
+            size.addAndGet(numValues);
+            if (cached) added(numValues);
+        }
+
+        /**
+         * Drops the statistics, returning the number of values they held.
+         */
+        private long clearStatistics() {
+            long cleared = 0;
+
+            for (double[] _means : means.values()) cleared += _means.length;
+            for (double[] _comoments : comoments.values()) cleared += _comoments.length;
+
+            means.clear();
+            comoments.clear();
+            size.addAndGet(-cleared);
+            return cleared;
+        }
+
+        /**
+         * @return the partition of the rows made by splitting each cell of this one by
+         * the values of the given discrete column.
+         */
+        private Cells split(List<Integer> key, int v) {
+            int[] column = discreteData[v];
+            int dim = dims[v];
+
+            List<int[]> _rows = new ArrayList<>();
+            List<Integer> _parentCell = new ArrayList<>();
+            List<Boolean> _derived = new ArrayList<>();
+
+            for (int q = 0; q < rows.length; q++) {
+                int[] sizes = new int[dim];
+                int numMissing = 0;
+
+                for (int i : rows[q]) {
+                    int value = column[i];
+                    if (value == DiscreteVariable.MISSING_VALUE) numMissing++;
+                    else sizes[value]++;
+                }
+
+                int[][] parts = new int[dim][];
+                for (int value = 0; value < dim; value++) parts[value] = new int[sizes[value]];
+
+                int[] next = new int[dim];
+
+                for (int i : rows[q]) {
+                    int value = column[i];
+                    if (value != DiscreteVariable.MISSING_VALUE) parts[value][next[value]++] = i;
+                }
+
+                // The largest part is derived if all of the cell's rows are accounted for.
+                int largest = 0;
+
+                for (int value = 1; value < dim; value++) {
+                    if (sizes[value] > sizes[largest]) largest = value;
+                }
+
+                for (int value = 0; value < dim; value++) {
+                    if (sizes[value] == 0) continue;
+                    _rows.add(parts[value]);
+                    _parentCell.add(q);
+                    _derived.add(numMissing == 0 && value == largest);
+                }
+            }
+
+            int[] parentCell = new int[_rows.size()];
+            boolean[] derived = new boolean[_rows.size()];
+
+            for (int c = 0; c < parentCell.length; c++) {
+                parentCell[c] = _parentCell.get(c);
+                derived[c] = _derived.get(c);
+            }
+
+            return new Cells(key, _rows.toArray(new int[_rows.size()][]), parentCell, derived);
+        }
+    }
+
+    private static boolean isFinite(double d) {
+        return !(Double.isNaN(d) || Double.isInfinite(d));
+    }
+}
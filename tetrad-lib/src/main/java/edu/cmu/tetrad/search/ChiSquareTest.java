@@ -21,15 +21,10 @@
 
 package edu.cmu.tetrad.search;
 
-import edu.cmu.tetrad.data.CellTable;
-import edu.cmu.tetrad.data.DataSet;
-import edu.cmu.tetrad.data.DiscreteVariable;
-import edu.cmu.tetrad.util.CombinationIterator;
+import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.util.ProbUtils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Calculates marginal chi square test results for a discrete dataset.
@@ -54,6 +49,26 @@ public class ChiSquareTest {
      */
     private CellTable cellTable;
 
+    /**
+     * The columns of the data, counted directly by each calling thread.
+     */
+    private int[][] columns;
+
+    /**
+     * For a resampled data set, the multiplicity of each row of the columns; otherwise null.
+     */
+    private int[] weights = null;
+
+    /**
+     * Shared counts for the data, or null to count the data directly.
+     */
+    private AdTreeCounts adTree = null;
+
+    /**
+     * Bit-sliced data, counted in place of the columns if given.
+     */
+    private PackedIntDataBox packed = null;
+
     /**
      * The significance level of the test.
      */
@@ -85,121 +100,42 @@ public class ChiSquareTest {
         this.alpha = alpha;
         this.cellTable = new CellTable(null);
         this.getCellTable().setMissingValue(DiscreteVariable.MISSING_VALUE);
-    }
-
-    /**
-     * Calculates chi square for a conditional crosstabulation table for independence question 0 _||_ 1 | 2, 3, ...max
-     * by summing up chi square and degrees of freedom for each conditional table in turn, where rows or columns that
-     * consist entirely of zeros have been removed.
-     */
-    public synchronized ChiSquareTest.Result calcChiSquare(int[] testIndices) {
-
-        // Reset the cell table for the columns referred to in
-        // 'testIndices.' Do cell coefs for those columns.
-        this.getCellTable().addToTable(getDataSet(), testIndices);
-
-        // Indicator arrays to tell the cell table which margins
-        // to calculate. For x _||_ y | z1, z2, ..., we want to
-        // calculate the margin for x, the margin for y, and the
-        // margin for x and y. (These will be used later.)
-        int[] firstVar = new int[]{0};
-        int[] secondVar = new int[]{1};
-        int[] bothVars = new int[]{0, 1};
-
-        double xSquare = 0.0;
-        int df = 0;
-
-        int[] condDims = new int[testIndices.length - 2];
-        System.arraycopy(selectFromArray(getDims(), testIndices), 2, condDims, 0,
-                condDims.length);
-
-        int[] coords = new int[testIndices.length];
-        int numRows = this.getCellTable().getNumValues(0);
-        int numCols = this.getCellTable().getNumValues(1);
-
-        boolean[] attestedRows = new boolean[numRows];
-        boolean[] attestedCols = new boolean[numCols];
-
-        CombinationIterator combinationIterator =
-                new CombinationIterator(condDims);
-
-        while (combinationIterator.hasNext()) {
-            int[] combination = (int[]) combinationIterator.next();
-
-            System.arraycopy(combination, 0, coords, 2, combination.length);
-            Arrays.fill(attestedRows, true);
-            Arrays.fill(attestedCols, true);
-
-            long total = 0;// this.getCellTable().calcMargin(coords, bothVars);
-
-            double _xSquare = 0.0;
-
-            List<Double> e = new ArrayList<>();
-            List<Long> o = new ArrayList<>();
-
-            for (int i = 0; i < numRows; i++) {
-                for (int j = 0; j < numCols; j++) {
-                    coords[0] = i;
-                    coords[1] = j;
 
-                    long sumRow = this.getCellTable().calcMargin(coords, secondVar);
-                    long sumCol = this.getCellTable().calcMargin(coords, firstVar);
-                    long observed = (int) this.getCellTable().getValue(coords);
+        DataBox dataBox = dataSet instanceof BoxDataSet ? ((BoxDataSet) dataSet).getDataBox() : null;
 
-                    boolean skip = false;
-
-                    if (sumRow == 0) {
-                        attestedRows[i] = false;
-                        skip = true;
-                    }
-
-                    if (sumCol == 0) {
-                        attestedCols[j] = false;
-                        skip = true;
-                    }
-
-                    if (skip) {
-                        continue;
-                    }
-
-                    total += observed;
-
-                    e.add((double) sumCol * sumRow);
-                    o.add(observed);
-                }
-            }
-
-            for (int i = 0; i < o.size(); i++) {
-                double expected = e.get(i) / (double) total;
-                _xSquare += Math.pow(o.get(i) - expected, 2.0) / expected;
-            }
-
-            if (total == 0) {
-                continue;
-            }
-
-            int numAttestedRows = 0;
-            int numAttestedCols = 0;
+        // Count a resample from the underlying data, weighting rows by multiplicity.
+        if (dataBox instanceof ResampledDataBox
+                && (((ResampledDataBox) dataBox).getDataBox() instanceof VerticalIntDataBox
+                || ((ResampledDataBox) dataBox).getDataBox() instanceof PackedIntDataBox)) {
+            this.weights = ((ResampledDataBox) dataBox).getWeights();
+            dataBox = ((ResampledDataBox) dataBox).getDataBox();
+        }
 
-            for (boolean attestedRow : attestedRows) {
-                if (attestedRow) {
-                    numAttestedRows++;
-                }
-            }
+        if (dataBox instanceof PackedIntDataBox) {
+            this.packed = (PackedIntDataBox) dataBox;
+        } else if (dataBox instanceof VerticalIntDataBox) {
+            this.columns = ((VerticalIntDataBox) dataBox).getVariableVectors();
+        } else {
+            this.columns = new int[dataSet.getNumColumns()][dataSet.getNumRows()];
 
-            for (boolean attestedCol : attestedCols) {
-                if (attestedCol) {
-                    numAttestedCols++;
+            for (int j = 0; j < dataSet.getNumColumns(); j++) {
+                for (int i = 0; i < dataSet.getNumRows(); i++) {
+                    columns[j][i] = dataSet.getInt(i, j);
                 }
             }
-
-            int _df = (numAttestedRows - 1) * (numAttestedCols - 1);
-
-            if (_df > 0) {
-                xSquare += _xSquare;
-                df += _df;
-            }
         }
+    }
+
+    /**
+     * Calculates chi square for a conditional crosstabulation table for independence question 0 _||_ 1 | 2, 3, ...max
+     * by summing up chi square and degrees of freedom for each conditional table in turn, where rows or columns that
+     * consist entirely of zeros have been removed. Counts are made in buffers belonging to the calling thread, so
+     * tests may be run concurrently.
+     */
+    public ChiSquareTest.Result calcChiSquare(int[] testIndices) {
+        double[] sums = sumConditionalTables(testIndices);
+        double xSquare = sums[0];
+        int df = (int) sums[1];
 
         // If df == 0, return indep.
         // Actually if you don't know one way or the other, you should return dependent. jdramsey 12/22/2015
@@ -221,51 +157,35 @@ public class ChiSquareTest {
      */
     public boolean isDetermined(int[] testIndices, double p) {
 
-        // Reset the cell table for the columns referred to in
-        // 'testIndices.' Do cell coefs for those columns.
-        this.getCellTable().addToTable(getDataSet(), testIndices);
-
-        // Indicator arrays to tell the cell table which margins
-        // to calculate. For x _||_ y | z1, z2, ..., we want to
-        // calculate the margin for x, the margin for y, and the
-        // margin for x and y. (These will be used later.)
-        int[] firstVar = new int[]{0};
-
-        int[] condDims = new int[testIndices.length - 1];
-        System.arraycopy(selectFromArray(getDims(), testIndices), 1, condDims, 0,
-                condDims.length);
+        // Count the columns referred to in 'testIndices', the determined variable
+        // last, so that the cells of each conditional table are adjacent. Only
+        // the combinations of conditioning values that occur are visited.
+        int numValues = getDims()[testIndices[0]];
+        int[] vars = new int[testIndices.length];
+        System.arraycopy(testIndices, 1, vars, 0, testIndices.length - 1);
+        vars[testIndices.length - 1] = testIndices[0];
 
-        int[] coords = new int[testIndices.length];
-        int numValues = this.getCellTable().getNumValues(0);
+        ContingencyCounts counts = ContingencyCounts.local();
+        count(vars, counts);
 
-        CombinationIterator combinationIterator =
-                new CombinationIterator(condDims);
+        int numCells = counts.getNumCells();
+        long total = 0;
+        long max = 0;
 
-        while (combinationIterator.hasNext()) {
-            int[] combination = (int[]) combinationIterator.next();
-            System.arraycopy(combination, 0, coords, 1, combination.length);
+        for (int cell = 0; cell < numCells; cell++) {
+            total += counts.getCount(cell);
+            max = Math.max(max, counts.getCount(cell));
 
-            long total = this.getCellTable().calcMargin(coords, firstVar);
-
-            if (total == 0) {
+            if (cell < numCells - 1 && counts.getKey(cell + 1) / numValues == counts.getKey(cell) / numValues) {
                 continue;
             }
 
-            boolean dominates = false;
-
-            for (int i = 0; i < numValues; i++) {
-                coords[0] = i;
-
-                long numi = this.getCellTable().getValue(coords);
-
-                if ((double) numi / total >= p) {
-                    dominates = true;
-                }
-            }
-
-            if (!dominates) {
+            if ((double) max / total < p) {
                 return false;
             }
+
+            total = 0;
+            max = 0;
         }
 
         return true;
@@ -369,8 +289,133 @@ public class ChiSquareTest {
         this.alpha = alpha;
     }
 
+    /**
+     * Sets an AD tree count service for the data, which may be shared with other tests
+     * and scores, or null (the default) to count the data directly for each test. The
+     * tree pays off when many tests share conditioning sets, as in PC.
+     *
+     * @see AdTrees#getCountsTree(DataSet)
+     */
+    public void setAdTree(AdTreeCounts adTree) {
+        if (adTree != null && adTree.getNumColumns() != getDims().length) {
+            throw new IllegalArgumentException("The AD tree is for a different data set.");
+        }
+
+        this.adTree = adTree;
+    }
+
     //================================PRIVATE==============================//
 
+    /**
+     * Counts the given columns of the data, the last varying fastest in the keys.
+     */
+    private void count(int[] vars, ContingencyCounts counts) {
+        if (adTree != null) {
+            adTree.count(vars, counts);
+        } else if (packed != null) {
+            counts.count(packed, vars, weights);
+        } else {
+            int[][] tableColumns = new int[vars.length][];
+            int[] tableDims = new int[vars.length];
+
+            for (int v = 0; v < vars.length; v++) {
+                tableColumns[v] = columns[vars[v]];
+                tableDims[v] = getDims()[vars[v]];
+            }
+
+            counts.count(tableColumns, tableDims, weights);
+        }
+    }
+
+    /**
+     * Counts the columns referred to in 'testIndices', conditioning variables first, so that the cells of each
+     * conditional table are adjacent, and sums chi square and degrees of freedom over the conditional tables that
+     * occur. Margins for each table are accumulated in the same pass as its cells.
+     *
+     * @return {chi square, degrees of freedom}.
+     */
+    double[] sumConditionalTables(int[] testIndices) {
+        int numRows = getDims()[testIndices[0]];
+        int numCols = getDims()[testIndices[1]];
+        int numCond = testIndices.length - 2;
+
+        int[] vars = new int[testIndices.length];
+        System.arraycopy(testIndices, 2, vars, 0, numCond);
+        vars[numCond] = testIndices[0];
+        vars[numCond + 1] = testIndices[1];
+
+        ContingencyCounts counts = ContingencyCounts.local();
+        count(vars, counts);
+
+        int tableSize = numRows * numCols;
+        long[] table = new long[tableSize];
+        long[] sumRows = new long[numRows];
+        long[] sumCols = new long[numCols];
+
+        double xSquare = 0.0;
+        int df = 0;
+
+        int numCells = counts.getNumCells();
+        long total = 0;
+
+        for (int cell = 0; cell < numCells; cell++) {
+            long key = counts.getKey(cell);
+            int index = (int) (key % tableSize);
+            int observed = counts.getCount(cell);
+
+            table[index] += observed;
+            sumRows[index / numCols] += observed;
+            sumCols[index % numCols] += observed;
+            total += observed;
+
+            if (cell < numCells - 1 && counts.getKey(cell + 1) / tableSize == key / tableSize) {
+                continue;
+            }
+
+            // The table for this combination of conditioning values is complete.
+            double _xSquare = 0.0;
+            int numAttestedRows = 0;
+            int numAttestedCols = 0;
+
+            for (long sumCol : sumCols) {
+                if (sumCol > 0) {
+                    numAttestedCols++;
+                }
+            }
+
+            for (int i = 0; i < numRows; i++) {
+                if (sumRows[i] == 0) {
+                    continue;
+                }
+
+                numAttestedRows++;
+
+                for (int j = 0; j < numCols; j++) {
+                    if (sumCols[j] == 0) {
+                        continue;
+                    }
+
+                    double expected = (double) (sumCols[j] * sumRows[i]) / (double) total;
+                    _xSquare += Math.pow(table[i * numCols + j] - expected, 2.0) / expected;
+                }
+            }
+
+            int _df = (numAttestedRows - 1) * (numAttestedCols - 1);
+
+            if (_df > 0) {
+                xSquare += _xSquare;
+                df += _df;
+            }
+
+            Arrays.fill(table, 0);
+            Arrays.fill(sumRows, 0);
+            Arrays.fill(sumCols, 0);
+            total = 0;
+        }
+
+        return new double[]{xSquare, df};
+    }
+
     public int[] selectFromArray(int[] arr, int[] indices) {
         int[] retArr = new int[indices.length];
 
@@ -23,11 +23,14 @@ package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.StatUtils;
 import org.apache.commons.math3.distribution.NormalDistribution;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import static edu.cmu.tetrad.util.StatUtils.*;
 import static java.lang.Math.*;
@@ -50,6 +53,10 @@ import static java.lang.Math.pow;
  * Biometrika, 67(3), 581-590.
  * <p>
  * We use Nadaraya-Watson kernel regression, though we further restrict the sample size to nearby points.
+ * <p>
+ * Since searches ask about the same conditioning sets many times, the residuals of each variable regressed on
+ * each conditioning set, and the basis expansions of these residuals, are cached (least recently used first out),
+ * and the kernel regressions for the rows of the data are done in parallel.
  *
  * @author Joseph Ramsey
  */
@@ -68,7 +75,7 @@ public final class ConditionalCorrelationIndependence {
     /**
      * The ith array gives indices into the ith variables in sorted order.
      */
-    private final ArrayList<List<Integer>> sortedIndices;
+    private final int[][] sortedIndices;
 
     /**
      * The significance level of the independence tests.
@@ -83,7 +90,7 @@ public final class ConditionalCorrelationIndependence {
     /**
      * Looks up the index of a record in the the sorted order for each variable z.
      */
-    private final List<Map<Integer, Integer>> reverseLookup;
+    private final int[][] reverseLookup;
 
     /**
      * Depth 0 residuals for reuse.
@@ -141,6 +148,21 @@ public final class ConditionalCorrelationIndependence {
      */
     private int numDependenceSpotChecks = 10;
 
+    /**
+     * The most residual vectors (and basis expansions of them) kept in the caches.
+     */
+    private int cacheSize = 1000;
+
+    /**
+     * Residuals of variables regressed on conditioning sets, keyed by the variable and the (sorted) set.
+     */
+    private Map<List<Object>, double[]> residualsCache;
+
+    /**
+     * Standardized basis expansions of residuals, keyed as the residuals are.
+     */
+    private Map<List<Object>, double[][]> basisCache;
+
     //==================CONSTRUCTORS====================//
 
     /**
@@ -189,14 +211,17 @@ public final class ConditionalCorrelationIndependence {
 
         this.cutoff = getZForAlpha(alpha);
 
-        sortedIndices = new ArrayList<>();
+        sortedIndices = new int[data.length][];
 
-        for (double[] x : data) {
+        for (int z = 0; z < data.length; z++) {
+            double[] x = data[z];
             List<Integer> sorted = new ArrayList<>();
             for (int t = 0; t < x.length; t++) sorted.add(t);
 
             sorted.sort(Comparator.comparingDouble(o -> x[o]));
-            sortedIndices.add(sorted);
+
+            sortedIndices[z] = new int[x.length];
+            for (int t = 0; t < x.length; t++) sortedIndices[z][t] = sorted.get(t);
         }
 
         double[] means = new double[data.length];
@@ -215,17 +240,17 @@ public final class ConditionalCorrelationIndependence {
             }
         }
 
-        reverseLookup = new ArrayList<>();
+        reverseLookup = new int[data.length][];
 
         for (int z2 = 0; z2 < data.length; z2++) {
-            Map<Integer, Integer> m = new HashMap<>();
+            reverseLookup[z2] = new int[data[z2].length];
 
             for (int j = 0; j < data[z2].length; j++) {
-                m.put(sortedIndices.get(z2).get(j), j);
+                reverseLookup[z2][sortedIndices[z2][j]] = j;
             }
-
-            reverseLookup.add(m);
         }
+
+        clearCaches();
     }
 
     //=================PUBLIC METHODS====================//
@@ -237,7 +262,7 @@ public final class ConditionalCorrelationIndependence {
         double[] rx = residuals(x, z);
         double[] ry = residuals(y, z);
 
-        double score = independent(rx, ry);
+        double score = independent(basis(x, z, rx), basis(y, z, ry));
         this.score = score;
 
         // rx _||_ ry ?
@@ -301,59 +326,56 @@ public final class ConditionalCorrelationIndependence {
             return depth0Residuals[indices.get(x)];
         }
 
-        int N = data[0].length;
+        List<Object> key = key(x, z);
+        double[] residualsx = residualsCache.get(key);
+        if (residualsx != null) return residualsx;
 
-        int _x = indices.get(x);
+        final int N = data[0].length;
 
-        double[] residualsx = new double[N];
+        final int _x = indices.get(x);
 
-        double[] xdata = Arrays.copyOf(data[_x], data[_x].length);
+        final double[] _residualsx = new double[N];
 
-        double[] sumx = new double[N];
-
-        double[] totalWeightx = new double[N];
-
-        int[] _z = new int[z.size()];
+        final int[] _z = new int[z.size()];
 
         for (int m = 0; m < z.size(); m++) {
             _z[m] = indices.get(z.get(m));
         }
 
-        double h = getH(_z);
-
-        for (int i = 0; i < N; i++) {
-            Set<Integer> js = getCloseZs(data, _z, i, kernelRegressionSampleSize);
+        final double h = getH(_z);
 
-            for (int j : js) {
-                double xj = xdata[j];
-                double d = distance(data, _z, i, j);
+        class ResidualsTask extends RecursiveAction {
+            private final int from;
+            private final int to;
 
-                double k;
+            private ResidualsTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
 
-                if (getKernelMultiplier() == Kernel.Epinechnikov) {
-                    k = kernelEpinechnikov(d, h);
-                } else if (getKernelMultiplier() == Kernel.Gaussian) {
-                    k = kernelGaussian(d, h);
+            @Override
+            protected void compute() {
+                if (to - from <= 100) {
+                    for (int i = from; i < to; i++) {
+                        _residualsx[i] = residual(_x, _z, h, i);
+                    }
                 } else {
-                    throw new IllegalStateException("Unsupported kernel type: " + getKernelMultiplier());
+                    int mid = (from + to) / 2;
+                    invokeAll(new ResidualsTask(from, mid), new ResidualsTask(mid, to));
                 }
-
-                sumx[i] += k * xj;
-                totalWeightx[i] += k;
             }
         }
 
-        for (int i = 0; i < N; i++) {
-            if (totalWeightx[i] == 0) totalWeightx[i] = 1;
+        ResidualsTask task = new ResidualsTask(0, N);
 
-            residualsx[i] = xdata[i] - sumx[i] / totalWeightx[i];
-
-            if (Double.isNaN(residualsx[i])) {
-                residualsx[i] = 0;
-            }
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
         }
 
-        return residualsx;
+        residualsCache.put(key, _residualsx);
+        return _residualsx;
     }
 
     /**
@@ -365,6 +387,7 @@ public final class ConditionalCorrelationIndependence {
 
     public void setNumFunctions(int numFunctions) {
         this.numFunctions = numFunctions;
+        clearCaches();
     }
 
     public Kernel getKernelMultiplier() {
@@ -373,10 +396,12 @@ public final class ConditionalCorrelationIndependence {
 
     public void setKernelMultiplier(Kernel kernelMultiplier) {
         this.kernelMultiplier = kernelMultiplier;
+        clearCaches();
     }
 
     public void setBasis(Basis basis) {
         this.basis = basis;
+        clearCaches();
     }
 
     public double getWidth() {
@@ -385,6 +410,7 @@ public final class ConditionalCorrelationIndependence {
 
     public void setWidth(double width) {
         this.width = width;
+        clearCaches();
     }
 
     public double getPValue() {
@@ -414,6 +440,7 @@ public final class ConditionalCorrelationIndependence {
 
     public void setKernelRegressionSampleSize(int kernelRegressionSapleSize) {
         this.kernelRegressionSampleSize = kernelRegressionSapleSize;
+        clearCaches();
     }
 
     public void setEarlyReturn(boolean earlyReturn) {
@@ -424,8 +451,132 @@ public final class ConditionalCorrelationIndependence {
         this.numDependenceSpotChecks = numDependenceSpotChecks;
     }
 
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the most residual vectors (and basis expansions of them) to keep; each takes N doubles (N times the
+     * number of functions for an expansion). 0 turns caching off.
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) throw new IllegalArgumentException("Cache size must be >= 0: " + cacheSize);
+        this.cacheSize = cacheSize;
+        clearCaches();
+    }
+
+    /**
+     * Empties the caches of residuals and basis expansions.
+     */
+    public void clearCaches() {
+        this.residualsCache = makeCache(cacheSize);
+        this.basisCache = makeCache(cacheSize);
+    }
+
     //=====================PRIVATE METHODS====================//
 
+    // The Nadaraya-Watson residual of x at row i, regressing on the rows with nearby values of z.
+    private double residual(int _x, int[] _z, double h, int i) {
+        double[] xdata = data[_x];
+        double sumx = 0.0;
+        double totalWeightx = 0.0;
+
+        Set<Integer> js = getCloseZs(data, _z, i, kernelRegressionSampleSize);
+
+        for (int j : js) {
+            double xj = xdata[j];
+            double d = distance(data, _z, i, j);
+
+            double k;
+
+            if (getKernelMultiplier() == Kernel.Epinechnikov) {
+                k = kernelEpinechnikov(d, h);
+            } else if (getKernelMultiplier() == Kernel.Gaussian) {
+                k = kernelGaussian(d, h);
+            } else {
+                throw new IllegalStateException("Unsupported kernel type: " + getKernelMultiplier());
+            }
+
+            sumx += k * xj;
+            totalWeightx += k;
+        }
+
+        if (totalWeightx == 0) totalWeightx = 1;
+
+        double residual = xdata[i] - sumx / totalWeightx;
+
+        if (Double.isNaN(residual)) {
+            residual = 0;
+        }
+
+        return residual;
+    }
+
+    // The standardized basis functions of the residuals of x given z, rx, by function index - 1.
+    private double[][] basis(String x, List<String> z, double[] rx) {
+        List<Object> key = key(x, z);
+        double[][] basis = basisCache.get(key);
+        if (basis != null) return basis;
+
+        basis = basis(rx);
+        basisCache.put(key, basis);
+        return basis;
+    }
+
+    private double[][] basis(double[] x) {
+        double[][] basis = new double[getNumFunctions()][x.length];
+
+        for (int m = 1; m <= getNumFunctions(); m++) {
+            for (int i = 0; i < x.length; i++) {
+                basis[m - 1][i] = function(m, x[i]);
+            }
+
+            standardize(basis[m - 1]);
+        }
+
+        return basis;
+    }
+
+    private List<Object> key(String x, List<String> z) {
+        List<String> _z = new ArrayList<>(z);
+        Collections.sort(_z);
+        return Arrays.<Object>asList(x, _z);
+    }
+
+    private static <T> Map<List<Object>, T> makeCache(final int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<List<Object>, T>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, T> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * @return the largest Fisher Z score over pairs of basis functions of x and y, given as standardized
+     * basis expansions; with early return, the first that reaches the cutoff.
+     */
+    private double independent(double[][] fx, double[][] fy) {
+        double maxScore = Double.NEGATIVE_INFINITY;
+
+        for (double[] _x : fx) {
+            for (double[] _y : fy) {
+                final double score = abs(fisherZ(_x, _y));
+                if (Double.isInfinite(score) || Double.isNaN(score)) continue;
+
+                if (earlyReturn && score >= cutoff) {
+                    return score;
+                }
+
+                if (score > maxScore) {
+                    maxScore = score;
+                }
+            }
+        }
+
+        return maxScore;
+    }
+
     /**
      * @return true just in the case the x and y vectors are independent,
      * once undefined values have been removed. Left public so it can be
@@ -474,12 +625,13 @@ public final class ConditionalCorrelationIndependence {
     }
 
     private double nonparametricFisherZ(double[] _x, double[] _y) {
+        return fisherZ(standardize(_x), standardize(_y));
+    }
+
+    private double fisherZ(double[] __x, double[] __y) {
 
         // Testing the hypothesis that _x and _y are uncorrelated and assuming that 4th moments of _x and _y
         // are finite and that the sample is large.
-        double[] __x = standardize(_x);
-        double[] __y = standardize(_y);
-
         double r = covariance(__x, __y); // correlation
         int N = __x.length;
 
@@ -660,15 +812,15 @@ public final class ConditionalCorrelationIndependence {
 
         while (true) {
             for (int z1 : _z) {
-                int q = reverseLookup.get(z1).get(i);
+                int q = reverseLookup[z1][i];
 
                 if (q - radius >= 0 && q - radius < data[z1].length) {
-                    final int r2 = sortedIndices.get(z1).get(q - radius);
+                    final int r2 = sortedIndices[z1][q - radius];
                     js.add(r2);
                 }
 
                 if (q + radius >= 0 && q + radius < data[z1].length) {
-                    final int r2 = sortedIndices.get(z1).get(q + radius);
+                    final int r2 = sortedIndices[z1][q + radius];
                     js.add(r2);
                 }
 
@@ -0,0 +1,395 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.data.PackedIntDataBox;
+
+import java.util.Arrays;
+
+/**
+ * Counts the configurations of a set of discrete columns that actually occur in
+ * the data, without allocating a cell for every possible configuration. The values
+ * of each row are packed into a single long key in mixed radix, one column at a
+ * time, with the last column varying fastest. The keys are then grouped by counting
+ * into a dense array when the number of possible configurations is small, and into
+ * an open-addressed hash table otherwise. Bit-sliced data (PackedIntDataBox) with few
+ * possible configurations is instead counted by popcount over its bit planes.
+ * <p>
+ * Observed configurations are reported in increasing key order, so configurations
+ * agreeing on all but the last column are adjacent. For parents followed by a child,
+ * for example, the cells for each parent configuration form a run, and the parent
+ * configuration of a cell is its key divided by the number of child categories.
+ * <p>
+ * Instances hold reusable scratch buffers and are not thread safe; use local() to
+ * get the instance for the current thread. Results are valid until the next call
+ * to count() on the same instance.
+ */
+public final class ContingencyCounts {
+
+    /**
+     * Largest number of possible configurations counted in a dense array.
+     */
+    private static final int DENSE_LIMIT = 1 << 16;
+
+    /**
+     * Marks an empty slot in the hash table.
+     */
+    private static final long EMPTY = -1L;
+
+    /**
+     * Bit-sliced data is counted on the planes when the number of possible configurations
+     * times the bits per value is at most this times the number of columns. Selecting rows
+     * costs about one operation per bit plane per 64 rows for each configuration visited,
+     * where counting row by row costs about one per row per column.
+     */
+    private static final int BIT_SLICE_FACTOR = 128;
+
+    private static final ThreadLocal<ContingencyCounts> LOCAL = ThreadLocal.withInitial(ContingencyCounts::new);
+
+    // Scratch space, grown as needed and reused across calls.
+    private long[] rowKeys = new long[0];
+    private int[] dense = new int[0];
+    private long[] hashKeys = new long[0];
+    private int[] hashCounts = new int[0];
+    private int[] usedSlots = new int[0];
+    private int[] unpacked = new int[0];
+    private long[][] rowSets = new long[0][];
+
+    // The observed configurations, in increasing key order, with their counts.
+    private long[] keys = new long[0];
+    private int[] counts = new int[0];
+    private int numCells = 0;
+    private long total = 0;
+
+    private ContingencyCounts() {
+    }
+
+    /**
+     * @return the instance for the current thread.
+     */
+    public static ContingencyCounts local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Counts the configurations of the given columns. Rows with a missing value in
+     * any of the columns are skipped.
+     *
+     * @param columns The columns, all of the same length, with values in 0..dims[c] - 1
+     *                or DiscreteVariable.MISSING_VALUE.
+     * @param dims    The number of categories of each column.
+     * @param weights The multiplicity of each row, or null if each row counts once.
+     */
+    public void count(int[][] columns, int[] dims, int[] weights) {
+        if (columns.length == 0 || columns.length != dims.length) {
+            throw new IllegalArgumentException("Expecting at least one column, with a dimension for each.");
+        }
+
+        long numConfigurations = 1;
+
+        for (int dim : dims) {
+            if (numConfigurations > Long.MAX_VALUE / dim) {
+                throw new IllegalArgumentException("Too many configurations to count: the product of the " +
+                        "numbers of categories does not fit in a long.");
+            }
+
+            numConfigurations *= dim;
+        }
+
+        int n = columns[0].length;
+        clearRowKeys(n);
+
+        // Fold in the columns one at a time; rows with missing values are marked -1.
+        for (int c = 0; c < columns.length; c++) {
+            fold(columns[c], dims[c], n);
+        }
+
+        group(n, numConfigurations, weights);
+    }
+
+    /**
+     * Counts the configurations of the given columns of bit-sliced data, with the same
+     * result as counting the unpacked columns. Rows with a missing value in any of the
+     * columns are skipped.
+     *
+     * @param box     The data.
+     * @param cols    The columns of the box to count, in the order they are to be keyed.
+     * @param weights The multiplicity of each row, or null if each row counts once.
+     */
+    public void count(PackedIntDataBox box, int[] cols, int[] weights) {
+        if (cols.length == 0) {
+            throw new IllegalArgumentException("Expecting at least one column.");
+        }
+
+        long numConfigurations = 1;
+        int maxBits = 0;
+
+        for (int col : cols) {
+            int dim = box.getNumCategories(col);
+
+            if (numConfigurations > Long.MAX_VALUE / dim) {
+                throw new IllegalArgumentException("Too many configurations to count: the product of the " +
+                        "numbers of categories does not fit in a long.");
+            }
+
+            numConfigurations *= dim;
+            maxBits = Math.max(maxBits, box.getBitsPerValue(col));
+        }
+
+        if (weights == null && numConfigurations <= (long) BIT_SLICE_FACTOR * cols.length / (maxBits + 2)) {
+            countBitSlices(box, cols, numConfigurations);
+            return;
+        }
+
+        int n = box.numRows();
+        clearRowKeys(n);
+
+        if (unpacked.length < n) {
+            unpacked = new int[n];
+        }
+
+        for (int col : cols) {
+            box.unpack(col, unpacked);
+            fold(unpacked, box.getNumCategories(col), n);
+        }
+
+        group(n, numConfigurations, weights);
+    }
+
+    /**
+     * Counts configurations whose keys have already been packed--for instance, one
+     * key per cell of a partition of the rows, weighted by the cell's count.
+     *
+     * @param keys              The keys, each less than numConfigurations.
+     * @param weights           The multiplicity of each key, or null.
+     * @param n                 The number of keys to count.
+     * @param numConfigurations The number of possible configurations.
+     */
+    void countKeys(long[] keys, int[] weights, int n, long numConfigurations) {
+        if (rowKeys.length < n) {
+            rowKeys = new long[n];
+        }
+
+        System.arraycopy(keys, 0, rowKeys, 0, n);
+        group(n, numConfigurations, weights);
+    }
+
+    /**
+     * @return the number of distinct configurations observed.
+     */
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * @return the packed key of the given observed configuration.
+     */
+    public long getKey(int cell) {
+        return keys[cell];
+    }
+
+    /**
+     * @return the (weighted) count of the given observed configuration.
+     */
+    public int getCount(int cell) {
+        return counts[cell];
+    }
+
+    /**
+     * @return the (weighted) number of rows counted--that is, without missing values.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    private void clearRowKeys(int n) {
+        if (rowKeys.length < n) {
+            rowKeys = new long[n];
+        }
+
+        Arrays.fill(rowKeys, 0, n, 0L);
+    }
+
+    private void fold(int[] column, int dim, int n) {
+        for (int i = 0; i < n; i++) {
+            if (rowKeys[i] < 0) continue;
+            int value = column[i];
+            rowKeys[i] = value == DiscreteVariable.MISSING_VALUE ? -1 : rowKeys[i] * dim + value;
+        }
+    }
+
+    private void countBitSlices(PackedIntDataBox box, int[] cols, long numConfigurations) {
+        int numWords = box.getNumWords();
+
+        if (rowSets.length < cols.length + 1 || (rowSets.length > 0 && rowSets[0].length < numWords)) {
+            rowSets = new long[cols.length + 1][numWords];
+        }
+
+        System.arraycopy(box.allRows(), 0, rowSets[0], 0, numWords);
+
+        numCells = 0;
+        total = 0;
+        ensureCells((int) Math.min(numConfigurations, box.numRows()));
+
+        select(box, cols, 0, 0L, box.numRows());
+    }
+
+    /**
+     * Splits the rows selected at the given depth by the values of the next column, in
+     * increasing order, so that the configurations are visited in increasing key order.
+     * Values that select no rows are pruned.
+     */
+    private void select(PackedIntDataBox box, int[] cols, int depth, long key, int numSelected) {
+        int col = cols[depth];
+        int dim = box.getNumCategories(col);
+        int remaining = numSelected;
+
+        for (int value = 0; value < dim && remaining > 0; value++) {
+            int count = box.select(col, value, rowSets[depth], rowSets[depth + 1]);
+            if (count == 0) continue;
+            remaining -= count;
+
+            if (depth == cols.length - 1) {
+                keys[numCells] = key * dim + value;
+                counts[numCells++] = count;
+                total += count;
+            } else {
+                select(box, cols, depth + 1, key * dim + value, count);
+            }
+        }
+    }
+
+    private void group(int n, long numConfigurations, int[] weights) {
+        numCells = 0;
+        total = 0;
+
+        if (numConfigurations <= DENSE_LIMIT && numConfigurations <= 4L * n) {
+            countDense(n, (int) numConfigurations, weights);
+        } else {
+            countSparse(n, weights);
+        }
+    }
+
+    private void countDense(int n, int numConfigurations, int[] weights) {
+        if (dense.length < numConfigurations) {
+            dense = new int[numConfigurations];
+        }
+
+        for (int i = 0; i < n; i++) {
+            long key = rowKeys[i];
+            if (key < 0) continue;
+            int w = weights == null ? 1 : weights[i];
+            dense[(int) key] += w;
+            total += w;
+        }
+
+        ensureCells(Math.min(n, numConfigurations));
+
+        for (int key = 0; key < numConfigurations; key++) {
+            if (dense[key] != 0) {
+                keys[numCells] = key;
+                counts[numCells++] = dense[key];
+                dense[key] = 0;
+            }
+        }
+    }
+
+    private void countSparse(int n, int[] weights) {
+        int capacity = 2;
+
+        while (capacity < 2 * n) {
+            capacity <<= 1;
+        }
+
+        if (hashKeys.length < capacity) {
+            hashKeys = new long[capacity];
+            hashCounts = new int[capacity];
+            usedSlots = new int[capacity / 2];
+            Arrays.fill(hashKeys, EMPTY);
+        }
+
+        int mask = hashKeys.length - 1;
+        int numUsed = 0;
+
+        for (int i = 0; i < n; i++) {
+            long key = rowKeys[i];
+            if (key < 0) continue;
+            int w = weights == null ? 1 : weights[i];
+            if (w == 0) continue;
+
+            int slot = slot(key, mask);
+
+            if (hashKeys[slot] == EMPTY) {
+                hashKeys[slot] = key;
+                usedSlots[numUsed++] = slot;
+            }
+
+            hashCounts[slot] += w;
+            total += w;
+        }
+
+        ensureCells(numUsed);
+
+        for (int u = 0; u < numUsed; u++) {
+            keys[u] = hashKeys[usedSlots[u]];
+        }
+
+        Arrays.sort(keys, 0, numUsed);
+
+        for (int u = 0; u < numUsed; u++) {
+            counts[u] = hashCounts[slot(keys[u], mask)];
+        }
+
+        for (int u = 0; u < numUsed; u++) {
+            hashKeys[usedSlots[u]] = EMPTY;
+            hashCounts[usedSlots[u]] = 0;
+        }
+
+        numCells = numUsed;
+    }
+
+    /**
+     * @return the slot holding the given key, or the empty slot where it belongs.
+     */
+    private int slot(long key, int mask) {
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+        while (hashKeys[slot] != EMPTY && hashKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void ensureCells(int numCells) {
+        if (keys.length < numCells) {
+            keys = new long[numCells];
+            counts = new int[numCells];
+        }
+    }
+}
+
+
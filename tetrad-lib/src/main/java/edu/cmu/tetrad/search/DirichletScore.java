@@ -51,8 +51,8 @@ public class DirichletScore implements LocalDiscreteScore, Score {
 
             this.variables = dataSet.getVariables();
 
-            if (!(((BoxDataSet) dataSet).getDataBox() instanceof VerticalIntDataBox)) {
-                throw new IllegalArgumentException();
+            if (!(dataBox instanceof VerticalIntDataBox)) {
+                dataBox = new VerticalIntDataBox(dataBox);
             }
 
             VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
@@ -91,49 +91,29 @@ public class DirichletScore implements LocalDiscreteScore, Score {
         // Number of categories for node.
         int r = numCategories[node];
 
-        // Numbers of categories of parents.
-        int[] dims = new int[parents.length];
-
-        for (int p = 0; p < parents.length; p++) {
-            dims[p] = numCategories[parents[p]];
-        }
+        // The parent columns followed by the node's column, with their numbers of categories.
+        int[][] columns = new int[parents.length + 1][];
+        int[] dims = new int[parents.length + 1];
 
         // Number of parent states.
-        int q = 1;
+        double q = 1;
 
         for (int p = 0; p < parents.length; p++) {
+            columns[p] = data[parents[p]];
+            dims[p] = numCategories[parents[p]];
             q *= dims[p];
         }
 
-        // Conditional cell coefs of data for node given parents(node).
-        int n_jk[][] = new int[q][r];
-        int n_j[] = new int[q];
-
-        int[] parentValues = new int[parents.length];
-
-        int[][] myParents = new int[parents.length][];
-        for (int i = 0; i < parents.length; i++) {
-            myParents[i] = data[parents[i]];
-        }
-
-        int[] myChild = data[node];
-
-        for (int i = 0; i < sampleSize; i++) {
-            for (int p = 0; p < parents.length; p++) {
-                parentValues[p] = myParents[p][i];
-            }
-
-            int childValue = myChild[i];
-
-            if (childValue == -99) {
-                throw new IllegalStateException("Please remove or impute missing " +
-                        "values (record " + i + " column " + i + ")");
-            }
+        columns[parents.length] = data[node];
+        dims[parents.length] = r;
 
-            int rowIndex = getRowIndex(dims, parentValues);
+        // Conditional cell coefs of data for node given parents(node), for the
+        // parent states and cells that actually occur.
+        ContingencyCounts counts = ContingencyCounts.local();
+        counts.count(columns, dims, null);
 
-            n_jk[rowIndex][childValue]++;
-            n_j[rowIndex]++;
+        if (counts.getTotal() < sampleSize) {
+            throw new IllegalStateException("Please remove or impute missing values.");
         }
 
         //Finally, compute the score
@@ -141,33 +121,52 @@ public class DirichletScore implements LocalDiscreteScore, Score {
 
         final double cellPrior = getSamplePrior();
         final double rowPrior = r * getSamplePrior();
+        final double logCellPrior = Math.log(cellPrior);
 
-        for (int j = 0; j < q; j++) {
-            double rowSum = rowPrior + n_j[j];
-            int cellCount = 0;
-            double rowScore = 0;
-
-            for (int k = 0; k < r; k++) {
-                double alpha = cellPrior + n_jk[j][k];
-                double pk = (alpha) / rowSum;
-                if (Double.isInfinite(pk)) continue;
-                double _score = (alpha - 1) * Math.log(pk);
-                rowScore += _score;
-                cellCount++;
-            }
+        int numCells = counts.getNumCells();
+        int numRows = 0;
 
-            if (rowScore == 0) continue;
-            score += rowScore;
+        // For the cells of the current row, sum (alpha - 1) log(alpha) and (alpha - 1);
+        // the row score is then a - b log(rowSum).
+        double a = 0;
+        double b = 0;
+        int n_j = 0;
+        int k = 0;
 
-            score -= 2 * cellCount;
+        for (int cell = 0; cell < numCells; cell++) {
+            double alpha = cellPrior + counts.getCount(cell);
+            a += (alpha - 1) * Math.log(alpha);
+            b += alpha - 1;
+            n_j += counts.getCount(cell);
+            k++;
 
-//            score -= .5 * cellCount * Math.log(sampleSize);
-        }
+            if (cell == numCells - 1 || counts.getKey(cell + 1) / r != counts.getKey(cell) / r) {
 
+                // Cells of this row that do not occur.
+                a += (r - k) * (cellPrior - 1) * logCellPrior;
+                b += (r - k) * (cellPrior - 1);
 
-//        double h = Math.log(1.0 / r) * sampleSize;
+                double rowScore = a - b * Math.log(rowPrior + n_j);
 
-//        System.out.println("(1/r)^N = " + h + " score = " + score);
+                if (rowScore != 0) {
+                    score += rowScore;
+                    score -= 2 * r;
+                }
+
+                numRows++;
+                a = 0;
+                b = 0;
+                n_j = 0;
+                k = 0;
+            }
+        }
+
+        // Parent states that do not occur all have the same row score.
+        double emptyRowScore = r * (cellPrior - 1) * Math.log(cellPrior / rowPrior);
+
+        if (q > numRows && emptyRowScore != 0) {
+            score += (q - numRows) * (emptyRowScore - 2 * r);
+        }
 
         lastBumpThreshold = 0.01;//((r - 1) * q * FastMath.log(getStructurePrior()));
 
@@ -305,15 +304,6 @@ public class DirichletScore implements LocalDiscreteScore, Score {
         throw new UnsupportedOperationException();
     }
 
-    private static int getRowIndex(int[] dim, int[] values) {
-        int rowIndex = 0;
-        for (int i = 0; i < dim.length; i++) {
-            rowIndex *= dim[i];
-            rowIndex += values[i];
-        }
-        return rowIndex;
-    }
-
     public double getStructurePrior() {
         return structurePrior;
     }
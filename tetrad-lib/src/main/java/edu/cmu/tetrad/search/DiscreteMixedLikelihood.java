@@ -25,7 +25,6 @@ import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.correlation.Covariance;
 import org.apache.commons.math3.util.FastMath;
 
 import java.util.ArrayList;
@@ -63,15 +62,15 @@ public class DiscreteMixedLikelihood {
     // Continuous data only.
     private double[][] continuousData;
 
-    // The AD Tree used to count discrete cells.
-    private AdLeafTree adTree;
+    // Indices of the variables of the discretized data set.
+    private Map<Node, Integer> discreteHash;
+
+    // Cells of the discrete variables, with statistics for the continuous variables in each.
+    private CellStatistics cellStatistics;
 
     // Multiplier on degrees of freedom for the continuous portion of those degrees.
     private double penaltyDiscount = 1;
 
-    // "Cell" consisting of all rows.
-    private final ArrayList<Integer> all;
-
     // A constant.
     private static double LOG2PI = log(2.0 * Math.PI);
 
@@ -154,10 +153,22 @@ public class DiscreteMixedLikelihood {
         }
 
         this.dataSet = useErsatzVariables();
-        this.adTree = new AdLeafTree(this.dataSet);
 
-        all = new ArrayList<>();
-        for (int i = 0; i < dataSet.getNumRows(); i++) all.add(i);
+        discreteHash = new HashMap<>();
+        int[][] discreteData = new int[dataSet.getNumColumns()][];
+        int[] dims = new int[dataSet.getNumColumns()];
+
+        for (int j = 0; j < this.dataSet.getNumColumns(); j++) {
+            discreteHash.put(this.dataSet.getVariable(j), j);
+            discreteData[j] = new int[dataSet.getNumRows()];
+            dims[j] = ((DiscreteVariable) this.dataSet.getVariable(j)).getNumCategories();
+
+            for (int i = 0; i < dataSet.getNumRows(); i++) {
+                discreteData[j][i] = this.dataSet.getInt(i, j);
+            }
+        }
+
+        this.cellStatistics = new CellStatistics(discreteData, dims, continuousData, dataSet.getNumRows());
 
     }
 
@@ -276,12 +287,16 @@ public class DiscreteMixedLikelihood {
 
         double c1 = 0, c2 = 0;
 
-        List<List<Integer>> cells = adTree.getCellLeaves(A);
-        //List<List<Integer>> cells = partition(A);
+        int[] discreteCols = new int[A.size()];
+        for (int j = 0; j < A.size(); j++) discreteCols[j] = discreteHash.get(A.get(j));
+
+        // The cells and their statistics are cached, for the next time these discrete
+        // variables come up.
+        CellStatistics.Cells cells = cellStatistics.getCells(discreteCols);
+        CellStatistics.Cells all = cellStatistics.getCells(new int[0]);
 
-        for (List<Integer> cell : cells) {
-            int a = cell.size();
-            if (a == 0) continue;
+        for (int cell = 0; cell < cells.getNumCells(); cell++) {
+            int a = cells.getCellSize(cell);
 
             if (A.size() > 0) {
                 c1 += a * multinomialLikelihood(a, N);
@@ -292,10 +307,10 @@ public class DiscreteMixedLikelihood {
 
                     // Determinant will be zero if data are linearly dependent.
                     if (a > continuousCols.length + 5) {
-                        TetradMatrix cov = cov(getSubsample(continuousCols, cell));
+                        TetradMatrix cov = cells.getCovariance(cell, continuousCols);
                         c2 += a * gaussianLikelihood(k, cov);
                     } else {
-                        TetradMatrix cov = cov(getSubsample(continuousCols, all));
+                        TetradMatrix cov = all.getCovariance(0, continuousCols);
                         c2 += a * gaussianLikelihood(k, cov);
                     }
                 } catch (Exception e) {
@@ -332,23 +347,6 @@ public class DiscreteMixedLikelihood {
         return 2.0 * sum;
     }
 
-    private TetradMatrix cov(TetradMatrix x) {
-        return new TetradMatrix(new Covariance(x.getRealMatrix(), true).getCovarianceMatrix());
-    }
-
-    // Subsample of the continuous mixedVariables conditioning on the given cell.
-    private TetradMatrix getSubsample(int[] continuousCols, List<Integer> cell) {
-        TetradMatrix subset = new TetradMatrix(cell.size(), continuousCols.length);
-
-        for (int i = 0; i < cell.size(); i++) {
-            for (int j = 0; j < continuousCols.length; j++) {
-                subset.set(i, j, continuousData[continuousCols[j]][cell.get(i)]);
-            }
-        }
-
-        return subset;
-    }
-
     // Degrees of freedom for a discrete distribution is the product of the number of categories for each
     // variable.
     private int f(List<DiscreteVariable> A) {
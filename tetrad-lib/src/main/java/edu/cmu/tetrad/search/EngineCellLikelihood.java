@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines,    //
+// Joseph Ramsey, and Clark Glymour.                                         //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.regression.LogisticRegressionEngine;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.util.*;
+
+/**
+ * Fits the logistic regressions of a discrete child on its continuous parents within
+ * one cell of its discrete parents with a LogisticRegressionEngine, for MNLRLikelihood
+ * and MVPLikelihood. The fits are keyed by the child, its parents and the cell, and
+ * start from those for the same cell with one continuous parent fewer, if these have
+ * been done.
+ */
+final class EngineCellLikelihood {
+
+    private EngineCellLikelihood() {
+    }
+
+    /**
+     * The log likelihood of the child's values in the given cell, by one-against-the-rest
+     * logistic regressions.
+     *
+     * @param childData      The child's column of the discrete data.
+     * @param numCategories  The number of categories of the child.
+     * @param continuousCols The columns of the continuous parents.
+     * @param cell           The rows of the cell.
+     * @param subset         The design for the rows of the cell: degree powers of each
+     *                       continuous parent (those for power d + 1 in the d'th block)
+     *                       followed by a column of ones.
+     * @see LogisticRegressionEngine#oneVsRestLogLikelihood
+     */
+    static double logLikelihood(LogisticRegressionEngine engine, int[] childData, int numCategories,
+                                int childIndex, List<DiscreteVariable> discreteParents, int[] continuousCols,
+                                int cellIndex, List<Integer> cell, TetradMatrix subset, int degree) {
+        int r = cell.size();
+        int p = continuousCols.length;
+        long[] ids = new long[p * degree + 1];
+
+        for (int j = 0; j < p; j++) {
+            for (int d = 0; d < degree; d++) {
+                ids[p * d + j] = ((long) continuousCols[j] << 32) | d;
+            }
+        }
+
+        ids[p * degree] = LogisticRegressionEngine.INTERCEPT;
+
+        int[] y = new int[r];
+        for (int i = 0; i < r; i++) y[i] = childData[cell.get(i)];
+
+        List<Object> nestedKeys = new ArrayList<>();
+
+        for (int col : continuousCols) {
+            nestedKeys.add(key(childIndex, discreteParents, continuousCols, col, cellIndex));
+        }
+
+        return engine.oneVsRestLogLikelihood(key(childIndex, discreteParents, continuousCols, -1, cellIndex),
+                nestedKeys, subset.transpose().toArray(), ids, y, numCategories, r);
+    }
+
+    private static List<Object> key(int childIndex, List<DiscreteVariable> discreteParents, int[] continuousCols,
+                                    int without, int cellIndex) {
+        List<String> discrete = new ArrayList<>();
+        for (DiscreteVariable parent : discreteParents) discrete.add(parent.getName());
+
+        Set<Integer> continuous = new HashSet<>();
+        for (int col : continuousCols) continuous.add(col);
+        continuous.remove(without);
+
+        return Arrays.asList(childIndex, discrete, continuous, cellIndex);
+    }
+}
@@ -21,6 +21,7 @@
 
 package edu.cmu.tetrad.search;
 
+import edu.cmu.tetrad.data.CovarianceMatrixTiled;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.graph.*;
@@ -119,6 +120,12 @@ public class FasStable implements IFas {
 
     private PrintStream out = System.out;
 
+    /**
+     * If the test is backed by a tiled covariance matrix, the matrix, so that tiles for a node's
+     * neighborhood can be prefetched before that node's tests are done; otherwise null.
+     */
+    private CovarianceMatrixTiled tiles = null;
+
     //==========================CONSTRUCTORS=============================//
 
     /**
@@ -153,6 +160,7 @@ public class FasStable implements IFas {
 
         sepset = new SepsetMap();
         sepset.setReturnEmptyIfNotSet(true);
+        tiles = tiledCovariances(test);
 
         int _depth = depth;
 
@@ -204,6 +212,7 @@ public class FasStable implements IFas {
         graph.removeEdges(graph.getEdges());
 
         sepset = new SepsetMap();
+        tiles = tiledCovariances(test);
 
         int _depth = depth;
 
@@ -385,6 +394,12 @@ public class FasStable implements IFas {
 
             List<Node> adjx = new ArrayList<>(adjacenciesCopy.get(x));
 
+            if (tiles != null && adjx.size() >= depth) {
+                List<Node> neighborhood = new ArrayList<>(adjx);
+                neighborhood.add(x);
+                tiles.prefetch(neighborhood);
+            }
+
             EDGE:
             for (Node y : adjx) {
                 List<Node> _adjx = new ArrayList<>(adjx);
@@ -462,6 +477,14 @@ public class FasStable implements IFas {
         return !knowledge.isForbidden(z, x) && !knowledge.isRequired(x, z);
     }
 
+    private CovarianceMatrixTiled tiledCovariances(IndependenceTest test) {
+        if (test instanceof IndTestFisherZ && test.getCov() instanceof CovarianceMatrixTiled) {
+            return (CovarianceMatrixTiled) test.getCov();
+        }
+
+        return null;
+    }
+
     public int getNumIndependenceTests() {
         return numIndependenceTests;
     }
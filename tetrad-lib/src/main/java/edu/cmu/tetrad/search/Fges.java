@@ -181,6 +181,10 @@ public final class Fges implements GraphSearch, GraphScorer {
 
     final int maxThreads = 10 * ForkJoinPoolInstance.getInstance().getPool().getParallelism();
 
+    // If the score is backed by a tiled covariance matrix, the matrix, so that the tiles for a node's
+    // neighborhood can be prefetched before its arrows are scored; otherwise null.
+    private CovarianceMatrixTiled tiles = null;
+
     //===========================CONSTRUCTORS=============================//
     /**
      * Construct a Score and pass it in here. The totalScore should return a
@@ -536,6 +540,12 @@ public final class Fges implements GraphSearch, GraphScorer {
         buildIndexing(totalScore.getVariables());
 
         this.maxDegree = score.getMaxDegree();
+
+        if (score instanceof SemBicScore && ((SemBicScore) score).getCovariances() instanceof CovarianceMatrixTiled) {
+            this.tiles = (CovarianceMatrixTiled) ((SemBicScore) score).getCovariances();
+        } else {
+            this.tiles = null;
+        }
     }
 
     final int[] count = new int[1];
@@ -1219,6 +1229,15 @@ public final class Fges implements GraphSearch, GraphScorer {
 
         List<Node> TNeighbors = getTNeighbors(a, b);
 
+        if (tiles != null) {
+            Set<Node> neighborhood = new HashSet<>(graph.getParents(b));
+            neighborhood.addAll(naYX);
+            neighborhood.addAll(TNeighbors);
+            neighborhood.add(a);
+            neighborhood.add(b);
+            tiles.prefetch(neighborhood);
+        }
+
         Set<Set<Node>> previousCliques = new HashSet<>();
         previousCliques.add(new HashSet<Node>());
         Set<Set<Node>> newCliques = new HashSet<>();
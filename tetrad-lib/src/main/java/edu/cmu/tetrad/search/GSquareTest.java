@@ -22,12 +22,8 @@
 package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.DataSet;
-import edu.cmu.tetrad.util.CombinationIterator;
 import edu.cmu.tetrad.util.ProbUtils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * Performs conditional independence tests of discrete data using the G Square method. Degrees of freedom are calculated
@@ -82,116 +78,13 @@ public final class GSquareTest extends ChiSquareTest {
     /**
      * Calculates g square for a conditional crosstabulation table for independence question 0 _||_ 1 | 2, 3, ...max by
      * summing up g square and degrees of freedom for each conditional table in turn, where rows or columns that consist
-     * entirely of zeros have been removed.
+     * entirely of zeros have been removed. Only the combinations of conditioning values that occur in the data are
+     * visited, so the cost does not grow with the number of possible combinations.
      */
-    public synchronized GSquareTest.Result calcGSquare(int[] testIndices) {
-
-        // Reset the cell table for the columns referred to in
-        // 'testIndices.' Do cell coefs for those columns.
-        getCellTable().addToTable(getDataSet(), testIndices);
-
-        // Indicator arrays to tell the cell table which margins
-        // to calculate. For x _||_ y | z1, z2, ..., we want to
-        // calculate the margin for x, the margin for y, and the
-        // margin for x and y. (These will be used later.)
-        int[] firstVar = new int[]{0};
-        int[] secondVar = new int[]{1};
-        int[] bothVars = new int[]{0, 1};
-
-        double g2 = 0.0;
-        int df = 0;
-
-        int[] condDims = new int[testIndices.length - 2];
-        System.arraycopy(selectFromArray(getDims(), testIndices), 2, condDims, 0,
-                condDims.length);
-
-        int[] coords = new int[testIndices.length];
-        int numRows = this.getCellTable().getNumValues(0);
-        int numCols = this.getCellTable().getNumValues(1);
-
-        boolean[] attestedRows = new boolean[numRows];
-        boolean[] attestedCols = new boolean[numCols];
-
-        CombinationIterator combinationIterator =
-                new CombinationIterator(condDims);
-
-        while (combinationIterator.hasNext()) {
-            int[] combination = (int[]) combinationIterator.next();
-
-            System.arraycopy(combination, 0, coords, 2, combination.length);
-            Arrays.fill(attestedRows, true);
-            Arrays.fill(attestedCols, true);
-
-            long total = 0;// this.getCellTable().calcMargin(coords, bothVars);
-
-            double _gSquare = 0.0;
-
-            List<Double> e = new ArrayList<>();
-            List<Long> o = new ArrayList<>();
-
-            for (int i = 0; i < numRows; i++) {
-                for (int j = 0; j < numCols; j++) {
-                    coords[0] = i;
-                    coords[1] = j;
-
-                    long sumRow = this.getCellTable().calcMargin(coords, secondVar);
-                    long sumCol = this.getCellTable().calcMargin(coords, firstVar);
-                    long observed = (int) this.getCellTable().getValue(coords);
-
-                    boolean skip = false;
-
-                    if (sumRow == 0) {
-                        attestedRows[i] = false;
-                        skip = true;
-                    }
-
-                    if (sumCol == 0) {
-                        attestedCols[j] = false;
-                        skip = true;
-                    }
-
-                    if (skip) {
-                        continue;
-                    }
-
-                    total += observed;
-
-                    e.add((double) sumCol * sumRow);
-                    o.add(observed);
-                }
-            }
-
-            for (int i = 0; i < o.size(); i++) {
-                double expected = e.get(i) / (double) total;
-                _gSquare += Math.pow(o.get(i) - expected, 2.0) / expected;
-            }
-
-            if (total == 0) {
-                continue;
-            }
-
-            int numAttestedRows = 0;
-            int numAttestedCols = 0;
-
-            for (boolean attestedRow : attestedRows) {
-                if (attestedRow) {
-                    numAttestedRows++;
-                }
-            }
-
-            for (boolean attestedCol : attestedCols) {
-                if (attestedCol) {
-                    numAttestedCols++;
-                }
-            }
-
-            int _df = (numAttestedRows - 1) * (numAttestedCols - 1);
-
-            if (_df > 0) {
-                g2 += _gSquare;
-                df += _df;
-            }
-        }
+    public GSquareTest.Result calcGSquare(int[] testIndices) {
+        double[] sums = sumConditionalTables(testIndices);
+        double g2 = sums[0];
+        int df = (int) sums[1];
 
         // If df == 0, return indep.
         if (df == 0) {
@@ -237,7 +237,9 @@ public final class IndTestChiSquare implements IndependenceTest {
 //        }
 
         if (facts != null) {
-            this.facts.add(new IndependenceFact(x, y, z));
+            synchronized (facts) {
+                this.facts.add(new IndependenceFact(x, y, z));
+            }
         }
 
         return result.isIndep();
@@ -330,6 +332,16 @@ public final class IndTestChiSquare implements IndependenceTest {
         this.chiSquareTest.setAlpha(alpha);
     }
 
+    /**
+     * Sets an AD tree count service for the data, which may be shared with other tests
+     * and scores, or null (the default) to count the data directly for each test.
+     *
+     * @see AdTrees#getCountsTree(DataSet)
+     */
+    public void setAdTree(AdTreeCounts adTree) {
+        this.chiSquareTest.setAdTree(adTree);
+    }
+
     /**
      * @return the list of variables over which this independence checker is capable of determinine independence
      * relations-- that is, all the variables in the given graph or the given data set.
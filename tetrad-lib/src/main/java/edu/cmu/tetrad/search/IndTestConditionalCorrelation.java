@@ -376,6 +376,13 @@ public final class IndTestConditionalCorrelation implements IndependenceTest, Sc
     public void setNumDependenceSpotChecks(int numDependenceSpotChecks) {
         cci.setNumDependenceSpotChecks(numDependenceSpotChecks);
     }
+
+    /**
+     * Sets the number of residual vectors (and their basis expansions) to cache; 0 turns caching off.
+     */
+    public void setCacheSize(int cacheSize) {
+        cci.setCacheSize(cacheSize);
+    }
 }
 
 
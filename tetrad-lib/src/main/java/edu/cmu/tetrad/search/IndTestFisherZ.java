@@ -106,7 +106,12 @@ public final class IndTestFisherZ implements IndependenceTest {
             throw new IllegalArgumentException("Alpha mut be in [0, 1]");
         }
 
-        this.covMatrix = new CovarianceMatrixOnTheFly(dataSet);
+        if (DataUtils.containsMissingValue(dataSet)) {
+            this.covMatrix = new CovarianceMatrixPairwise(dataSet);
+        } else {
+            this.covMatrix = new CovarianceMatrixOnTheFly(dataSet);
+        }
+
         List<Node> nodes = covMatrix.getVariables();
 
         this.variables = Collections.unmodifiableList(nodes);
@@ -184,7 +189,7 @@ public final class IndTestFisherZ implements IndependenceTest {
      * @throws RuntimeException if a matrix singularity is encountered.
      */
     public boolean isIndependent(Node x, Node y, List<Node> z) {
-        int n = sampleSize();
+        int n = sampleSize(x, y, z);
         double r;
 
         try {
@@ -345,6 +350,20 @@ public final class IndTestFisherZ implements IndependenceTest {
         return covMatrix().getSampleSize();
     }
 
+    // With pairwise deletion of missing values, the sample size is the smallest number
+    // of rows used for any of the covariances among x, y and z.
+    private int sampleSize(Node x, Node y, List<Node> z) {
+        if (!(covMatrix instanceof CovarianceMatrixPairwise)) {
+            return sampleSize();
+        }
+
+        int[] indices = new int[z.size() + 2];
+        indices[0] = indexMap.get(x);
+        indices[1] = indexMap.get(y);
+        for (int i = 0; i < z.size(); i++) indices[i + 2] = indexMap.get(z.get(i));
+        return ((CovarianceMatrixPairwise) covMatrix).getSampleSize(indices);
+    }
+
     private ICovarianceMatrix covMatrix() {
         return covMatrix;
     }
@@ -23,9 +23,10 @@ package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.CovarianceMatrix;
 import edu.cmu.tetrad.data.DataSet;
-import edu.cmu.tetrad.data.DataUtils;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.ResamplingEngine;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
 
@@ -54,6 +55,9 @@ public class IndTestFisherZBootstrap implements IndependenceTest {
     private IndependenceTest[] tests;
     private boolean verbose = false;
 
+    // Draws the bootstrap samples and polls their tests, in parallel.
+    private ResamplingEngine resampling;
+
     public IndTestFisherZBootstrap(DataSet dataSet, double alpha, int numBootstrapSamples, int bootstrapSampleSize) {
         if (!(dataSet.isContinuous())) {
             throw new IllegalArgumentException("Data set must be continuous.");
@@ -70,16 +74,20 @@ public class IndTestFisherZBootstrap implements IndependenceTest {
         setAlpha(alpha);
 
         this.numBootstrapSamples = numBootstrapSamples;
-        TetradMatrix[] bootstrapSamples = new TetradMatrix[numBootstrapSamples];
         this.tests = new IndependenceTest[numBootstrapSamples];
+        this.resampling = new ResamplingEngine(RandomUtil.getInstance().nextLong());
 
-        for (int i = 0; i < numBootstrapSamples; i++) {
-            TetradMatrix fullData = dataSet.getDoubleData();
-            bootstrapSamples[i] = DataUtils.getBootstrapSample(fullData, bootstrapSampleSize);
-            tests[i] = new IndTestFisherZ(bootstrapSamples[i], dataSet.getVariables(), alpha);
-
-        }
+        // Each sample is drawn from its own stream, so the samples don't depend on the order they're drawn in.
+        final TetradMatrix fullData = dataSet.getDoubleData();
+        final int n = fullData.rows();
+        final int[] cols = new int[fullData.columns()];
+        for (int j = 0; j < cols.length; j++) cols[j] = j;
 
+        resampling.forEach(0, numBootstrapSamples, (index, random) -> {
+            int[] rows = new int[bootstrapSampleSize];
+            for (int i = 0; i < rows.length; i++) rows[i] = random.nextInt(n);
+            tests[index] = new IndTestFisherZ(fullData.getSelection(rows, cols), dataSet.getVariables(), alpha);
+        });
     }
 
     public IndependenceTest indTestSubset(List<Node> vars) {
@@ -87,16 +95,13 @@ public class IndTestFisherZBootstrap implements IndependenceTest {
     }
 
     public boolean isIndependent(Node x, Node y, List<Node> z) {
-        int[] independentGuys = new int[numBootstrapSamples];
 
-        for (int i = 0; i < numBootstrapSamples; i++) {
-            boolean independent = tests[i].isIndependent(x, y, z);
-            independentGuys[i] = independent ? 1 : 0;
-        }
+        // The fraction of the bootstrap samples judging independence, in parallel. With early stopping, polling
+        // stops once a majority either way is clear.
+        double fraction = resampling.pValue(0, numBootstrapSamples, 0.5,
+                (index, random) -> tests[index].isIndependent(x, y, z));
 
-        int sum = 0;
-        for (int i = 0; i < numBootstrapSamples; i++) sum += independentGuys[i];
-        boolean independent = sum > numBootstrapSamples / 2;
+        boolean independent = fraction > 0.5;
 
         if (verbose) {
             if (independent) {
@@ -209,6 +214,19 @@ public class IndTestFisherZBootstrap implements IndependenceTest {
         return -(getPValue() - getAlpha());
     }
 
+    public ResamplingEngine getResamplingEngine() {
+        return resampling;
+    }
+
+    /**
+     * Sets the engine used to poll the bootstrap samples, for instance to turn on early stopping. The samples
+     * themselves are drawn when the test is constructed.
+     */
+    public void setResamplingEngine(ResamplingEngine resampling) {
+        if (resampling == null) throw new NullPointerException("Resampling engine is null.");
+        this.resampling = resampling;
+    }
+
     public boolean isVerbose() {
         return verbose;
     }
@@ -27,6 +27,7 @@ import edu.cmu.tetrad.data.DataUtils;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.ResamplingEngine;
 import edu.cmu.tetrad.util.StatUtils;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
@@ -54,6 +55,9 @@ public final class IndTestFisherZPercentIndependent implements IndependenceTest
     private final ArrayList<RecursivePartialCorrelation> recursivePartialCorrelation;
     private boolean verbose = false;
 
+    // Tests the data sets in parallel.
+    private final ResamplingEngine resampling = new ResamplingEngine(0L);
+
     //==========================CONSTRUCTORS=============================//
 
     public IndTestFisherZPercentIndependent(List<DataSet> dataSets, double alpha) {
@@ -104,10 +108,10 @@ public final class IndTestFisherZPercentIndependent implements IndependenceTest
             all[i + 2] = variablesMap.get(z.get(i));
         }
 
-        int sampleSize = data.get(0).rows();
-        List<Double> pValues = new ArrayList<>();
+        final int sampleSize = data.get(0).rows();
+        final double[] _pValues = new double[ncov.size()];
 
-        for (int m = 0; m < ncov.size(); m++) {
+        resampling.forEach(0, ncov.size(), (m, random) -> {
             TetradMatrix _ncov = ncov.get(m).getSelection(all, all);
             TetradMatrix inv = _ncov.inverse();
             double r = -inv.get(0, 1) / sqrt(inv.get(0, 0) * inv.get(1, 1));
@@ -121,8 +125,11 @@ public final class IndTestFisherZPercentIndependent implements IndependenceTest
                 pValue = 2.0 * (1.0 - RandomUtil.getInstance().normalCdf(0, 1, abs(fisherZ)));
             }
 
-            pValues.add(pValue);
-        }
+            _pValues[m] = pValue;
+        });
+
+        List<Double> pValues = new ArrayList<>();
+        for (double pValue : _pValues) pValues.add(pValue);
 
         double _cutoff = alpha;
 
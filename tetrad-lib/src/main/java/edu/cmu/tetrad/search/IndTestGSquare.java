@@ -260,6 +260,16 @@ public final class IndTestGSquare implements IndependenceTest {
         this.gSquareTest.setAlpha(alpha);
     }
 
+    /**
+     * Sets an AD tree count service for the data, which may be shared with other tests
+     * and scores, or null (the default) to count the data directly for each test.
+     *
+     * @see AdTrees#getCountsTree(DataSet)
+     */
+    public void setAdTree(AdTreeCounts adTree) {
+        this.gSquareTest.setAdTree(adTree);
+    }
+
     /**
      * Gets the getModel significance level.
      *
@@ -29,9 +29,12 @@ import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.search.kernel.Kernel;
 import edu.cmu.tetrad.search.kernel.KernelGaussian;
 import edu.cmu.tetrad.search.kernel.KernelUtils;
+import edu.cmu.tetrad.search.kernel.LowRankKernelApproximation;
 import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
+import edu.pitt.csb.mgm.EigenDecomposition;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -100,6 +103,11 @@ public final class IndTestHsic implements IndependenceTest {
     private double useIncompleteCholesky = 1e-18;
     private boolean verbose = false;
 
+    /**
+     * If not null, low-rank features replace the Gram matrices.
+     */
+    private LowRankKernelApproximation lowRank = null;
+
     //==========================CONSTRUCTORS=============================//
 
     /**
@@ -167,6 +175,10 @@ public final class IndTestHsic implements IndependenceTest {
      * @return true iff x _||_ y | z.
      */
     public boolean isIndependent(Node y, Node x, List<Node> z) {
+        if (lowRank != null) {
+            this.pValue = lowRankPValue(y, x, z);
+            return judge(x, y, z);
+        }
 
         int m = sampleSize();
 
@@ -315,6 +327,11 @@ public final class IndTestHsic implements IndependenceTest {
         evalCdf /= (double) this.perms;
         this.pValue = 1.0 - evalCdf;
 
+        return judge(x, y, z);
+    }
+
+    private boolean judge(Node x, Node y, List<Node> z) {
+
         // reject if pvalue <= alpha
         if (this.pValue <= this.alpha) {
             TetradLogger.getInstance().log("dependencies", SearchLogUtils
@@ -328,6 +345,188 @@ public final class IndTestHsic implements IndependenceTest {
         return true;
     }
 
+    /**
+     * The permutation p value of the HSIC of y and x given z, with low-rank features F for the centered Gram
+     * matrices, computing the traces of products of Gram matrices from products of the (small) matrices F'F.
+     * Rows are shuffled by permuting the rows of the features of y (and z), so that no Gram matrix or
+     * feature is recomputed for a permutation. For conditional tests, rows are shuffled within groups of
+     * three neighboring along the leading principal direction of the features of z, rather than within k-means
+     * clusters, whose cost is quadratic in the sample size.
+     */
+    private double lowRankPValue(Node y, Node x, List<Node> z) {
+        int m = sampleSize();
+
+        double[][] fy = features(Collections.singletonList(y));
+        double[][] fx = features(Collections.singletonList(x));
+
+        double[] nullapprox = new double[this.perms];
+        int[] rows = new int[m];
+        for (int i = 0; i < m; i++) rows[i] = i;
+
+        if (z.isEmpty()) {
+            this.hsic = squaredNorm(crossProduct(fy, rows, fx)) / Math.pow(m - 1, 2);
+
+            for (int i = 0; i < this.perms; i++) {
+                shuffle(rows, 0, m);
+                nullapprox[i] = squaredNorm(crossProduct(fy, rows, fx)) / Math.pow(m - 1, 2);
+            }
+        } else {
+            double[][] fz = features(z);
+            int kz = fz[0].length;
+
+            // Kz (Kz + regularizer I)^-2 Kz = Fz M Fz', M = U diag(s / (s + regularizer)^2) U', Fz'Fz = U diag(s) U'.
+            double[][] ztz = crossProduct(fz, rows, fz);
+            EigenDecomposition ed = new EigenDecomposition(new TetradMatrix(ztz).getRealMatrix());
+            double[][] M = new double[kz][kz];
+            int top = 0;
+
+            for (int t = 0; t < kz; t++) {
+                double s = Math.max(ed.getRealEigenvalue(t), 0.0);
+                double[] u = ed.getEigenvector(t).toArray();
+                double d = s / Math.pow(s + this.regularizer, 2);
+
+                for (int a = 0; a < kz; a++) {
+                    for (int b = 0; b < kz; b++) {
+                        M[a][b] += u[a] * d * u[b];
+                    }
+                }
+
+                if (ed.getRealEigenvalue(t) > ed.getRealEigenvalue(top)) top = t;
+            }
+
+            // Bz = m (m - 1) / sum_{i != j} Kz_ij^2.
+            double offDiagonal = squaredNorm(ztz);
+
+            for (double[] fzi : fz) {
+                double d = 0.0;
+                for (double v : fzi) d += v * v;
+                offDiagonal -= d * d;
+            }
+
+            double Bz = (m * (m - 1)) / offDiagonal;
+
+            // Y and Z are permuted together, so Fy'Fz is the same for every permutation.
+            double[][] ytz = crossProduct(fy, rows, fz);
+            this.hsic = conditionalHsic(fx, fy, fz, rows, ytz, M) * Bz / Math.pow(m - 1, 2);
+
+            double[] leading = ed.getEigenvector(top).toArray();
+            final double[] scores = new double[m];
+
+            for (int i = 0; i < m; i++) {
+                for (int a = 0; a < kz; a++) scores[i] += fz[i][a] * leading[a];
+            }
+
+            Integer[] order = new Integer[m];
+            for (int i = 0; i < m; i++) order[i] = i;
+            Arrays.sort(order, (i1, i2) -> Double.compare(scores[i1], scores[i2]));
+            int[] sorted = new int[m];
+
+            for (int i = 0; i < this.perms; i++) {
+                for (int j = 0; j < m; j++) sorted[j] = order[j];
+
+                for (int j = 0; j < m; j += 3) {
+                    shuffle(sorted, j, Math.min(j + 3, m));
+                }
+
+                for (int j = 0; j < m; j++) rows[order[j]] = sorted[j];
+
+                nullapprox[i] = conditionalHsic(fx, fy, fz, rows, ytz, M) * Bz / Math.pow(m - 1, 2);
+            }
+        }
+
+        double evalCdf = 0.0;
+        for (int i = 0; i < this.perms; i++) {
+            if (nullapprox[i] <= this.hsic) {
+                evalCdf += 1.0;
+            }
+        }
+
+        evalCdf /= (double) this.perms;
+        return 1.0 - evalCdf;
+    }
+
+    // tr(Ky Kx) - 2 tr(Ky P Kx) + tr(Ky P Kx P), P = Fz M Fz', with rows of Y and Z taken from the given rows.
+    private double conditionalHsic(double[][] fx, double[][] fy, double[][] fz, int[] rows, double[][] ytz,
+                                   double[][] M) {
+        double[][] yx = crossProduct(fy, rows, fx);
+        double[][] zx = crossProduct(fz, rows, fx);
+        double[][] ytzMzx = times(times(ytz, M), zx);
+
+        double second = 0.0;
+
+        for (int a = 0; a < yx.length; a++) {
+            for (int b = 0; b < yx[0].length; b++) {
+                second += yx[a][b] * ytzMzx[a][b];
+            }
+        }
+
+        return squaredNorm(yx) - 2 * second + squaredNorm(ytzMzx);
+    }
+
+    private double[][] features(List<Node> nodes) {
+        int[] cols = new int[nodes.size()];
+        double[] sigmas = new double[nodes.size()];
+
+        for (int i = 0; i < nodes.size(); i++) {
+            cols[i] = this.dataSet.getColumn(nodes.get(i));
+            sigmas[i] = lowRank.medianBandwidth(cols[i]);
+        }
+
+        return lowRank.centeredFeatures(cols, sigmas).toArray();
+    }
+
+    // sum_i a[rows[i]]' b[i]
+    private static double[][] crossProduct(double[][] a, int[] rows, double[][] b) {
+        int ka = a[0].length;
+        int kb = b[0].length;
+        double[][] product = new double[ka][kb];
+
+        for (int i = 0; i < rows.length; i++) {
+            double[] ai = a[rows[i]];
+            double[] bi = b[i];
+
+            for (int p = 0; p < ka; p++) {
+                double v = ai[p];
+                double[] productp = product[p];
+                for (int q = 0; q < kb; q++) productp[q] += v * bi[q];
+            }
+        }
+
+        return product;
+    }
+
+    private static double[][] times(double[][] a, double[][] b) {
+        double[][] product = new double[a.length][b[0].length];
+
+        for (int i = 0; i < a.length; i++) {
+            for (int k = 0; k < b.length; k++) {
+                double v = a[i][k];
+                for (int j = 0; j < b[0].length; j++) product[i][j] += v * b[k][j];
+            }
+        }
+
+        return product;
+    }
+
+    private static double squaredNorm(double[][] a) {
+        double sum = 0.0;
+
+        for (double[] row : a) {
+            for (double v : row) sum += v * v;
+        }
+
+        return sum;
+    }
+
+    private static void shuffle(int[] array, int from, int to) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + RandomUtil.getInstance().nextInt(i - from + 1);
+            int t = array[i];
+            array[i] = array[j];
+            array[j] = t;
+        }
+    }
+
     /**
      * Empirical unconditional Hilbert-Schmidt Dependence Measure for X and Y
      *
@@ -707,6 +906,29 @@ public final class IndTestHsic implements IndependenceTest {
         this.useIncompleteCholesky = precision;
     }
 
+    /**
+     * Replaces the Gram matrices by features of at most the given rank, by the given method, so that a test
+     * takes O(m rank^2) time for each permutation. Features for each variable and conditioning set are cached
+     * and reused by later tests. Kernel bandwidths are median distances estimated from a sample of the rows.
+     * A rank of 0 (or a null method) restores the Gram matrices.
+     */
+    public void setLowRankApproximation(LowRankKernelApproximation.Method method, int rank) {
+        if (rank < 0) {
+            throw new IllegalArgumentException("Rank must be >= 0: " + rank);
+        }
+
+        if (method == null || rank == 0) {
+            this.lowRank = null;
+        } else {
+            this.lowRank = new LowRankKernelApproximation(this.dataSet.getDoubleData().transpose().toArray(),
+                    method, rank);
+        }
+    }
+
+    public LowRankKernelApproximation getLowRankApproximation() {
+        return this.lowRank;
+    }
+
     /**
      * Set the number of bootstrap samples to use
      */
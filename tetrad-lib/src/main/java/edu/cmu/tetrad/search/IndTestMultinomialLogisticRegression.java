@@ -27,6 +27,7 @@ import edu.cmu.tetrad.data.DiscreteVariable;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.regression.LogisticRegression;
+import edu.cmu.tetrad.regression.LogisticRegressionEngine;
 import edu.cmu.tetrad.regression.RegressionDataset;
 import edu.cmu.tetrad.regression.RegressionResult;
 import edu.cmu.tetrad.util.TetradLogger;
@@ -58,6 +59,13 @@ public class IndTestMultinomialLogisticRegression implements IndependenceTest {
     private RegressionDataset regression;
     private boolean verbose = false;
 
+    // If not null, fits the logistic regressions, warm-started from the fits for smaller
+    // conditioning sets.
+    private LogisticRegressionEngine engine = null;
+
+    // The columns of the internal data, for the engine.
+    private double[][] columns = null;
+
     public IndTestMultinomialLogisticRegression(DataSet data, double alpha) {
         this.searchVariables = data.getVariables();
         this.originalData = data.copy();
@@ -160,39 +168,53 @@ public class IndTestMultinomialLogisticRegression implements IndependenceTest {
         }
 
         List<Double> pValues = new ArrayList<>();
+        BitSet missing = getMissingRows(x, y, z);
+        int[] _rows = getNonMissingRows(missing);
+
+        if (engine != null) {
+            LogisticRegressionEngine.Fit[] fits0 = engineFits(x, z, Collections.<Node>emptyList(), _rows, missing);
+            List<Node> yz = new ArrayList<>(z);
+            yz.add(y);
+            LogisticRegressionEngine.Fit[] fits1 = engineFits(x, yz, Collections.singletonList(y), _rows, missing);
+            int df = variablesPerNode.get(y).size();
 
-        int[] _rows = getNonMissingRows(x, y, z);
-        logisticRegression.setRows(_rows);
+            for (int t = 0; t < fits0.length; t++) {
+                double chisq = 2.0 * (fits1[t].getLogLikelihood() - fits0[t].getLogLikelihood());
+                pValues.add(1.0 - new ChiSquaredDistribution(df).cumulativeProbability(chisq));
+            }
+        } else {
+            logisticRegression.setRows(_rows);
 
-        for (Node _x : variablesPerNode.get(x)) {
+            for (Node _x : variablesPerNode.get(x)) {
 
-            // Without y
-            List<Node> regressors0 = new ArrayList<>();
+                // Without y
+                List<Node> regressors0 = new ArrayList<>();
 
-            for (Node _z : z) {
-                regressors0.addAll(variablesPerNode.get(_z));
-            }
+                for (Node _z : z) {
+                    regressors0.addAll(variablesPerNode.get(_z));
+                }
 
-            LogisticRegression.Result result0 = logisticRegression.regress((DiscreteVariable) _x, regressors0);
+                LogisticRegression.Result result0 = logisticRegression.regress((DiscreteVariable) _x, regressors0);
 
-            // With y.
-            List<Node> regressors1 = new ArrayList<>();
-            regressors1.addAll(variablesPerNode.get(y));
+                // With y.
+                List<Node> regressors1 = new ArrayList<>();
+                regressors1.addAll(variablesPerNode.get(y));
 
-            for (Node _z : z) {
-                regressors1.addAll(variablesPerNode.get(_z));
-            }
+                for (Node _z : z) {
+                    regressors1.addAll(variablesPerNode.get(_z));
+                }
 
-            LogisticRegression.Result result1 = logisticRegression.regress((DiscreteVariable) _x, regressors1);
+                LogisticRegression.Result result1 = logisticRegression.regress((DiscreteVariable) _x, regressors1);
 
-            // Returns -2 LL
-            double ll0 = result0.getLogLikelihood();
-            double ll1 = result1.getLogLikelihood();
+                // Returns -2 LL
+                double ll0 = result0.getLogLikelihood();
+                double ll1 = result1.getLogLikelihood();
 
-            double chisq = (ll0 - ll1);
-            int df = variablesPerNode.get(y).size();
-            double p = 1.0 - new ChiSquaredDistribution(df).cumulativeProbability(chisq);
-            pValues.add(p);
+                double chisq = (ll0 - ll1);
+                int df = variablesPerNode.get(y).size();
+                double p = 1.0 - new ChiSquaredDistribution(df).cumulativeProbability(chisq);
+                pValues.add(p);
+            }
         }
 
         double p = 1.0;
@@ -218,37 +240,130 @@ public class IndTestMultinomialLogisticRegression implements IndependenceTest {
         return indep;
     }
 
-    int[] _rows = null;
+    /**
+     * Fits logistic regressions of each indicator of x on the expansions of the given
+     * nodes, plus an intercept, with the engine, using the given rows only. Fits are
+     * started from those for the given nodes less the given warm-start node (if there
+     * is one) or else less any one node, if these have been done.
+     *
+     * @param missing The rows left out, which go into the keys of the fits.
+     */
+    private LogisticRegressionEngine.Fit[] engineFits(Node x, List<Node> nodes, List<Node> warmStart,
+                                                      int[] rows, BitSet missing) {
+        if (columns == null) {
+            columns = internalData.getDoubleData().transpose().toArray();
+        }
+
+        List<Node> xs = variablesPerNode.get(x);
+        double[][] ys = new double[xs.size()][];
+
+        for (int t = 0; t < xs.size(); t++) {
+            ys[t] = select(columns[internalData.getColumn(xs.get(t))], rows, missing);
+        }
+
+        List<Integer> cols = new ArrayList<>();
+
+        for (Node node : nodes) {
+            for (Node _node : variablesPerNode.get(node)) {
+                cols.add(internalData.getColumn(_node));
+            }
+        }
+
+        double[][] design = new double[cols.size() + 1][];
+        long[] ids = new long[cols.size() + 1];
+        double[] ones = new double[rows.length];
+        Arrays.fill(ones, 1.0);
+        design[0] = ones;
+        ids[0] = LogisticRegressionEngine.INTERCEPT;
+
+        for (int a = 0; a < cols.size(); a++) {
+            design[a + 1] = select(columns[cols.get(a)], rows, missing);
+            ids[a + 1] = cols.get(a);
+        }
+
+        List<Object> nestedKeys = new ArrayList<>();
+
+        for (Node node : warmStart) {
+            nestedKeys.add(engineKey(x, nodes, node, missing));
+        }
+
+        for (Node node : nodes) {
+            nestedKeys.add(engineKey(x, nodes, node, missing));
+        }
+
+        return engine.fitEach(engineKey(x, nodes, null, missing), nestedKeys, design, ids, ys, rows.length);
+    }
+
+    // The given rows of a column; the column itself if no rows are left out.
+    private double[] select(double[] column, int[] rows, BitSet missing) {
+        if (missing.isEmpty()) return column;
+        double[] selected = new double[rows.length];
+        for (int i = 0; i < rows.length; i++) selected[i] = column[rows[i]];
+        return selected;
+    }
+
+    private List<Object> engineKey(Node x, List<Node> nodes, Node without, BitSet missing) {
+        Set<Node> _nodes = new HashSet<>(nodes);
+        _nodes.remove(without);
+        return missing.isEmpty() ? Arrays.asList(x, _nodes) : Arrays.asList(x, _nodes, missing);
+    }
+
+    // The rows at which each column of the internal data is missing, or null if none are.
+    private BitSet[] missingByColumn = null;
+
+    // All of the rows.
+    private int[] allRows = null;
+
+    /**
+     * @return the rows at which any of x, y, or the nodes in z is missing.
+     */
+    private BitSet getMissingRows(Node x, Node y, List<Node> z) {
+        if (missingByColumn == null) {
+            missingByColumn = new BitSet[internalData.getNumColumns()];
+
+            for (int j = 0; j < internalData.getNumColumns(); j++) {
+                Node node = internalData.getVariable(j);
+                BitSet missing = new BitSet(internalData.getNumRows());
+
+                for (int i = 0; i < internalData.getNumRows(); i++) {
+                    if (isMissing(node, i)) missing.set(i);
+                }
+
+                missingByColumn[j] = missing.isEmpty() ? null : missing;
+            }
+        }
+
+        List<Node> nodes = new ArrayList<>(z);
+        nodes.add(x);
+        nodes.add(y);
+
+        BitSet missing = new BitSet(internalData.getNumRows());
+
+        for (Node node : nodes) {
+            BitSet _missing = missingByColumn[internalData.getColumn(internalData.getVariable(node.getName()))];
+            if (_missing != null) missing.or(_missing);
+        }
+
+        return missing;
+    }
 
-    // This takes an inordinate amount of time. -jdramsey 20150929
     private int[] getNonMissingRows(Node x, Node y, List<Node> z) {
-//        List<Integer> rows = new ArrayList<Integer>();
-//
-//        I:
-//        for (int i = 0; i < internalData.getNumRows(); i++) {
-//            for (Node node : variablesPerNode.get(x)) {
-//                if (isMissing(node, i)) continue I;
-//            }
-//
-//            for (Node node : variablesPerNode.get(y)) {
-//                if (isMissing(node, i)) continue I;
-//            }
-//
-//            for (Node _z : z) {
-//                for (Node node : variablesPerNode.get(_z)) {
-//                    if (isMissing(node, i)) continue I;
-//                }
-//            }
-//
-//            rows.add(i);
-//        }
-
-//        int[] _rows = new int[rows.size()];
-//        for (int k = 0; k < rows.size(); k++) _rows[k] = rows.get(k);
-
-        if (_rows == null) {
-            _rows = new int[internalData.getNumRows()];
-            for (int k = 0; k < _rows.length; k++) _rows[k] = k;
+        return getNonMissingRows(getMissingRows(x, y, z));
+    }
+
+    private int[] getNonMissingRows(BitSet missing) {
+        if (allRows == null) {
+            allRows = new int[internalData.getNumRows()];
+            for (int k = 0; k < allRows.length; k++) allRows[k] = k;
+        }
+
+        if (missing.isEmpty()) return allRows;
+
+        int[] _rows = new int[internalData.getNumRows() - missing.cardinality()];
+        int k = 0;
+
+        for (int i = missing.nextClearBit(0); i < internalData.getNumRows(); i = missing.nextClearBit(i + 1)) {
+            _rows[k++] = i;
         }
 
         return _rows;
@@ -391,6 +506,21 @@ public class IndTestMultinomialLogisticRegression implements IndependenceTest {
         return false; //stub
     }
 
+    /**
+     * Sets the engine used to fit the logistic regressions of the multinomial tests, or
+     * null (the default) to fit them with LogisticRegression. An engine caches its fits,
+     * starts each fit from the fit without y (or with one variable fewer in Z), and fits
+     * the categories of x in parallel. LogisticRegression's fits are unpenalized, so for
+     * the same p values give the engine a ridge of zero.
+     */
+    public void setRegressionEngine(LogisticRegressionEngine engine) {
+        this.engine = engine;
+    }
+
+    public LogisticRegressionEngine getRegressionEngine() {
+        return engine;
+    }
+
     /**
      * @return the significance level of the independence test.
      * @throws UnsupportedOperationException if there is no significance level.
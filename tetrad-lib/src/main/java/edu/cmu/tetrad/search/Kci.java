@@ -6,18 +6,16 @@ import edu.cmu.tetrad.data.DataUtils;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.IndependenceFact;
 import edu.cmu.tetrad.graph.Node;
-import edu.cmu.tetrad.search.IndependenceTest;
+import edu.cmu.tetrad.search.kernel.LowRankKernelApproximation;
+import edu.cmu.tetrad.util.ResamplingEngine;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
 import edu.cmu.tetrad.util.TetradVector;
 import edu.pitt.csb.mgm.EigenDecomposition;
 import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
-import org.apache.commons.math3.random.SynchronizedRandomGenerator;
-import org.apache.commons.math3.random.Well44497b;
 
 import java.util.*;
 
@@ -39,6 +37,9 @@ import static java.lang.Math.*;
  * Bowman, A. W., & Azzalini, A. (1997). Applied smoothing techniques for data analysis: the kernel
  * approach with S-Plus illustrations (Vol. 18). OUP Oxford.
  *
+ * For large samples the Gram matrices may be replaced by low-rank (Nystrom or random Fourier)
+ * approximations; see setLowRankApproximation.
+ *
  * @author Vineet Raghu on 7/3/2016
  * @author jdramsey refactoring 7/4/2018
  */
@@ -65,15 +66,14 @@ public class Kci implements IndependenceTest, ScoreForFact {
     // P value used to judge independence. This is the last p value calculated.
     private double p;
 
-    // Centering matrix.
+    // Centering matrix, made when first needed.
     private TetradMatrix H;
 
-    // Identity N x N
-    private TetradMatrix I;
+    // If not null, low-rank features replace the N x N Gram matrices.
+    private LowRankKernelApproximation lowRank = null;
 
-    // A normal distribution with 1 degree of freedom.
-    private NormalDistribution normal = new NormalDistribution(new SynchronizedRandomGenerator(
-            new Well44497b(193924L)), 0, 1);
+    // Runs the bootstraps for Theorem 4 and Proposition 5, in parallel.
+    private ResamplingEngine resampling = new ResamplingEngine(193924L);
 
     // True if the approximation algorithms should be used instead of Theorems 3 or 4.
     private boolean approximate = false;
@@ -116,13 +116,6 @@ public class Kci implements IndependenceTest, ScoreForFact {
         this.variables = data.getVariables();
         this._data = this.data.getDoubleData().transpose().toArray();
         this.N = this.data.getNumRows();
-        this.I = TetradMatrix.identity(N);
-
-        TetradMatrix Ones = new TetradMatrix(N, 1);
-        for (int j = 0; j < N; j++) Ones.set(j, 0, 1);
-
-        this.H = TetradMatrix.identity(N).minus(Ones.times(Ones.transpose()).scalarMult(1.0 / N));
-
         this.alpha = alpha;
         this.p = -1;
 
@@ -359,6 +352,19 @@ public class Kci implements IndependenceTest, ScoreForFact {
         this.threshold = threshold;
     }
 
+    public ResamplingEngine getResamplingEngine() {
+        return resampling;
+    }
+
+    /**
+     * Sets the engine that runs the bootstraps for Theorem 4 and Proposition 5--for instance, one with another
+     * seed, or with early stopping.
+     */
+    public void setResamplingEngine(ResamplingEngine resampling) {
+        if (resampling == null) throw new NullPointerException("Resampling engine is null.");
+        this.resampling = resampling;
+    }
+
     public double getEpsilon() {
         return epsilon;
     }
@@ -367,6 +373,30 @@ public class Kci implements IndependenceTest, ScoreForFact {
         this.epsilon = epsilon;
     }
 
+    /**
+     * Replaces the N x N Gram matrices by features of at most the given rank, by the given method, so that
+     * a test takes O(N rank^2 + rank^3) time. For a conditional test, Proposition 5 is given at most 2 rank
+     * of the rank^2 products of eigenvectors, the largest; see isIndependentConditionalLowRank. Features for
+     * each variable and conditioning set are cached and reused by later tests. A rank of 0 (or a null method)
+     * restores the exact Gram matrices.
+     */
+    public void setLowRankApproximation(LowRankKernelApproximation.Method method, int rank) {
+        if (rank < 0) throw new IllegalArgumentException("Rank must be >= 0: " + rank);
+
+        if (method == null || rank == 0) {
+            this.lowRank = null;
+        } else {
+            this.lowRank = new LowRankKernelApproximation(_data, method, rank);
+        }
+
+        facts.clear();
+        pValues.clear();
+    }
+
+    public LowRankKernelApproximation getLowRankApproximation() {
+        return lowRank;
+    }
+
     //====================================PRIVATE METHODS==================================//
 
     /**
@@ -375,6 +405,10 @@ public class Kci implements IndependenceTest, ScoreForFact {
      * @return true just in case independence holds.
      */
     private boolean isIndependentUnconditional(Node x, Node y, IndependenceFact fact) {
+        if (lowRank != null) {
+            return isIndependentUnconditionalLowRank(x, y, fact);
+        }
+
         TetradMatrix kx = center(kernelMatrix(_data, x, null, getWidthMultiplier()));
         TetradMatrix ky = center(kernelMatrix(_data, y, null, getWidthMultiplier()));
 
@@ -438,10 +472,15 @@ public class Kci implements IndependenceTest, ScoreForFact {
      * @return true just in case independence holds.
      */
     private boolean isIndependentConditional(Node x, Node y, List<Node> z, IndependenceFact fact) {
+        if (lowRank != null) {
+            return isIndependentConditionalLowRank(x, y, z, fact);
+        }
+
         TetradMatrix kx = null;
         TetradMatrix ky = null;
 
         try {
+            TetradMatrix I = TetradMatrix.identity(N);
             TetradMatrix KXZ = center(kernelMatrix(_data, x, z, getWidthMultiplier()));
             TetradMatrix Ky = center(kernelMatrix(_data, y, null, getWidthMultiplier()));
             TetradMatrix KZ = center(kernelMatrix(_data, null, z, getWidthMultiplier()));
@@ -460,6 +499,169 @@ public class Kci implements IndependenceTest, ScoreForFact {
         }
     }
 
+    /**
+     * KCI independence for the unconditional case with low-rank features Fx and Fy for the centered Gram
+     * matrices. tr(Kx Ky) = ||Fx'Fy||^2, and the nonzero eigenvalues of Fx Fx' are those of Fx'Fx.
+     *
+     * @return true just in case independence holds.
+     */
+    private boolean isIndependentUnconditionalLowRank(Node x, Node y, IndependenceFact fact) {
+        try {
+            TetradMatrix fx = features(x, null);
+            TetradMatrix fy = features(y, null);
+
+            double sta = squaredNorm(fx.transpose().times(fy));
+
+            if (isApproximate()) {
+                double mean_appr = squaredNorm(fx) * squaredNorm(fy) / N;
+                double var_appr = 2 * squaredNorm(fx.transpose().times(fx))
+                        * squaredNorm(fy.transpose().times(fy)) / (N * N);
+                double k_appr = mean_appr * mean_appr / var_appr;
+                double theta_appr = var_appr / mean_appr;
+                p = 1.0 - new GammaDistribution(k_appr, theta_appr).cumulativeProbability(sta);
+                pValues.put(fact, p);
+                return p > getAlpha();
+            } else {
+                List<Double> evx = new Eigendecomposition(fx.transpose().times(fx)).invoke().getTopEigenvalues();
+                List<Double> evy = new Eigendecomposition(fy.transpose().times(fy)).invoke().getTopEigenvalues();
+                return theorem4(sta / N, evx, evy, fact);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            pValues.put(fact, 0.0);
+            facts.put(fact, false);
+            return false;
+        }
+    }
+
+    /**
+     * KCI independence for the conditional case with low-rank features. With Kz = Fz Fz', by Woodbury,
+     * Rz = epsilon (Kz + epsilon I)^-1 = I - Fz (Fz'Fz + epsilon I)^-1 Fz', so Rz Kxz Rz = Gx Gx' for
+     * Gx = Rz Fxz, computed in O(N rank^2) without N x N matrices; likewise for y. The eigenvectors of
+     * Gx Gx' scaled by the roots of their eigenvalues are Gx U, for U the eigenvectors of Gx'Gx.
+     * <p>
+     * Proposition 5 takes the eigenvalues of UU'UU, where the columns of UU are the elementwise products
+     * of these eigenvectors for x and y. With m of each there are m^2 such columns, which would make UU'UU
+     * cost O(N m^4) and its eigendecomposition O(m^6), so only the largest m_x + m_y columns are kept; see
+     * largestProducts.
+     *
+     * @return true just in case independence holds.
+     */
+    private boolean isIndependentConditionalLowRank(Node x, Node y, List<Node> z, IndependenceFact fact) {
+        try {
+            TetradMatrix fxz = features(x, z);
+            TetradMatrix fy = features(y, null);
+            TetradMatrix fz = features(null, z);
+
+            TetradMatrix fzt = fz.transpose();
+            TetradMatrix reg = fzt.times(fz);
+            for (int i = 0; i < reg.rows(); i++) reg.set(i, i, reg.get(i, i) + epsilon);
+            TetradMatrix regInverse = reg.inverse();
+
+            TetradMatrix gx = fxz.minus(fz.times(regInverse.times(fzt.times(fxz))));
+            TetradMatrix gy = fy.minus(fz.times(regInverse.times(fzt.times(fy))));
+
+            double T = (1.0 / N) * squaredNorm(gx.transpose().times(gy));
+
+            TetradMatrix vdx = gx.times(new Eigendecomposition(gx.transpose().times(gx)).invoke().getV());
+            TetradMatrix vdy = gy.times(new Eigendecomposition(gy.transpose().times(gy)).invoke().getV());
+
+            return proposition5(T, largestProducts(vdx, vdy, vdx.columns() + vdy.columns()), fact);
+        } catch (Exception e) {
+            e.printStackTrace();
+            pValues.put(fact, 0.0);
+            facts.put(fact, false);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the largest of the elementwise products of the columns of vdx and vdy, as the columns of an
+     * N x (at most max) matrix, in O(N m_x m_y) time. The squared norm of a product is what it adds to the
+     * trace of UU'UU, so a product is kept only if it is among the max largest and, like the eigenvalues
+     * of Eigendecomposition, greater than the threshold times the largest. The eigenvalues of UU'UU for the
+     * products dropped are at most their squared norms.
+     */
+    private TetradMatrix largestProducts(TetradMatrix vdx, TetradMatrix vdy, int max) {
+        final int cx = vdx.columns();
+        final int cy = vdy.columns();
+
+        // The squared norms of the products are (vdx o vdx)'(vdy o vdy).
+        TetradMatrix sx = new TetradMatrix(N, cx);
+        TetradMatrix sy = new TetradMatrix(N, cy);
+
+        for (int k = 0; k < N; k++) {
+            for (int i = 0; i < cx; i++) sx.set(k, i, vdx.get(k, i) * vdx.get(k, i));
+            for (int j = 0; j < cy; j++) sy.set(k, j, vdy.get(k, j) * vdy.get(k, j));
+        }
+
+        final TetradMatrix norms = sx.transpose().times(sy);
+
+        List<Integer> products = series(cx * cy);
+        products.sort((p1, p2) -> Double.compare(norms.get(p2 / cy, p2 % cy), norms.get(p1 / cy, p1 % cy)));
+
+        double largest = products.isEmpty() ? 0.0 : norms.get(products.get(0) / cy, products.get(0) % cy);
+        int count = 0;
+
+        while (count < min(max, products.size())
+                && norms.get(products.get(count) / cy, products.get(count) % cy) > largest * getThreshold()) {
+            count++;
+        }
+
+        TetradMatrix UU = new TetradMatrix(N, count);
+
+        for (int c = 0; c < count; c++) {
+            int i = products.get(c) / cy;
+            int j = products.get(c) % cy;
+
+            for (int k = 0; k < N; k++) {
+                UU.set(k, c, vdx.get(k, i) * vdy.get(k, j));
+            }
+        }
+
+        return UU;
+    }
+
+    // Centered low-rank features for the kernel matrix kernelMatrix(_data, x, z, widthMultiplier) would
+    // give. That kernel is exp(-|a - b|^2 / (4 w^2)) for width w, a Gaussian kernel with sigma = sqrt(2) w.
+    private TetradMatrix features(Node x, List<Node> z) {
+        List<Integer> _z = new ArrayList<>();
+
+        if (x != null) {
+            _z.add(hash.get(x));
+        }
+
+        if (z != null) {
+            for (Node z2 : z) {
+                _z.add(hash.get(z2));
+            }
+        }
+
+        double sigma = sqrt(2.0) * getWidthMultiplier() * getH(_z);
+
+        int[] cols = new int[_z.size()];
+        double[] sigmas = new double[_z.size()];
+
+        for (int i = 0; i < _z.size(); i++) {
+            cols[i] = _z.get(i);
+            sigmas[i] = sigma;
+        }
+
+        return lowRank.centeredFeatures(cols, sigmas);
+    }
+
+    private static double squaredNorm(TetradMatrix m) {
+        double sum = 0.0;
+
+        for (int i = 0; i < m.rows(); i++) {
+            for (int j = 0; j < m.columns(); j++) {
+                sum += m.get(i, j) * m.get(i, j);
+            }
+        }
+
+        return sum;
+    }
+
     private boolean theorem4(TetradMatrix kx, TetradMatrix ky, IndependenceFact fact) {
 
         double T = (1.0 / N) * (kx.times(ky).trace());
@@ -471,25 +673,34 @@ public class Kci implements IndependenceTest, ScoreForFact {
         Eigendecomposition eigendecompositiony = new Eigendecomposition(ky).invoke();
         List<Double> evy = eigendecompositiony.getTopEigenvalues();
 
-        // Calculate formula (9).
-        int sum = 0;
+        return theorem4(T, evx, evy, fact);
+    }
+
+    private boolean theorem4(double T, List<Double> evx, List<Double> evy, IndependenceFact fact) {
+
+        // The products of the eigenvalues, shared by the bootstraps.
+        final double[] products = new double[evx.size() * evy.size()];
+        int c = 0;
+
+        for (double lambdax : evx) {
+            for (double lambday : evy) {
+                products[c++] = lambdax * lambday;
+            }
+        }
 
-        for (int j = 0; j < getNumBootstraps(); j++) {
+        // Calculate formula (9) and p.
+        p = resampling.pValue(streamId(fact), getNumBootstraps(), cutoff(fact), (index, random) -> {
             double tui = 0.0;
 
-            for (double lambdax : evx) {
-                for (double lambday : evy) {
-                    tui += lambdax * lambday * getChisqSample();
-                }
+            for (double product : products) {
+                tui += product * getChisqSample(random);
             }
 
-            tui /= (double) (N * N);
+            tui /= (double) N * N;
 
-            if (tui > T) sum++;
-        }
+            return tui > T;
+        });
 
-        // Calculate p.
-        p = sum / (double) getNumBootstraps();
         pValues.put(fact, this.p);
 
         if (fastFDR) {
@@ -541,22 +752,27 @@ public class Kci implements IndependenceTest, ScoreForFact {
         TetradMatrix vdx = vx.times(dx);
         TetradMatrix vdy = vy.times(dy);
 
-        final int prod = vx.columns() * vy.columns();
+        final int prod = vdx.columns() * vdy.columns();
         TetradMatrix UU = new TetradMatrix(N, prod);
 
         // stack
-        for (int i = 0; i < vx.columns(); i++) {
-            for (int j = 0; j < vy.columns(); j++) {
+        for (int i = 0; i < vdx.columns(); i++) {
+            for (int j = 0; j < vdy.columns(); j++) {
                 for (int k = 0; k < N; k++) {
-                    UU.set(k, i * dy.columns() + j, vdx.get(k, i) * vdy.get(k, j));
+                    UU.set(k, i * vdy.columns() + j, vdx.get(k, i) * vdy.get(k, j));
                 }
             }
         }
 
+        return proposition5(T, UU, fact);
+    }
+
+    private boolean proposition5(double T, TetradMatrix UU, IndependenceFact fact) {
+        final int prod = UU.columns();
         TetradMatrix uuprod = prod > N ? UU.times(UU.transpose()) : UU.transpose().times(UU);
 
         if (isApproximate()) {
-            double sta = kx.times(ky).trace();
+            double sta = N * T;
             double mean_appr = uuprod.trace();
             double var_appr = 2.0 * uuprod.times(uuprod).trace();
             double k_appr = mean_appr * mean_appr / var_appr;
@@ -568,27 +784,21 @@ public class Kci implements IndependenceTest, ScoreForFact {
 
             // Get top eigenvalues of that.
             Eigendecomposition eigendecompositionu = new Eigendecomposition(uuprod).invoke();
-            List<Double> eigenu = eigendecompositionu.getTopEigenvalues();
-
-            // We're going to reuse the samples.
-            int sampleCount = -1;
+            final List<Double> eigenu = eigendecompositionu.getTopEigenvalues();
 
             // Calculate formulas (13) and (14).
-            int sum = 0;
-
-            for (int j = 0; j < getNumBootstraps(); j++) {
+            this.p = resampling.pValue(streamId(fact), getNumBootstraps(), cutoff(fact), (index, random) -> {
                 double s = 0.0;
 
                 for (double lambdaStar : eigenu) {
-                    s += lambdaStar * getChisqSample();
+                    s += lambdaStar * getChisqSample(random);
                 }
 
                 s *= 1.0 / N;
 
-                if (s > T) sum++;
-            }
+                return s > T;
+            });
 
-            this.p = sum / (double) getNumBootstraps();
             pValues.put(fact, this.p);
 
             if (fastFDR) {
@@ -633,14 +843,36 @@ public class Kci implements IndependenceTest, ScoreForFact {
     }
 
     private TetradMatrix center(TetradMatrix K) {
+        if (H == null) {
+            TetradMatrix Ones = new TetradMatrix(N, 1);
+            for (int j = 0; j < N; j++) Ones.set(j, 0, 1);
+            H = TetradMatrix.identity(N).minus(Ones.times(Ones.transpose()).scalarMult(1.0 / N));
+        }
+
         return H.times(K).times(H);
     }
 
-    private double getChisqSample() {
-        double z = normal.sample();
+    private static double getChisqSample(SplittableRandom random) {
+        double z = ResamplingEngine.nextNormal(random);
         return z * z;
     }
 
+    // The bootstraps for each fact get their own random streams.
+    private static long streamId(IndependenceFact fact) {
+        return fact.toString().hashCode();
+    }
+
+    // The alpha the p value for the given fact is judged against.
+    private double cutoff(IndependenceFact fact) {
+        if (fastFDR) {
+            final int d2 = fact.getZ().size();
+            final int v = variables.size() - 2;
+            return exp(log(alpha) + logChoose(v, 0) - logChoose(v, d2));
+        } else {
+            return alpha;
+        }
+    }
+
     // Optimal bandwidth qsuggested by Bowman and Azzalini (1997) q.31,
     // using MAD.
     private double h(String x) {
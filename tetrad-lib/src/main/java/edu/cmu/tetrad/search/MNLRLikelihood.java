@@ -27,6 +27,7 @@ import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DiscreteVariable;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.regression.LogisticRegression;
+import edu.cmu.tetrad.regression.LogisticRegressionEngine;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
 import edu.cmu.tetrad.util.TetradVector;
@@ -69,6 +70,9 @@ public class MNLRLikelihood {
     // Structure Prior
     private double structurePrior;
 
+    // If not null, fits the logistic regressions for discrete children.
+    private LogisticRegressionEngine engine = null;
+
     private PrintStream original = System.out;
 
     private PrintStream nullout = new PrintStream(new OutputStream() { public void write(int b) {
@@ -172,7 +176,8 @@ public class MNLRLikelihood {
         int[] continuousCols = new int[p];
         for (int j = 0; j < p; j++) continuousCols[j] = nodesHash.get(continuous_parents.get(j));
 
-        for (List<Integer> cell : cells) {
+        for (int cellIndex = 0; cellIndex < cells.size(); cellIndex++) {
+            List<Integer> cell = cells.get(cellIndex);
             int r = cell.size();
             if (r > 1) {
 
@@ -211,6 +216,8 @@ public class MNLRLikelihood {
                         target.set(i, continuousData[child_index][cell.get(i)]);
                     }
                     lik += multipleRegression(target, subset);
+                } else if (engine != null) {
+                    lik += engineLik(child_index, discrete_parents, continuousCols, cellIndex, cell, subset, degree);
                 } else {
                     ArrayList<Integer> temp = new ArrayList<>();
                     TetradMatrix target = new TetradMatrix(r, ((DiscreteVariable) c).getNumCategories());
@@ -228,6 +235,29 @@ public class MNLRLikelihood {
         return lik;
     }
 
+    private double engineLik(int child_index, List<DiscreteVariable> discrete_parents, int[] continuousCols,
+                             int cellIndex, List<Integer> cell, TetradMatrix subset, int degree) {
+        return EngineCellLikelihood.logLikelihood(engine, discreteData[child_index],
+                ((DiscreteVariable) variables.get(child_index)).getNumCategories(), child_index,
+                discrete_parents, continuousCols, cellIndex, cell, subset, degree);
+    }
+
+    /**
+     * Sets the engine used to fit the logistic regressions for discrete children, or null
+     * (the default) to fit them with liblinear. The engine caches its fits, starts each
+     * from the fit with one continuous parent fewer, and fits the categories of the child
+     * in parallel. With the engine's default ridge of 1 its fits are liblinear's; the
+     * categories are scored one against the rest, as with liblinear. An engine should
+     * not be shared among data sets.
+     */
+    public void setRegressionEngine(LogisticRegressionEngine engine) {
+        this.engine = engine;
+    }
+
+    public LogisticRegressionEngine getRegressionEngine() {
+        return engine;
+    }
+
     public double getDoF(int child_index, int[] parents) {
 
         double dof = 0;
@@ -23,6 +23,7 @@ package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.regression.LogisticRegressionEngine;
 import edu.cmu.tetrad.util.TetradMatrix;
 import edu.cmu.tetrad.util.TetradVector;
 import edu.cmu.tetrad.util.dist.Discrete;
@@ -83,6 +84,9 @@ public class MVPLikelihood {
     // Number of categories to use to discretize continuous mixedVariables.
     private int numCategoriesToDiscretize = 3;
 
+    // If not null, fits the logistic regressions for discrete children.
+    private LogisticRegressionEngine engine = null;
+
     public MVPLikelihood(DataSet dataSet, double structurePrior, int fDegree, boolean discretize) {
 
         if (dataSet == null) {
@@ -262,7 +266,8 @@ public class MVPLikelihood {
         int[] continuousCols = new int[p];
         for (int j = 0; j < p; j++) continuousCols[j] = nodesHash.get(continuous_parents.get(j));
 
-        for (List<Integer> cell : cells) {
+        for (int cellIndex = 0; cellIndex < cells.size(); cellIndex++) {
+            List<Integer> cell = cells.get(cellIndex);
 //            for (int[] cell : cells) {
                 int r = cell.size();
 //                int r = cell.length;
@@ -304,6 +309,14 @@ public class MVPLikelihood {
 //                        target.set(i, continuousData[child_index][cell[i]]);
                     }
                     lik += multipleRegression(target, subset);
+                } else if (engine != null) {
+                    if (((DiscreteVariable) c).getNumCategories() >= r || subset.columns() >= r) {
+                        TetradMatrix ones = new TetradMatrix(r, 1);
+                        for (int i = 0; i < r; i++) ones.set(i, 0, 1);
+                        lik += engineLik(child_index, discrete_parents, new int[0], cellIndex, cell, ones, degree);
+                    } else {
+                        lik += engineLik(child_index, discrete_parents, continuousCols, cellIndex, cell, subset, degree);
+                    }
                 } else {
                     TetradMatrix target = new TetradMatrix(r, ((DiscreteVariable) c).getNumCategories());
                     for (int i = 0; i < r; i++) {
@@ -317,6 +330,29 @@ public class MVPLikelihood {
         return lik;
     }
 
+    private double engineLik(int child_index, List<DiscreteVariable> discrete_parents, int[] continuousCols,
+                             int cellIndex, List<Integer> cell, TetradMatrix subset, int degree) {
+        return EngineCellLikelihood.logLikelihood(engine, discreteData[child_index],
+                ((DiscreteVariable) variables.get(child_index)).getNumCategories(), child_index,
+                discrete_parents, continuousCols, cellIndex, cell, subset, degree);
+    }
+
+    /**
+     * Sets the engine used to fit the logistic regressions for discrete children, or null
+     * (the default) to fit them with liblinear. The engine caches its fits, starts each
+     * from the fit with one continuous parent fewer, and fits the categories of the child
+     * in parallel. With the engine's default ridge of 1 its fits are liblinear's; the
+     * categories are scored one against the rest, as with liblinear. An engine should
+     * not be shared among data sets.
+     */
+    public void setRegressionEngine(LogisticRegressionEngine engine) {
+        this.engine = engine;
+    }
+
+    public LogisticRegressionEngine getRegressionEngine() {
+        return engine;
+    }
+
     public double getDoF(int child_index, int[] parents) {
 
         double dof = 0;
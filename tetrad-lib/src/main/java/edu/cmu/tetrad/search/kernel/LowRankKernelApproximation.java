@@ -0,0 +1,336 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.search.kernel;
+
+import edu.cmu.tetrad.util.StatUtils;
+import edu.cmu.tetrad.util.TetradMatrix;
+import edu.pitt.csb.mgm.EigenDecomposition;
+
+import java.util.*;
+
+/**
+ * Low-rank approximations of Gaussian Gram matrices, for kernel tests on samples too large for n x n Gram
+ * matrices. For a set of columns of the data and a bandwidth for each, this gives an n x m matrix of features
+ * F, with m at most the rank, such that F F' approximates the Gram matrix of the Gaussian kernel
+ * <p>
+ * k(a, b) = exp(-1/2 sum_c ((a_c - b_c) / sigma_c)^2),
+ * <p>
+ * which is the tensor product of the KernelGaussian kernels for the columns. Two approximations are supported:
+ * Nystrom features, from the kernels between each row and m landmark rows drawn at random, and random Fourier
+ * features, cos(w'a + b) for m random frequencies w and phases b.
+ * <p>
+ * Features are cached by columns and bandwidths, so that tests reusing a variable or a conditioning set reuse
+ * its features; they are drawn with a seed derived from the columns and bandwidths, so that they do not
+ * depend on the order in which they were asked for. Computing features for r columns takes O(n m r) time for
+ * random Fourier features and O(n m (m + r)) for Nystrom features. Safe for use by several threads.
+ */
+public final class LowRankKernelApproximation {
+
+    /**
+     * The approximation to use.
+     */
+    public enum Method {NYSTROM, RANDOM_FOURIER}
+
+    // The data, as columns.
+    private final double[][] columns;
+
+    // The sample size.
+    private final int n;
+
+    // The approximation used.
+    private final Method method;
+
+    // The most features per Gram matrix.
+    private final int rank;
+
+    // The seed from which the seeds of the features are derived.
+    private final long seed;
+
+    // Centered features, least recently used first.
+    private final Map<List<Object>, TetradMatrix> cache;
+
+    // Median distance bandwidths, by column.
+    private final Map<Integer, Double> bandwidths = new HashMap<>();
+
+    /**
+     * Constructs an approximation for the given data, caching features for up to 1000 sets of columns.
+     *
+     * @param columns The data, as columns, each of the same length.
+     * @param method  The approximation to use.
+     * @param rank    The most features per Gram matrix.
+     */
+    public LowRankKernelApproximation(double[][] columns, Method method, int rank) {
+        this(columns, method, rank, 1000, 1837342932L);
+    }
+
+    /**
+     * Constructs an approximation for the given data.
+     *
+     * @param columns       The data, as columns, each of the same length.
+     * @param method        The approximation to use.
+     * @param rank          The most features per Gram matrix.
+     * @param maxCachedSets The most sets of columns whose features are kept.
+     * @param seed          The seed from which the random landmarks or frequencies are drawn.
+     */
+    public LowRankKernelApproximation(double[][] columns, Method method, int rank, final int maxCachedSets,
+                                      long seed) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("Expecting at least one column.");
+        }
+
+        if (method == null) {
+            throw new NullPointerException("Method not specified.");
+        }
+
+        if (rank < 1) {
+            throw new IllegalArgumentException("Rank must be at least 1: " + rank);
+        }
+
+        if (maxCachedSets < 0) {
+            throw new IllegalArgumentException("Cache size must be non-negative: " + maxCachedSets);
+        }
+
+        this.columns = columns;
+        this.n = columns[0].length;
+        this.method = method;
+        this.rank = rank;
+        this.seed = seed;
+
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<List<Object>, TetradMatrix>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, TetradMatrix> eldest) {
+                return size() > maxCachedSets;
+            }
+        });
+    }
+
+    /**
+     * Returns features F for the given columns, centered so that each column of F has mean zero; F F' then
+     * approximates H K H, where K is the Gram matrix and H the centering matrix. The returned matrix is
+     * shared; please do not modify it.
+     *
+     * @param cols   Indices into the columns of the data.
+     * @param sigmas The bandwidth of the kernel for each of the columns.
+     */
+    public TetradMatrix centeredFeatures(int[] cols, double[] sigmas) {
+        if (cols.length != sigmas.length) {
+            throw new IllegalArgumentException("Expecting a bandwidth for each column.");
+        }
+
+        List<Object> key = new ArrayList<>();
+        for (int col : cols) key.add(col);
+        for (double sigma : sigmas) key.add(sigma);
+
+        TetradMatrix features = cache.get(key);
+
+        if (features == null) {
+            Random random = new Random(seed ^ key.hashCode());
+            double[][] f = method == Method.NYSTROM
+                    ? nystromFeatures(cols, sigmas, random)
+                    : randomFourierFeatures(cols, sigmas, random);
+            center(f);
+            features = new TetradMatrix(f);
+            cache.put(key, features);
+        }
+
+        return features;
+    }
+
+    /**
+     * Returns the median distance between the values of the given column, estimated from at most 1000 rows
+     * drawn at random--the bandwidth KernelGaussian would choose, without n^2 distances.
+     */
+    public double medianBandwidth(int col) {
+        synchronized (bandwidths) {
+            Double bandwidth = bandwidths.get(col);
+            if (bandwidth != null) return bandwidth;
+
+            int[] rows = sampleRows(Math.min(n, 1000), new Random(seed ^ col));
+            double[] distances = new double[rows.length * (rows.length - 1) / 2];
+            int c = 0;
+
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = i + 1; j < rows.length; j++) {
+                    distances[c++] = Math.abs(columns[col][rows[i]] - columns[col][rows[j]]);
+                }
+            }
+
+            double median = distances.length == 0 ? 1.0 : StatUtils.median(distances);
+            if (!(median > 0)) median = 1.0;
+
+            bandwidths.put(col, median);
+            return median;
+        }
+    }
+
+    /**
+     * Empties the cache of features.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public int getSampleSize() {
+        return n;
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    // F = K_nm W, where K_mm = U L U' and W = U L^-1/2, dropping directions with negligible eigenvalues,
+    // so that F F' = K_nm K_mm^-1 K_mn.
+    private double[][] nystromFeatures(int[] cols, double[] sigmas, Random random) {
+        int[] landmarks = sampleRows(Math.min(rank, n), random);
+        int m = landmarks.length;
+
+        TetradMatrix kmm = new TetradMatrix(m, m);
+
+        for (int a = 0; a < m; a++) {
+            for (int b = a; b < m; b++) {
+                double k = kernel(cols, sigmas, landmarks[a], landmarks[b]);
+                kmm.set(a, b, k);
+                kmm.set(b, a, k);
+            }
+        }
+
+        EigenDecomposition ed = new EigenDecomposition(kmm.getRealMatrix());
+        double[] eigenvalues = ed.getRealEigenvalues();
+        double max = 0.0;
+        for (double eigenvalue : eigenvalues) max = Math.max(max, eigenvalue);
+
+        List<Integer> kept = new ArrayList<>();
+
+        for (int t = 0; t < m; t++) {
+            if (eigenvalues[t] > 1e-10 * max) kept.add(t);
+        }
+
+        double[][] w = new double[m][kept.size()];
+
+        for (int q = 0; q < kept.size(); q++) {
+            int t = kept.get(q);
+            double scale = 1.0 / Math.sqrt(eigenvalues[t]);
+            double[] u = ed.getEigenvector(t).toArray();
+            for (int a = 0; a < m; a++) w[a][q] = u[a] * scale;
+        }
+
+        double[][] f = new double[n][kept.size()];
+        double[] k = new double[m];
+
+        for (int i = 0; i < n; i++) {
+            for (int a = 0; a < m; a++) k[a] = kernel(cols, sigmas, i, landmarks[a]);
+
+            double[] fi = f[i];
+
+            for (int a = 0; a < m; a++) {
+                double ka = k[a];
+                if (ka == 0.0) continue;
+                double[] wa = w[a];
+                for (int q = 0; q < fi.length; q++) fi[q] += ka * wa[q];
+            }
+        }
+
+        return f;
+    }
+
+    // F = sqrt(2 / m) cos(X W + b), with the columns of W drawn from N(0, diag(1 / sigma^2)) and b from
+    // U(0, 2 pi), so that E[F F'] = K.
+    private double[][] randomFourierFeatures(int[] cols, double[] sigmas, Random random) {
+        int m = rank;
+        int r = cols.length;
+        double[][] w = new double[r][m];
+        double[] b = new double[m];
+
+        for (int q = 0; q < m; q++) {
+            for (int c = 0; c < r; c++) w[c][q] = random.nextGaussian() / sigmas[c];
+            b[q] = 2.0 * Math.PI * random.nextDouble();
+        }
+
+        double scale = Math.sqrt(2.0 / m);
+        double[][] f = new double[n][m];
+        double[] proj = new double[m];
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(b, 0, proj, 0, m);
+
+            for (int c = 0; c < r; c++) {
+                double x = columns[cols[c]][i];
+                if (Double.isNaN(x)) continue;
+                double[] wc = w[c];
+                for (int q = 0; q < m; q++) proj[q] += x * wc[q];
+            }
+
+            double[] fi = f[i];
+            for (int q = 0; q < m; q++) fi[q] = scale * Math.cos(proj[q]);
+        }
+
+        return f;
+    }
+
+    // The product Gaussian kernel between rows i and j, skipping missing values.
+    private double kernel(int[] cols, double[] sigmas, int i, int j) {
+        double sum = 0.0;
+
+        for (int c = 0; c < cols.length; c++) {
+            double d = (columns[cols[c]][i] - columns[cols[c]][j]) / sigmas[c];
+            if (!Double.isNaN(d)) sum += d * d;
+        }
+
+        return Math.exp(-0.5 * sum);
+    }
+
+    private int[] sampleRows(int m, Random random) {
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) rows[i] = i;
+
+        for (int i = 0; i < m; i++) {
+            int j = i + random.nextInt(n - i);
+            int t = rows[i];
+            rows[i] = rows[j];
+            rows[j] = t;
+        }
+
+        return Arrays.copyOf(rows, m);
+    }
+
+    private static void center(double[][] f) {
+        if (f.length == 0) return;
+        int m = f[0].length;
+        double[] means = new double[m];
+
+        for (double[] fi : f) {
+            for (int q = 0; q < m; q++) means[q] += fi[q];
+        }
+
+        for (int q = 0; q < m; q++) means[q] /= f.length;
+
+        for (double[] fi : f) {
+            for (int q = 0; q < m; q++) fi[q] -= means[q];
+        }
+    }
+}
@@ -21,6 +21,7 @@
 
 package edu.cmu.tetrad.sem;
 
+import edu.cmu.tetrad.calculator.expression.CompiledExpression;
 import edu.cmu.tetrad.calculator.expression.Context;
 import edu.cmu.tetrad.calculator.expression.Expression;
 import edu.cmu.tetrad.calculator.parser.ExpressionLexer;
@@ -71,6 +72,10 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
      */
     private double selfLoopCoef = Double.NaN;
 
+    /**
+     * The number of rows simulated from each random stream.
+     */
+    private static final int SIMULATION_BLOCK_SIZE = 1000;
 
     /**
      * Constructs a new GeneralizedSemIm from the given GeneralizedSemPm by picking values for each of
@@ -301,13 +306,8 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
     }
 
     @Override
-    public DataSet simulateData(int sampleSize, long seed, boolean latentDataSaved) {
-        RandomUtil random = RandomUtil.getInstance();
-        long _seed = random.getSeed();
-        random.setSeed(seed);
-        DataSet dataSet = simulateData(sampleSize, latentDataSaved);
-        random.revertSeed(_seed);
-        return dataSet;
+    public DataSet simulateData(final int sampleSize, long seed, final boolean latentDataSaved) {
+        return RandomStreams.callWithSeed(seed, () -> simulateData(sampleSize, latentDataSaved));
     }
 
     private DataSet simulateTimeSeries(int sampleSize) {
@@ -415,26 +415,6 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
      * @return the simulated data set.
      */
     public DataSet simulateDataRecursive(int sampleSize, boolean latentDataSaved) {
-        final Map<String, Double> variableValues = new HashMap<>();
-
-        Context context = new Context() {
-            public Double getValue(String term) {
-                Double value = parameterValues.get(term);
-
-                if (value != null) {
-                    return value;
-                }
-
-                value = variableValues.get(term);
-
-                if (value != null) {
-                    return value;
-                }
-
-                throw new IllegalArgumentException("No value recorded for '" + term + "'");
-            }
-        };
-
         List<Node> variables = pm.getNodes();
         List<Node> continuousVariables = new LinkedList<>();
         List<Node> nonErrorVariables = pm.getVariableNodes();
@@ -456,53 +436,35 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
         List<Node> tierOrdering = graph.getFullTierOrdering();
 
         int[] tierIndices = new int[variables.size()];
+        final int[] tierNodes = new int[variables.size()];
 
         for (int i = 0; i < tierIndices.length; i++) {
             tierIndices[i] = nonErrorVariables.indexOf(tierOrdering.get(i));
+            tierNodes[i] = variables.indexOf(tierOrdering.get(i));
         }
 
-        int[][] _parents = new int[variables.size()][];
-
-        for (int i = 0; i < variables.size(); i++) {
-            Node node = variables.get(i);
-            List<Node> parents = graph.getParents(node);
-
-            _parents[i] = new int[parents.size()];
+        final CompiledExpression[] expressions = compileNodeExpressions(variables);
+        final double[][] columns = new double[variables.size()][sampleSize];
 
-            for (int j = 0; j < parents.size(); j++) {
-                Node _parent = parents.get(j);
-                _parents[i][j] = variables.indexOf(_parent);
+        // Do the simulation, a column at a time for each block of rows. Blocks are simulated in parallel,
+        // each from its own stream, so the data depend only on the seed of RandomUtil.
+        RandomStreams.forEachBlockOfRandomUtil(sampleSize, SIMULATION_BLOCK_SIZE, (from, to, random) -> {
+            for (int node : tierNodes) {
+                expressions[node].evaluate(columns, from, to, columns[node]);
             }
-        }
-
-        // Do the simulation.
-        for (int row = 0; row < sampleSize; row++) {
-            variableValues.clear();
+        });
 
-            for (int tier = 0; tier < tierOrdering.size(); tier++) {
-                Node node = tierOrdering.get(tier);
-                Expression expression = pm.getNodeExpression(node);
-                double value = expression.evaluate(context);
-                variableValues.put(node.getName(), value);
+        for (int tier = 0; tier < tierOrdering.size(); tier++) {
+            int col = tierIndices[tier];
 
-                int col = tierIndices[tier];
-
-                if (col == -1) {
-                    continue;
-                }
-
-//                if (isSimulatePositiveDataOnly() && value < 0) {
-//                    row--;
-//                    continue ROW;
-//                }
-
-//                if (!Double.isNaN(selfLoopCoef) && row > 0) {
-//                    value += selfLoopCoef * fullDataSet.getDouble(row - 1, col);
-//                }
+            if (col == -1) {
+                continue;
+            }
 
-//                value = min(max(value, -5.), 5.);
+            double[] column = columns[tierNodes[tier]];
 
-                fullDataSet.setDouble(row, col, value);
+            for (int row = 0; row < sampleSize; row++) {
+                fullDataSet.setDouble(row, col, column[row]);
             }
         }
 
@@ -661,9 +623,8 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
     }
 
     public DataSet simulateDataAvoidInfinity(int sampleSize, boolean latentDataSaved) {
-        final Map<String, Double> variableValues = new HashMap<>();
-
         List<Node> continuousVariables = new LinkedList<>();
+        final List<Node> nodes = pm.getNodes();
         final List<Node> variableNodes = pm.getVariableNodes();
 
         // Work with a copy of the variables, because their type can be set externally.
@@ -678,62 +639,54 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
 
         DataSet fullDataSet = new ColtDataSet(sampleSize, continuousVariables);
 
-        final Context context = new Context() {
-            public Double getValue(String term) {
-                Double value = parameterValues.get(term);
+        CompiledExpression[] expressions = compileNodeExpressions(nodes);
+        int[] variableIndices = new int[variableNodes.size()];
+        int[] errorIndices = new int[variableNodes.size()];
 
-                if (value != null) {
-                    return value;
-                }
+        for (int i = 0; i < variableNodes.size(); i++) {
+            Node error = pm.getErrorNode(variableNodes.get(i));
 
-                value = variableValues.get(term);
+            if (error == null) {
+                throw new NullPointerException();
+            }
 
-                if (value != null) {
-                    return value;
-                }
+            variableIndices[i] = nodes.indexOf(variableNodes.get(i));
+            errorIndices[i] = nodes.indexOf(error);
+        }
 
-                throw new IllegalArgumentException("No value recorded for '" + term + "'");
-            }
-        };
+        double[] nodeValues = new double[nodes.size()];
+        double[] stack = new double[getStackSize(expressions)];
 
         boolean allInRange = true;
 
-        // Do the simulation.
+        // Do the simulation. Rows are simulated in order, since each may depend on the one before.
         ROW:
         for (int row = 0; row < sampleSize; row++) {
 
             // Take random draws from error distributions.
-            for (Node variable : variableNodes) {
-                Node error = pm.getErrorNode(variable);
-
-                if (error == null) {
-                    throw new NullPointerException();
-                }
-
-                Expression expression = pm.getNodeExpression(error);
-                double value;
-
-                value = expression.evaluate(context);
+            for (int i = 0; i < errorIndices.length; i++) {
+                int error = errorIndices[i];
+                double value = expressions[error].evaluate(nodeValues, stack);
 
                 if (Double.isNaN(value)) {
-                    throw new IllegalArgumentException("Undefined value for expression: " + expression);
+                    throw new IllegalArgumentException("Undefined value for expression: "
+                            + pm.getNodeExpression(nodes.get(error)));
                 }
 
-                variableValues.put(error.getName(), value);
+                nodeValues[error] = value;
             }
 
             // Set the variable nodes to zero.
-            for (Node variable : variableNodes) {
-                Node error = pm.getErrorNode(variable);
-
-                Expression expression = pm.getNodeExpression(error);
-                double value = expression.evaluate(context);
+            for (int i = 0; i < errorIndices.length; i++) {
+                int error = errorIndices[i];
+                double value = expressions[error].evaluate(nodeValues, stack);
 
                 if (Double.isNaN(value)) {
-                    throw new IllegalArgumentException("Undefined value for expression: " + expression);
+                    throw new IllegalArgumentException("Undefined value for expression: "
+                            + pm.getNodeExpression(nodes.get(error)));
                 }
 
-                variableValues.put(variable.getName(), 0.0);//value); //0.0; //RandomUtil.getInstance().nextUniform(-1, 1));
+                nodeValues[variableIndices[i]] = 0.0;
             }
 
             // Repeatedly update variable values until one of them hits infinity or negative infinity or
@@ -746,21 +699,18 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
                 double[] values = new double[variableNodes.size()];
 
                 for (int i = 0; i < values.length; i++) {
-                    Node node = variableNodes.get(i);
-                    Expression expression = pm.getNodeExpression(node);
-                    double value = expression.evaluate(context);
-                    values[i] = value;
+                    values[i] = expressions[variableIndices[i]].evaluate(nodeValues, stack);
                 }
 
                 allInRange = true;
 
                 for (int i = 0; i < values.length; i++) {
-                    Node node = variableNodes.get(i);
+                    double previous = nodeValues[variableIndices[i]];
 
                     // If any of the variables hasn't converged or if any of the variable values has gone
                     // outside of the bound (-1e6, 1e6), judge nonconvergence and pick another random starting point.
-                    if (!(Math.abs(variableValues.get(node.getName()) - values[i]) < delta)) {
-                        if (!(Math.abs(variableValues.get(node.getName())) < 1e6)) {
+                    if (!(Math.abs(previous - values[i]) < delta)) {
+                        if (!(Math.abs(previous) < 1e6)) {
                             if (count < 1000) {
                                 row--;
                                 continue ROW;
@@ -773,8 +723,8 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
 
                 }
 
-                for (int i = 0; i < variableNodes.size(); i++) {
-                    variableValues.put(variableNodes.get(i).getName(), values[i]);
+                for (int i = 0; i < values.length; i++) {
+                    nodeValues[variableIndices[i]] = values[i];
                 }
 
                 if (allInRange) {
@@ -799,7 +749,7 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
             }
 
             for (int i = 0; i < variableNodes.size(); i++) {
-                double value = variableValues.get(variableNodes.get(i).getName());
+                double value = nodeValues[variableIndices[i]];
 
                 if (isSimulatePositiveDataOnly() && value < 0) {
                     row--;
@@ -858,84 +808,79 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
         if (epsilon <= 0.0) throw new IllegalArgumentException(
                 "Epsilon must be > 0: " + epsilon);
 
-        final Map<String, Double> variableValues = new HashMap<>();
-
-        final Context context = new Context() {
-            public Double getValue(String term) {
-                Double value = parameterValues.get(term);
-
-                if (value != null) {
-                    return value;
-                }
+        final List<Node> nodes = pm.getNodes();
+        final List<Node> variableNodes = pm.getVariableNodes();
+        final int numVars = variableNodes.size();
 
-                value = variableValues.get(term);
+        final CompiledExpression[] expressions = compileNodeExpressions(nodes);
+        final int stackSize = getStackSize(expressions);
+        final int[] variableIndices = new int[numVars];
+        final int[] errorIndices = new int[numVars];
 
-                if (value != null) {
-                    return value;
-                }
+        for (int j = 0; j < numVars; j++) {
+            Node error = pm.getErrorNode(variableNodes.get(j));
 
-                throw new IllegalArgumentException("No value recorded for '" + term + "'");
+            if (error == null) {
+                throw new NullPointerException();
             }
-        };
 
-        final List<Node> variableNodes = pm.getVariableNodes();
+            variableIndices[j] = nodes.indexOf(variableNodes.get(j));
+            errorIndices[j] = nodes.indexOf(error);
+        }
 
-        double[] t1 = new double[variableNodes.size()];
-        double[] t2 = new double[variableNodes.size()];
-        double[] shocks = new double[variableNodes.size()];
-        double[][] all = new double[variableNodes.size()][sampleSize];
+        final double[][] all = new double[numVars][sampleSize];
 
-        // Do the simulation.
-        for (int row = 0; row < sampleSize; row++) {
-            for (int j = 0; j < t1.length; j++) {
-                Node error = pm.getErrorNode(variableNodes.get(j));
+        // Do the simulation. Blocks of rows are simulated in parallel, each from its own stream and each
+        // starting from zero, so the data depend only on the seed of RandomUtil.
+        RandomStreams.forEachBlockOfRandomUtil(sampleSize, SIMULATION_BLOCK_SIZE, (from, to, random) -> {
+            double[] values = new double[nodes.size()];
+            double[] stack = new double[stackSize];
+            double[] t1 = new double[numVars];
+            double[] t2 = new double[numVars];
 
-                if (error == null) {
-                    throw new NullPointerException();
-                }
+            for (int row = from; row < to; row++) {
+                for (int j = 0; j < numVars; j++) {
+                    int error = errorIndices[j];
+                    double value = expressions[error].evaluate(values, stack);
 
-                Expression expression = pm.getNodeExpression(error);
-                double value = expression.evaluate(context);
+                    if (Double.isNaN(value)) {
+                        throw new IllegalArgumentException("Undefined value for expression: "
+                                + pm.getNodeExpression(nodes.get(error)));
+                    }
 
-                if (Double.isNaN(value)) {
-                    throw new IllegalArgumentException("Undefined value for expression: " + expression);
+                    values[error] = value;
                 }
 
-                variableValues.put(error.getName(), value);
-                shocks[j] = value;
-            }
+                for (int i = 0; i < intervalBetweenShocks; i++) {
+                    for (int j = 0; j < numVars; j++) {
+                        int variable = variableIndices[j];
+                        t2[j] = expressions[variable].evaluate(values, stack);
+                        values[variable] = t2[j];
+                    }
 
-            for (int i = 0; i < intervalBetweenShocks; i++) {
-                for (int j = 0; j < t1.length; j++) {
-                    t2[j] = shocks[j];
-                    Node node = variableNodes.get(j);
-                    Expression expression = pm.getNodeExpression(node);
-                    t2[j] = expression.evaluate(context);
-                    variableValues.put(node.getName(), t2[j]);
-                }
+                    boolean converged = true;
 
-                boolean converged = true;
+                    for (int j = 0; j < numVars; j++) {
+                        if (Math.abs(t2[j] - t1[j]) > epsilon) {
+                            converged = false;
+                            break;
+                        }
+                    }
 
-                for (int j = 0; j < t1.length; j++) {
-                    if (Math.abs(t2[j] - t1[j]) > epsilon) {
-                        converged = false;
+                    double[] t3 = t1;
+                    t1 = t2;
+                    t2 = t3;
+
+                    if (converged) {
                         break;
                     }
                 }
 
-                double[] t3 = t1;
-                t1 = t2;
-                t2 = t3;
-
-                if (converged) {
-                    break;
+                for (int j = 0; j < numVars; j++) {
+                    all[j][row] = t1[j];
                 }
             }
-
-            for (int j = 0; j < t1.length; j++) {
-                all[j][row] = t1[j];
-            }
-        }
+        });
 
         List<Node> continuousVars = new ArrayList<>();
 
@@ -1157,6 +1102,38 @@ public class GeneralizedSemIm implements IM, Simulator, TetradSerializable {
         }
     }
 
+    //==============================PRIVATE METHODS=========================//
+
+    /**
+     * Compiles the expression for each of the given nodes, binding the nodes to their indices in the list and
+     * the parameters to their current values.
+     */
+    private CompiledExpression[] compileNodeExpressions(List<Node> nodes) {
+        List<String> names = new ArrayList<>();
+
+        for (Node node : nodes) {
+            names.add(node.getName());
+        }
+
+        CompiledExpression[] expressions = new CompiledExpression[nodes.size()];
+
+        for (int i = 0; i < nodes.size(); i++) {
+            expressions[i] = CompiledExpression.compile(pm.getNodeExpression(nodes.get(i)), names, parameterValues);
+        }
+
+        return expressions;
+    }
+
+    private static int getStackSize(CompiledExpression[] expressions) {
+        int stackSize = 1;
+
+        for (CompiledExpression expression : expressions) {
+            stackSize = Math.max(stackSize, expression.getStackSize());
+        }
+
+        return stackSize;
+    }
+
     private boolean isSimulatePositiveDataOnly() {
         return simulatePositiveDataOnly;
     }
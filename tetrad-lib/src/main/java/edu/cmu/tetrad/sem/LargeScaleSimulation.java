@@ -26,10 +26,11 @@ import edu.cmu.tetrad.util.*;
 import edu.cmu.tetrad.util.dist.Distribution;
 import edu.cmu.tetrad.util.dist.Split;
 import edu.cmu.tetrad.util.dist.Uniform;
-import java.io.PrintStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import static java.lang.Math.sqrt;
 import java.util.*;
-import java.util.concurrent.RecursiveTask;
 import org.apache.commons.collections4.map.HashedMap;
 import org.apache.commons.math3.distribution.*;
 import org.apache.commons.math3.random.Well1024a;
@@ -44,6 +45,19 @@ public final class LargeScaleSimulation {
 
     static final long serialVersionUID = 23L;
 
+    /**
+     * The formats simulated data may be streamed to. BINARY holds the number of
+     * variables, the number of rows and the variable names, then groups of rows,
+     * each a row count followed by its values column by column.
+     */
+    public enum Format {TEXT, BINARY}
+
+    // Identifies files in the BINARY format.
+    private static final int BINARY_MAGIC = 0x54455344;
+
+    // The number of rows simulated and discarded before recording data for time lag graphs.
+    private static final int BURN_IN = 200;
+
     private int[][] parents;
     private double[][] coefs;
     private double[] errorVars;
@@ -60,7 +74,7 @@ public final class LargeScaleSimulation {
     private PrintStream out = System.out;
     private int[] tierIndices;
     private boolean verbose = false;
-    private long seed = new Date().getTime();
+    private long seed = RandomUtil.getInstance().nextLong();
     private boolean alreadySetUp = false;
     private boolean includePositiveCoefs = true;
     private boolean includeNegativeCoefs = true;
@@ -69,6 +83,7 @@ public final class LargeScaleSimulation {
     private double betaLeftValue;
     private double betaRightValue;
     private double selfLoopCoef = 0.0;
+    private int blockSize = 100;
 
     //=============================CONSTRUCTORS============================//
     public LargeScaleSimulation(Graph graph) {
@@ -103,95 +118,123 @@ public final class LargeScaleSimulation {
     /**
      * This simulates data by picking random values for the exogenous terms and
      * percolating this information down through the SEM, assuming it is
-     * acyclic. Works, but will hang for cyclic models, and is very slow for
-     * large numbers of variables (probably due to the heavyweight lookups of
-     * various values--could be improved). The model must be acyclic, or else
-     * this will spin.
+     * acyclic. The model must be acyclic, or else this will spin. Blocks of rows
+     * are simulated in parallel, each from its own stream, so the data depend
+     * only on the seed and the block size.
      */
     public DataSet simulateDataRecursive(int sampleSize) {
-        if (tierIndices == null) {
-            List<Node> nodes = graph.getNodes();
-            tierIndices = new int[nodes.size()];
-            for (int j = 0; j < nodes.size(); j++) {
-                tierIndices[j] = j;
-            }
-        }
+        setupRecursive();
 
-        int size = variableNodes.size();
-        setupModel(size);
+        if (graph instanceof TimeLagGraph) {
+            sampleSize += BURN_IN;
+        }
 
-        class SimulateTask extends RecursiveTask<Boolean> {
+        final double[][] all = new double[variableNodes.size()][sampleSize];
 
-            private final int from;
-            private final int to;
-            private double[][] all;
-            private int chunk;
+        new RandomStreams(++seed).forEachBlock(sampleSize, blockSize,
+                (from, to, random) -> simulateRows(from, to, 0, all, random));
 
-            public SimulateTask(int from, int to, double[][] all, int chunk) {
-                this.from = from;
-                this.to = to;
-                this.all = all;
-                this.chunk = chunk;
+        if (graph instanceof TimeLagGraph) {
+            int[] rem = new int[BURN_IN];
+            for (int i = 0; i < BURN_IN; ++i) {
+                rem[i] = i;
             }
+            BoxDataSet dat = new BoxDataSet(new VerticalDoubleDataBox(all), variableNodes);
+            dat.removeRows(rem);
+            return dat;
+        }
 
-            @Override
-            protected Boolean compute() {
-                if (from - to > chunk) {
-                    int mid = from + to / 2;
-                    SimulateTask left = new SimulateTask(from, mid, all, chunk);
-                    SimulateTask right = new SimulateTask(mid, to, all, chunk);
-                    left.fork();
-                    right.compute();
-                    left.join();
-                    return true;
-                } else {
-                    for (int i = from; i < to; i++) {
-                        NormalDistribution normal = new NormalDistribution(new Well1024a(++seed), 0, 1);//sqrt(errorVars[col]));
-                        normal.sample();
+        return new BoxDataSet(new VerticalDoubleDataBox(all), variableNodes);
+    }
 
-                        if (verbose && (i + 1) % 50 == 0) {
-                            System.out.println("Simulating " + (i + 1));
-                        }
+    /**
+     * Simulates data as simulateDataRecursive(int) does, with the same seed giving
+     * the same data, but writes the rows to the given file as they are simulated
+     * rather than holding them all in memory. A round of blocks, one for each
+     * thread of the pool, is simulated at a time, so about parallelism * block size
+     * * number of variables values are held at once.
+     *
+     * @param sampleSize The number of rows to simulate.
+     * @param file       The file to write.
+     * @param format     TEXT for tab-delimited text with a header of variable names,
+     *                   BINARY for the format read by loadBinary.
+     */
+    public void simulateDataRecursive(int sampleSize, File file, Format format) throws IOException {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be >= 1: " + sampleSize);
+        }
 
-                        for (int col : tierIndices) {
-                            double value = normal.sample() * sqrt(errorVars[col]);
+        setupRecursive();
 
-                            for (int j = 0; j < parents[col].length; j++) {
-                                value += all[parents[col][j]][i] * coefs[col][j];
-                            }
+        final int burnIn = graph instanceof TimeLagGraph ? BURN_IN : 0;
+        final int numVars = variableNodes.size();
+        int numRows = sampleSize + burnIn;
+        int numBlocks = (numRows - 1) / blockSize + 1;
+        int blocksPerRound = ForkJoinPoolInstance.getInstance().getPool().getParallelism();
+        final double[][][] buffers = new double[Math.min(blocksPerRound, numBlocks)][numVars][blockSize];
+        RandomStreams streams = new RandomStreams(++seed);
 
-                            value += means[col];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            writeHeader(out, sampleSize, format);
 
-                            all[col][i] = value;
-                        }
-                    }
+            for (int first = 0; first < numBlocks; first += blocksPerRound) {
+                final int firstRow = first * blockSize;
+                int last = Math.min(first + blocksPerRound, numBlocks);
+                int lastRow = Math.min(last * blockSize, numRows);
+
+                streams.forEachBlock(firstRow, lastRow, blockSize, (from, to, random) -> {
+                    double[][] buffer = buffers[(from - firstRow) / blockSize];
+                    simulateRows(from, to, from, buffer, random);
+                });
 
-                    return true;
+                for (int b = first; b < last; b++) {
+                    int from = b * blockSize;
+                    int to = Math.min(from + blockSize, numRows);
+                    int skip = Math.max(burnIn - from, 0);
+
+                    if (skip < to - from) {
+                        writeRows(out, buffers[b - first], skip, to - from, format);
+                    }
                 }
             }
         }
+    }
 
-        if (graph instanceof TimeLagGraph) {
-            sampleSize += 200;
-        }
+    /**
+     * Loads a data set written by simulateDataRecursive(int, File, Format) in the
+     * BINARY format.
+     */
+    public static DataSet loadBinary(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("Not a simulated data file: " + file);
+            }
 
-        double[][] all = new double[variableNodes.size()][sampleSize];
+            int numVars = in.readInt();
+            int numRows = in.readInt();
+            List<Node> variables = new ArrayList<>();
 
-        int chunk = sampleSize / ForkJoinPoolInstance.getInstance().getPool().getParallelism() + 1;
+            for (int j = 0; j < numVars; j++) {
+                variables.add(new ContinuousVariable(in.readUTF()));
+            }
 
-        ForkJoinPoolInstance.getInstance().getPool().invoke(new SimulateTask(0, sampleSize, all, chunk));
+            double[][] all = new double[numVars][numRows];
+            int row = 0;
 
-        if (graph instanceof TimeLagGraph) {
-            int[] rem = new int[200];
-            for (int i = 0; i < 200; ++i) {
-                rem[i] = i;
+            while (row < numRows) {
+                int groupSize = in.readInt();
+
+                for (int j = 0; j < numVars; j++) {
+                    for (int i = 0; i < groupSize; i++) {
+                        all[j][row + i] = in.readDouble();
+                    }
+                }
+
+                row += groupSize;
             }
-            BoxDataSet dat = new BoxDataSet(new VerticalDoubleDataBox(all), variableNodes);
-            dat.removeRows(rem);
-            return dat;
-        }
 
-        return new BoxDataSet(new VerticalDoubleDataBox(all), variableNodes);
+            return new BoxDataSet(new VerticalDoubleDataBox(all), variables);
+        }
     }
 
     /**
@@ -209,26 +252,26 @@ public final class LargeScaleSimulation {
         int size = variableNodes.size();
         setupModel(size);
 
-        NormalDistribution normal = new NormalDistribution(new Well1024a(++seed), 0, 1);
-
         TetradMatrix B = new TetradMatrix(getCoefficientMatrix());
-        TetradMatrix iMinusBInv = TetradAlgebra.identity(B.rows()).minus(B).inverse();
+        final TetradMatrix iMinusBInv = TetradAlgebra.identity(B.rows()).minus(B).inverse();
 
-        double[][] all = new double[variableNodes.size()][sampleSize];
+        final double[][] all = new double[variableNodes.size()][sampleSize];
 
-        for (int row = 0; row < sampleSize; row++) {
-            TetradVector e = new TetradVector(B.rows());
+        new RandomStreams(++seed).forEachBlock(sampleSize, blockSize, (from, to, random) -> {
+            for (int row = from; row < to; row++) {
+                TetradVector e = new TetradVector(iMinusBInv.rows());
 
-            for (int j = 0; j < e.size(); j++) {
-                e.set(j, normal.sample() * sqrt(errorVars[j]));
-            }
+                for (int j = 0; j < e.size(); j++) {
+                    e.set(j, random.nextNormal(0, 1) * sqrt(errorVars[j]));
+                }
 
-            TetradVector x = iMinusBInv.times(e);
+                TetradVector x = iMinusBInv.times(e);
 
-            for (int j = 0; j < x.size(); j++) {
-                all[j][row] = x.get(j);
+                for (int j = 0; j < x.size(); j++) {
+                    all[j][row] = x.get(j);
+                }
             }
-        }
+        });
 
         List<Node> continuousVars = new ArrayList<>();
 
@@ -415,6 +458,95 @@ public final class LargeScaleSimulation {
         return saveLatentVars ? boxDataSet : DataUtils.restrictToMeasured(boxDataSet);
     }
 
+    private void setupRecursive() {
+        if (tierIndices == null) {
+            List<Node> nodes = graph.getNodes();
+            tierIndices = new int[nodes.size()];
+            for (int j = 0; j < nodes.size(); j++) {
+                tierIndices[j] = j;
+            }
+        }
+
+        setupModel(variableNodes.size());
+    }
+
+    // Simulates rows from..to - 1 into columns[col][row - offset].
+    private void simulateRows(int from, int to, int offset, double[][] columns, RandomUtil random) {
+        for (int i = from; i < to; i++) {
+            if (verbose && (i + 1) % 50 == 0) {
+                System.out.println("Simulating " + (i + 1));
+            }
+
+            int row = i - offset;
+
+            for (int col : tierIndices) {
+                double value = random.nextNormal(0, 1) * sqrt(errorVars[col]);
+
+                for (int j = 0; j < parents[col].length; j++) {
+                    value += columns[parents[col][j]][row] * coefs[col][j];
+                }
+
+                value += means[col];
+
+                columns[col][row] = value;
+            }
+        }
+    }
+
+    private void writeHeader(OutputStream out, int sampleSize, Format format) throws IOException {
+        if (format == Format.TEXT) {
+            StringBuilder buf = new StringBuilder();
+
+            for (int j = 0; j < variableNodes.size(); j++) {
+                if (j > 0) buf.append('\t');
+                buf.append(variableNodes.get(j).getName());
+            }
+
+            buf.append('\n');
+            out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(BINARY_MAGIC);
+            data.writeInt(variableNodes.size());
+            data.writeInt(sampleSize);
+
+            for (Node node : variableNodes) {
+                data.writeUTF(node.getName());
+            }
+
+            data.flush();
+        }
+    }
+
+    // Writes rows from..to - 1 of the given block, stored column by column.
+    private void writeRows(OutputStream out, double[][] block, int from, int to, Format format) throws IOException {
+        if (format == Format.TEXT) {
+            StringBuilder buf = new StringBuilder();
+
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < block.length; j++) {
+                    if (j > 0) buf.append('\t');
+                    buf.append(block[j][i]);
+                }
+
+                buf.append('\n');
+            }
+
+            out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            ByteBuffer bytes = ByteBuffer.allocate(4 + 8 * block.length * (to - from));
+            bytes.putInt(to - from);
+
+            for (double[] column : block) {
+                for (int i = from; i < to; i++) {
+                    bytes.putDouble(column[i]);
+                }
+            }
+
+            out.write(bytes.array());
+        }
+    }
+
     private void setupModel(int size) {
         if (alreadySetUp) {
             return;
@@ -542,6 +674,34 @@ public final class LargeScaleSimulation {
         this.meanHigh = meanHigh;
     }
 
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed from which the random streams for simulating data are derived. By default it is drawn from
+     * RandomUtil, so the simulated data are reproducible whenever the seed of RandomUtil has been set.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the number of rows simulated from each random stream, by default 100.
+     * The data depend on the block size as well as the seed.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be >= 1: " + blockSize);
+        }
+
+        this.blockSize = blockSize;
+    }
+
     public void setOut(PrintStream out) {
         this.out = out;
     }
@@ -144,6 +144,20 @@ public class Mapping implements TetradSerializable {
         return a.get(i, j);
     }
 
+    /**
+     * @return the left-hand coordinate i of the element a[i][j] this maps.
+     */
+    public int getI() {
+        return i;
+    }
+
+    /**
+     * @return the right-hand coordinate j of the element a[i][j] this maps.
+     */
+    public int getJ() {
+        return j;
+    }
+
     /**
      * @return the paramter that this mapping maps.
      */
@@ -320,7 +320,7 @@ public final class SemEstimator implements TetradSerializable {
 
         if (containsFixedParam() || getSemPm().getGraph().existsDirectedCycle() ||
                 containsCovarParam(getSemPm())) {
-            optimizer = new SemOptimizerPowell();
+            optimizer = new SemOptimizerLbfgs();
         } else if (containsLatent) {
             optimizer = new SemOptimizerEm();
         } else {
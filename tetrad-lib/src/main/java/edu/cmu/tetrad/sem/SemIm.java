@@ -70,6 +70,11 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
 
     static final long serialVersionUID = 23L;
 
+    /**
+     * The number of rows simulated from each random stream.
+     */
+    private static final int SIMULATION_BLOCK_SIZE = 1000;
+
     /**
      * The Sem PM containing the graph and the freeParameters to be estimated.
      * For now a defensive copy of this is not being constructed, since it is
@@ -1089,6 +1094,97 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
         }
     }
 
+    /**
+     * The gradient of getScore() with respect to the free parameters, in the
+     * order in which they appear in getFreeParameters(). With A = (I - B')^-1
+     * and Sigma = A Omega A', both score functions have differential
+     * tr(W dSigma) for a symmetric W over the measured variables (for F_ML,
+     * W = Sigma^-1 (Sigma - S) Sigma^-1; for F_GLS, W = S^-1 (Sigma S^-1 - I)),
+     * so the derivative by an error covariance Omega(i, j) is (A'WA)(i, j),
+     * doubled off the diagonal, and the derivative by an edge coefficient
+     * B(i, j) is 2 (Sigma W A)(i, j).
+     *
+     * @return the gradient, or null if it is undefined at the getModel
+     * parameter values.
+     */
+    public double[] getScoreGradient() {
+        if (this.sampleCovarC == null) {
+            throw new NullPointerException("Sample covar has not been set.");
+        }
+
+        int numVars = getVariableNodes().size();
+        int numMeasured = getMeasuredNodes().size();
+
+        int[] measured = new int[numMeasured];
+
+        for (int i = 0; i < numMeasured; i++) {
+            measured[i] = getVariableNodes().indexOf(getMeasuredNodes().get(i));
+        }
+
+        TetradMatrix a;
+        TetradMatrix w;
+
+        try {
+            a = TetradMatrix.identity(numVars).minus(edgeCoef().transpose()).inverse();
+        } catch (Exception e) {
+            return null;
+        }
+
+        TetradMatrix sigma = a.times(errCovar()).times(a.transpose());
+        TetradMatrix sigmaMeas = sigma.getSelection(measured, measured);
+
+        if (scoreType == ScoreType.Fml) {
+            try {
+                TetradMatrix sigmaInv = sigmaMeas.inverse();
+                w = sigmaInv.minus(sigmaInv.times(this.sampleCovarC).times(sigmaInv));
+            } catch (Exception e) {
+                return null;
+            }
+        } else if (scoreType == ScoreType.Fgls) {
+            if (this.sampleCovInv == null) {
+                this.sampleCovInv = this.sampleCovarC.inverse();
+            }
+
+            w = sampleCovInv.times(sigmaMeas).times(sampleCovInv).minus(sampleCovInv);
+        } else {
+            throw new IllegalStateException("Unrecognized score type; " + scoreType);
+        }
+
+        TetradMatrix wAll = new TetradMatrix(numVars, numVars);
+
+        for (int i = 0; i < numMeasured; i++) {
+            for (int j = 0; j < numMeasured; j++) {
+                wAll.set(measured[i], measured[j], w.get(i, j));
+            }
+        }
+
+        TetradMatrix wa = wAll.times(a);
+        TetradMatrix errCovarGradient = a.transpose().times(wa);
+        TetradMatrix edgeCoefGradient = sigma.times(wa);
+
+        double[] gradient = new double[freeMappings().size()];
+
+        for (int k = 0; k < freeMappings().size(); k++) {
+            Mapping mapping = freeMappings().get(k);
+            int i = mapping.getI();
+            int j = mapping.getJ();
+
+            ParamType type = mapping.getParameter().getType();
+
+            if (type == ParamType.COEF) {
+                gradient[k] = 2 * edgeCoefGradient.get(i, j);
+            } else if (type == ParamType.VAR) {
+                gradient[k] = errCovarGradient.get(i, i);
+            } else if (type == ParamType.COVAR) {
+                gradient[k] = 2 * errCovarGradient.get(i, j);
+            } else {
+                throw new IllegalStateException("Unexpected free parameter: " + mapping.getParameter());
+            }
+        }
+
+        return gradient;
+    }
+
 //    private double getFml1() {
 //        TetradMatrix sigma; // Do this once.
 //
@@ -1321,6 +1417,10 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
         this.scoreType = scoreType;
     }
 
+    public ScoreType getScoreType() {
+        return scoreType;
+    }
+
     private DataSet simulateTimeSeries(int sampleSize, boolean latentDataSaved) {
         SemGraph semGraph = new SemGraph(semPm.getGraph());
         semGraph.setShowErrorTerms(true);
@@ -1392,13 +1492,8 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
      * @param seed a seed for random number generation
      */
     @Override
-    public DataSet simulateData(int sampleSize, long seed, boolean latentDataSaved) {
-        RandomUtil random = RandomUtil.getInstance();
-        long _seed = random.getSeed();
-        random.setSeed(seed);
-        DataSet dataSet = simulateData(sampleSize, latentDataSaved);
-        random.revertSeed(_seed);
-        return dataSet;
+    public DataSet simulateData(final int sampleSize, long seed, final boolean latentDataSaved) {
+        return RandomStreams.callWithSeed(seed, () -> simulateData(sampleSize, latentDataSaved));
     }
 
     /**
@@ -1993,45 +2088,48 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
 
         // Calculate inv(I - edgeCoefC)
         TetradMatrix B = edgeCoef().transpose();
-        TetradMatrix iMinusBInv = TetradAlgebra.identity(B.rows()).minus(B).inverse();
+        final TetradMatrix iMinusBInv = TetradAlgebra.identity(B.rows()).minus(B).inverse();
 
         // Pick error values e, for each calculate inv * e.
-        TetradMatrix sim = new TetradMatrix(sampleSize, numVars);
+        final double[][] sim = new double[sampleSize][numVars];
 
         // Generate error data with the right variances and covariances, then override this
         // with error data for variables that have special distributions defined. Not ideal,
         // but not sure what else to do at the moment. It's better than not taking covariances
         // into account!
-        TetradMatrix cholesky = MatrixUtils.choleskyC(errCovar());
+        final TetradMatrix cholesky = MatrixUtils.choleskyC(errCovar());
 
-        ROW:
-        for (int row = 0; row < sampleSize; row++) {
+        // Blocks of rows are simulated in parallel, each from its own stream, so the data depend only on
+        // the seed of RandomUtil. A sample of one block is drawn from RandomUtil itself, as it always was.
+        RandomStreams.forEachBlockOfRandomUtil(sampleSize, SIMULATION_BLOCK_SIZE, (from, to, random) -> {
+            ROW:
+            for (int row = from; row < to; row++) {
 
-            // Step 1. Generate normal samples.
-            TetradVector exoData = new TetradVector(cholesky.rows());
-//
-            for (int i = 0; i < exoData.size(); i++) {
-                exoData.set(i, RandomUtil.getInstance().nextNormal(0, 1));
-            }
+                // Step 1. Generate normal samples.
+                TetradVector exoData = new TetradVector(cholesky.rows());
 
-            // Step 2. Multiply by cholesky to get correct covariance.
-            TetradVector e = cholesky.times(exoData);
+                for (int i = 0; i < exoData.size(); i++) {
+                    exoData.set(i, random.nextNormal(0, 1));
+                }
 
-            // Step 3. Calculate the new rows in the data.
-            TetradVector sample = iMinusBInv.times(e);
-            sim.assignRow(row, sample);
+                // Step 2. Multiply by cholesky to get correct covariance.
+                TetradVector e = cholesky.times(exoData);
 
-            for (int col = 0; col < sample.size(); col++) {
-                double value = sim.get(row, col) + variableMeans[col];
+                // Step 3. Calculate the new rows in the data.
+                TetradVector sample = iMinusBInv.times(e);
 
-                if (isSimulatedPositiveDataOnly() && value < 0) {
-                    row--;
-                    continue ROW;
-                }
+                for (int col = 0; col < sample.size(); col++) {
+                    double value = sample.get(col) + variableMeans[col];
+
+                    if (isSimulatedPositiveDataOnly() && value < 0) {
+                        row--;
+                        continue ROW;
+                    }
 
-                sim.set(row, col, value);
+                    sim[row][col] = value;
+                }
             }
-        }
+        });
 
         List<Node> continuousVars = new ArrayList<>();
 
@@ -2042,7 +2140,7 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
         }
 
 //        DataSet fullDataSet = ColtDataSet.makeContinuousData(continuousVars, sim);
-        DataSet fullDataSet = new BoxDataSet(new DoubleDataBox(sim.toArray()), continuousVars);
+        DataSet fullDataSet = new BoxDataSet(new DoubleDataBox(sim), continuousVars);
 
         if (latentDataSaved) {
             return fullDataSet;
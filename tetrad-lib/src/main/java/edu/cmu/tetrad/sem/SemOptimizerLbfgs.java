@@ -0,0 +1,401 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.sem;
+
+import edu.cmu.tetrad.data.DataUtils;
+import edu.cmu.tetrad.util.RandomStreams;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradLogger;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.util.List;
+
+/**
+ * Optimizes a SEM by minimizing its score (F_ML or F_GLS) with the limited-memory BFGS quasi-Newton method
+ * (Nocedal and Wright, Numerical Optimization, ch. 7), using the analytic gradient of the score with respect to
+ * the free parameters given by SemIm.getScoreGradient(). Steps that leave a variance nonpositive or the score
+ * undefined are cut back by the line search.
+ * <p>
+ * The first run starts from the parameter values of the given SEM, and each restart from a random point. Runs
+ * are independent and are done in parallel; restart r draws its starting point from stream r of streams seeded
+ * from RandomUtil, and the run with the lowest score wins, ties going to the earliest, so the result does not
+ * depend on the number of threads.
+ */
+public class SemOptimizerLbfgs implements SemOptimizer {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The number of corrections kept to approximate the inverse Hessian.
+     */
+    private static final int NUM_CORRECTIONS = 10;
+
+    /**
+     * The sufficient decrease constant of the Armijo condition.
+     */
+    private static final double ARMIJO = 1e-4;
+
+    /**
+     * The maximum number of step cuts per line search.
+     */
+    private static final int MAX_STEP_CUTS = 60;
+
+    private int numRestarts = 0;
+
+    /**
+     * The maximum number of iterations per run.
+     */
+    private int maxIterations = 1000;
+
+    /**
+     * A run stops when the largest component of the gradient is below this value, or when an iteration reduces
+     * the score by less than this value times |score|.
+     */
+    private double tolerance = 1e-10;
+
+    /**
+     * True if runs should be done in parallel.
+     */
+    private boolean parallelized = true;
+
+    //=========================CONSTRUCTORS============================//
+
+    /**
+     * Blank constructor.
+     */
+    public SemOptimizerLbfgs() {
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static SemOptimizerLbfgs serializableInstance() {
+        return new SemOptimizerLbfgs();
+    }
+
+    //=========================PUBLIC METHODS==========================//
+
+    public void optimize(SemIm semIm) {
+        TetradMatrix sampleCovar = semIm.getSampleCovar();
+
+        if (sampleCovar == null) {
+            throw new NullPointerException("Sample covar has not been set.");
+        }
+
+        if (DataUtils.containsMissingValue(sampleCovar)) {
+            throw new IllegalArgumentException("Please remove or impute missing values.");
+        }
+
+        final int numRuns = numRestarts + 1;
+        final SemIm[] sems = new SemIm[numRuns];
+
+        for (int r = 0; r < numRuns; r++) {
+            sems[r] = new SemIm(semIm);
+        }
+
+        final double[][] points = new double[numRuns][];
+        final double[] values = new double[numRuns];
+
+        RandomStreams streams = RandomStreams.fromRandomUtil();
+        streams.setParallelized(parallelized);
+
+        streams.forEachBlock(numRuns, 1, (from, to, random) -> {
+            Objective objective = new Objective(sems[from]);
+            double[] start = sems[from].getFreeParamValues();
+
+            if (from > 0 || Double.isInfinite(objective.value(start, new double[start.length]))) {
+                start = objective.randomPoint(random);
+            }
+
+            points[from] = minimize(objective, start);
+            values[from] = points[from] == null ? Double.POSITIVE_INFINITY
+                    : objective.value(points[from], new double[start.length]);
+        });
+
+        int best = -1;
+
+        for (int r = 0; r < numRuns; r++) {
+            TetradLogger.getInstance().log("details", "Trial " + (r + 1) + " score = " + values[r]);
+
+            if (values[r] < Double.POSITIVE_INFINITY && (best == -1 || values[r] < values[best])) {
+                best = r;
+            }
+        }
+
+        if (best == -1) {
+            throw new IllegalStateException("Could not find parameter values at which the score is defined.");
+        }
+
+        semIm.setFreeParamValues(points[best]);
+    }
+
+    public String toString() {
+        return "Sem Optimizer L-BFGS";
+    }
+
+    @Override
+    public void setNumRestarts(int numRestarts) {
+        this.numRestarts = numRestarts;
+    }
+
+    @Override
+    public int getNumRestarts() {
+        return numRestarts;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) throw new IllegalArgumentException("Max iterations must be >= 1: " + maxIterations);
+        this.maxIterations = maxIterations;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        if (!(tolerance >= 0)) throw new IllegalArgumentException("Tolerance must be >= 0: " + tolerance);
+        this.tolerance = tolerance;
+    }
+
+    public boolean isParallelized() {
+        return parallelized;
+    }
+
+    public void setParallelized(boolean parallelized) {
+        this.parallelized = parallelized;
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    /**
+     * Minimizes the objective from the given start, which must be a point at which it is defined.
+     *
+     * @return the minimizing point, or null if the objective is undefined at the start.
+     */
+    private double[] minimize(Objective objective, double[] start) {
+        int n = start.length;
+
+        double[] x = start.clone();
+        double[] g = new double[n];
+        double f = objective.value(x, g);
+
+        if (Double.isInfinite(f)) return null;
+
+        double[][] s = new double[NUM_CORRECTIONS][n];
+        double[][] y = new double[NUM_CORRECTIONS][n];
+        double[] rho = new double[NUM_CORRECTIONS];
+        double[] alpha = new double[NUM_CORRECTIONS];
+        int numStored = 0;
+        int newest = -1;
+
+        double[] d = new double[n];
+        double[] xNew = new double[n];
+        double[] gNew = new double[n];
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            if (maxAbs(g) <= tolerance) break;
+
+            // Two-loop recursion: d = -H g.
+            for (int k = 0; k < n; k++) d[k] = -g[k];
+
+            for (int m = 0; m < numStored; m++) {
+                int c = (newest - m + NUM_CORRECTIONS) % NUM_CORRECTIONS;
+                alpha[c] = rho[c] * dot(s[c], d);
+                for (int k = 0; k < n; k++) d[k] -= alpha[c] * y[c][k];
+            }
+
+            if (numStored > 0) {
+                double gamma = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+                for (int k = 0; k < n; k++) d[k] *= gamma;
+            } else {
+                double scale = Math.min(1.0, 1.0 / maxAbs(g));
+                for (int k = 0; k < n; k++) d[k] *= scale;
+            }
+
+            for (int m = numStored - 1; m >= 0; m--) {
+                int c = (newest - m + NUM_CORRECTIONS) % NUM_CORRECTIONS;
+                double beta = rho[c] * dot(y[c], d);
+                for (int k = 0; k < n; k++) d[k] += (alpha[c] - beta) * s[c][k];
+            }
+
+            double slope = dot(g, d);
+
+            if (!(slope < 0)) {
+                if (numStored == 0) break;
+
+                // The approximation has lost positive definiteness; start over from steepest descent.
+                numStored = 0;
+                iteration--;
+                continue;
+            }
+
+            // Backtracking line search for the Armijo condition.
+            double step = 1.0;
+            double fNew = Double.POSITIVE_INFINITY;
+            boolean found = false;
+
+            for (int cut = 0; cut < MAX_STEP_CUTS; cut++) {
+                for (int k = 0; k < n; k++) xNew[k] = x[k] + step * d[k];
+                fNew = objective.value(xNew, gNew);
+
+                if (fNew <= f + ARMIJO * step * slope) {
+                    found = true;
+                    break;
+                }
+
+                if (Double.isInfinite(fNew)) {
+                    step *= 0.5;
+                } else {
+
+                    // Minimizer of the quadratic through f, the slope and fNew, kept within [0.1, 0.5] of the step.
+                    double q = -slope * step * step / (2 * (fNew - f - slope * step));
+                    step = Math.max(0.1 * step, Math.min(0.5 * step, q));
+                }
+            }
+
+            if (!found) {
+                if (numStored == 0) break;
+                numStored = 0;
+                iteration--;
+                continue;
+            }
+
+            double ys = 0.0;
+            double yy = 0.0;
+            int next = (newest + 1) % NUM_CORRECTIONS;
+
+            for (int k = 0; k < n; k++) {
+                s[next][k] = xNew[k] - x[k];
+                y[next][k] = gNew[k] - g[k];
+                ys += s[next][k] * y[next][k];
+                yy += y[next][k] * y[next][k];
+            }
+
+            // Skip updates that would violate the curvature condition.
+            if (ys > 1e-12 * yy && yy > 0) {
+                rho[next] = 1.0 / ys;
+                newest = next;
+                numStored = Math.min(numStored + 1, NUM_CORRECTIONS);
+            }
+
+            boolean converged = f - fNew <= tolerance * Math.abs(f);
+
+            System.arraycopy(xNew, 0, x, 0, n);
+            System.arraycopy(gNew, 0, g, 0, n);
+            f = fNew;
+
+            if (converged) break;
+        }
+
+        return x;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int k = 0; k < a.length; k++) sum += a[k] * b[k];
+        return sum;
+    }
+
+    private static double maxAbs(double[] a) {
+        double max = 0.0;
+        for (double v : a) max = Math.max(max, Math.abs(v));
+        return max;
+    }
+
+    /**
+     * The score of a SEM as a function of its free parameters, with its gradient.
+     */
+    private static class Objective {
+        private final SemIm sem;
+        private final List<Parameter> freeParameters;
+
+        private Objective(SemIm sem) {
+            this.sem = sem;
+            this.freeParameters = sem.getFreeParameters();
+        }
+
+        /**
+         * @return the score at the given parameter values, placing its gradient in the given array, or
+         * positive infinity if a variance is nonpositive or the score is undefined there.
+         */
+        private double value(double[] parameters, double[] gradient) {
+            for (int i = 0; i < parameters.length; i++) {
+                if (Double.isNaN(parameters[i]) || Double.isInfinite(parameters[i])) {
+                    return Double.POSITIVE_INFINITY;
+                }
+
+                if (freeParameters.get(i).getType() == ParamType.VAR && parameters[i] <= 0.0) {
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+
+            sem.setFreeParamValues(parameters);
+
+            double score = sem.getScore();
+
+            if (Double.isNaN(score) || Double.isInfinite(score)) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            double[] _gradient = sem.getScoreGradient();
+
+            if (_gradient == null) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            for (double v : _gradient) {
+                if (Double.isNaN(v) || Double.isInfinite(v)) {
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+
+            System.arraycopy(_gradient, 0, gradient, 0, gradient.length);
+            return score;
+        }
+
+        /**
+         * @return a random point at which the score is defined, with variances drawn from U(0, 1) and other
+         * parameters from U(-1, 1), as in SemOptimizerPowell.
+         */
+        private double[] randomPoint(RandomUtil random) {
+            double[] p = new double[freeParameters.size()];
+            double[] gradient = new double[p.length];
+
+            for (int trial = 0; trial < 1000; trial++) {
+                for (int i = 0; i < p.length; i++) {
+                    if (freeParameters.get(i).getType() == ParamType.VAR) {
+                        p[i] = random.nextUniform(0, 1);
+                    } else {
+                        p[i] = random.nextUniform(-1, 1);
+                    }
+                }
+
+                if (value(p, gradient) < Double.POSITIVE_INFINITY) break;
+            }
+
+            return p;
+        }
+    }
+}
@@ -21,9 +21,14 @@
 
 package edu.cmu.tetrad.sem;
 
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.graph.SemGraph;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 import edu.cmu.tetrad.util.TetradMatrix;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * <p>Includes methods for estimating the standard errors of the freeParameters of
@@ -42,12 +47,20 @@ public class SemStdErrorEstimator {
     private static final int NTAB = 10;
     private static final double SAFE = 2.0;
 
+    // The number of rows of the information matrix computed per task.
+    private static final int CHUNK_SIZE = 16;
+
     /**
      * The array in which the standard errors of the freeParameters are stored.
      */
     private double[] stdErrs = null;
 //    private SemIm semIm;
 
+    /**
+     * True if the information matrix of a SemIm is computed in closed form.
+     */
+    private boolean analytic = true;
+
     /**
      * Blank constructor.
      */
@@ -60,7 +73,10 @@ public class SemStdErrorEstimator {
      * 135 of Bollen) with respect to the free freeParameters of the estimated SEM.
      * It then computes the inverse of the the information matrix and calculates
      * the standard errors of the freeParameters as the square roots of the diagonal
-     * elements of that matrix.</p>
+     * elements of that matrix.</p> <p>For a SemIm the expected information
+     * matrix is computed in closed form unless setAnalytic(false) has been
+     * called; otherwise, or if that fails, the Hessian is estimated by numeric
+     * second differences.</p>
      *
      * @param estSem the estimated SEM.
      */
@@ -80,6 +96,256 @@ public class SemStdErrorEstimator {
 //        this.semIm = estSem;
         estSem.setParameterBoundsEnforced(false);
         double[] paramsOriginal = estSem.getFreeParamValues();
+        int n = estSem.getNumFreeParams();
+
+        TetradMatrix hess = null;
+
+        if (analytic && estSem instanceof SemIm) {
+            hess = expectedInformation((SemIm) estSem);
+        }
+
+        if (hess == null) {
+            hess = numericInformation(estSem, paramsOriginal);
+        }
+
+        ROWS:
+        for (int i = 0; i < hess.rows(); i++) {
+            for (int j = 0; j < hess.columns(); j++) {
+                if (hess.get(i, j) != 0) {
+                    continue ROWS;
+                }
+            }
+
+//            System.out.println("Zero row for " + freeParameters.get(i));
+        }
+
+        //The diagonal elements of the inverse of the information matrix are the
+        //squares of the standard errors of the freeParameters.  Their order is the
+        //same as in the array of free parameter values stored in paramsOriginal.
+        try {
+
+//            TetradMatrix hessInv = hess.inverse();
+            TetradMatrix hessInv = hess.ginverse();
+
+//            System.out.println("Inverse: " + hessInv);
+
+//            for (int i = 0; i < freeParameters.size(); i++) {
+//                System.out.println(i + " = " + freeParameters.get(i));
+//            }
+
+            stdErrs = new double[n];
+
+            //Hence the standard errors of the freeParameters are the square roots of the
+            //diagonal elements of the inverse of the information matrix.
+            for (int i = 0; i < n; i++) {
+                double v = Math.sqrt((2.0 / (estSem.getSampleSize() - 1)) * hessInv.get(i, i));
+
+                if (v == 0) {
+                    System.out.println("v = " + v + " hessInv(i, i) = " + hessInv.get(i, i));
+                }
+
+                if (v == 0) {
+                    stdErrs[i] = Double.NaN;
+                } else {
+                    stdErrs[i] = v;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            stdErrs = new double[n];
+
+            for (int i = 0; i < n; i++) {
+                stdErrs[i] = Double.NaN;
+            }
+        }
+
+        //Restore the freeParameters of the estimated SEM to their original values.
+        estSem.setFreeParamValues(paramsOriginal);
+        estSem.setParameterBoundsEnforced(true);
+    }
+
+    /**
+     * @return the array of standard errors for the free paramaeters of the
+     * SEM.
+     */
+    public double[] getStdErrors() {
+        return stdErrs;
+    }
+
+    /**
+     * True if the information matrix of a SemIm should be computed in closed
+     * form; otherwise it is estimated by numeric second differences of the
+     * fitting function. (Other ISemIm's always use numeric differences.)
+     */
+    public boolean isAnalytic() {
+        return analytic;
+    }
+
+    public void setAnalytic(boolean analytic) {
+        this.analytic = analytic;
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    /**
+     * Computes the expected information matrix E(d2F / dtheta_i dtheta_j) =
+     * tr(V Sigma_i V Sigma_j) (Bollen 1989, p. 135), where Sigma_i is the
+     * derivative of the implied covariance matrix over the measured variables
+     * by free parameter i and V is Sigma^-1 for F_ML and S^-1 for F_GLS.
+     * <p>
+     * With A = (I - B')^-1 and Sigma = A Omega A' over all variables, each
+     * Sigma_i has the form xy' + yx': for an edge coefficient B(a, b),
+     * x = A(., b) and y = Sigma(a, .); for an error covariance Omega(a, b),
+     * x = A(., a) and y = A(., b); for an error variance Omega(a, a),
+     * x = A(., a) and y = x / 2. So tr(V Sigma_i V Sigma_j) =
+     * 2((y_i'V x_j)(y_j'V x_i) + (y_i'V y_j)(x_i'V x_j)), and the matrix for k
+     * free parameters and p measured variables takes O(k p^2 + k^2 p) time.
+     * Rows of the matrix are computed in parallel.
+     *
+     * @return the information matrix, or null if the implied covariance matrix
+     * cannot be computed or inverted.
+     */
+    private TetradMatrix expectedInformation(SemIm semIm) {
+        List<Node> variables = semIm.getVariableNodes();
+        List<Node> measuredNodes = semIm.getMeasuredNodes();
+        List<Parameter> freeParameters = semIm.getFreeParameters();
+        SemGraph graph = semIm.getSemPm().getGraph();
+
+        int numVars = variables.size();
+        int numMeasured = measuredNodes.size();
+        final int n = freeParameters.size();
+
+        int[] measured = new int[numMeasured];
+
+        for (int i = 0; i < numMeasured; i++) {
+            measured[i] = variables.indexOf(measuredNodes.get(i));
+        }
+
+        TetradMatrix a;
+        TetradMatrix v;
+
+        try {
+            a = TetradMatrix.identity(numVars).minus(semIm.getEdgeCoef().transpose()).inverse();
+        } catch (Exception e) {
+            return null;
+        }
+
+        TetradMatrix sigma = a.times(semIm.getErrCovar()).times(a.transpose());
+
+        try {
+            if (semIm.getScoreType() == ScoreType.Fgls) {
+                v = semIm.getSampleCovar().inverse();
+            } else {
+                v = sigma.getSelection(measured, measured).inverse();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+
+        final double[][] x = new double[n][numMeasured];
+        final double[][] y = new double[n][numMeasured];
+
+        for (int k = 0; k < n; k++) {
+            Parameter parameter = freeParameters.get(k);
+            int i = variables.indexOf(graph.getVarNode(parameter.getNodeA()));
+            int j = variables.indexOf(graph.getVarNode(parameter.getNodeB()));
+
+            for (int m = 0; m < numMeasured; m++) {
+                if (parameter.getType() == ParamType.COEF) {
+                    x[k][m] = a.get(measured[m], j);
+                    y[k][m] = sigma.get(i, measured[m]);
+                } else if (parameter.getType() == ParamType.VAR) {
+                    x[k][m] = a.get(measured[m], i);
+                    y[k][m] = 0.5 * x[k][m];
+                } else if (parameter.getType() == ParamType.COVAR) {
+                    x[k][m] = a.get(measured[m], i);
+                    y[k][m] = a.get(measured[m], j);
+                } else {
+                    throw new IllegalStateException("Unexpected free parameter: " + parameter);
+                }
+            }
+        }
+
+        final double[][] vx = new double[n][];
+        final double[][] vy = new double[n][];
+
+        for (int k = 0; k < n; k++) {
+            vx[k] = times(v, x[k]);
+            vy[k] = times(v, y[k]);
+        }
+
+        final TetradMatrix information = new TetradMatrix(n, n);
+
+        class InformationTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private InformationTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= CHUNK_SIZE) {
+                    for (int i = from; i < to; i++) {
+                        for (int j = i; j < n; j++) {
+                            double value = 2 * (dot(y[i], vx[j]) * dot(y[j], vx[i])
+                                    + dot(y[i], vy[j]) * dot(x[i], vx[j]));
+                            information.set(i, j, value);
+                            information.set(j, i, value);
+                        }
+                    }
+                } else {
+                    int mid = (from + to) / 2;
+                    invokeAll(new InformationTask(from, mid), new InformationTask(mid, to));
+                }
+            }
+        }
+
+        InformationTask task = new InformationTask(0, n);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
+        }
+
+        return information;
+    }
+
+    private static double[] times(TetradMatrix m, double[] x) {
+        double[] product = new double[m.rows()];
+
+        for (int i = 0; i < m.rows(); i++) {
+            double sum = 0.0;
+
+            for (int j = 0; j < x.length; j++) {
+                sum += m.get(i, j) * x[j];
+            }
+
+            product[i] = sum;
+        }
+
+        return product;
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+
+        return sum;
+    }
+
+    /**
+     * Estimates the Hessian of the fitting function at the given parameter
+     * values by numeric second differences.
+     */
+    private TetradMatrix numericInformation(ISemIm estSem, double[] paramsOriginal) {
         double delta;
         FittingFunction fcn = new SemFittingFunction(estSem);
         boolean ridder = false;  // Ridder is more accurate but a lot slower.
@@ -153,69 +419,7 @@ public class SemStdErrorEstimator {
             }
         }
 
-        ROWS:
-        for (int i = 0; i < hess.rows(); i++) {
-            for (int j = 0; j < hess.columns(); j++) {
-                if (hess.get(i, j) != 0) {
-                    continue ROWS;
-                }
-            }
-
-//            System.out.println("Zero row for " + freeParameters.get(i));
-        }
-
-        //The diagonal elements of the inverse of the information matrix are the
-        //squares of the standard errors of the freeParameters.  Their order is the
-        //same as in the array of free parameter values stored in paramsOriginal.
-        try {
-
-//            TetradMatrix hessInv = hess.inverse();
-            TetradMatrix hessInv = hess.ginverse();
-
-//            System.out.println("Inverse: " + hessInv);
-
-//            for (int i = 0; i < freeParameters.size(); i++) {
-//                System.out.println(i + " = " + freeParameters.get(i));
-//            }
-
-            stdErrs = new double[n];
-
-            //Hence the standard errors of the freeParameters are the square roots of the
-            //diagonal elements of the inverse of the information matrix.
-            for (int i = 0; i < n; i++) {
-                double v = Math.sqrt((2.0 / (estSem.getSampleSize() - 1)) * hessInv.get(i, i));
-
-                if (v == 0) {
-                    System.out.println("v = " + v + " hessInv(i, i) = " + hessInv.get(i, i));
-                }
-
-                if (v == 0) {
-                    stdErrs[i] = Double.NaN;
-                } else {
-                    stdErrs[i] = v;
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-
-            stdErrs = new double[n];
-
-            for (int i = 0; i < n; i++) {
-                stdErrs[i] = Double.NaN;
-            }
-        }
-
-        //Restore the freeParameters of the estimated SEM to their original values.
-        estSem.setFreeParamValues(paramsOriginal);
-        estSem.setParameterBoundsEnforced(true);
-    }
-
-    /**
-     * @return the array of standard errors for the free paramaeters of the
-     * SEM.
-     */
-    public double[] getStdErrors() {
-        return stdErrs;
+        return hess;
     }
 
     /**
@@ -313,6 +313,10 @@ public class ParamDescriptions {
         map.put("kciUseAppromation", new ParamDescription(
                 "Use the approximate Gamma approximation algorithm", true));
 
+        map.put("kciApproximationRank", new ParamDescription(
+                "Rank of the Nystrom approximation of the kernel matrices for KCI (0 = exact)",
+                0, 0, Integer.MAX_VALUE));
+
     }
 
     public static ParamDescriptions getInstance() {
@@ -0,0 +1,313 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.util;
+
+import org.apache.commons.math3.random.BitsStreamGenerator;
+import org.apache.commons.math3.random.Well44497b;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Derives independent random streams from a root seed, for tasks that may be run in parallel--simulating blocks
+ * of rows, fitting bootstrap replicates, and so on.
+ * <p>
+ * The stream for a task depends only on the root seed and the task's id, so results are the same however tasks
+ * are scheduled over threads, and tasks do not contend with one another for a generator. Streams are SplitMix64
+ * generators, seeded by the SplitMix64 sequence of the root seed.
+ * <p>
+ * While a task is run by <code>run</code>, <code>call</code> or <code>forEachBlock</code>, its stream is bound to
+ * the thread running it, so that code that draws from <code>RandomUtil.getInstance()</code>, such as the
+ * distributions in edu.cmu.tetrad.util.dist, draws from the task's stream. Threads the task itself starts do not
+ * inherit the binding.
+ *
+ * @see RandomUtil
+ */
+public final class RandomStreams {
+
+    /**
+     * Some work for a block of consecutive indices.
+     */
+    public interface Block {
+
+        /**
+         * @param from   The first index in the block.
+         * @param to     One past the last index in the block.
+         * @param random The block's stream, also returned by RandomUtil.getInstance() while the block runs.
+         */
+        void run(int from, int to, RandomUtil random);
+    }
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // The seed from which the streams are derived.
+    private final long seed;
+
+    // True if blocks should be run in parallel.
+    private boolean parallelized = true;
+
+    /**
+     * Constructs streams derived from the given root seed.
+     */
+    public RandomStreams(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return streams whose root seed is drawn from RandomUtil.getInstance(), so that they are reproducible
+     * whenever the seed of RandomUtil has been set.
+     */
+    public static RandomStreams fromRandomUtil() {
+        return new RandomStreams(RandomUtil.getInstance().nextLong());
+    }
+
+    /**
+     * Runs the given work for blocks of the indices 0..n - 1, as <code>fromRandomUtil().forEachBlock</code> does,
+     * except that if the indices fit in one block, the work is run on the calling thread with
+     * RandomUtil.getInstance() itself. One block then draws just what a loop over RandomUtil would, so seeded
+     * results for samples of up to a block are the same as they were before sampling was done in blocks.
+     */
+    public static void forEachBlockOfRandomUtil(int n, int blockSize, Block block) {
+        if (blockSize < 1) throw new IllegalArgumentException("Block size must be >= 1: " + blockSize);
+        if (n <= 0) return;
+
+        if (n <= blockSize) {
+            block.run(0, n, RandomUtil.getInstance());
+        } else {
+            fromRandomUtil().forEachBlock(n, blockSize, block);
+        }
+    }
+
+    /**
+     * Calls the given task on the calling thread with RandomUtil.getInstance() returning a generator seeded as
+     * RandomUtil.setSeed(seed) seeds the singleton. The singleton itself is left as it was.
+     *
+     * @return the task's result.
+     */
+    public static <T> T callWithSeed(long seed, Supplier<T> task) {
+        RandomUtil previous = RandomUtil.bind(new RandomUtil(seed, new Well44497b(seed)));
+
+        try {
+            return task.get();
+        } finally {
+            RandomUtil.bind(previous);
+        }
+    }
+
+    /**
+     * @return the seed of the stream with the given id.
+     */
+    public long seed(long streamId) {
+        return mix64(seed + (streamId + 1) * GOLDEN_GAMMA);
+    }
+
+    /**
+     * @return a new random number generator for the stream with the given id. It is not synchronized, so should
+     * be used by one thread at a time.
+     */
+    public RandomUtil stream(long streamId) {
+        long streamSeed = seed(streamId);
+        return new RandomUtil(streamSeed, new SplitMix64(streamSeed));
+    }
+
+    /**
+     * @return streams for subtasks of the task with the given id, independent of the streams of the other tasks.
+     */
+    public RandomStreams split(long streamId) {
+        return new RandomStreams(mix64(seed(streamId)));
+    }
+
+    /**
+     * Runs the given task on the calling thread with the stream with the given id bound to it.
+     */
+    public void run(long streamId, Runnable task) {
+        RandomUtil previous = RandomUtil.bind(stream(streamId));
+
+        try {
+            task.run();
+        } finally {
+            RandomUtil.bind(previous);
+        }
+    }
+
+    /**
+     * Calls the given task on the calling thread with the stream with the given id bound to it.
+     *
+     * @return the task's result.
+     */
+    public <T> T call(long streamId, Supplier<T> task) {
+        RandomUtil previous = RandomUtil.bind(stream(streamId));
+
+        try {
+            return task.get();
+        } finally {
+            RandomUtil.bind(previous);
+        }
+    }
+
+    /**
+     * Splits the indices 0..n - 1 into consecutive blocks of the given size and runs the given work for each,
+     * in parallel if these streams are parallelized. Block b gets the stream with id b, so results do not depend
+     * on the number of threads.
+     */
+    public void forEachBlock(int n, int blockSize, Block block) {
+        forEachBlock(0, n, blockSize, block);
+    }
+
+    /**
+     * Runs the given work for the blocks of indices from..to - 1, where block b holds the indices from
+     * b * blockSize up to (b + 1) * blockSize, clipped to the range, and gets the stream with id b. A block
+     * clipped by the range gets the same stream as it would unclipped, so a long range may be run piecewise,
+     * in ranges that start at multiples of the block size, with the same results.
+     */
+    public void forEachBlock(final int from, final int to, final int blockSize, final Block block) {
+        if (blockSize < 1) throw new IllegalArgumentException("Block size must be >= 1: " + blockSize);
+        if (from < 0) throw new IllegalArgumentException("Range must start at >= 0: " + from);
+        if (to <= from) return;
+
+        final int firstBlock = from / blockSize;
+        final int lastBlock = (to - 1) / blockSize + 1;
+
+        if (!parallelized || lastBlock - firstBlock == 1) {
+            for (int b = firstBlock; b < lastBlock; b++) {
+                runBlock(b, from, to, blockSize, block);
+            }
+
+            return;
+        }
+
+        class BlockTask extends RecursiveAction {
+            private final int first;
+            private final int last;
+
+            private BlockTask(int first, int last) {
+                this.first = first;
+                this.last = last;
+            }
+
+            @Override
+            protected void compute() {
+                if (last - first == 1) {
+                    runBlock(first, from, to, blockSize, block);
+                } else {
+                    int mid = (first + last) / 2;
+                    invokeAll(new BlockTask(first, mid), new BlockTask(mid, last));
+                }
+            }
+        }
+
+        BlockTask task = new BlockTask(firstBlock, lastBlock);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isParallelized() {
+        return parallelized;
+    }
+
+    public void setParallelized(boolean parallelized) {
+        this.parallelized = parallelized;
+    }
+
+    /**
+     * A SplitMix64 generator (Steele, Lea and Flood, 2014). It is fast, has a small state, and is not
+     * synchronized.
+     */
+    public static final class SplitMix64 extends BitsStreamGenerator {
+        static final long serialVersionUID = 23L;
+
+        private long state;
+
+        public SplitMix64(long seed) {
+            this.state = seed;
+        }
+
+        @Override
+        public void setSeed(int seed) {
+            setSeed((long) seed);
+        }
+
+        @Override
+        public void setSeed(int[] seed) {
+            long _seed = 0;
+
+            for (int s : seed) {
+                _seed = mix64(_seed + s + GOLDEN_GAMMA);
+            }
+
+            setSeed(_seed);
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            this.state = seed;
+            clear();
+        }
+
+        @Override
+        public long nextLong() {
+            state += GOLDEN_GAMMA;
+            return mix64(state);
+        }
+
+        @Override
+        public double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        @Override
+        protected int next(int bits) {
+            return (int) (nextLong() >>> (64 - bits));
+        }
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    private void runBlock(int b, int from, int to, int blockSize, Block block) {
+        int _from = Math.max(b * blockSize, from);
+        int _to = (int) Math.min((b + 1) * (long) blockSize, to);
+        RandomUtil random = stream(b);
+        RandomUtil previous = RandomUtil.bind(random);
+
+        try {
+            block.run(_from, _to, random);
+        } finally {
+            RandomUtil.bind(previous);
+        }
+    }
+
+    // The SplitMix64 finalizer.
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
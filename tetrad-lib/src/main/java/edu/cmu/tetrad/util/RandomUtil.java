@@ -42,7 +42,12 @@ import java.util.Map;
  * The 64-bit Mersenne Twister implementation from the COLT library is used to generate random numbers.
  * <p>
  * To see what distributions are currently supported, look at the methods of the class. These many change over time.
+ * <p>
+ * While a task is run by a <code>RandomStreams</code> object, <code>getInstance</code> returns, on the task's thread,
+ * an unshared instance backed by the task's own stream instead of the singleton, so that parallel tasks neither
+ * contend for the singleton nor depend for their results on how they are scheduled.
  *
+ * @see RandomStreams
  * @author Joseph Ramsey
  */
 public class RandomUtil {
@@ -52,6 +57,11 @@ public class RandomUtil {
      */
     private static final RandomUtil randomUtil = new RandomUtil();
 
+    /**
+     * Instances bound to threads by RandomStreams, which take the place of the singleton on those threads.
+     */
+    private static final ThreadLocal<RandomUtil> boundInstances = new ThreadLocal<>();
+
     // Random number generator from the Apache library.
     private RandomGenerator randomGenerator;
 
@@ -81,10 +91,43 @@ public class RandomUtil {
     }
 
     /**
-     * @return the singleton instance of this class.
+     * Constructs a random number generator around the given generator, which is not synchronized, so the
+     * instance should be used by only one thread at a time.
+     *
+     * @param seed            The seed the generator was created with.
+     * @param randomGenerator The generator.
+     */
+    RandomUtil(long seed, RandomGenerator randomGenerator) {
+        this.randomGenerator = randomGenerator;
+        this.normal = new NormalDistribution(randomGenerator, 0, 1);
+        this.seed = seed;
+    }
+
+    /**
+     * @return the singleton instance of this class, or, if the calling thread is running a task for a
+     * RandomStreams object, the instance for that task's stream.
      */
     public static RandomUtil getInstance() {
-        return randomUtil;
+        RandomUtil bound = boundInstances.get();
+        return bound != null ? bound : randomUtil;
+    }
+
+    /**
+     * Makes the given instance the one returned by getInstance on the calling thread; null restores the
+     * singleton.
+     *
+     * @return the instance bound previously, or null if there was none.
+     */
+    static RandomUtil bind(RandomUtil instance) {
+        RandomUtil previous = boundInstances.get();
+
+        if (instance == null) {
+            boundInstances.remove();
+        } else {
+            boundInstances.set(instance);
+        }
+
+        return previous;
     }
 
     //=======================================PUBLIC METHODS=================================//
@@ -159,7 +202,7 @@ public class RandomUtil {
      * @param seed A long value. Once this seed is set, the behavior of the random number generator is deterministic, so
      *             setting the seed can be used to repeat previous behavior.
      */
-    public void setSeed(long seed) {
+    public synchronized void setSeed(long seed) {
 
         // Do not change this generator; you will screw up innuerable unit tests!
         randomGenerator = new SynchronizedRandomGenerator(new Well44497b(seed));
@@ -168,7 +211,7 @@ public class RandomUtil {
         this.seed = seed;
     }
 
-    public void revertSeed(long seed) {
+    public synchronized void revertSeed(long seed) {
 
         // Do not change this generator; you will screw up innuerable unit tests!
         randomGenerator = seedsToGenerators.get(seed);
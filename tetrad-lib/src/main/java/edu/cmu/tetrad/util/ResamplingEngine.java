@@ -0,0 +1,255 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.util;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the replicates of resampling procedures--bootstraps, permutations, Monte Carlo draws from a null
+ * distribution--for independence tests, in parallel.
+ * <p>
+ * Each replicate gets its own random stream, seeded from the engine's seed, a stream id chosen by the caller
+ * (for instance, one per independence fact) and the index of the replicate, as RandomStreams derives seeds for
+ * subtasks, so results do not depend on how
+ * replicates are scheduled over threads, and no replicate contends with another for a generator. Statistics
+ * shared by the replicates should be computed once, before the replicates are run.
+ * <p>
+ * For Monte Carlo p values, replicates may be stopped early, in batches, once a Wilson confidence interval for
+ * the p value lies wholly above or wholly below alpha. Since batches are fixed, early stopping is reproducible
+ * too.
+ */
+public final class ResamplingEngine {
+
+    /**
+     * Some work for one replicate.
+     */
+    public interface Task {
+
+        /**
+         * @param index  The index of the replicate.
+         * @param random The replicate's random stream.
+         */
+        void run(int index, SplittableRandom random);
+    }
+
+    /**
+     * One replicate of a Monte Carlo p value.
+     */
+    public interface Replicate {
+
+        /**
+         * @param index  The index of the replicate.
+         * @param random The replicate's random stream.
+         * @return true if the replicate's statistic exceeds the observed statistic.
+         */
+        boolean exceeds(int index, SplittableRandom random);
+    }
+
+    // The streams from which the replicate streams are derived.
+    private final RandomStreams streams;
+
+    // True if replicates should be run in parallel.
+    private boolean parallelized = true;
+
+    // True if p values may stop early once they are clearly on one side of alpha.
+    private boolean earlyStopping = false;
+
+    // The normal quantile for the confidence intervals used for early stopping.
+    private double z = 2.5758293035489004;
+
+    // The number of replicates between checks for early stopping.
+    private int batchSize = 256;
+
+    /**
+     * Constructs an engine whose replicate streams are derived from the given seed.
+     */
+    public ResamplingEngine(long seed) {
+        this.streams = new RandomStreams(seed);
+    }
+
+    /**
+     * Runs the task for replicates 0..numReplicates - 1, in parallel if the engine is parallelized.
+     *
+     * @param streamId Distinguishes the streams for this run from those of others with the same engine.
+     */
+    public void forEach(long streamId, int numReplicates, Task task) {
+        run(streamId, 0, numReplicates, task);
+    }
+
+    /**
+     * Returns the fraction of the given number of replicates whose statistics exceed the observed statistic--a
+     * Monte Carlo p value. If early stopping is on, replicates are run in batches, and the fraction is returned
+     * for the replicates run so far once a confidence interval for it excludes alpha.
+     *
+     * @param streamId Distinguishes the streams for this p value from those of others with the same engine.
+     */
+    public double pValue(long streamId, int numReplicates, double alpha, final Replicate replicate) {
+        if (numReplicates < 1) {
+            throw new IllegalArgumentException("Need at least one replicate: " + numReplicates);
+        }
+
+        final boolean[] exceeds = new boolean[numReplicates];
+        int done = 0;
+        int count = 0;
+
+        while (done < numReplicates) {
+            int to = earlyStopping ? Math.min(done + batchSize, numReplicates) : numReplicates;
+
+            run(streamId, done, to, new Task() {
+                @Override
+                public void run(int index, SplittableRandom random) {
+                    exceeds[index] = replicate.exceeds(index, random);
+                }
+            });
+
+            for (int i = done; i < to; i++) {
+                if (exceeds[i]) count++;
+            }
+
+            done = to;
+
+            if (earlyStopping && done < numReplicates && decided(count, done, alpha)) {
+                break;
+            }
+        }
+
+        return count / (double) done;
+    }
+
+    /**
+     * Returns a standard normal draw from the given stream, by Marsaglia's polar method.
+     */
+    public static double nextNormal(SplittableRandom random) {
+        double u, v, s;
+
+        do {
+            u = 2.0 * random.nextDouble() - 1.0;
+            v = 2.0 * random.nextDouble() - 1.0;
+            s = u * u + v * v;
+        } while (s >= 1.0 || s == 0.0);
+
+        return u * Math.sqrt(-2.0 * Math.log(s) / s);
+    }
+
+    public long getSeed() {
+        return streams.getSeed();
+    }
+
+    public boolean isParallelized() {
+        return parallelized;
+    }
+
+    public void setParallelized(boolean parallelized) {
+        this.parallelized = parallelized;
+    }
+
+    public boolean isEarlyStopping() {
+        return earlyStopping;
+    }
+
+    /**
+     * Sets whether Monte Carlo p values may stop before all replicates are run, once the p value is clearly
+     * above or below alpha. Off by default.
+     */
+    public void setEarlyStopping(boolean earlyStopping) {
+        this.earlyStopping = earlyStopping;
+    }
+
+    /**
+     * Sets the confidence level of the intervals used for early stopping, by default 0.99.
+     */
+    public void setConfidence(double confidence) {
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("Confidence must be in (0, 1): " + confidence);
+        }
+
+        this.z = StatUtils.getZForAlpha(1.0 - confidence);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of replicates run between checks for early stopping.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be >= 1: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    //==============================PRIVATE METHODS=========================//
+
+    private void run(long streamId, int from, int to, final Task task) {
+        final RandomStreams replicateStreams = streams.split(streamId);
+
+        if (!parallelized || to - from < 2) {
+            for (int i = from; i < to; i++) {
+                task.run(i, new SplittableRandom(replicateStreams.seed(i)));
+            }
+
+            return;
+        }
+
+        class ReplicateTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private ReplicateTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= 16) {
+                    for (int i = from; i < to; i++) {
+                        task.run(i, new SplittableRandom(replicateStreams.seed(i)));
+                    }
+                } else {
+                    int mid = (from + to) / 2;
+                    invokeAll(new ReplicateTask(from, mid), new ReplicateTask(mid, to));
+                }
+            }
+        }
+
+        ReplicateTask replicateTask = new ReplicateTask(from, to);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            replicateTask.invoke();
+        } else {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(replicateTask);
+        }
+    }
+
+    // True if the Wilson interval for count / n lies wholly above or below alpha.
+    private boolean decided(int count, int n, double alpha) {
+        double p = count / (double) n;
+        double z2 = z * z;
+        double denominator = 1.0 + z2 / n;
+        double center = (p + z2 / (2.0 * n)) / denominator;
+        double half = z / denominator * Math.sqrt(p * (1.0 - p) / n + z2 / (4.0 * n * n));
+        return center + half < alpha || center - half > alpha;
+    }
+}
@@ -10,9 +10,12 @@ import java.util.concurrent.ForkJoinPool;
 import edu.cmu.tetrad.algcomparison.algorithm.Algorithm;
 import edu.cmu.tetrad.algcomparison.algorithm.MultiDataSetAlgorithm;
 import edu.cmu.tetrad.algcomparison.utils.HasKnowledge;
+import edu.cmu.tetrad.data.BoxDataSet;
+import edu.cmu.tetrad.data.CovarianceMatrix;
 import edu.cmu.tetrad.data.DataModel;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DataUtils;
+import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.graph.Graph;
@@ -20,6 +23,7 @@ import edu.cmu.tetrad.graph.Graph;
 //MP: These libraries are required for multi-threading
 import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 import edu.cmu.tetrad.util.Parameters;
+import edu.cmu.tetrad.util.RandomStreams;
 import edu.pitt.dbmi.algo.bootstrap.task.GeneralBootstrapSearchAction;
 import edu.pitt.dbmi.algo.bootstrap.task.GeneralBootstrapSearchRunnable;
 
@@ -63,6 +67,18 @@ public class GeneralBootstrapSearch {
 	 */
 	private Graph initialGraph = null;
 
+	/**
+	 * True if bootstrap replicates of continuous data should be handed to the
+	 * algorithm as covariance matrices, all calculated in one pass over the data.
+	 */
+	private boolean covarianceReplicates = false;
+
+	/**
+	 * The seed from which the random streams of the replicates are derived, or
+	 * null if it should be drawn from RandomUtil.
+	 */
+	private Long seed = null;
+
 	public GeneralBootstrapSearch(DataSet data) {
 		this.data = data;
 		//pool = ForkJoinPoolInstance.getInstance().getPool();
@@ -105,6 +121,27 @@ public class GeneralBootstrapSearch {
 		this.runParallel = runParallel;
 	}
 
+	/**
+	 * Sets whether bootstrap replicates of continuous data without missing values
+	 * should be handed to the algorithm as covariance matrices rather than data
+	 * sets. This is only appropriate for algorithms whose tests or scores accept a
+	 * covariance matrix (Fisher Z, SEM BIC); the matrices for all replicates are
+	 * then calculated together in one parallel pass over the data.
+	 */
+	public void setCovarianceReplicates(boolean covarianceReplicates) {
+		this.covarianceReplicates = covarianceReplicates;
+	}
+
+	/**
+	 * Sets the seed from which each replicate's random streams, for resampling the
+	 * data and for the search, are derived. By default it is drawn from RandomUtil,
+	 * so results are reproducible whenever the seed of RandomUtil has been set,
+	 * whether or not replicates are run in parallel.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
 	public void setNumOfBootstrap(int numBootstrap) {
 		this.numBootstrap = numBootstrap;
 	}
@@ -164,6 +201,34 @@ public class GeneralBootstrapSearch {
 		
 		long start, stop;
 		
+		// Replicate i draws its sample from sample stream i and runs its search with search
+		// stream i bound to its thread, so results are reproducible in either mode.
+		RandomStreams streams = seed == null ? RandomStreams.fromRandomUtil() : new RandomStreams(seed);
+		RandomStreams sampleStreams = streams.split(0);
+		RandomStreams searchStreams = streams.split(1);
+		
+		List<ICovarianceMatrix> covariances = null;
+		
+		if (covarianceReplicates && data != null && data instanceof BoxDataSet && data.isContinuous()
+				&& !DataUtils.containsMissingValue(data)) {
+			start = System.currentTimeMillis();
+			
+			List<DataSet> samples = new ArrayList<>();
+			
+			for (int i1 = 0; i1 < this.numBootstrap; i1++) {
+				samples.add(sampleStreams.call(i1, () -> DataUtils.getBootstrapSampleView(data, data.getNumRows())));
+			}
+			
+			covariances = CovarianceMatrix.resampleCovariances(samples);
+			
+			stop = System.currentTimeMillis();
+			if (verbose) {
+				out.println("processing time of bootstrap covariance matrices : " + (stop - start) / 1000.0 + " sec");
+			}
+		}
+		
+		Graph[] replicateGraphs = new Graph[numBootstrap];
+		
 		if (!this.runParallel) {
 			// Running in the sequential form
 			if (verbose) {
@@ -172,28 +237,7 @@ public class GeneralBootstrapSearch {
 			for (int i1 = 0; i1 < this.numBootstrap; i1++) {
 				start = System.currentTimeMillis();
 
-				GeneralBootstrapSearchRunnable task = null;
-				
-				if(data != null){
-					DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows()); 
-					task = new GeneralBootstrapSearchRunnable(dataSet, algorithm, parameters, this, verbose);
-					//GeneralBootstrapSearchAction task = new GeneralBootstrapSearchAction(i1, 1, algorithm, parameters, this, verbose);
-				}else{
-					List<DataModel> dataModels = new ArrayList<>();
-					for(DataSet data : dataSets){
-						DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows());
-						dataModels.add(dataSet);
-					}
-					
-					task = new GeneralBootstrapSearchRunnable(dataModels, multiDataSetAlgorithm, parameters, this, verbose);
-				}
-	            
-				if(initialGraph != null){
-					task.setInitialGraph(initialGraph);
-				}
-				task.setKnowledge(knowledge);
-				task.run();
-				//task.compute();
+				replicateTask(i1, covariances, sampleStreams, searchStreams, replicateGraphs).run();
 				
 				stop = System.currentTimeMillis();
 				if (verbose) {
@@ -206,28 +250,8 @@ public class GeneralBootstrapSearch {
 				out.println("Running Bootstraps in Parallel Mode, numBoostrap = " + numBootstrap);
 			}
 
-			//GeneralBootstrapSearchAction task = new GeneralBootstrapSearchAction(0, numBootstrap, algorithm, parameters, this, verbose);
-			//task.setKnowledge(knowledge);
-			//pool.invoke(task);
-			
 			for (int i1 = 0; i1 < this.numBootstrap; i1++) {
-				
-				GeneralBootstrapSearchRunnable task = null;
-				
-				if(data != null){
-					DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows()); 
-					task = new GeneralBootstrapSearchRunnable(dataSet, algorithm, parameters, this, verbose);
-				}else{
-					List<DataModel> dataModels = new ArrayList<>();
-					for(DataSet data : dataSets){
-						DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows());
-						dataModels.add(dataSet);
-					}
-					
-					task = new GeneralBootstrapSearchRunnable(dataModels, multiDataSetAlgorithm, parameters, this, verbose);
-				}
-				task.setKnowledge(knowledge);
-				pool.submit(task);
+				pool.submit(replicateTask(i1, covariances, sampleStreams, searchStreams, replicateGraphs));
 			}
 			
 			pool.shutdown();
@@ -244,45 +268,65 @@ public class GeneralBootstrapSearch {
 			//out.println("Is terminated: " + pool.isTerminated());
 		}
 		
-		// If the pool is prematurely terminated, do sequentially
-		if(PAGs == null || PAGs.size() == 0) {
-			for (int i1 = 0; i1 < this.numBootstrap; i1++) {
-				start = System.currentTimeMillis();
+		// If the pool is prematurely terminated, do the missing replicates sequentially
+		for (int i1 = 0; i1 < this.numBootstrap; i1++) {
+			if (replicateGraphs[i1] == null) {
+				replicateTask(i1, covariances, sampleStreams, searchStreams, replicateGraphs).run();
+			}
+		}
+		
+		for (Graph graph : replicateGraphs) {
+			PAGs.add(graph);
+		}
+		
+		parameters.set("bootstrapping", true);
+		parameters.set("bootstrapSampleSize", numBootstrap); // This needs to be reset back to the previous value
+		
+		return PAGs;
+	}
 
-				GeneralBootstrapSearchRunnable task = null;
-				
-				if(data != null){
-					DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows()); 
-					task = new GeneralBootstrapSearchRunnable(dataSet, algorithm, parameters, this, verbose);
-					//GeneralBootstrapSearchAction task = new GeneralBootstrapSearchAction(i1, 1, algorithm, parameters, this, verbose);
-				}else{
+	/**
+	 * @return the work for the i'th bootstrap replicate, which puts the graph it
+	 *         finds in the i'th place of the given array.
+	 */
+	private Runnable replicateTask(final int i, final List<ICovarianceMatrix> covariances,
+			final RandomStreams sampleStreams, final RandomStreams searchStreams, final Graph[] replicateGraphs) {
+		return () -> {
+			GeneralBootstrapSearchRunnable task = sampleStreams.call(i, () -> {
+				if (data != null) {
+					return new GeneralBootstrapSearchRunnable(replicate(covariances, i), algorithm, parameters,
+							this, verbose);
+				} else {
 					List<DataModel> dataModels = new ArrayList<>();
-					for(DataSet data : dataSets){
-						DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows());
+					for (DataSet data : dataSets) {
+						DataSet dataSet = DataUtils.getBootstrapSampleView(data, data.getNumRows());
 						dataModels.add(dataSet);
 					}
-					
-					task = new GeneralBootstrapSearchRunnable(dataModels, multiDataSetAlgorithm, parameters, this, verbose);
-				}
-	            
-				if(initialGraph != null){
-					task.setInitialGraph(initialGraph);
-				}
-				task.setKnowledge(knowledge);
-				task.run();
-				//task.compute();
-				
-				stop = System.currentTimeMillis();
-				if (verbose) {
-					out.println("processing time of bootstrap : " + (stop - start) / 1000.0 + " sec");
+
+					return new GeneralBootstrapSearchRunnable(dataModels, multiDataSetAlgorithm, parameters, this,
+							verbose);
 				}
+			});
+
+			if (initialGraph != null) {
+				task.setInitialGraph(initialGraph);
 			}
+			task.setKnowledge(knowledge);
+			task.setReplicateGraphs(replicateGraphs, i);
+			searchStreams.run(i, task);
+		};
+	}
+
+	/**
+	 * @return the i'th bootstrap replicate of the data--its precalculated covariance
+	 *         matrix if there is one, otherwise a fresh resample of the data.
+	 */
+	private DataModel replicate(List<ICovarianceMatrix> covariances, int i) {
+		if (covariances != null) {
+			return covariances.get(i);
 		}
 		
-		parameters.set("bootstrapping", true);
-		parameters.set("bootstrapSampleSize", numBootstrap); // This needs to be reset back to the previous value
-		
-		return PAGs;
+		return DataUtils.getBootstrapSampleView(data, data.getNumRows());
 	}
 
 }
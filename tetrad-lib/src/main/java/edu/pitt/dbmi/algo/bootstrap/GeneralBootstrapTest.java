@@ -2,7 +2,9 @@ package edu.pitt.dbmi.algo.bootstrap;
 
 import edu.cmu.tetrad.algcomparison.algorithm.Algorithm;
 import edu.cmu.tetrad.algcomparison.algorithm.MultiDataSetAlgorithm;
+import edu.cmu.tetrad.annotation.TestOfIndependence;
 import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.DataType;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.graph.*;
@@ -13,6 +15,7 @@ import edu.cmu.tetrad.util.RandomUtil;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -56,6 +59,11 @@ public class GeneralBootstrapTest {
 	 */
 	private Graph initialGraph = null;
 
+	/**
+	 * True if replicates should be handed to the algorithm as covariance matrices.
+	 */
+	private boolean covarianceReplicates = false;
+
 	public void setParallelMode(boolean runParallel) {
 		this.runParallel = runParallel;
 	}
@@ -91,6 +99,40 @@ public class GeneralBootstrapTest {
         }
 	}
 
+	/**
+	 * Sets whether bootstrap replicates of continuous data should be handed to the
+	 * algorithm as covariance matrices, calculated together in one pass over the
+	 * data, rather than as data sets.
+	 * 
+	 * @see #acceptsCovariance(Object...)
+	 */
+	public void setCovarianceReplicates(boolean covarianceReplicates) {
+		this.covarianceReplicates = covarianceReplicates;
+	}
+
+	/**
+	 * @return true if each of the given independence test or score wrappers is
+	 *         annotated as accepting a covariance matrix in place of data.
+	 */
+	public static boolean acceptsCovariance(Object... wrappers) {
+		for (Object wrapper : wrappers) {
+			if (wrapper == null) {
+				return false;
+			}
+
+			TestOfIndependence test = wrapper.getClass().getAnnotation(TestOfIndependence.class);
+			edu.cmu.tetrad.annotation.Score score = wrapper.getClass()
+					.getAnnotation(edu.cmu.tetrad.annotation.Score.class);
+			DataType[] dataTypes = test != null ? test.dataType() : score != null ? score.dataType() : new DataType[0];
+
+			if (!Arrays.asList(dataTypes).contains(DataType.Covariance)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	public void setNumBootstrapSamples(int numBootstrapSamples) {
 		this.bootstrapSearch.setNumOfBootstrap(numBootstrapSamples);
 	}
@@ -170,6 +212,7 @@ public class GeneralBootstrapTest {
 		bootstrapSearch.setRunningMode(runParallel);
 		bootstrapSearch.setVerbose(verbose);
 		bootstrapSearch.setParameters(parameters);
+		bootstrapSearch.setCovarianceReplicates(covarianceReplicates);
 		
 		if(!knowledge.isEmpty()){
 			bootstrapSearch.setKnowledge(knowledge);
@@ -112,7 +112,7 @@ public class GeneralBootstrapSearchAction extends RecursiveAction {
 				out.println("thread started ... ");
 			}
 			DataSet data = generalBootstrapSearch.getData();
-			DataSet dataSet = DataUtils.getBootstrapSample(data, data.getNumRows());
+			DataSet dataSet = DataUtils.getBootstrapSampleView(data, data.getNumRows());
 			
 			Graph graph = algorithm.search(dataSet, parameters);
 
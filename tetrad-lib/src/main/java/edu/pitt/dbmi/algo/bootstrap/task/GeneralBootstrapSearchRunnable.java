@@ -7,7 +7,6 @@ import edu.cmu.tetrad.algcomparison.algorithm.Algorithm;
 import edu.cmu.tetrad.algcomparison.algorithm.MultiDataSetAlgorithm;
 import edu.cmu.tetrad.algcomparison.utils.HasKnowledge;
 import edu.cmu.tetrad.data.DataModel;
-import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.graph.Graph;
@@ -24,7 +23,7 @@ import edu.pitt.dbmi.algo.bootstrap.GeneralBootstrapSearch;
  */
 public class GeneralBootstrapSearchRunnable implements Runnable {
 
-	private DataSet dataSet = null;
+	private DataModel dataSet = null;
 
 	private List<DataModel> dataSets = null;
 
@@ -50,7 +49,19 @@ public class GeneralBootstrapSearchRunnable implements Runnable {
 
 	private PrintStream out = System.out;
 
-	public GeneralBootstrapSearchRunnable(DataSet dataSet, Algorithm algorithm, Parameters parameters,
+	/**
+	 * If not null, the graph found is put at replicateIndex in this array rather
+	 * than added to the search's list, so that graphs keep the order of replicates.
+	 */
+	private Graph[] replicateGraphs = null;
+
+	private int replicateIndex = -1;
+
+	/**
+	 * The data model may be a resampled data set, or the covariance matrix of one
+	 * when the algorithm accepts covariance matrices.
+	 */
+	public GeneralBootstrapSearchRunnable(DataModel dataSet, Algorithm algorithm, Parameters parameters,
 			GeneralBootstrapSearch bootstrapAlgorithmSearch, boolean verbose){
 		this.dataSet = dataSet;
 		this.algorithm = algorithm;
@@ -96,6 +107,14 @@ public class GeneralBootstrapSearchRunnable implements Runnable {
 		this.initialGraph = initialGraph;
 	}
 
+	/**
+	 * Sets the array, and the index in it, for the graph found by this replicate.
+	 */
+	public void setReplicateGraphs(Graph[] replicateGraphs, int replicateIndex) {
+		this.replicateGraphs = replicateGraphs;
+		this.replicateIndex = replicateIndex;
+	}
+
 	/**
 	 * Sets the output stream that output (except for log output) should be sent
 	 * to. By detault System.out.
@@ -149,7 +168,11 @@ public class GeneralBootstrapSearchRunnable implements Runnable {
 			out.println("processing time of bootstrap for a thread was: "
 					+ (stop - start) / 1000.0 + " sec");
 		}
-		bootstrapAlgorithmSearch.addPAG(graph);
+		if (replicateGraphs != null) {
+			replicateGraphs[replicateIndex] = graph;
+		} else {
+			bootstrapAlgorithmSearch.addPAG(graph);
+		}
 	}
 
 }
@@ -22,11 +22,21 @@
 package edu.cmu.tetrad.test;
 
 import edu.cmu.tetrad.bayes.BayesIm;
+import edu.cmu.tetrad.bayes.BayesImSampler;
 import edu.cmu.tetrad.bayes.BayesPm;
+import edu.cmu.tetrad.bayes.CptTables;
+import edu.cmu.tetrad.bayes.DirichletBayesIm;
 import edu.cmu.tetrad.bayes.MlBayesIm;
+import edu.cmu.tetrad.data.BoxDataSet;
+import edu.cmu.tetrad.data.DataBox;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.PackedIntDataBox;
 import edu.cmu.tetrad.graph.*;
+import edu.cmu.tetrad.util.RandomUtil;
 import org.junit.Test;
 
+import java.rmi.MarshalledObject;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -203,6 +213,143 @@ public final class TestBayesIm {
         }
     }
 
+    /**
+     * Simulates from a -> b, with three values each, and checks the frequencies of the values of b against its
+     * conditional probabilities, including a row with zero probabilities.
+     */
+    @Test
+    public void testSimulation() {
+        Node a = new GraphNode("a");
+        Node b = new GraphNode("b");
+
+        Dag dag = new Dag();
+        dag.addNode(a);
+        dag.addNode(b);
+        dag.addDirectedEdge(a, b);
+
+        BayesPm bayesPm = new BayesPm(dag);
+        bayesPm.setNumCategories(a, 3);
+        bayesPm.setNumCategories(b, 3);
+
+        BayesIm bayesIm = new MlBayesIm(bayesPm);
+        int _a = bayesIm.getNodeIndex(a);
+        int _b = bayesIm.getNodeIndex(b);
+
+        double[] pa = {0.2, 0.3, 0.5};
+        double[][] pb = {{0.1, 0.0, 0.9}, {0.6, 0.3, 0.1}, {1.0 / 3, 1.0 / 3, 1.0 / 3}};
+
+        for (int k = 0; k < 3; k++) {
+            bayesIm.setProbability(_a, 0, k, pa[k]);
+
+            for (int row = 0; row < 3; row++) {
+                bayesIm.setProbability(_b, row, k, pb[row][k]);
+            }
+        }
+
+        int sampleSize = 200000;
+        DataSet data = bayesIm.simulateData(sampleSize, 2938L, false);
+        assertEquals(data, bayesIm.simulateData(sampleSize, 2938L, false));
+
+        int[][] counts = new int[3][3];
+        int ca = data.getColumn(data.getVariable("a"));
+        int cb = data.getColumn(data.getVariable("b"));
+
+        for (int i = 0; i < sampleSize; i++) {
+            counts[data.getInt(i, ca)][data.getInt(i, cb)]++;
+        }
+
+        for (int row = 0; row < 3; row++) {
+            int total = counts[row][0] + counts[row][1] + counts[row][2];
+            assertEquals(pa[row], total / (double) sampleSize, 0.01);
+
+            for (int k = 0; k < 3; k++) {
+                assertEquals(pb[row][k], counts[row][k] / (double) total, 0.01);
+            }
+        }
+
+        assertEquals(0, counts[0][1]);
+
+        // The data are packed, and hold just what is drawn as int columns from the same stream.
+        assertTrue(((BoxDataSet) data).getDataBox() instanceof PackedIntDataBox);
+
+        BayesImSampler sampler = new BayesImSampler(bayesIm, new int[]{_a, _b});
+        RandomUtil.getInstance().setSeed(2938L);
+        int[][] columns = sampler.sample(5500);
+        RandomUtil.getInstance().setSeed(2938L);
+        DataBox box = sampler.sampleBox(5500);
+
+        for (int i = 0; i < 5500; i++) {
+            for (int node = 0; node < 2; node++) {
+                assertEquals(columns[node][i], box.get(i, node).intValue());
+            }
+        }
+
+        // A Dirichlet IM samples from its expected probabilities the same way.
+        DirichletBayesIm dirichletIm = DirichletBayesIm.symmetricDirichletIm(bayesPm, 1.0);
+        DataSet data2 = dirichletIm.simulateData(sampleSize, 2938L, false);
+        assertEquals(sampleSize, data2.getNumRows());
+        assertEquals(2, data2.getNumColumns());
+    }
+
+    @Test
+    public void testCptTables() throws Exception {
+        Graph graph = GraphConverter.convert("X1-->X2,X1-->X3,X2-->X4,X3-->X4");
+        Dag dag = new Dag(graph);
+        BayesPm bayesPm = new BayesPm(dag, 2, 4);
+        MlBayesIm bayesIm = new MlBayesIm(bayesPm, MlBayesIm.RANDOM);
+
+        CptTables tables = new CptTables(bayesIm);
+        int size = 0;
+
+        for (int node = 0; node < bayesIm.getNumNodes(); node++) {
+            int[] values = new int[bayesIm.getNumParents(node)];
+            int[] point = new int[bayesIm.getNumNodes()];
+
+            for (int row = 0; row < bayesIm.getNumRows(node); row++) {
+                tables.getParentValues(node, row, values);
+                int[] expected = bayesIm.getParentValues(node, row);
+
+                for (int k = 0; k < values.length; k++) {
+                    assertEquals(expected[k], values[k]);
+                    assertEquals(expected[k], bayesIm.getParentValue(node, row, k));
+                    point[bayesIm.getParent(node, k)] = values[k];
+                }
+
+                assertEquals(row, tables.getRowIndex(node, values));
+                assertEquals(row, tables.getRowIndexOfPoint(node, point));
+
+                for (int col = 0; col < bayesIm.getNumColumns(node); col++) {
+                    assertEquals(bayesIm.getProbability(node, row, col),
+                            tables.getProbability(node, row, col), 0.0);
+                    assertEquals(tables.getProbability(node, row, col),
+                            tables.getProbability(tables.getIndex(node, row, col)), 0.0);
+                    size++;
+                }
+            }
+        }
+
+        assertEquals(size, tables.getSize());
+
+        CptTables floatTables = new CptTables(bayesIm, true);
+        assertTrue(floatTables.isSinglePrecision());
+        assertEquals(size, floatTables.getSize());
+
+        for (int i = 0; i < size; i++) {
+            assertEquals((float) tables.getProbability(i), floatTables.getProbability(i), 0.0);
+        }
+
+        // The Bayes IM writes its flat tables out in their nested form and reads them back in.
+        MlBayesIm copy = (MlBayesIm) new MarshalledObject<>(bayesIm).get();
+
+        for (int node = 0; node < bayesIm.getNumNodes(); node++) {
+            for (int row = 0; row < bayesIm.getNumRows(node); row++) {
+                for (int col = 0; col < bayesIm.getNumColumns(node); col++) {
+                    assertEquals(bayesIm.getProbability(node, row, col), copy.getProbability(node, row, col), 0.0);
+                }
+            }
+        }
+    }
+
     private static boolean rowsEqual(BayesIm bayesIm, int node, int row1,
                                      int row2) {
         for (int col = 0; col < bayesIm.getNumColumns(node); col++) {
@@ -273,9 +273,51 @@ public final class TestBoxDataSet {
             fail("Missing row in permutation.");
         }
     }
-}
 
+    @Test
+    public void testResampleView() {
+        RandomUtil.getInstance().setSeed(29304829L);
+
+        List<Node> variables = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new BoxDataSet(new VerticalDoubleDataBox(40, variables.size()), variables);
 
+        for (int i = 0; i < 40; i++) {
+            for (int j = 0; j < 4; j++) {
+                dataSet.setDouble(i, j, RandomUtil.getInstance().nextNormal(0, 1));
+            }
+        }
 
+        DataSet view = DataUtils.getBootstrapSampleView(dataSet, 40);
+        assertTrue(((BoxDataSet) view).getDataBox() instanceof ResampledDataBox);
 
+        BoxDataSet copy = new BoxDataSet((BoxDataSet) view);
+        assertFalse(copy.getDataBox() instanceof ResampledDataBox);
 
+        for (int i = 0; i < 40; i++) {
+            for (int j = 0; j < 4; j++) {
+                assertEquals(view.getDouble(i, j), copy.getDouble(i, j), 0.0);
+            }
+        }
+
+        ICovarianceMatrix cov1 = new CovarianceMatrix(view);
+        ICovarianceMatrix cov2 = new CovarianceMatrix(copy.copy());
+
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                assertEquals(cov2.getValue(i, j), cov1.getValue(i, j), 1e-10);
+            }
+        }
+
+        try {
+            view.setDouble(0, 0, 1.0);
+            fail("Views should be read-only.");
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+}
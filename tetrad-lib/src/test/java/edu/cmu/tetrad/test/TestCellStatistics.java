@@ -0,0 +1,133 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.search.CellStatistics;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+import org.apache.commons.math3.stat.correlation.Covariance;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests cached cell statistics against covariances calculated from the rows of each cell.
+ */
+public class TestCellStatistics {
+
+    @Test
+    public void testCovariances() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        int n = 400;
+        int[][] discreteData = new int[5][];
+        double[][] continuousData = new double[5][];
+        int[] dims = {2, 3, 4, 0, 0};
+        simulate(n, discreteData, continuousData, dims);
+
+        CellStatistics statistics = new CellStatistics(discreteData, dims, continuousData, n);
+
+        // Ask twice, so that the second time statistics are derived from cached ones.
+        for (int rep = 0; rep < 2; rep++) {
+            for (int[] discreteCols : new int[][]{{}, {0}, {1, 0}, {0, 1, 2}, {2}}) {
+                checkCovariances(statistics, discreteCols, continuousData);
+            }
+        }
+    }
+
+    /**
+     * A NaN value should make NaN the statistics of just the cells it is in, and dropping
+     * partitions from a small cache should not change the statistics.
+     */
+    @Test
+    public void testNanAndEviction() {
+        RandomUtil.getInstance().setSeed(2938472L);
+
+        int n = 400;
+        int[][] discreteData = new int[5][];
+        double[][] continuousData = new double[5][];
+        int[] dims = {2, 3, 4, 0, 0};
+        simulate(n, discreteData, continuousData, dims);
+        continuousData[3][17] = Double.NaN;
+
+        CellStatistics statistics = new CellStatistics(discreteData, dims, continuousData, n);
+        statistics.setMaxCachedValues(1000);
+
+        for (int rep = 0; rep < 3; rep++) {
+            for (int[] discreteCols : new int[][]{{}, {0}, {1, 0}, {0, 1, 2}, {2}, {1, 2}}) {
+                checkCovariances(statistics, discreteCols, continuousData);
+                assertTrue(statistics.getNumCachedValues() <= 1000);
+            }
+        }
+    }
+
+    private void simulate(int n, int[][] discreteData, double[][] continuousData, int[] dims) {
+        for (int j = 0; j < 3; j++) {
+            discreteData[j] = new int[n];
+
+            for (int i = 0; i < n; i++) {
+                discreteData[j][i] = RandomUtil.getInstance().nextDouble() < 0.02
+                        ? DiscreteVariable.MISSING_VALUE
+                        : RandomUtil.getInstance().nextInt(dims[j]);
+            }
+        }
+
+        for (int j = 3; j < 5; j++) {
+            continuousData[j] = new double[n];
+
+            for (int i = 0; i < n; i++) {
+                continuousData[j][i] = RandomUtil.getInstance().nextNormal(10 * j, 1)
+                        + Math.max(discreteData[1][i], 0);
+            }
+        }
+    }
+
+    private void checkCovariances(CellStatistics statistics, int[] discreteCols, double[][] continuousData) {
+        int[] continuousCols = {3, 4};
+        CellStatistics.Cells cells = statistics.getCells(discreteCols);
+
+        for (int cell = 0; cell < cells.getNumCells(); cell++) {
+            int[] rows = cells.getRows(cell);
+            if (rows.length < 2) continue;
+
+            double[][] sample = new double[rows.length][2];
+
+            for (int i = 0; i < rows.length; i++) {
+                for (int k = 0; k < 2; k++) {
+                    sample[i][k] = continuousData[continuousCols[k]][rows[i]];
+                }
+            }
+
+            double[][] expected = new Covariance(sample, true).getCovarianceMatrix().getData();
+            TetradMatrix cov = cells.getCovariance(cell, continuousCols);
+
+            for (int a = 0; a < 2; a++) {
+                for (int b = 0; b < 2; b++) {
+                    assertEquals(expected[a][b], cov.get(a, b), 1e-9);
+                }
+            }
+        }
+    }
+}
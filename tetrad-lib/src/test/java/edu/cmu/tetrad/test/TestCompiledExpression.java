@@ -0,0 +1,180 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.calculator.expression.CompiledExpression;
+import edu.cmu.tetrad.calculator.expression.Context;
+import edu.cmu.tetrad.calculator.expression.Expression;
+import edu.cmu.tetrad.calculator.parser.ExpressionParser;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.sem.GeneralizedSemIm;
+import edu.cmu.tetrad.sem.GeneralizedSemPm;
+import edu.cmu.tetrad.util.RandomStreams;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that compiled expressions evaluate as the expressions they are compiled from do.
+ */
+public class TestCompiledExpression {
+
+    private final List<String> variables = Arrays.asList("X", "Y", "Z");
+    private final Map<String, Double> parameters = new HashMap<>();
+
+    public TestCompiledExpression() {
+        parameters.put("b1", 0.5);
+        parameters.put("b2", -1.5);
+    }
+
+    @Test
+    public void testDeterministic() throws ParseException {
+        String[] formulas = {
+                "3", "X", "b1 * X + b2 * Y + Z", "X - Y / Z", "-X", "X ^ 2 + pow(Y, 3)",
+                "exp(X) + ln(abs(Y) + 1) + log10(abs(Z) + 1)", "sqrt(abs(X)) * sin(Y) * cos(Z) * tan(b1)",
+                "cosh(X) + sinh(Y) + tanh(Z) + logistic(X * Y)", "acos(b1) + asin(b1) + atan(X)",
+                "round(X) + ceil(Y) + floor(Z) + signum(X - Y)", "max(X, Y, Z) - min(X, Y, b1)",
+                "IF(X > Y, X, Y) + IF(X >= Z, 1, 2)", "AND(X < Y, Y <= Z) + OR(X = Y, Z > 0) + XOR(X < 0, Y < 0)"
+        };
+
+        double[][] columns = new double[3][100];
+
+        for (int i = 0; i < 3; i++) {
+            for (int row = 0; row < 100; row++) {
+                columns[i][row] = RandomUtil.getInstance().nextUniform(-2, 2);
+            }
+        }
+
+        for (String formula : formulas) {
+            Expression expression = new ExpressionParser().parseExpression(formula);
+            CompiledExpression compiled = CompiledExpression.compile(expression, variables, parameters);
+
+            double[] result = new double[100];
+            compiled.evaluate(columns, 0, 100, result);
+
+            for (int row = 0; row < 100; row++) {
+                double[] values = row(columns, row);
+                double expected = expression.evaluate(context(values));
+
+                assertEquals(formula, expected, compiled.evaluate(values), 0.0);
+                assertEquals(formula, expected, result[row], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testRandom() throws ParseException {
+        String[] formulas = {
+                "N(0, 1)", "Normal(X, abs(Y) + 1)", "b1 * X + N(0, 2)", "U(-1, 1) * X", "Uniform(X - 1, X + 1)",
+                "Beta(2, 5) + X", "N(0, 1) + U(0, 1) + Gamma(2, 2)", "OR(X > 0, N(0, 1) > 0)",
+                "TruncNormal(0, 1, -1, 1) * Y"
+        };
+
+        final double[][] columns = new double[3][500];
+
+        for (int i = 0; i < 3; i++) {
+            for (int row = 0; row < 500; row++) {
+                columns[i][row] = RandomUtil.getInstance().nextNormal(0, 1);
+            }
+        }
+
+        for (String formula : formulas) {
+            final Expression expression = new ExpressionParser().parseExpression(formula);
+            final CompiledExpression compiled = CompiledExpression.compile(expression, variables, parameters);
+
+            final double[] expected = new double[500];
+            final double[] actual = new double[500];
+
+            new RandomStreams(3829L).run(0, () -> {
+                for (int row = 0; row < 500; row++) {
+                    expected[row] = expression.evaluate(context(row(columns, row)));
+                }
+            });
+
+            new RandomStreams(3829L).run(0, () -> {
+                double[] stack = new double[compiled.getStackSize()];
+
+                for (int row = 0; row < 500; row++) {
+                    actual[row] = compiled.evaluate(row(columns, row), stack);
+                }
+            });
+
+            for (int row = 0; row < 500; row++) {
+                assertEquals(formula, expected[row], actual[row], 0.0);
+            }
+        }
+
+        // A whole column draws each random term for all rows, in order.
+        final Expression expression = new ExpressionParser().parseExpression("b1 * X + N(0, 2)");
+        final CompiledExpression compiled = CompiledExpression.compile(expression, variables, parameters);
+        final double[] expected = new double[500];
+        final double[] actual = new double[500];
+
+        new RandomStreams(3829L).run(0, () -> {
+            for (int row = 0; row < 500; row++) {
+                expected[row] = expression.evaluate(context(row(columns, row)));
+            }
+        });
+
+        new RandomStreams(3829L).run(0, () -> compiled.evaluate(columns, 0, 500, actual));
+
+        for (int row = 0; row < 500; row++) {
+            assertEquals(expected[row], actual[row], 0.0);
+        }
+    }
+
+    @Test
+    public void testSimulation() {
+        Graph graph = GraphUtils.randomGraph(10, 0, 12, 30, 15, 15, false);
+        GeneralizedSemPm pm = new GeneralizedSemPm(graph);
+        GeneralizedSemIm im = new GeneralizedSemIm(pm);
+
+        DataSet data1 = im.simulateData(2500, 2938L, false);
+        DataSet data2 = im.simulateData(2500, 2938L, false);
+        assertEquals(data1, data2);
+
+        data1 = new RandomStreams(2938L).call(0, () -> im.simulateDataRecursive(2500, false));
+        data2 = new RandomStreams(2938L).call(0, () -> im.simulateDataRecursive(2500, false));
+        assertEquals(data1, data2);
+    }
+
+    private double[] row(double[][] columns, int row) {
+        return new double[]{columns[0][row], columns[1][row], columns[2][row]};
+    }
+
+    private Context context(final double[] values) {
+        return new Context() {
+            public Double getValue(String var) {
+                Double value = parameters.get(var);
+                if (value != null) return value;
+                int index = variables.indexOf(var);
+                return index == -1 ? null : values[index];
+            }
+        };
+    }
+}
@@ -0,0 +1,391 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.data.*;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.search.AdTreeCounts;
+import edu.cmu.tetrad.search.BDeuScore;
+import edu.cmu.tetrad.search.ChiSquareTest;
+import edu.cmu.tetrad.search.ContingencyCounts;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.apache.commons.math3.special.Gamma;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the sparse contingency counts against direct counting.
+ */
+public class TestContingencyCounts {
+
+    @Test
+    public void testCounts() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        // Two columns use the dense path; eight columns of four categories the sparse one.
+        for (int numColumns : new int[]{2, 8}) {
+            int n = 500;
+            int[][] columns = new int[numColumns][n];
+            int[] dims = new int[numColumns];
+            int[] weights = new int[n];
+
+            for (int c = 0; c < numColumns; c++) {
+                dims[c] = 2 + c % 3;
+
+                for (int i = 0; i < n; i++) {
+                    columns[c][i] = RandomUtil.getInstance().nextDouble() < 0.02
+                            ? DiscreteVariable.MISSING_VALUE
+                            : RandomUtil.getInstance().nextInt(dims[c]);
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                weights[i] = RandomUtil.getInstance().nextInt(3);
+            }
+
+            Map<Long, Integer> expected = new HashMap<>();
+            long total = 0;
+
+            ROW:
+            for (int i = 0; i < n; i++) {
+                long key = 0;
+
+                for (int c = 0; c < numColumns; c++) {
+                    if (columns[c][i] == DiscreteVariable.MISSING_VALUE) continue ROW;
+                    key = key * dims[c] + columns[c][i];
+                }
+
+                if (weights[i] == 0) continue;
+                expected.merge(key, weights[i], Integer::sum);
+                total += weights[i];
+            }
+
+            ContingencyCounts counts = ContingencyCounts.local();
+            counts.count(columns, dims, weights);
+
+            assertEquals(expected.size(), counts.getNumCells());
+            assertEquals(total, counts.getTotal());
+
+            for (int cell = 0; cell < counts.getNumCells(); cell++) {
+                if (cell > 0) assertTrue(counts.getKey(cell - 1) < counts.getKey(cell));
+                assertEquals((int) expected.get(counts.getKey(cell)), counts.getCount(cell));
+            }
+        }
+    }
+
+    @Test
+    public void testBDeu() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        List<Node> variables = new ArrayList<>();
+
+        for (int j = 0; j < 4; j++) {
+            variables.add(new DiscreteVariable("X" + j, 3));
+        }
+
+        DataSet dataSet = new BoxDataSet(new VerticalIntDataBox(100, 4), variables);
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 4; j++) {
+                dataSet.setInt(i, j, RandomUtil.getInstance().nextInt(3));
+            }
+        }
+
+        BDeuScore score = new BDeuScore(dataSet);
+        int[] parents = {1, 2, 3};
+
+        // The score calculated over all 27 parent states and 3 child values.
+        int[][] n_jk = new int[27][3];
+        int[] n_j = new int[27];
+
+        for (int i = 0; i < 100; i++) {
+            int j = (dataSet.getInt(i, 1) * 3 + dataSet.getInt(i, 2)) * 3 + dataSet.getInt(i, 3);
+            n_jk[j][dataSet.getInt(i, 0)]++;
+            n_j[j]++;
+        }
+
+        double cellPrior = score.getSamplePrior() / (3 * 27);
+        double rowPrior = score.getSamplePrior() / 27;
+        double expected = 0.0;
+
+        for (int j = 0; j < 27; j++) {
+            expected -= Gamma.logGamma(rowPrior + n_j[j]) - Gamma.logGamma(rowPrior);
+
+            for (int k = 0; k < 3; k++) {
+                expected += Gamma.logGamma(cellPrior + n_jk[j][k]) - Gamma.logGamma(cellPrior);
+            }
+        }
+
+        // Structure prior for three parents among three other variables.
+        double e = score.getStructurePrior();
+        expected += 3 * Math.log(e / 3);
+
+        assertEquals(expected, score.localScore(0, parents), 1e-8);
+    }
+
+    @Test
+    public void testChiSquareConcurrent() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        List<Node> variables = new ArrayList<>();
+
+        for (int j = 0; j < 6; j++) {
+            variables.add(new DiscreteVariable("X" + j, 3));
+        }
+
+        DataSet dataSet = new BoxDataSet(new VerticalIntDataBox(300, 6), variables);
+
+        for (int i = 0; i < 300; i++) {
+            for (int j = 0; j < 6; j++) {
+                int parent = j > 0 ? dataSet.getInt(i, j - 1) : 0;
+                int value = RandomUtil.getInstance().nextDouble() < 0.6 ? parent : RandomUtil.getInstance().nextInt(3);
+                dataSet.setInt(i, j, value);
+            }
+        }
+
+        final ChiSquareTest test = new ChiSquareTest(dataSet, 0.05);
+        final List<int[]> indices = new ArrayList<>();
+
+        for (int x = 0; x < 6; x++) {
+            for (int y = x + 1; y < 6; y++) {
+                for (int z = 0; z < 6; z++) {
+                    if (z != x && z != y) indices.add(new int[]{x, y, z});
+                }
+            }
+        }
+
+        List<Double> serial = new ArrayList<>();
+
+        for (int[] testIndices : indices) {
+            serial.add(test.calcChiSquare(testIndices).getXSquare());
+        }
+
+        List<Double> concurrent = indices.parallelStream()
+                .map(testIndices -> test.calcChiSquare(testIndices).getXSquare())
+                .collect(Collectors.toList());
+
+        assertEquals(serial, concurrent);
+
+        // Checks one against the conditional tables counted directly.
+        int[][][] table = new int[3][3][3];
+
+        for (int i = 0; i < 300; i++) {
+            table[dataSet.getInt(i, 2)][dataSet.getInt(i, 0)][dataSet.getInt(i, 1)]++;
+        }
+
+        double xSquare = 0.0;
+
+        for (int z = 0; z < 3; z++) {
+            int[] sumRows = new int[3];
+            int[] sumCols = new int[3];
+            int total = 0;
+
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    sumRows[i] += table[z][i][j];
+                    sumCols[j] += table[z][i][j];
+                    total += table[z][i][j];
+                }
+            }
+
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    if (sumRows[i] == 0 || sumCols[j] == 0) continue;
+                    double expected = sumRows[i] * (double) sumCols[j] / total;
+                    xSquare += Math.pow(table[z][i][j] - expected, 2.0) / expected;
+                }
+            }
+        }
+
+        assertEquals(xSquare, test.calcChiSquare(new int[]{0, 1, 2}).getXSquare(), 1e-8);
+    }
+
+    @Test
+    public void testAdTree() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        int numColumns = 7;
+        int n = 400;
+        int[][] columns = new int[numColumns][n];
+        int[] dims = new int[numColumns];
+        int[] weights = new int[n];
+
+        for (int c = 0; c < numColumns; c++) {
+            dims[c] = 2 + c % 3;
+
+            for (int i = 0; i < n; i++) {
+                columns[c][i] = RandomUtil.getInstance().nextDouble() < 0.02
+                        ? DiscreteVariable.MISSING_VALUE
+                        : RandomUtil.getInstance().nextInt(dims[c]);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            weights[i] = RandomUtil.getInstance().nextInt(3);
+        }
+
+        // A small cache, so that nodes are evicted and rebuilt along the way.
+        AdTreeCounts adTree = new AdTreeCounts(columns, dims, weights, 5000);
+        ContingencyCounts counts = ContingencyCounts.local();
+
+        for (int query = 0; query < 200; query++) {
+            int size = 1 + RandomUtil.getInstance().nextInt(4);
+            int[] all = new int[numColumns];
+            for (int c = 0; c < numColumns; c++) all[c] = c;
+
+            for (int c = numColumns - 1; c > 0; c--) {
+                int d = RandomUtil.getInstance().nextInt(c + 1);
+                int t = all[c];
+                all[c] = all[d];
+                all[d] = t;
+            }
+
+            int[] vars = new int[size];
+            int[][] _columns = new int[size][];
+            int[] _dims = new int[size];
+
+            for (int k = 0; k < size; k++) {
+                vars[k] = all[k];
+                _columns[k] = columns[vars[k]];
+                _dims[k] = dims[vars[k]];
+            }
+
+            counts.count(_columns, _dims, weights);
+            Map<Long, Integer> expected = new HashMap<>();
+
+            for (int cell = 0; cell < counts.getNumCells(); cell++) {
+                expected.put(counts.getKey(cell), counts.getCount(cell));
+            }
+
+            long total = counts.getTotal();
+
+            adTree.count(vars, counts);
+
+            assertEquals(total, counts.getTotal());
+            assertEquals(expected.size(), counts.getNumCells());
+
+            for (int cell = 0; cell < counts.getNumCells(); cell++) {
+                assertEquals((int) expected.get(counts.getKey(cell)), counts.getCount(cell));
+            }
+
+            assertTrue(adTree.getNumCachedInts() <= 5000);
+        }
+    }
+
+    @Test
+    public void testPackedMissingPlanes() {
+        PackedIntDataBox box = new PackedIntDataBox(new int[][]{{0, 1, 0}, {1, -99, 2}}, new int[]{2, 3});
+        assertFalse(box.hasMissingValues(0));
+        assertTrue(box.hasMissingValues(1));
+
+        PackedIntDataBox selection = (PackedIntDataBox) box.viewSelection(new int[]{0, 2}, new int[]{0, 1});
+        assertFalse(selection.hasMissingValues(0));
+        assertFalse(selection.hasMissingValues(1));
+
+        PackedIntDataBox copy = new PackedIntDataBox(box, new int[]{2, 3});
+        assertFalse(copy.hasMissingValues(0));
+        assertTrue(copy.hasMissingValues(1));
+        assertNull(copy.get(1, 1));
+    }
+
+    @Test
+    public void testPacked() {
+        RandomUtil.getInstance().setSeed(3829382L);
+
+        List<Node> variables = new ArrayList<>();
+
+        for (int j = 0; j < 6; j++) {
+            variables.add(new DiscreteVariable("X" + j, 2 + j % 4));
+        }
+
+        int n = 333;
+        DataSet dataSet = new BoxDataSet(new VerticalIntDataBox(n, 6), variables);
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 6; j++) {
+                dataSet.setInt(i, j, RandomUtil.getInstance().nextDouble() < 0.02
+                        ? DiscreteVariable.MISSING_VALUE
+                        : RandomUtil.getInstance().nextInt(2 + j % 4));
+            }
+        }
+
+        BoxDataSet packedData = PackedIntDataBox.pack(dataSet);
+        PackedIntDataBox box = (PackedIntDataBox) packedData.getDataBox();
+        int[][] columns = ((VerticalIntDataBox) ((BoxDataSet) dataSet).getDataBox()).getVariableVectors();
+        int[] unpacked = new int[n];
+
+        for (int j = 0; j < 6; j++) {
+            box.unpack(j, unpacked);
+
+            for (int i = 0; i < n; i++) {
+                assertEquals(columns[j][i], unpacked[i]);
+                assertEquals(dataSet.getInt(i, j), packedData.getInt(i, j));
+            }
+        }
+
+        // Small sets are counted on the bit planes, larger ones by unpacking.
+        ContingencyCounts counts = ContingencyCounts.local();
+
+        for (int[] vars : new int[][]{{0}, {4, 0}, {1, 0, 4}, {5, 3, 2, 1, 0}, {0, 1, 2, 3, 4, 5}}) {
+            int[][] _columns = new int[vars.length][];
+            int[] dims = new int[vars.length];
+
+            for (int k = 0; k < vars.length; k++) {
+                _columns[k] = columns[vars[k]];
+                dims[k] = box.getNumCategories(vars[k]);
+            }
+
+            counts.count(_columns, dims, null);
+            List<Long> keys = new ArrayList<>();
+            List<Integer> cellCounts = new ArrayList<>();
+
+            for (int cell = 0; cell < counts.getNumCells(); cell++) {
+                keys.add(counts.getKey(cell));
+                cellCounts.add(counts.getCount(cell));
+            }
+
+            counts.count(box, vars, null);
+            assertEquals(keys.size(), counts.getNumCells());
+
+            for (int cell = 0; cell < counts.getNumCells(); cell++) {
+                assertEquals((long) keys.get(cell), counts.getKey(cell));
+                assertEquals((int) cellCounts.get(cell), counts.getCount(cell));
+            }
+        }
+
+        assertEquals(new BDeuScore(dataSet).localScore(0, new int[]{1, 2}),
+                new BDeuScore(packedData).localScore(0, new int[]{1, 2}), 1e-8);
+        assertEquals(new ChiSquareTest(dataSet, 0.05).calcChiSquare(new int[]{0, 1, 2, 3}).getXSquare(),
+                new ChiSquareTest(packedData, 0.05).calcChiSquare(new int[]{0, 1, 2, 3}).getXSquare(), 1e-8);
+    }
+}
@@ -27,6 +27,9 @@ import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -83,9 +86,175 @@ public final class TestCovarianceMatrix {
         assertEquals(-.051, c2.getValue(0, 1), 0.001);
         assertEquals(-.609, c3.getValue(0, 1), 0.001);
     }
-}
 
+    /**
+     * Tests that the tiled covariance matrix agrees with the dense one, including
+     * for tiles that have been evicted, spilled and mapped back in.
+     */
+    @Test
+    public void testTiled() throws IOException {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < 30; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new ColtDataSet(50, variables);
 
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 30; j++) {
+                dataSet.setDouble(i, j, RandomUtil.getInstance().nextNormal(0, 1));
+            }
+        }
+
+        ICovarianceMatrix c1 = new CovarianceMatrix(dataSet);
+        CovarianceMatrixTiled c2 = new CovarianceMatrixTiled(dataSet, 7, 3);
+
+        File spillFile = File.createTempFile("tiles", ".bin");
+        spillFile.deleteOnExit();
+        c2.setSpillFile(spillFile);
 
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 30; i++) {
+                for (int j = 0; j < 30; j++) {
+                    assertEquals(c1.getValue(i, j), c2.getValue(i, j), 1e-10);
+                }
+            }
+        }
+
+        assertEquals(3, c2.getNumCachedTiles());
 
+        ICovarianceMatrix copy = (ICovarianceMatrix) c2.copy();
+        List<String> remaining = Arrays.asList("X20", "X3", "X11", "X12");
+        ICovarianceMatrix sub = c1.getSubmatrix(remaining);
+        c2.removeVariables(remaining);
 
+        assertEquals(remaining, c2.getVariableNames());
+
+        for (int i = 0; i < remaining.size(); i++) {
+            for (int j = 0; j < remaining.size(); j++) {
+                assertEquals(sub.getValue(i, j), c2.getValue(i, j), 1e-10);
+            }
+        }
+
+        for (int i = 0; i < 30; i++) {
+            for (int j = 0; j < 30; j++) {
+                assertEquals(c1.getValue(i, j), copy.getValue(i, j), 1e-10);
+            }
+        }
+
+        c2.setSpillFile(null);
+
+        dataSet.setDouble(3, 4, Double.NaN);
+        ICovarianceMatrix c3 = new CovarianceMatrixOnTheFly(dataSet);
+        ICovarianceMatrix c4 = new CovarianceMatrixTiled(dataSet, 7, 3);
+
+        for (int i = 0; i < 30; i++) {
+            for (int j = 0; j < 30; j++) {
+                assertEquals(c3.getValue(i, j), c4.getValue(i, j), 1e-10);
+            }
+        }
+    }
+
+    /**
+     * Tests pairwise deletion against covariances calculated directly from the rows
+     * in which both variables are observed.
+     */
+    @Test
+    public void testPairwise() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < 4; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new ColtDataSet(150, variables);
+
+        for (int i = 0; i < 150; i++) {
+            for (int j = 0; j < 4; j++) {
+                double d = RandomUtil.getInstance().nextNormal(0, 1);
+                dataSet.setDouble(i, j, j > 0 && RandomUtil.getInstance().nextDouble() < 0.1 * j ? Double.NaN : d);
+            }
+        }
+
+        CovarianceMatrixPairwise cov = new CovarianceMatrixPairwise(dataSet);
+
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                double sx = 0, sy = 0, sxy = 0;
+                int n = 0;
+
+                for (int k = 0; k < 150; k++) {
+                    double x = dataSet.getDouble(k, i);
+                    double y = dataSet.getDouble(k, j);
+                    if (Double.isNaN(x) || Double.isNaN(y)) continue;
+                    sx += x;
+                    sy += y;
+                    sxy += x * y;
+                    n++;
+                }
+
+                assertEquals(n, cov.getSampleSize(i, j));
+                assertEquals((sxy - sx * sy / n) / (n - 1), cov.getValue(i, j), 1e-10);
+            }
+        }
+
+        assertEquals(150, cov.getSampleSize(0, 0));
+        assertEquals(cov.getSampleSize(2, 3), cov.getSampleSize(new int[]{0, 2, 3}));
+
+        ICovarianceMatrix copy = (ICovarianceMatrix) cov.copy();
+        double v23 = cov.getValue(2, 3);
+        int n23 = cov.getSampleSize(2, 3);
+
+        cov.removeVariables(Arrays.asList("X3", "X2"));
+        assertEquals(Arrays.asList("X3", "X2"), cov.getVariableNames());
+        assertEquals(v23, cov.getValue(1, 0), 0.0);
+        assertEquals(n23, cov.getSampleSize(0, 1));
+        assertEquals(4, copy.getDimension());
+        assertEquals(v23, copy.getValue(2, 3), 0.0);
+    }
+
+    @Test
+    public void testResampleCovariances() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < 5; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new BoxDataSet(new VerticalDoubleDataBox(200, 5), variables);
+
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 5; j++) {
+                dataSet.setDouble(i, j, 10 + RandomUtil.getInstance().nextNormal(0, 1));
+            }
+        }
+
+        List<DataSet> samples = new LinkedList<>();
+
+        for (int b = 0; b < 6; b++) {
+            samples.add(DataUtils.getResampleView(dataSet, b % 2 == 0 ? 200 : 120, b % 3 != 2));
+        }
+
+        List<ICovarianceMatrix> covs = CovarianceMatrix.resampleCovariances(samples);
+
+        assertEquals(6, covs.size());
+
+        for (int b = 0; b < 6; b++) {
+            ICovarianceMatrix expected = new CovarianceMatrix(samples.get(b).copy());
+            assertEquals(expected.getSampleSize(), covs.get(b).getSampleSize());
+
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 5; j++) {
+                    assertEquals(expected.getValue(i, j), covs.get(b).getValue(i, j), 1e-10);
+                }
+            }
+        }
+    }
+}
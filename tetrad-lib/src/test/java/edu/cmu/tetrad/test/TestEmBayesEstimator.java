@@ -0,0 +1,95 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.BayesIm;
+import edu.cmu.tetrad.bayes.BayesPm;
+import edu.cmu.tetrad.bayes.EmBayesEstimator;
+import edu.cmu.tetrad.bayes.MlBayesIm;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.GraphNode;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests EM estimation of Bayes nets from data with missing values.
+ */
+public final class TestEmBayesEstimator {
+
+    @Test
+    public void testMissingValues() {
+        RandomUtil.getInstance().setSeed(3928439L);
+
+        Node a = new GraphNode("a");
+        Node b = new GraphNode("b");
+        Node c = new GraphNode("c");
+
+        Dag dag = new Dag();
+        dag.addNode(a);
+        dag.addNode(b);
+        dag.addNode(c);
+        dag.addDirectedEdge(a, b);
+        dag.addDirectedEdge(b, c);
+
+        BayesPm bayesPm = new BayesPm(dag);
+        BayesIm bayesIm = new MlBayesIm(bayesPm, MlBayesIm.RANDOM);
+
+        DataSet data = bayesIm.simulateData(20000, false);
+
+        for (int i = 0; i < data.getNumRows(); i++) {
+            for (int j = 0; j < data.getNumColumns(); j++) {
+                if (RandomUtil.getInstance().nextDouble() < 0.2) {
+                    data.setInt(i, j, -99);
+                }
+            }
+        }
+
+        EmBayesEstimator estimator = new EmBayesEstimator(bayesPm, data);
+        BayesIm estimatedIm = estimator.maximization(1e-6);
+
+        assertTrue(estimator.getNumPatterns() < data.getNumRows());
+
+        List<Double> logLikelihoods = estimator.getLogLikelihoods();
+        assertEquals(logLikelihoods.size(), estimator.getIterationTimes().size());
+
+        for (int i = 1; i < logLikelihoods.size(); i++) {
+            assertTrue(logLikelihoods.get(i) >= logLikelihoods.get(i - 1) - 1e-6);
+        }
+
+        for (int node = 0; node < bayesIm.getNumNodes(); node++) {
+            for (int row = 0; row < bayesIm.getNumRows(node); row++) {
+                for (int col = 0; col < bayesIm.getNumColumns(node); col++) {
+                    assertEquals(bayesIm.getProbability(node, row, col),
+                            estimatedIm.getProbability(node, row, col), 0.05);
+                }
+            }
+        }
+    }
+}
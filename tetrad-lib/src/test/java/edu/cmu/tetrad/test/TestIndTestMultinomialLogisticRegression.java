@@ -0,0 +1,120 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.data.Discretizer;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.regression.LogisticRegressionEngine;
+import edu.cmu.tetrad.search.IndTestMultinomialLogisticRegression;
+import edu.cmu.tetrad.sem.SemIm;
+import edu.cmu.tetrad.sem.SemPm;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the multinomial logistic regression test gives the same p values whether
+ * its regressions are fit by LogisticRegression or by a LogisticRegressionEngine.
+ */
+public class TestIndTestMultinomialLogisticRegression {
+
+    @Test
+    public void testEngineWithMissingValues() {
+        RandomUtil.getInstance().setSeed(3948223L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            nodes.add(new ContinuousVariable("X" + (i + 1)));
+        }
+
+        Graph graph = GraphUtils.randomGraph(nodes, 0, 6, 3, 3, 3, false);
+        SemIm im = new SemIm(new SemPm(graph));
+        DataSet data = im.simulateData(1000, false);
+
+        Discretizer discretizer = new Discretizer(data);
+        discretizer.setVariablesCopied(true);
+        discretizer.equalCounts(data.getVariable("X1"), 3);
+        discretizer.equalCounts(data.getVariable("X2"), 2);
+        data = discretizer.discretize();
+
+        // Knock out values here and there, in different rows for different variables.
+        for (int i = 0; i < data.getNumRows(); i++) {
+            for (int j = 0; j < data.getNumColumns(); j++) {
+                if (RandomUtil.getInstance().nextDouble() > 0.03) continue;
+
+                if (data.getVariable(j) instanceof DiscreteVariable) {
+                    data.setInt(i, j, DiscreteVariable.MISSING_VALUE);
+                } else {
+                    data.setDouble(i, j, Double.NaN);
+                }
+            }
+        }
+
+        IndTestMultinomialLogisticRegression legacy = new IndTestMultinomialLogisticRegression(data, 0.05);
+        IndTestMultinomialLogisticRegression engine = new IndTestMultinomialLogisticRegression(data, 0.05);
+        LogisticRegressionEngine regressionEngine = new LogisticRegressionEngine();
+        regressionEngine.setRidge(0.0);
+        engine.setRegressionEngine(regressionEngine);
+
+        Node x1 = data.getVariable("X1");
+        Node x2 = data.getVariable("X2");
+        Node x3 = data.getVariable("X3");
+        Node x4 = data.getVariable("X4");
+        Node x5 = data.getVariable("X5");
+
+        Object[][] facts = {
+                {x1, x3, Collections.<Node>emptyList()},
+                {x1, x3, Collections.singletonList(x4)},
+                {x1, x2, Arrays.asList(x4, x5)},
+                {x2, x1, Collections.singletonList(x3)},
+                {x2, x5, Arrays.asList(x1, x3, x4)},
+                {x3, x1, Collections.singletonList(x5)}
+        };
+
+        // Twice, so that the engine's second answers come from its cache.
+        for (int rep = 0; rep < 2; rep++) {
+            for (Object[] fact : facts) {
+                Node x = (Node) fact[0];
+                Node y = (Node) fact[1];
+                @SuppressWarnings("unchecked") List<Node> z = (List<Node>) fact[2];
+
+                legacy.isIndependent(x, y, z);
+                engine.isIndependent(x, y, z);
+
+                assertEquals(legacy.getPValue(), engine.getPValue(), 1e-4);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.*;
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.GraphNode;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the junction tree updater against the row summing exact updater.
+ */
+public final class TestJunctionTreeUpdater {
+
+    @Test
+    public void testMarginals() {
+        RandomUtil.getInstance().setSeed(4829384L);
+
+        for (int run = 0; run < 5; run++) {
+            Dag dag = new Dag(GraphUtils.randomGraph(9, 0, 14, 4, 3, 3, false));
+            BayesPm bayesPm = new BayesPm(dag, 2, 3);
+            BayesIm bayesIm = new MlBayesIm(bayesPm, MlBayesIm.RANDOM);
+
+            Evidence evidence = Evidence.tautology(bayesIm);
+            evidence.getProposition().setCategory(1, 0);
+            evidence.getProposition().removeCategory(5, 1);
+            evidence.getProposition().setCategory(3, 1);
+            evidence.setManipulated(3, true);
+
+            ManipulatingBayesUpdater expected = new RowSummingExactUpdater(bayesIm, evidence);
+            ManipulatingBayesUpdater updater = new JunctionTreeUpdater(bayesIm, evidence);
+
+            for (int i = 0; i < bayesIm.getNumNodes(); i++) {
+                for (int j = 0; j < bayesIm.getNumColumns(i); j++) {
+                    assertEquals(expected.getMarginal(i, j), updater.getMarginal(i, j), 1e-10);
+                }
+            }
+
+            int[] variables = {0, 2, 8};
+            int[] values = {1, 0, 1};
+
+            assertEquals(expected.getJointMarginal(variables, values),
+                    updater.getJointMarginal(variables, values), 1e-10);
+
+            BayesIm expectedIm = expected.getUpdatedBayesIm();
+            BayesIm updatedIm = updater.getUpdatedBayesIm();
+
+            for (int i = 0; i < bayesIm.getNumNodes(); i++) {
+                for (int row = 0; row < bayesIm.getNumRows(i); row++) {
+                    for (int col = 0; col < bayesIm.getNumColumns(i); col++) {
+                        double p = expectedIm.getProbability(i, row, col);
+                        double q = updatedIm.getProbability(i, row, col);
+
+                        if (Double.isNaN(p)) {
+                            assertTrue(Double.isNaN(q));
+                        } else {
+                            assertEquals(p, q, 1e-10);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testImpossibleEvidence() {
+        BayesIm bayesIm = new MlBayesIm(BayesPm.serializableInstance(), MlBayesIm.RANDOM);
+        ManipulatingBayesUpdater updater = new JunctionTreeUpdater(bayesIm);
+
+        Evidence evidence = Evidence.tautology(bayesIm);
+
+        for (int j = 0; j < bayesIm.getNumColumns(0); j++) {
+            evidence.getProposition().removeCategory(0, j);
+        }
+
+        updater.setEvidence(evidence);
+        assertTrue(Double.isNaN(updater.getMarginal(0, 0)));
+
+        updater.setEvidence(Evidence.tautology(bayesIm));
+        double sum = 0.0;
+
+        for (int j = 0; j < bayesIm.getNumColumns(0); j++) {
+            sum += updater.getMarginal(0, j);
+        }
+
+        assertEquals(1.0, sum, 1e-10);
+    }
+
+    /**
+     * With evidence on thousands of variables the probability of the evidence
+     * is far below the smallest double, so the potentials must be rescaled as
+     * messages pass. A class variable with many children, all but one of them
+     * observed, has a posterior that can be calculated directly in logs.
+     */
+    @Test
+    public void testLargeNetWithEvidence() {
+        RandomUtil.getInstance().setSeed(2938483L);
+
+        int numChildren = 2000;
+        Node root = new GraphNode("C");
+        Dag dag = new Dag();
+        dag.addNode(root);
+
+        for (int i = 0; i < numChildren; i++) {
+            Node child = new GraphNode("X" + (i + 1));
+            dag.addNode(child);
+            dag.addDirectedEdge(root, child);
+        }
+
+        BayesIm bayesIm = new MlBayesIm(new BayesPm(dag, 3, 3), MlBayesIm.RANDOM);
+        int c = bayesIm.getNodeIndex(root);
+
+        Evidence evidence = Evidence.tautology(bayesIm);
+        double[] logJoint = new double[3];
+
+        for (int r = 0; r < 3; r++) {
+            logJoint[r] = Math.log(bayesIm.getProbability(c, 0, r));
+        }
+
+        int unobserved = -1;
+
+        for (int i = 0; i < bayesIm.getNumNodes(); i++) {
+            if (i == c) continue;
+
+            if (unobserved == -1) {
+                unobserved = i;
+                continue;
+            }
+
+            int value = RandomUtil.getInstance().nextInt(3);
+            evidence.getProposition().setCategory(i, value);
+
+            for (int r = 0; r < 3; r++) {
+                logJoint[r] += Math.log(bayesIm.getProbability(i, r, value));
+            }
+        }
+
+        double max = Math.max(logJoint[0], Math.max(logJoint[1], logJoint[2]));
+        double logEvidence = max + Math.log(Math.exp(logJoint[0] - max)
+                + Math.exp(logJoint[1] - max) + Math.exp(logJoint[2] - max));
+        assertTrue(logEvidence < Math.log(Double.MIN_VALUE));
+
+        ManipulatingBayesUpdater updater = new JunctionTreeUpdater(bayesIm, evidence);
+        double[] posterior = new double[3];
+
+        for (int r = 0; r < 3; r++) {
+            posterior[r] = Math.exp(logJoint[r] - logEvidence);
+            assertEquals(posterior[r], updater.getMarginal(c, r), 1e-9);
+        }
+
+        for (int j = 0; j < 3; j++) {
+            double expected = 0.0;
+
+            for (int r = 0; r < 3; r++) {
+                expected += posterior[r] * bayesIm.getProbability(unobserved, r, j);
+            }
+
+            assertEquals(expected, updater.getMarginal(unobserved, j), 1e-9);
+            assertEquals(posterior[j] * bayesIm.getProbability(unobserved, j, 1),
+                    updater.getJointMarginal(new int[]{c, unobserved}, new int[]{j, 1}), 1e-9);
+        }
+    }
+}
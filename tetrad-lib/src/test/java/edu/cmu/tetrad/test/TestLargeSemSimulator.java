@@ -27,6 +27,8 @@ import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.sem.LargeScaleSimulation;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,9 +54,32 @@ public class TestLargeSemSimulator {
 
         assertEquals(1000, dataset.getNumRows());
     }
-}
 
+    @Test
+    public void testStreaming() throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) nodes.add(new ContinuousVariable("X" + i));
+
+        Graph graph = GraphUtils.randomGraph(nodes, 0, 10, 5, 5, 5, false);
+
+        LargeScaleSimulation simulator = new LargeScaleSimulation(graph);
+        simulator.setBlockSize(64);
+        simulator.setSeed(4838L);
+        DataSet inMemory = simulator.simulateDataRecursive(1000);
 
+        File file = File.createTempFile("simulation", ".bin");
+        file.deleteOnExit();
 
+        simulator.setSeed(4838L);
+        simulator.simulateDataRecursive(1000, file, LargeScaleSimulation.Format.BINARY);
+        DataSet streamed = LargeScaleSimulation.loadBinary(file);
 
+        assertEquals(1000, streamed.getNumRows());
 
+        for (int i = 0; i < inMemory.getNumRows(); i++) {
+            for (int j = 0; j < inMemory.getNumColumns(); j++) {
+                assertEquals(inMemory.getDouble(i, j), streamed.getDouble(i, j), 0.0);
+            }
+        }
+    }
+}
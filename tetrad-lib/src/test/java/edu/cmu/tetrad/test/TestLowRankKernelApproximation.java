@@ -0,0 +1,185 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.data.BoxDataSet;
+import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.VerticalDoubleDataBox;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.search.Kci;
+import edu.cmu.tetrad.search.kernel.LowRankKernelApproximation;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests low-rank features against centered Gaussian Gram matrices, and Kci with them against exact Kci.
+ */
+public class TestLowRankKernelApproximation {
+
+    @Test
+    public void testNystromFullRank() {
+        double[][] columns = data(60);
+        int[] cols = {0, 2};
+        double[] sigmas = {1.0, 1.5};
+
+        // With as many landmarks as rows, the Nystrom approximation is exact.
+        LowRankKernelApproximation approximation = new LowRankKernelApproximation(columns,
+                LowRankKernelApproximation.Method.NYSTROM, 60);
+        TetradMatrix features = approximation.centeredFeatures(cols, sigmas);
+        TetradMatrix gram = features.times(features.transpose());
+        TetradMatrix expected = centeredGram(columns, cols, sigmas);
+
+        for (int i = 0; i < 60; i++) {
+            for (int j = 0; j < 60; j++) {
+                assertEquals(expected.get(i, j), gram.get(i, j), 1e-6);
+            }
+        }
+
+        assertSame(features, approximation.centeredFeatures(cols, sigmas));
+    }
+
+    @Test
+    public void testRandomFourier() {
+        double[][] columns = data(100);
+        int[] cols = {1};
+        double[] sigmas = {1.0};
+
+        LowRankKernelApproximation approximation = new LowRankKernelApproximation(columns,
+                LowRankKernelApproximation.Method.RANDOM_FOURIER, 2000);
+        TetradMatrix features = approximation.centeredFeatures(cols, sigmas);
+        TetradMatrix gram = features.times(features.transpose());
+        TetradMatrix expected = centeredGram(columns, cols, sigmas);
+
+        double error = 0.0;
+        double norm = 0.0;
+
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                error += Math.pow(expected.get(i, j) - gram.get(i, j), 2);
+                norm += Math.pow(expected.get(i, j), 2);
+            }
+        }
+
+        assertTrue(Math.sqrt(error / norm) < 0.1);
+    }
+
+    @Test
+    public void testKciConditional() {
+        DataSet dataSet = conditionalData(200);
+        Node x = dataSet.getVariable("X");
+        Node y = dataSet.getVariable("Y");
+        Node z = dataSet.getVariable("Z");
+        Node w = dataSet.getVariable("W");
+
+        Kci exact = new Kci(dataSet, 0.05);
+        assertTrue(exact.isIndependent(x, y, z));
+        double pExact = exact.getPValue();
+        assertFalse(exact.isIndependent(x, w, z));
+
+        // With as many landmarks as rows the features are exact, so only the products of eigenvectors
+        // dropped for Proposition 5 separate the p values.
+        Kci fullRank = new Kci(dataSet, 0.05);
+        fullRank.setLowRankApproximation(LowRankKernelApproximation.Method.NYSTROM, 200);
+        assertTrue(fullRank.isIndependent(x, y, z));
+        assertEquals(pExact, fullRank.getPValue(), 0.1);
+        assertFalse(fullRank.isIndependent(x, w, z));
+
+        Kci lowRank = new Kci(dataSet, 0.05);
+        lowRank.setLowRankApproximation(LowRankKernelApproximation.Method.NYSTROM, 50);
+        assertTrue(lowRank.isIndependent(x, y, z));
+        assertFalse(lowRank.isIndependent(x, w, z));
+    }
+
+    // X and Y are independent given Z; W depends on X given Z.
+    private DataSet conditionalData(int n) {
+        RandomUtil.getInstance().setSeed(29384823L);
+
+        List<Node> variables = new ArrayList<>();
+        for (String name : new String[]{"X", "Y", "Z", "W"}) variables.add(new ContinuousVariable(name));
+        DataSet dataSet = new BoxDataSet(new VerticalDoubleDataBox(n, 4), variables);
+
+        for (int i = 0; i < n; i++) {
+            double z = RandomUtil.getInstance().nextNormal(0, 1);
+            double x = z + RandomUtil.getInstance().nextNormal(0, 0.5);
+            double y = z + RandomUtil.getInstance().nextNormal(0, 0.5);
+            double w = x + z + RandomUtil.getInstance().nextNormal(0, 0.5);
+
+            dataSet.setDouble(i, 0, x);
+            dataSet.setDouble(i, 1, y);
+            dataSet.setDouble(i, 2, z);
+            dataSet.setDouble(i, 3, w);
+        }
+
+        return dataSet;
+    }
+
+    private double[][] data(int n) {
+        RandomUtil.getInstance().setSeed(48293482L);
+        double[][] columns = new double[3][n];
+
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < n; i++) {
+                columns[j][i] = RandomUtil.getInstance().nextNormal(0, 1);
+            }
+        }
+
+        return columns;
+    }
+
+    private TetradMatrix centeredGram(double[][] columns, int[] cols, double[] sigmas) {
+        int n = columns[0].length;
+        TetradMatrix gram = new TetradMatrix(n, n);
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double sum = 0.0;
+
+                for (int c = 0; c < cols.length; c++) {
+                    double d = (columns[cols[c]][i] - columns[cols[c]][j]) / sigmas[c];
+                    sum += d * d;
+                }
+
+                gram.set(i, j, Math.exp(-0.5 * sum));
+            }
+        }
+
+        TetradMatrix H = new TetradMatrix(n, n);
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                H.set(i, j, (i == j ? 1.0 : 0.0) - 1.0 / n);
+            }
+        }
+
+        return H.times(gram).times(H);
+    }
+}
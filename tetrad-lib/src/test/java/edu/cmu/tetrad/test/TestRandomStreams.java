@@ -0,0 +1,129 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.BayesPm;
+import edu.cmu.tetrad.bayes.MlBayesIm;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.sem.SemIm;
+import edu.cmu.tetrad.sem.SemPm;
+import edu.cmu.tetrad.util.RandomStreams;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that random streams, and the simulations that use them, are reproducible whether or not they are run in
+ * parallel.
+ */
+public class TestRandomStreams {
+
+    @Test
+    public void testStreams() {
+        RandomStreams streams = new RandomStreams(3829L);
+
+        assertEquals(streams.stream(4).nextLong(), new RandomStreams(3829L).stream(4).nextLong());
+        assertNotEquals(streams.stream(4).nextLong(), streams.stream(5).nextLong());
+        assertNotEquals(streams.seed(4), streams.split(4).seed(4));
+
+        // While a task runs, RandomUtil.getInstance() is the task's stream.
+        final RandomUtil singleton = RandomUtil.getInstance();
+        double fromTask = streams.call(7, () -> {
+            assertNotSame(singleton, RandomUtil.getInstance());
+            return RandomUtil.getInstance().nextDouble();
+        });
+
+        assertEquals(streams.stream(7).nextDouble(), fromTask, 0.0);
+        assertSame(singleton, RandomUtil.getInstance());
+    }
+
+    @Test
+    public void testBlocks() {
+        final double[] serial = new double[10000];
+        final double[] parallel = new double[10000];
+
+        RandomStreams streams = new RandomStreams(2938L);
+        streams.setParallelized(false);
+        streams.forEachBlock(serial.length, 100, (from, to, random) -> {
+            for (int i = from; i < to; i++) serial[i] = random.nextNormal(0, 1);
+        });
+
+        streams.setParallelized(true);
+        streams.forEachBlock(parallel.length, 100, (from, to, random) -> {
+            for (int i = from; i < to; i++) parallel[i] = RandomUtil.getInstance().nextNormal(0, 1);
+        });
+
+        assertArrayEquals(serial, parallel, 0.0);
+    }
+
+    /**
+     * Samples of one block, seeded or not, draw what a loop over RandomUtil would, so seeded results from before
+     * simulation was done in blocks are kept.
+     */
+    @Test
+    public void testSingleBlock() {
+        RandomUtil.getInstance().setSeed(342233L);
+        final double[] expected = new double[100];
+
+        for (int i = 0; i < expected.length; i++) expected[i] = RandomUtil.getInstance().nextNormal(0, 1);
+
+        RandomUtil.getInstance().setSeed(342233L);
+        final double[] actual = new double[100];
+
+        RandomStreams.forEachBlockOfRandomUtil(actual.length, 1000, (from, to, random) -> {
+            for (int i = from; i < to; i++) actual[i] = random.nextNormal(0, 1);
+        });
+
+        assertArrayEquals(expected, actual, 0.0);
+
+        RandomUtil.getInstance().setSeed(4829L);
+        double next = RandomUtil.getInstance().nextDouble();
+        RandomUtil.getInstance().setSeed(4829L);
+
+        assertEquals(expected[0], RandomStreams.callWithSeed(342233L,
+                () -> RandomUtil.getInstance().nextNormal(0, 1)), 0.0);
+        assertEquals(next, RandomUtil.getInstance().nextDouble(), 0.0);
+    }
+
+    @Test
+    public void testSimulations() {
+        RandomUtil.getInstance().setSeed(4829L);
+        Graph graph = GraphUtils.randomGraph(10, 0, 10, 10, 10, 10, false);
+
+        SemIm semIm = new SemIm(new SemPm(graph));
+        assertTrue(semIm.simulateData(2500, 392L, false).getDoubleData().equals(
+                semIm.simulateData(2500, 392L, false).getDoubleData(), 0.0));
+
+        MlBayesIm bayesIm = new MlBayesIm(new BayesPm(graph), MlBayesIm.RANDOM);
+        DataSet data1 = bayesIm.simulateData(2500, 392L, false);
+        DataSet data2 = bayesIm.simulateData(2500, 392L, false);
+
+        for (int i = 0; i < data1.getNumRows(); i++) {
+            for (int j = 0; j < data1.getNumColumns(); j++) {
+                assertEquals(data1.getInt(i, j), data2.getInt(i, j));
+            }
+        }
+    }
+}
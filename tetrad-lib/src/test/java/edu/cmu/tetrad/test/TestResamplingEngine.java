@@ -0,0 +1,75 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.util.ResamplingEngine;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that resampled p values are reproducible and that early stopping stops.
+ */
+public class TestResamplingEngine {
+
+    @Test
+    public void testReproducible() {
+        ResamplingEngine serial = new ResamplingEngine(2938L);
+        serial.setParallelized(false);
+
+        ResamplingEngine parallel = new ResamplingEngine(2938L);
+        parallel.setParallelized(true);
+
+        for (long streamId = 0; streamId < 5; streamId++) {
+            double p1 = serial.pValue(streamId, 2000, 0.05,
+                    (index, random) -> ResamplingEngine.nextNormal(random) > 1.0);
+            double p2 = parallel.pValue(streamId, 2000, 0.05,
+                    (index, random) -> ResamplingEngine.nextNormal(random) > 1.0);
+
+            assertEquals(p1, p2, 0.0);
+
+            // P(Z > 1) = 0.1587.
+            assertEquals(0.1587, p1, 0.03);
+        }
+    }
+
+    @Test
+    public void testEarlyStopping() {
+        ResamplingEngine engine = new ResamplingEngine(2938L);
+        engine.setEarlyStopping(true);
+        engine.setBatchSize(100);
+
+        final int[] count = new int[1];
+
+        double p = engine.pValue(0, 10000, 0.05, (index, random) -> {
+            synchronized (count) {
+                count[0]++;
+            }
+
+            return random.nextDouble() < 0.5;
+        });
+
+        assertEquals(0.5, p, 0.2);
+        assertTrue(count[0] < 10000);
+    }
+}
@@ -0,0 +1,196 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.algcomparison.Comparison;
+import edu.cmu.tetrad.algcomparison.algorithm.oracle.pattern.Fges;
+import edu.cmu.tetrad.algcomparison.utils.RunScheduler;
+import edu.cmu.tetrad.util.Parameters;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the scheduler for comparison runs keeps within its thread and memory budgets.
+ */
+public class TestRunScheduler {
+
+    @Test
+    public void testBudgets() {
+        final int maxThreads = 4;
+        final long maxMemory = 1000;
+
+        final AtomicInteger threadsInUse = new AtomicInteger();
+        final AtomicLong memoryInUse = new AtomicLong();
+        final AtomicInteger maxThreadsInUse = new AtomicInteger();
+        final AtomicLong maxMemoryInUse = new AtomicLong();
+
+        final int[] numRuns = new int[40];
+        List<RunScheduler.Job> jobs = new ArrayList<>();
+
+        for (int i = 0; i < numRuns.length; i++) {
+            final int index = i;
+
+            jobs.add(new RunScheduler.Job() {
+                @Override
+                public long getSize() {
+                    return index % 7;
+                }
+
+                @Override
+                public long getMemory() {
+                    return 100 * (index % 7);
+                }
+
+                @Override
+                public int getNumThreads() {
+                    return index % 5 == 0 ? maxThreads : 1;
+                }
+
+                @Override
+                public void run() {
+                    int threads = threadsInUse.addAndGet(getNumThreads());
+                    long memory = memoryInUse.addAndGet(getMemory());
+                    maxThreadsInUse.accumulateAndGet(threads, Math::max);
+                    maxMemoryInUse.accumulateAndGet(memory, Math::max);
+
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    numRuns[index]++;
+                    threadsInUse.addAndGet(-getNumThreads());
+                    memoryInUse.addAndGet(-getMemory());
+                }
+            });
+        }
+
+        new RunScheduler(maxThreads, maxMemory).runAll(jobs);
+
+        for (int n : numRuns) {
+            assertEquals(1, n);
+        }
+
+        assertTrue(maxThreadsInUse.get() <= maxThreads);
+        assertTrue(maxMemoryInUse.get() <= maxMemory);
+    }
+
+    @Test
+    public void testFailure() {
+        List<RunScheduler.Job> jobs = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+
+            jobs.add(new RunScheduler.Job() {
+                @Override
+                public long getSize() {
+                    return 0;
+                }
+
+                @Override
+                public long getMemory() {
+                    return 0;
+                }
+
+                @Override
+                public int getNumThreads() {
+                    return 1;
+                }
+
+                @Override
+                public void run() {
+                    if (index == 3) throw new IllegalStateException("Job " + index);
+                }
+            });
+        }
+
+        try {
+            new RunScheduler(2, 0).runAll(jobs);
+            fail("Expected the job's exception.");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * Runs of an algorithm that doesn't say it uses threads of its own are budgeted at one thread,
+     * so that under the default budget of a comparison they run side by side.
+     */
+    @Test
+    public void testDefaultRunsOverlap() {
+        Comparison comparison = new Comparison();
+        Assume.assumeTrue(comparison.getMaxThreads() >= 2);
+
+        final int numThreads = Comparison.getNumThreads(new Fges(), new Parameters());
+        assertEquals(1, numThreads);
+
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger numOverlapping = new AtomicInteger();
+        List<RunScheduler.Job> jobs = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            jobs.add(new RunScheduler.Job() {
+                @Override
+                public long getSize() {
+                    return 0;
+                }
+
+                @Override
+                public long getMemory() {
+                    return 0;
+                }
+
+                @Override
+                public int getNumThreads() {
+                    return numThreads;
+                }
+
+                @Override
+                public void run() {
+                    started.countDown();
+
+                    try {
+                        if (started.await(10, TimeUnit.SECONDS)) {
+                            numOverlapping.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        new RunScheduler(comparison.getMaxThreads(), comparison.getMaxMemory()).runAll(jobs);
+        assertEquals(2, numOverlapping.get());
+    }
+}
@@ -0,0 +1,137 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.*;
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.GraphNode;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the sampling updater against the junction tree updater.
+ */
+public final class TestSamplingUpdater {
+
+    @Test
+    public void testMarginals() {
+        RandomUtil.getInstance().setSeed(3929384L);
+
+        Dag dag = new Dag(GraphUtils.randomGraph(12, 0, 18, 4, 3, 3, false));
+        BayesPm bayesPm = new BayesPm(dag, 2, 3);
+        BayesIm bayesIm = new MlBayesIm(bayesPm, MlBayesIm.RANDOM);
+
+        Evidence evidence = Evidence.tautology(bayesIm);
+        evidence.getProposition().setCategory(2, 1);
+        evidence.getProposition().removeCategory(7, 0);
+        evidence.getProposition().setCategory(4, 0);
+        evidence.setManipulated(4, true);
+
+        ManipulatingBayesUpdater exact = new JunctionTreeUpdater(bayesIm, evidence);
+
+        for (SamplingUpdater.Method method : SamplingUpdater.Method.values()) {
+            SamplingUpdater updater = new SamplingUpdater(bayesIm, evidence);
+            updater.setMethod(method);
+            updater.setPrecision(0.003);
+
+            for (int i = 0; i < bayesIm.getNumNodes(); i++) {
+                for (int j = 0; j < bayesIm.getNumColumns(i); j++) {
+                    assertEquals(exact.getMarginal(i, j), updater.getMarginal(i, j), 0.02);
+                }
+            }
+
+            assertTrue(updater.isConverged());
+            assertTrue(updater.getRHat() <= updater.getMaxRHat());
+            assertTrue(updater.getEffectiveSampleSize() > 0);
+            assertTrue(updater.getNumSamples() <= updater.getMaxSamples());
+        }
+    }
+
+    @Test
+    public void testReproducible() {
+        BayesIm bayesIm = new MlBayesIm(BayesPm.serializableInstance(), MlBayesIm.RANDOM);
+
+        SamplingUpdater updater = new SamplingUpdater(bayesIm);
+        updater.setMethod(SamplingUpdater.Method.GIBBS);
+
+        RandomUtil.getInstance().setSeed(2938L);
+        double[] marginals = updater.calculateUpdatedMarginals(0);
+
+        updater.setEvidence(Evidence.tautology(bayesIm));
+        RandomUtil.getInstance().setSeed(2938L);
+
+        double[] marginals2 = updater.calculateUpdatedMarginals(0);
+
+        for (int j = 0; j < marginals.length; j++) {
+            assertEquals(marginals[j], marginals2[j], 0.0);
+        }
+    }
+
+    /**
+     * Evidence of probability zero allows no starting state, so neither sampler
+     * should report marginals for it.
+     */
+    @Test
+    public void testImpossibleEvidence() {
+        Node x1 = new GraphNode("X1");
+        Node x2 = new GraphNode("X2");
+        Dag dag = new Dag();
+        dag.addNode(x1);
+        dag.addNode(x2);
+        dag.addDirectedEdge(x1, x2);
+
+        BayesIm bayesIm = new MlBayesIm(new BayesPm(dag, 2, 2), MlBayesIm.MANUAL);
+        int i1 = bayesIm.getNodeIndex(x1);
+        int i2 = bayesIm.getNodeIndex(x2);
+
+        // X1 is always 0, and X2 is 1 only if X1 is 1.
+        bayesIm.setProbability(i1, 0, 0, 1.0);
+        bayesIm.setProbability(i1, 0, 1, 0.0);
+        bayesIm.setProbability(i2, 0, 0, 1.0);
+        bayesIm.setProbability(i2, 0, 1, 0.0);
+        bayesIm.setProbability(i2, 1, 0, 0.0);
+        bayesIm.setProbability(i2, 1, 1, 1.0);
+
+        Evidence evidence = Evidence.tautology(bayesIm);
+        evidence.getProposition().setCategory(i2, 1);
+
+        for (SamplingUpdater.Method method : SamplingUpdater.Method.values()) {
+            SamplingUpdater updater = new SamplingUpdater(bayesIm, evidence);
+            updater.setMethod(method);
+            updater.setMaxSamples(10000);
+
+            for (int j = 0; j < 2; j++) {
+                assertTrue(Double.isNaN(updater.getMarginal(i1, j)));
+                assertTrue(Double.isNaN(updater.getMarginal(i2, j)));
+            }
+
+            assertFalse(updater.isConverged());
+        }
+    }
+}
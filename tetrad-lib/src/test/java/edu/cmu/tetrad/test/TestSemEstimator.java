@@ -25,12 +25,17 @@ import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.sem.*;
 import edu.cmu.tetrad.util.MatrixUtils;
+import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Tests the MeasurementSimulator class using diagnostics devised by Richard
  * Scheines. The diagnostics are described in the Javadocs, below.
@@ -76,6 +81,104 @@ public class TestSemEstimator {
         new SemEstimator(data, pm, new SemOptimizerPowell()).estimate();
     }
 
+    @Test
+    public void testScoreGradient() {
+        RandomUtil.getInstance().setSeed(48392L);
+
+        Graph graph = GraphConverter.convert("X1-->X2,X2-->X3,X3-->X4,X4-->X1,X1-->X4");
+        SemPm pm = new SemPm(graph);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+
+        for (ScoreType scoreType : new ScoreType[]{ScoreType.Fml, ScoreType.Fgls}) {
+            SemIm im = new SemIm(pm, new CovarianceMatrix(data));
+            im.setScoreType(scoreType);
+
+            double[] params = im.getFreeParamValues();
+            double[] gradient = im.getScoreGradient();
+            double delta = 1e-6;
+
+            for (int i = 0; i < params.length; i++) {
+                double[] _params = params.clone();
+
+                _params[i] = params[i] + delta;
+                im.setFreeParamValues(_params);
+                double up = im.getScore();
+
+                _params[i] = params[i] - delta;
+                im.setFreeParamValues(_params);
+                double down = im.getScore();
+
+                assertEquals((up - down) / (2 * delta), gradient[i], 1e-5 * Math.max(1, Math.abs(gradient[i])));
+            }
+        }
+    }
+
+    @Test
+    public void testLbfgs() {
+        RandomUtil.getInstance().setSeed(29384L);
+
+        Graph graph = GraphConverter.convert("X1-->X2,X2-->X3,X1-->X3,X3-->X4,X2-->X5,X5-->X6");
+        SemPm pm = new SemPm(graph);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+
+        SemIm powell = new SemEstimator(data, pm, new SemOptimizerPowell()).estimate();
+        SemIm lbfgs = new SemEstimator(data, pm, new SemOptimizerLbfgs()).estimate();
+
+        assertTrue(lbfgs.getScore() <= powell.getScore() + 1e-6);
+    }
+
+    @Test
+    public void testLbfgsRestarts() {
+        RandomUtil.getInstance().setSeed(29384L);
+
+        Graph graph = GraphConverter.convert("X1-->X2,X2-->X3,X3-->X4,X4-->X1,X2-->X5,X5-->X6");
+        SemPm pm = new SemPm(graph);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+
+        // Restarts run in parallel, but the winner should not depend on scheduling.
+        SemOptimizerLbfgs optimizer = new SemOptimizerLbfgs();
+        optimizer.setNumRestarts(7);
+
+        RandomUtil.getInstance().setSeed(5020L);
+        SemIm im1 = new SemIm(pm, new CovarianceMatrix(data));
+        optimizer.optimize(im1);
+
+        RandomUtil.getInstance().setSeed(5020L);
+        SemIm im2 = new SemIm(pm, new CovarianceMatrix(data));
+        optimizer.optimize(im2);
+
+        assertArrayEquals(im1.getFreeParamValues(), im2.getFreeParamValues(), 0.0);
+    }
+
+    @Test
+    public void testStdErrors() {
+        RandomUtil.getInstance().setSeed(10293L);
+
+        Graph graph = GraphConverter.convert("X1-->X2,X2-->X3,X1-->X3,X3-->X4,X2-->X5,X4-->X5");
+        SemPm pm = new SemPm(graph);
+        DataSet data = new SemIm(pm).simulateData(5000, false);
+
+        for (ScoreType scoreType : new ScoreType[]{ScoreType.Fml, ScoreType.Fgls}) {
+            SemEstimator estimator = new SemEstimator(data, pm);
+            estimator.setScoreType(scoreType);
+            SemIm im = estimator.estimate();
+
+            SemStdErrorEstimator analytic = new SemStdErrorEstimator();
+            analytic.computeStdErrors(im);
+
+            SemStdErrorEstimator numeric = new SemStdErrorEstimator();
+            numeric.setAnalytic(false);
+            numeric.computeStdErrors(im);
+
+            double[] expected = numeric.getStdErrors();
+            double[] actual = analytic.getStdErrors();
+
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], 0.05 * expected[i]);
+            }
+        }
+    }
+
     private Graph constructGraph1() {
         Graph graph = new EdgeListGraph();
 
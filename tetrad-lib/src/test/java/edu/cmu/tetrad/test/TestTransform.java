@@ -22,16 +22,21 @@
 package edu.cmu.tetrad.test;
 
 import edu.cmu.tetrad.calculator.Transformation;
+import edu.cmu.tetrad.calculator.expression.Context;
+import edu.cmu.tetrad.calculator.expression.Equation;
+import edu.cmu.tetrad.calculator.parser.ExpressionParser;
 import edu.cmu.tetrad.data.ColtDataSet;
 import edu.cmu.tetrad.data.ContinuousVariable;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
 import org.junit.Test;
 
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -109,8 +114,63 @@ public final class TestTransform {
             fail(ex.getMessage());
         }
     }
-}
 
+    @Test
+    public void testColumnwiseTransforms() throws ParseException {
+        List<Node> list = Arrays.asList((Node) new ContinuousVariable("x"),
+                new ContinuousVariable("y"),
+                new ContinuousVariable("z"));
+        DataSet data = new ColtDataSet(50000, list);
+
+        for (int row = 0; row < data.getNumRows(); row++) {
+            for (int col = 0; col < 3; col++) {
+                data.setDouble(row, col, RandomUtil.getInstance().nextNormal(0, 1));
+            }
+        }
+
+        // Shared subexpressions, an equation changing a variable they mention, and a random draw.
+        String[] equations = {"w = (x + y) * z", "v = exp((x + y) * z) - w", "x = x * 2",
+                "u = sin((x + y) * z) + IF(w > 0, w, -w)", "t = x + N(0, 1)", "y = x"};
+
+        DataSet expected = new ColtDataSet((ColtDataSet) data);
+        RandomUtil.getInstance().setSeed(2938L);
+
+        for (String eq : equations) {
+            transformRowByRow(expected, eq);
+        }
+
+        RandomUtil.getInstance().setSeed(2938L);
+        Transformation.transform(data, equations);
+
+        assertEquals(expected.getVariableNames(), data.getVariableNames());
+
+        for (int row = 0; row < data.getNumRows(); row++) {
+            for (int col = 0; col < data.getNumColumns(); col++) {
+                assertEquals(expected.getDouble(row, col), data.getDouble(row, col), 0.0);
+            }
+        }
+    }
 
+    // Evaluates an equation one row at a time, through the expression tree.
+    private void transformRowByRow(final DataSet data, String eq) throws ParseException {
+        Equation equation = new ExpressionParser().parseEquation(eq);
 
+        if (data.getVariable(equation.getVariable()) == null) {
+            data.addVariable(new ContinuousVariable(equation.getVariable()));
+        }
 
+        int column = data.getColumn(data.getVariable(equation.getVariable()));
+        final int[] row = new int[1];
+
+        Context context = new Context() {
+            public Double getValue(String var) {
+                Node node = data.getVariable(var);
+                return node == null ? null : data.getDouble(row[0], data.getColumn(node));
+            }
+        };
+
+        for (row[0] = 0; row[0] < data.getNumRows(); row[0]++) {
+            data.setDouble(row[0], column, equation.getExpression().evaluate(context));
+        }
+    }
+}